@@ -0,0 +1,175 @@
+package dukpt.client;
+
+import dukpt.container.BDKContainer;
+import dukpt.service.DUKPTServer;
+import dukpt.util.DESCryptoUtil;
+import dukpt.util.DUKPTUtil;
+import dukpt.util.HexCodec;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback client of {@link DUKPTServer}: starts the service on an ephemeral port, sends it
+ * decryption requests of many devices with up to <code>concurrency</code> requests in flight,
+ * checks every answer, then pipelines requests over a single connection and drains the service.
+ *
+ * Usage: <code>DUKPTServiceClient [-n requests] [-c concurrency] [-d devices] [-p pipelineDepth]</code>
+ */
+public class DUKPTServiceClient {
+  private static final String BDK_NAME = "loopback";
+  private static final String BDK = "0123456789ABCDEFFEDCBA9876543210";
+  private static final String TRACK = "%B4815881002861896^YATES/EUGENE JOHN ^37829821000123456789?";
+
+  public static void main(String[] args) throws Exception {
+    int requests = 100000;
+    int concurrency = 1000;
+    int devices = 1000;
+    int pipelineDepth = 100;
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-n".equals(args[i])) {
+        requests = Integer.parseInt(args[++i]);
+      } else if ("-c".equals(args[i])) {
+        concurrency = Integer.parseInt(args[++i]);
+      } else if ("-d".equals(args[i])) {
+        devices = Integer.parseInt(args[++i]);
+      } else if ("-p".equals(args[i])) {
+        pipelineDepth = Integer.parseInt(args[++i]);
+      }
+    }
+
+    BDKContainer.getInstance().insertBDK(BDK_NAME, BDK);
+    // Pipelined requests need their connections kept open between exchanges
+    DUKPTServer.keepIdleConnections(DUKPTServer.DEFAULT_MAXIMUM_CONCURRENT_REQUESTS);
+    DUKPTServer server = new DUKPTServer(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+        0));
+    server.start();
+    System.out.println("Service on " + server.getAddress() + ", "
+        + (server.isVirtualThreads() ? "virtual threads" : "platform threads"));
+
+    String[] bodies = new String[devices];
+    String expected = HexCodec.encode(pad(TRACK.getBytes(StandardCharsets.US_ASCII)), true);
+    for (int d = 0; d < devices; d++) {
+      bodies[d] = decryptRequest(d);
+    }
+
+    URI uri = URI.create("http://" + server.getAddress().getHostString() + ":"
+        + server.getAddress().getPort() + "/decrypt");
+    HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+    Semaphore inFlight = new Semaphore(concurrency);
+    CountDownLatch done = new CountDownLatch(requests);
+    AtomicInteger failures = new AtomicInteger();
+    AtomicLong maximumNanos = new AtomicLong();
+    long[] latencies = new long[requests];
+
+    long start = System.nanoTime();
+    for (int i = 0; i < requests; i++) {
+      inFlight.acquire();
+      final int request = i;
+      final long sent = System.nanoTime();
+      HttpRequest httpRequest = HttpRequest.newBuilder(uri)
+          .header("Content-Type", "application/x-www-form-urlencoded")
+          .POST(HttpRequest.BodyPublishers.ofString(bodies[i % devices])).build();
+      client.sendAsync(httpRequest, HttpResponse.BodyHandlers.ofString())
+          .whenComplete((response, error) -> {
+            long nanos = System.nanoTime() - sent;
+            latencies[request] = nanos;
+            maximumNanos.accumulateAndGet(nanos, Math::max);
+            if (error != null || response.statusCode() != 200
+                || !response.body().contains("data=" + expected)) {
+              failures.incrementAndGet();
+            }
+            inFlight.release();
+            done.countDown();
+          });
+    }
+    done.await();
+    long elapsed = System.nanoTime() - start;
+
+    Arrays.sort(latencies);
+    System.out.println(String.format("%d requests, %d failures, %.0f requests/s", requests,
+        failures.get(), requests * 1e9 / elapsed));
+    System.out.println(String.format("latency p50 %.2f ms, p99 %.2f ms, max %.2f ms",
+        latencies[requests / 2] / 1e6, latencies[(int) (requests * 0.99)] / 1e6,
+        maximumNanos.get() / 1e6));
+
+    System.out.println("Pipelined " + pipelineDepth + " requests on one connection, "
+        + pipeline(server.getAddress(), bodies[0], pipelineDepth) + " answered");
+
+    System.out.println("Drained: " + server.stop(10, TimeUnit.SECONDS));
+  }
+
+  /**
+   * @return a decryption request for the first transaction of device <code>device</code>
+   */
+  private static String decryptRequest(int device) throws Exception {
+    byte[] ksn = HexCodec.decode("FFFF987654" + String.format("%05X", device << 1) + "00001");
+    byte[] key = DUKPTUtil.calculatePinEncryptionKeyWithNoVariant(DUKPTUtil.deriveKey(ksn,
+        HexCodec.decode(BDK)));
+    byte[] data = DESCryptoUtil.tdesEncrypt(pad(TRACK.getBytes(StandardCharsets.US_ASCII)), key);
+
+    return "bdk=" + BDK_NAME + "&ksn=" + HexCodec.encode(ksn, true) + "&data="
+        + HexCodec.encode(data, true);
+  }
+
+  private static byte[] pad(byte[] data) {
+    return Arrays.copyOf(data, (data.length + 7) / 8 * 8);
+  }
+
+  /**
+   * Writes <code>depth</code> requests back to back on one connection before reading any answer.
+   * 
+   * @return the number of 200 answers
+   */
+  private static int pipeline(InetSocketAddress address, String body, int depth) throws Exception {
+    StringBuilder requests = new StringBuilder();
+    for (int i = 0; i < depth; i++) {
+      requests.append("POST /decrypt HTTP/1.1\r\nHost: localhost\r\nContent-Length: ")
+          .append(body.length()).append("\r\n\r\n").append(body);
+    }
+
+    try (Socket socket = new Socket(address.getAddress(), address.getPort())) {
+      socket.setSoTimeout(10000);
+      OutputStream out = socket.getOutputStream();
+      out.write(requests.toString().getBytes(StandardCharsets.US_ASCII));
+      out.flush();
+
+      InputStream in = socket.getInputStream();
+      ByteArrayOutputStream answers = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      int answered = 0;
+      int read;
+      while (answered < depth && (read = in.read(buffer)) > 0) {
+        answers.write(buffer, 0, read);
+        answered = count(answers.toString("US-ASCII"), "status=SUCCESS");
+      }
+
+      return count(answers.toString("US-ASCII"), "HTTP/1.1 200");
+    }
+  }
+
+  private static int count(String text, String token) {
+    int count = 0;
+    for (int i = text.indexOf(token); i >= 0; i = text.indexOf(token, i + token.length())) {
+      count++;
+    }
+
+    return count;
+  }
+}
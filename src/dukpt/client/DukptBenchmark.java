@@ -0,0 +1,412 @@
+package dukpt.client;
+
+import dukpt.container.BDKContainer;
+import dukpt.container.BaseDerivationKey;
+import dukpt.model.KeyType;
+import dukpt.model.KeyUsage;
+import dukpt.model.PinBlockFormat;
+import dukpt.model.WorkingKey;
+import dukpt.util.AESDUKPTUtil;
+import dukpt.util.DESCryptoUtil;
+import dukpt.util.DUKPTOriginator;
+import dukpt.util.DUKPTUtil;
+import dukpt.util.PinBlockEngine;
+import dukpt.util.PinKey;
+import dukpt.util.RetailMAC;
+import dukpt.util.StringUtil;
+import dukpt.util.WorkingKeyBundle;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Throughput, allocation and GC figures for the DUKPT hot paths, run with 1, 4 and N (available
+ * processors) threads.
+ *
+ * Usage: <code>DukptBenchmark [-w warmupSeconds] [-m measureSeconds] [-t 1,4,8] [name filter]</code>
+ *
+ * Each thread works on its own fixtures. Allocation is measured per thread through
+ * <code>com.sun.management.ThreadMXBean</code> when the JVM supports it, and GC activity is the
+ * difference of the collector counters around the measured run.
+ */
+public class DukptBenchmark {
+  private static final String KSN = "FFFF9876543210E00000";
+  private static final String BDK = "0123456789ABCDEFFEDCBA9876543210";
+  private static final String IPEK = "6AC292FAA1315B4D858AB3A3D7D5933A";
+  private static final String AES_BDK = "FEDCBA9876543210F1F1F1F1F1F1F1F1";
+  private static final String AES_KSN = "1234567890123456000000FF";
+  private static final String PAN = "4111111111111111";
+
+  // Results are written here so that the JIT can not discard the benchmarked work
+  static volatile Object sink;
+
+  public static void main(String[] args) throws Exception {
+    int warmupSeconds = 2;
+    int measureSeconds = 5;
+    int[] threadCounts = { 1, 4, Runtime.getRuntime().availableProcessors() };
+    String filter = null;
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-w".equals(args[i])) {
+        warmupSeconds = Integer.parseInt(args[++i]);
+      } else if ("-m".equals(args[i])) {
+        measureSeconds = Integer.parseInt(args[++i]);
+      } else if ("-t".equals(args[i])) {
+        String[] counts = args[++i].split(",");
+        threadCounts = new int[counts.length];
+        for (int j = 0; j < counts.length; j++) {
+          threadCounts[j] = Integer.parseInt(counts[j].trim());
+        }
+      } else {
+        filter = args[i];
+      }
+    }
+
+    System.out.println(String.format("%-40s %7s %14s %12s %12s %8s %8s", "Benchmark", "Threads",
+        "ops/s", "ns/op", "B/op", "GCs", "GC ms"));
+
+    for (Benchmark benchmark : benchmarks()) {
+      if (filter != null && !benchmark.name.contains(filter)) {
+        continue;
+      }
+
+      for (int threads : threadCounts) {
+        run(benchmark, threads, warmupSeconds, measureSeconds);
+      }
+    }
+  }
+
+  private static List<Benchmark> benchmarks() {
+    List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+    final byte[] bdk = StringUtil.hexStringToBytes(BDK);
+    final byte[] ipek = StringUtil.hexStringToBytes(IPEK);
+
+    benchmarks.add(new Benchmark("generateIPEK", () -> {
+      byte[] ksn = ksnWithCounter(1);
+      return () -> DUKPTUtil.generateIPEK(ksn, bdk);
+    }));
+
+    for (int setBits = 1; setBits <= 10; setBits++) {
+      // Counter with its setBits rightmost bits set, one derivation step per bit
+      final int counter = (1 << setBits) - 1;
+      benchmarks.add(new Benchmark("deriveKey[setBits=" + setBits + "]", () -> {
+        byte[] ksn = ksnWithCounter(counter);
+        return () -> DUKPTUtil.deriveKey(ksn, bdk);
+      }));
+    }
+
+    benchmarks.add(new Benchmark("DUKPTOriginator.nextKey", () -> {
+      byte[] ksn = ksnWithCounter(0);
+      byte[] key = new byte[16];
+      DUKPTOriginator[] originator = { new DUKPTOriginator(ipek, ksn) };
+      return () -> {
+        if (!originator[0].nextKey(ksn, 0, key, 0)) {
+          // Exhausted after about a million keys, inject the device again
+          originator[0] = new DUKPTOriginator(ipek, ksnWithCounter(0));
+        }
+        return key;
+      };
+    }));
+
+    benchmarks.add(new Benchmark("AESDUKPTUtil.deriveWorkingKey", () -> {
+      byte[] aesBdk = StringUtil.hexStringToBytes(AES_BDK);
+      byte[] ksn = StringUtil.hexStringToBytes(AES_KSN);
+      return () -> AESDUKPTUtil.deriveWorkingKey(aesBdk, ksn, KeyUsage.PIN_ENCRYPTION,
+          KeyType.AES_128);
+    }));
+
+    benchmarks.add(new Benchmark("AESDUKPTUtil.deriveWorkingKey[cached]", () -> {
+      byte[] aesBdk = StringUtil.hexStringToBytes(AES_BDK);
+      byte[] ksn = StringUtil.hexStringToBytes(AES_KSN);
+      byte[] key = new byte[16];
+      return () -> {
+        AESDUKPTUtil.deriveWorkingKey(ksn, "benchmark", aesBdk, KeyUsage.PIN_ENCRYPTION,
+            KeyType.AES_128, key, 0);
+        return key;
+      };
+    }));
+
+    benchmarks.add(new Benchmark("calculateBasePinEncryptionKey", () -> {
+      byte[] ksn = ksnWithCounter(1);
+      return () -> DUKPTUtil.calculateBasePinEncryptionKey(ipek, ksn);
+    }));
+
+    benchmarks.add(new Benchmark("calculatePinEncryptionKeyWithVariant", () -> {
+      return () -> DUKPTUtil.calculatePinEncryptionKeyWithVariant(ipek);
+    }));
+
+    benchmarks.add(new Benchmark("deriveKeys[64]", () -> {
+      BDKContainer.getInstance().insertBDK("benchmark", BDK);
+      BaseDerivationKey baseKey = BDKContainer.getInstance().get("benchmark");
+      dukpt.model.KSN[] ksns = new dukpt.model.KSN[64];
+      for (int i = 0; i < ksns.length; i++) {
+        ksns[i] = dukpt.model.KSN.fromBytes(ksnWithCounter(i * 0x2001 + 1));
+      }
+      byte[] keys = new byte[ksns.length * 16];
+      return () -> {
+        DUKPTUtil.deriveKeys(ksns, 0, ksns.length, baseKey, keys, 0);
+        return keys;
+      };
+    }));
+
+    benchmarks.add(new Benchmark("WorkingKeyBundle.derive[PIN+MAC+DATA]", () -> {
+      WorkingKeyBundle bundle = new WorkingKeyBundle();
+      int mask = WorkingKey.mask(WorkingKey.PIN, WorkingKey.MAC_REQUEST, WorkingKey.DATA_REQUEST);
+      return () -> {
+        bundle.derive(ipek, 0, mask);
+        return bundle;
+      };
+    }));
+
+    for (final int length : new int[] { 8, 24, 64 }) {
+      benchmarks.add(new Benchmark("tdesDecrypt[" + length + "]", () -> {
+        byte[] data = new byte[length];
+        return () -> DESCryptoUtil.tdesDecrypt(data, ipek);
+      }));
+    }
+
+    benchmarks.add(new Benchmark("decryptTrack1[status]", () -> {
+      byte[] ksn = ksnWithCounter(1);
+      byte[] data = new byte[64];
+      byte[] decrypted = new byte[64];
+      return () -> DUKPTUtil.decryptTrack1(data, 0, data.length, ksn, "benchmark", bdk, decrypted,
+          0);
+    }));
+
+    benchmarks.add(new Benchmark("decryptTrack1[status, misaligned]", () -> {
+      byte[] ksn = ksnWithCounter(1);
+      byte[] data = new byte[63];
+      byte[] decrypted = new byte[64];
+      return () -> DUKPTUtil.decryptTrack1(data, 0, data.length, ksn, "benchmark", bdk, decrypted,
+          0);
+    }));
+
+    benchmarks.add(new Benchmark("PinBlockEngine.translate[ISO_0->ISO_3]", () -> {
+      PinBlockEngine engine = new PinBlockEngine();
+      PinKey source = PinKey.tdes(ipek);
+      PinKey destination = PinKey.tdes(bdk);
+      byte[] pinBlock = new byte[8];
+      byte[] translated = new byte[8];
+      engine.encrypt("1234", PinBlockFormat.ISO_0, PAN, source, pinBlock, 0);
+      return () -> engine.translate(source, pinBlock, 0, PinBlockFormat.ISO_0, PAN, destination,
+          PinBlockFormat.ISO_3, translated, 0);
+    }));
+
+    benchmarks.add(new Benchmark("PinBlockEngine.translate[DUKPT]", () -> {
+      BDKContainer.getInstance().insertBDK("benchmark", BDK);
+      BaseDerivationKey baseKey = BDKContainer.getInstance().get("benchmark");
+      dukpt.model.KSN ksn = dukpt.model.KSN.fromBytes(ksnWithCounter(1));
+      PinBlockEngine engine = new PinBlockEngine();
+      PinKey destination = PinKey.tdes(bdk);
+      byte[] pinBlock = new byte[8];
+      byte[] translated = new byte[8];
+      engine.encrypt("1234", PinBlockFormat.ISO_0, PAN, PinKey.dukpt(ksn, baseKey), pinBlock, 0);
+      return () -> engine.translate(ksn, baseKey, pinBlock, 0, PinBlockFormat.ISO_0, PAN,
+          destination, PinBlockFormat.ISO_0, translated, 0);
+    }));
+
+    for (final int length : new int[] { 64, 4096 }) {
+      benchmarks.add(new Benchmark("RetailMAC.verify[" + length + "]", () -> {
+        RetailMAC mac = new RetailMAC(RetailMAC.Padding.METHOD_1);
+        byte[] message = new byte[length];
+        byte[] expected = new byte[4];
+        mac.initRequest(ipek, 0);
+        mac.update(message, 0, length);
+        mac.doFinal(expected, 0, 4);
+        return () -> {
+          mac.update(message, 0, length);
+          return mac.verify(expected, 0, 4);
+        };
+      }));
+    }
+
+    benchmarks.add(new Benchmark("hexStringToBytes", () -> {
+      return () -> StringUtil.hexStringToBytes(BDK);
+    }));
+
+    benchmarks.add(new Benchmark("toHexString", () -> {
+      return () -> StringUtil.toHexString(ipek);
+    }));
+
+    benchmarks.add(new Benchmark("TestDukpt.dukptDecryption", () -> {
+      TestDukpt testDukpt = new TestDukpt();
+      return () -> testDukpt.dukptDecryption("FFFF2222227070000001",
+          "9B8269417F61C26A4AC5EC57412D1E10",
+          "7BFDBD2A9875D681370951C47E5C780B6814404CA7DDB33E");
+    }));
+
+    return benchmarks;
+  }
+
+  private static byte[] ksnWithCounter(int counter) {
+    byte[] ksn = StringUtil.hexStringToBytes(KSN);
+    ksn[7] |= (byte) ((counter >>> 16) & 0x1F);
+    ksn[8] = (byte) (counter >>> 8);
+    ksn[9] = (byte) counter;
+    return ksn;
+  }
+
+  private static void run(Benchmark benchmark, int threads, int warmupSeconds,
+      int measureSeconds) throws Exception {
+    // dukptDecryption prints its intermediate keys on every call
+    PrintStream out = System.out;
+    System.setOut(new PrintStream(new OutputStream() {
+      @Override
+      public void write(int b) {
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+      }
+    }));
+
+    Measurement measurement;
+    try {
+      execute(benchmark, threads, warmupSeconds);
+      measurement = execute(benchmark, threads, measureSeconds);
+    } finally {
+      System.setOut(out);
+    }
+
+    double opsPerSecond = measurement.operations / (measurement.nanos / 1e9);
+    double nanosPerOperation = (double) measurement.nanos * threads / measurement.operations;
+    String bytesPerOperation = measurement.allocatedBytes < 0 ? "n/a" : String.format("%.1f",
+        (double) measurement.allocatedBytes / measurement.operations);
+
+    System.out.println(String.format("%-40s %7d %14.0f %12.1f %12s %8d %8d", benchmark.name,
+        threads, opsPerSecond, nanosPerOperation, bytesPerOperation, measurement.gcCount,
+        measurement.gcMillis));
+  }
+
+  private static Measurement execute(final Benchmark benchmark, int threads, int seconds)
+      throws Exception {
+    final AtomicBoolean running = new AtomicBoolean(true);
+    final CountDownLatch ready = new CountDownLatch(threads);
+    final CountDownLatch start = new CountDownLatch(1);
+    final long[] operations = new long[threads];
+    final long[] allocatedBytes = new long[threads];
+    final Exception[] failures = new Exception[threads];
+    final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final int index = t;
+      workers[t] = new Thread(() -> {
+        try {
+          Operation operation = benchmark.fixture.create();
+          ready.countDown();
+          start.await();
+
+          long allocatedBefore = allocatedBytes(threadBean);
+          long count = 0;
+          while (running.get()) {
+            sink = operation.run();
+            count++;
+          }
+
+          long allocatedAfter = allocatedBytes(threadBean);
+          operations[index] = count;
+          allocatedBytes[index] = allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore;
+        } catch (Exception e) {
+          failures[index] = e;
+          ready.countDown();
+        }
+      }, "benchmark-" + t);
+      workers[t].start();
+    }
+
+    ready.await();
+    long gcCountBefore = gcCount();
+    long gcMillisBefore = gcMillis();
+    long begin = System.nanoTime();
+    start.countDown();
+
+    Thread.sleep(seconds * 1000L);
+    running.set(false);
+    for (Thread worker : workers) {
+      worker.join();
+    }
+
+    Measurement measurement = new Measurement();
+    measurement.nanos = System.nanoTime() - begin;
+    measurement.gcCount = gcCount() - gcCountBefore;
+    measurement.gcMillis = gcMillis() - gcMillisBefore;
+    for (int t = 0; t < threads; t++) {
+      if (failures[t] != null) {
+        throw failures[t];
+      }
+
+      measurement.operations += operations[t];
+      if (allocatedBytes[t] < 0 || measurement.allocatedBytes < 0) {
+        measurement.allocatedBytes = -1;
+      } else {
+        measurement.allocatedBytes += allocatedBytes[t];
+      }
+    }
+
+    return measurement;
+  }
+
+  private static long allocatedBytes(ThreadMXBean threadBean) {
+    if (threadBean instanceof com.sun.management.ThreadMXBean) {
+      com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) threadBean;
+      if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+
+    return -1;
+  }
+
+  private static long gcCount() {
+    long count = 0;
+    for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      count += Math.max(0, bean.getCollectionCount());
+    }
+
+    return count;
+  }
+
+  private static long gcMillis() {
+    long millis = 0;
+    for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+      millis += Math.max(0, bean.getCollectionTime());
+    }
+
+    return millis;
+  }
+
+  interface Operation {
+    Object run() throws Exception;
+  }
+
+  interface Fixture {
+    // Called once per thread, outside of the measured time
+    Operation create() throws Exception;
+  }
+
+  private static final class Benchmark {
+    final String name;
+    final Fixture fixture;
+
+    Benchmark(String name, Fixture fixture) {
+      this.name = name;
+      this.fixture = fixture;
+    }
+  }
+
+  private static final class Measurement {
+    long nanos;
+    long operations;
+    long allocatedBytes;
+    long gcCount;
+    long gcMillis;
+  }
+}
@@ -0,0 +1,694 @@
+package dukpt.client;
+
+import dukpt.container.BDKContainer;
+import dukpt.container.BaseDerivationKey;
+import dukpt.container.IPEKCache;
+import dukpt.metrics.LatencyHistogram;
+import dukpt.model.DecryptionStatus;
+import dukpt.model.KSN;
+import dukpt.model.PinBlockFormat;
+import dukpt.model.WorkingKey;
+import dukpt.util.ByteArrayUtil;
+import dukpt.util.DESEngine;
+import dukpt.util.DUKPTOriginator;
+import dukpt.util.DUKPTUtil;
+import dukpt.util.HexCodec;
+import dukpt.util.PinBlockEngine;
+import dukpt.util.PinBlockUtil;
+import dukpt.util.PinKey;
+import dukpt.util.RetailMAC;
+import dukpt.util.StringUtil;
+import dukpt.util.WorkingKeyBundle;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Capacity test of the receiving side against a simulated fleet of terminals, where
+ * {@link DukptBenchmark} measures single operations on one device.
+ *
+ * The fleet is <code>devices</code> terminals spread over <code>bdks</code> BDKs (one key set
+ * each), every one injected with its IPEK and running its own {@link DUKPTOriginator}. Terminal
+ * activity follows a Zipf law: the terminal of rank r transacts in proportion to 1 / r^s, so a few
+ * busy terminals have high counters and most of the fleet is rarely seen, which is what the IPEK
+ * cache has to cope with. Terminals first run <code>history</code> transactions per terminal on
+ * average, unrecorded, so that counters are not all fresh, then the recorded transactions are
+ * generated through the originator side of the library:
+ * <ul>
+ * <li>track: track 1 data encrypted under the data key, as {@link DUKPTUtil#decryptTrack1}
+ * expects it;</li>
+ * <li>PIN: an ISO 9564 format 0 PIN block under the PIN key;</li>
+ * <li>EMV: chip data encrypted under the one-way data request key, with a 4 bytes ANSI X9.19 MAC
+ * under the MAC request key.</li>
+ * </ul>
+ * The transactions are then replayed against the decryption side at each target rate, open loop:
+ * transaction i is due at <code>i / rate</code> seconds and its latency runs from that time, not
+ * from when a thread got to it, so that a saturated service shows its queueing delay. A rate of 0
+ * replays as fast as the threads can, and latency is then the service time.
+ *
+ * Captured traffic is replayed instead of a generated fleet with <code>-f</code>: a batch file of
+ * length-prefixed track records (see {@link dukpt.util.DUKPTBatchFileUtil.RecordFormat}), with
+ * the BDK of each key set given as <code>-k KSI=BDK</code> (10 and 32 hex digits). A generated
+ * fleet saves its track transactions in that format with <code>-o</code>.
+ *
+ * Usage: <code>FleetLoadTest [-n devices] [-b bdks] [-z zipfExponent] [-h history]
+ * [-x transactions] [-mix track,pin,emv] [-s seed] [-o file] [-f file -k KSI=BDK ...]
+ * [-r rate,rate,...] [-d seconds] [-w warmupSeconds] [-t threads]</code>
+ */
+public class FleetLoadTest {
+  private static final String PIN = "1234";
+  // Key set identifiers of the fleet: FF FF then 98 00 00 + index of the BDK
+  private static final int FLEET_BDK_ID = 0x980000;
+  private static final int MAXIMUM_BDKS = 0x10000;
+  private static final int DEVICE_ID_BITS = 19;
+  private static final int TRACK_LENGTH = 80;
+  private static final int EMV_LENGTH = 128;
+  private static final int MAC_LENGTH = 4;
+  private static final int MAXIMUM_DATA_LENGTH = 0xFFFF;
+  private static final long SPIN_NANOS = 100000;
+  private static final int EMV_KEYS = WorkingKey.mask(WorkingKey.DATA_REQUEST,
+      WorkingKey.MAC_REQUEST);
+
+  enum Kind {
+    TRACK, PIN, EMV
+  }
+
+  public static void main(String[] args) throws Exception {
+    int devices = 10000;
+    int bdks = 4;
+    double zipfExponent = 1.0;
+    int history = 20;
+    int transactions = 100000;
+    int[] mix = { 60, 30, 10 };
+    long seed = 1;
+    String output = null;
+    String input = null;
+    Map<Long, BaseDerivationKey> keySets = new HashMap<Long, BaseDerivationKey>();
+    int[] rates = { 0 };
+    int seconds = 10;
+    int warmupSeconds = 3;
+    int threads = Runtime.getRuntime().availableProcessors();
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-n".equals(args[i])) {
+        devices = Integer.parseInt(args[++i]);
+      } else if ("-b".equals(args[i])) {
+        bdks = Integer.parseInt(args[++i]);
+      } else if ("-z".equals(args[i])) {
+        zipfExponent = Double.parseDouble(args[++i]);
+      } else if ("-h".equals(args[i])) {
+        history = Integer.parseInt(args[++i]);
+      } else if ("-x".equals(args[i])) {
+        transactions = Integer.parseInt(args[++i]);
+      } else if ("-mix".equals(args[i])) {
+        mix = parseInts(args[++i]);
+      } else if ("-s".equals(args[i])) {
+        seed = Long.parseLong(args[++i]);
+      } else if ("-o".equals(args[i])) {
+        output = args[++i];
+      } else if ("-f".equals(args[i])) {
+        input = args[++i];
+      } else if ("-k".equals(args[i])) {
+        String[] keySet = args[++i].split("=");
+        long keySetId = Long.parseLong(keySet[0], 16);
+        keySets.put(keySetId, storeBDK(keySetId, StringUtil.hexStringToBytes(keySet[1])));
+      } else if ("-r".equals(args[i])) {
+        rates = parseInts(args[++i]);
+      } else if ("-d".equals(args[i])) {
+        seconds = Integer.parseInt(args[++i]);
+      } else if ("-w".equals(args[i])) {
+        warmupSeconds = Integer.parseInt(args[++i]);
+      } else if ("-t".equals(args[i])) {
+        threads = Integer.parseInt(args[++i]);
+      } else {
+        throw new IllegalArgumentException("@ FleetLoadTest.main(). Unknown option " + args[i]
+            + ".");
+      }
+    }
+
+    List<Transaction> traffic;
+    long begin = System.nanoTime();
+    if (input != null) {
+      traffic = readCapture(input, keySets);
+      System.out.println(String.format("Captured traffic: %d transactions from %s, read in %d ms",
+          traffic.size(), input, (System.nanoTime() - begin) / 1000000));
+    } else {
+      Fleet fleet = new Fleet(devices, bdks, zipfExponent, seed, keySets);
+      fleet.age((long) history * devices);
+      traffic = fleet.generate(transactions, mix);
+      System.out.println(String.format("Fleet: %d devices, %d BDKs, Zipf s=%.2f, %d transactions"
+          + " generated in %d ms", devices, bdks, zipfExponent, traffic.size(),
+          (System.nanoTime() - begin) / 1000000));
+      fleet.printSummary(traffic);
+      if (output != null) {
+        writeCapture(output, traffic);
+        StringBuilder keys = new StringBuilder("Replay with -f " + output);
+        for (Map.Entry<Long, BaseDerivationKey> keySet : keySets.entrySet()) {
+          keys.append(String.format(" -k %010X=%s", keySet.getKey(),
+              HexCodec.encode(keySet.getValue().getKey(), true)));
+        }
+        System.out.println(keys);
+      }
+    }
+
+    if (traffic.isEmpty()) {
+      throw new IllegalArgumentException("@ FleetLoadTest.main(). No transaction to replay.");
+    }
+
+    Transaction[] replayed = traffic.toArray(new Transaction[traffic.size()]);
+    replay(replayed, keySets, threads, 0, warmupSeconds);
+
+    System.out.println(String.format("%-6s %10s %12s %10s %10s %10s %10s %8s %8s %10s", "Kind",
+        "Target/s", "Achieved/s", "p50 us", "p99 us", "p999 us", "max us", "Errors", "IPEK hit",
+        "Evictions"));
+    for (int rate : rates) {
+      IPEKCache cache = IPEKCache.getInstance();
+      long hits = cache.getHitCount();
+      long misses = cache.getMissCount();
+      long evictions = cache.getEvictionCount();
+
+      Run run = replay(replayed, keySets, threads, rate, seconds);
+
+      hits = cache.getHitCount() - hits;
+      misses = cache.getMissCount() - misses;
+      evictions = cache.getEvictionCount() - evictions;
+      String hitRatio = hits + misses == 0 ? "n/a" : String.format("%.1f%%", 100.0 * hits
+          / (hits + misses));
+      for (Kind kind : Kind.values()) {
+        run.print(kind.name().toLowerCase(), run.histograms[kind.ordinal()],
+            run.errors[kind.ordinal()].get(), rate, "", "");
+      }
+      run.print("all", run.total, run.totalErrors(), rate, hitRatio, Long.toString(evictions));
+    }
+  }
+
+  /**
+   * Replays <code>traffic</code> in a loop for <code>seconds</code>, at <code>rate</code>
+   * transactions per second or as fast as possible when 0.
+   */
+  private static Run replay(final Transaction[] traffic, final Map<Long, BaseDerivationKey> keySets,
+      int threads, final int rate, int seconds) throws Exception {
+    final Run run = new Run();
+    final AtomicLong sequence = new AtomicLong();
+    final long begin = System.nanoTime() + 10000000L;
+    final long end = begin + seconds * 1000000000L;
+    final long last = rate == 0 ? Long.MAX_VALUE : (long) rate * seconds;
+    final double interval = rate == 0 ? 0 : 1e9 / rate;
+    final Exception[] failures = new Exception[threads];
+
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final int index = t;
+      workers[t] = new Thread(() -> {
+        try {
+          Decryptor decryptor = new Decryptor(keySets);
+          for (long i = sequence.getAndIncrement(); i < last; i = sequence.getAndIncrement()) {
+            long due;
+            if (rate == 0) {
+              due = System.nanoTime();
+              if (due - end >= 0) {
+                break;
+              }
+            } else {
+              due = begin + (long) (i * interval);
+              // Parking overshoots by tens of microseconds, which would count as latency
+              for (long wait = due - System.nanoTime(); wait > 0; wait = due - System.nanoTime()) {
+                if (wait > SPIN_NANOS) {
+                  LockSupport.parkNanos(wait - SPIN_NANOS);
+                } else {
+                  Thread.onSpinWait();
+                }
+              }
+            }
+
+            Transaction transaction = traffic[(int) (i % traffic.length)];
+            boolean success = decryptor.decrypt(transaction);
+            long latency = System.nanoTime() - due;
+            run.histograms[transaction.kind.ordinal()].record(latency);
+            run.total.record(latency);
+            if (!success) {
+              run.errors[transaction.kind.ordinal()].incrementAndGet();
+            }
+          }
+        } catch (Exception e) {
+          failures[index] = e;
+        }
+      }, "fleet-" + t);
+      workers[t].start();
+    }
+
+    for (Thread worker : workers) {
+      worker.join();
+    }
+    run.nanos = Math.max(1, System.nanoTime() - begin);
+
+    for (Exception failure : failures) {
+      if (failure != null) {
+        throw failure;
+      }
+    }
+
+    return run;
+  }
+
+  private static BaseDerivationKey storeBDK(long keySetId, byte[] bdk) {
+    BDKContainer container = BDKContainer.getInstance();
+    String name = String.format("fleet-%010X", keySetId);
+    if (container.replace(name, bdk) == null) {
+      container.putIfAbsent(name, bdk);
+    }
+    return container.get(name);
+  }
+
+  private static int[] parseInts(String list) {
+    String[] values = list.split(",");
+    int[] ints = new int[values.length];
+    for (int i = 0; i < values.length; i++) {
+      ints[i] = Integer.parseInt(values[i].trim());
+    }
+
+    return ints;
+  }
+
+  /**
+   * Reads a batch file of length-prefixed records: KSN, length of the data (2 bytes, big-endian),
+   * encrypted data.
+   */
+  private static List<Transaction> readCapture(String path, Map<Long, BaseDerivationKey> keySets)
+      throws IOException {
+    byte[] file = Files.readAllBytes(Paths.get(path));
+    List<Transaction> traffic = new ArrayList<Transaction>();
+    int position = 0;
+    while (position < file.length) {
+      if (file.length - position < KSN.LENGTH + 2) {
+        throw new IOException("@ FleetLoadTest.readCapture(). Truncated record header at offset "
+            + position + " of " + path + ".");
+      }
+
+      KSN ksn = KSN.fromBytes(file, position);
+      int length = ((file[position + KSN.LENGTH] & 0xFF) << 8)
+          | (file[position + KSN.LENGTH + 1] & 0xFF);
+      position += KSN.LENGTH + 2;
+      if (file.length - position < length) {
+        throw new IOException("@ FleetLoadTest.readCapture(). Truncated record data at offset "
+            + position + " of " + path + ".");
+      }
+
+      if (!keySets.containsKey(ksn.getKeySetId())) {
+        throw new IllegalArgumentException(String.format("@ FleetLoadTest.readCapture(). No BDK"
+            + " for key set %010X, give it with -k.", ksn.getKeySetId()));
+      }
+      traffic.add(new Transaction(Kind.TRACK, ksn, Arrays.copyOfRange(file, position, position
+          + length), null, null, false));
+      position += length;
+    }
+
+    return traffic;
+  }
+
+  private static void writeCapture(String path, List<Transaction> traffic) throws IOException {
+    long records = 0;
+    try (OutputStream out = Files.newOutputStream(Paths.get(path))) {
+      byte[] header = new byte[KSN.LENGTH + 2];
+      for (Transaction transaction : traffic) {
+        if (transaction.kind != Kind.TRACK) {
+          continue;
+        }
+
+        transaction.ksn.copyTo(header, 0);
+        header[KSN.LENGTH] = (byte) (transaction.data.length >>> 8);
+        header[KSN.LENGTH + 1] = (byte) transaction.data.length;
+        out.write(header);
+        out.write(transaction.data);
+        records++;
+      }
+    }
+
+    System.out.println("Saved " + records + " track transactions to " + path);
+  }
+
+  /**
+   * One recorded transaction, as received by the host.
+   */
+  private static final class Transaction {
+    final Kind kind;
+    final KSN ksn;
+    final byte[] data;
+    final byte[] mac;
+    final String pan;
+    // Whether the plain data is known, and can be checked after decryption
+    final boolean generated;
+
+    Transaction(Kind kind, KSN ksn, byte[] data, byte[] mac, String pan, boolean generated) {
+      this.kind = kind;
+      this.ksn = ksn;
+      this.data = data;
+      this.mac = mac;
+      this.pan = pan;
+      this.generated = generated;
+    }
+  }
+
+  /**
+   * The terminals, their keys and their activity.
+   */
+  private static final class Fleet {
+    private final int devices;
+    private final BaseDerivationKey[] bdks;
+    private final DUKPTOriginator[] originators;
+    private final KSN[] initialKSNs;
+    private final String[] pans;
+    // Cumulative Zipf weights by rank, and the device of each rank
+    private final double[] cumulative;
+    private final int[] rankedDevices;
+    private final SplittableRandom random;
+    // Fixtures of the originator side
+    private final byte[] ksn = new byte[KSN.LENGTH];
+    private final byte[] key = new byte[16];
+    private final byte[] workingKey = new byte[16];
+    private final int[] schedule = new int[DESEngine.TRIPLE_SCHEDULE_LENGTH];
+    private final PinBlockEngine engine = new PinBlockEngine();
+    private final WorkingKeyBundle bundle = new WorkingKeyBundle();
+    private final RetailMAC mac = new RetailMAC(RetailMAC.Padding.METHOD_1);
+
+    Fleet(int devices, int bdkCount, double zipfExponent, long seed,
+        Map<Long, BaseDerivationKey> keySets) {
+      if (bdkCount < 1 || bdkCount > MAXIMUM_BDKS) {
+        throw new IllegalArgumentException("@ FleetLoadTest.Fleet(). Parameter <bdks> must be"
+            + " between 1 and " + MAXIMUM_BDKS + ", but was " + bdkCount + ".");
+      }
+      if (devices < bdkCount || (devices - 1) / bdkCount >= 1 << DEVICE_ID_BITS) {
+        throw new IllegalArgumentException("@ FleetLoadTest.Fleet(). Parameter <devices> must be"
+            + " between the number of BDKs and " + (bdkCount << DEVICE_ID_BITS) + ", but was "
+            + devices + ".");
+      }
+
+      this.devices = devices;
+      this.random = new SplittableRandom(seed);
+      this.bdks = new BaseDerivationKey[bdkCount];
+      Random keys = new Random(seed);
+      for (int b = 0; b < bdkCount; b++) {
+        byte[] bdk = new byte[16];
+        keys.nextBytes(bdk);
+        long keySetId = (0xFFFFL << 24) | (FLEET_BDK_ID + b);
+        bdks[b] = storeBDK(keySetId, bdk);
+        keySets.put(keySetId, bdks[b]);
+      }
+
+      // Key injection: device d belongs to BDK d % bdkCount
+      originators = new DUKPTOriginator[devices];
+      initialKSNs = new KSN[devices];
+      pans = new String[devices];
+      byte[] ipek = new byte[16];
+      for (int d = 0; d < devices; d++) {
+        long bdkId = FLEET_BDK_ID + d % bdkCount;
+        initialKSNs[d] = KSN.of(0xFFFF, (bdkId << (DEVICE_ID_BITS + KSN.COUNTER_BITS))
+            | ((long) (d / bdkCount) << KSN.COUNTER_BITS));
+        pans[d] = String.format("4%014d", random.nextLong(100000000000000L));
+        inject(d, ipek);
+      }
+      Arrays.fill(ipek, (byte) 0);
+
+      cumulative = new double[devices];
+      double sum = 0;
+      for (int rank = 0; rank < devices; rank++) {
+        sum += 1 / Math.pow(rank + 1, zipfExponent);
+        cumulative[rank] = sum;
+      }
+
+      rankedDevices = new int[devices];
+      for (int d = 0; d < devices; d++) {
+        rankedDevices[d] = d;
+      }
+      for (int d = devices - 1; d > 0; d--) {
+        int other = random.nextInt(d + 1);
+        int swap = rankedDevices[d];
+        rankedDevices[d] = rankedDevices[other];
+        rankedDevices[other] = swap;
+      }
+    }
+
+    /**
+     * Runs <code>transactions</code> unrecorded transactions over the fleet.
+     */
+    void age(long transactions) {
+      for (long i = 0; i < transactions; i++) {
+        nextKey(nextDevice());
+      }
+    }
+
+    List<Transaction> generate(int transactions, int[] mix) throws Exception {
+      int total = 0;
+      for (int share : mix) {
+        total += share;
+      }
+      if (mix.length != Kind.values().length || total <= 0) {
+        throw new IllegalArgumentException("@ FleetLoadTest.generate(). Parameter <mix> must be"
+            + " 3 shares (track, PIN, EMV) with a positive sum, but was " + Arrays.toString(mix)
+            + ".");
+      }
+
+      List<Transaction> traffic = new ArrayList<Transaction>(transactions);
+      for (int i = 0; i < transactions; i++) {
+        int device = nextDevice();
+        KSN current = nextKey(device);
+        int draw = random.nextInt(total);
+        if (draw < mix[0]) {
+          traffic.add(track(current));
+        } else if (draw < mix[0] + mix[1]) {
+          traffic.add(pin(current, pans[device]));
+        } else {
+          traffic.add(emv(current));
+        }
+      }
+      Arrays.fill(key, (byte) 0);
+
+      return traffic;
+    }
+
+    void printSummary(List<Transaction> traffic) {
+      boolean[] seen = new boolean[devices];
+      int distinct = 0;
+      long counters = 0;
+      long setBits = 0;
+      for (Transaction transaction : traffic) {
+        int counter = transaction.ksn.getCounter();
+        counters += counter;
+        setBits += Integer.bitCount(counter);
+        int device = transaction.ksn.getDeviceId() * bdks.length + transaction.ksn.getBDKId()
+            - FLEET_BDK_ID;
+        if (!seen[device]) {
+          seen[device] = true;
+          distinct++;
+        }
+      }
+
+      int top = Math.max(1, devices / 100);
+      System.out.println(String.format("Devices seen: %d, top 1%% share: %.1f%%, mean counter:"
+          + " %.0f, mean counter bits set: %.2f", distinct, 100 * cumulative[top - 1]
+          / cumulative[devices - 1], (double) counters / traffic.size(), (double) setBits
+          / traffic.size()));
+    }
+
+    private int nextDevice() {
+      double draw = random.nextDouble() * cumulative[devices - 1];
+      int rank = Arrays.binarySearch(cumulative, draw);
+      rank = rank >= 0 ? rank : Math.min(-rank - 1, devices - 1);
+      return rankedDevices[rank];
+    }
+
+    /**
+     * Moves <code>device</code> to its next transaction, whose key is left in <code>key</code>.
+     */
+    private KSN nextKey(int device) {
+      if (!originators[device].nextKey(ksn, 0, key, 0)) {
+        // Exhausted: the terminal is injected again, as a new device would be
+        byte[] ipek = new byte[16];
+        inject(device, ipek);
+        Arrays.fill(ipek, (byte) 0);
+        originators[device].nextKey(ksn, 0, key, 0);
+      }
+
+      return KSN.fromBytes(ksn);
+    }
+
+    private void inject(int device, byte[] ipek) {
+      DUKPTUtil.generateIPEK(initialKSNs[device], bdks[device % bdks.length], ipek, 0);
+      originators[device] = new DUKPTOriginator(ipek, initialKSNs[device].toBytes());
+    }
+
+    private Transaction track(KSN current) throws Exception {
+      byte[] data = new byte[TRACK_LENGTH];
+      byte[] clear = trackData(current).getBytes("US-ASCII");
+      System.arraycopy(clear, 0, data, 0, Math.min(clear.length, data.length));
+
+      DUKPTUtil.calculatePinEncryptionKeyWithNoVariant(key, 0, workingKey, 0);
+      encrypt(data);
+      return new Transaction(Kind.TRACK, current, data, null, null, true);
+    }
+
+    private Transaction pin(KSN current, String pan) throws Exception {
+      DUKPTUtil.calculatePinKey(key, 0, workingKey, 0);
+      PinKey pinKey = PinKey.tdes(workingKey);
+      byte[] pinBlock = new byte[8];
+      DecryptionStatus status = engine.encrypt(PIN, PinBlockFormat.ISO_0, pan, pinKey, pinBlock, 0);
+      pinKey.destroy();
+      if (status != DecryptionStatus.SUCCESS) {
+        throw new IllegalStateException("@ FleetLoadTest.pin(). PIN block not built: " + status
+            + ".");
+      }
+
+      return new Transaction(Kind.PIN, current, pinBlock, null, pan, true);
+    }
+
+    private Transaction emv(KSN current) throws Exception {
+      byte[] data = new byte[EMV_LENGTH];
+      random.nextBytes(data);
+      // Tag 9F26 (application cryptogram), so that decryption can be checked
+      data[0] = (byte) 0x9F;
+      data[1] = 0x26;
+
+      bundle.derive(key, 0, EMV_KEYS);
+      bundle.getKey(WorkingKey.DATA_REQUEST, workingKey, 0);
+      encrypt(data);
+
+      byte[] macValue = new byte[MAC_LENGTH];
+      mac.init(bundle.getLeft(WorkingKey.MAC_REQUEST), bundle.getRight(WorkingKey.MAC_REQUEST));
+      mac.update(data, 0, data.length);
+      mac.doFinal(macValue, 0, MAC_LENGTH);
+      bundle.destroy();
+      return new Transaction(Kind.EMV, current, data, macValue, null, true);
+    }
+
+    /**
+     * TDES CBC encryption with a zero IV under the double-length key in <code>workingKey</code>.
+     */
+    private void encrypt(byte[] data) throws Exception {
+      long k1 = ByteArrayUtil.toLong(workingKey, 0);
+      long k2 = ByteArrayUtil.toLong(workingKey, 8);
+      DESEngine.expandTripleKey(k1, k2, k1, schedule, 0);
+      DESEngine.tdesEncrypt(data, 0, data.length, data, 0, schedule, 0);
+      Arrays.fill(workingKey, (byte) 0);
+      Arrays.fill(schedule, 0);
+    }
+
+    private String trackData(KSN current) {
+      String pan = pans[current.getDeviceId() * bdks.length + current.getBDKId() - FLEET_BDK_ID];
+      return "%B" + pan + "^FLEET/TERMINAL " + current.getCounter() + "^2812101000000000000?";
+    }
+  }
+
+  /**
+   * The decryption side, one per thread.
+   */
+  private static final class Decryptor {
+    private final Map<Long, BaseDerivationKey> keySets;
+    private final byte[] key = new byte[16];
+    private final int[] schedule = new int[DESEngine.TRIPLE_SCHEDULE_LENGTH];
+    private final byte[] data = new byte[MAXIMUM_DATA_LENGTH];
+    private final char[] pin = new char[PinBlockUtil.MAXIMUM_PIN_LENGTH];
+    private final PinBlockEngine engine = new PinBlockEngine();
+    private final WorkingKeyBundle bundle = new WorkingKeyBundle();
+    private final RetailMAC mac = new RetailMAC(RetailMAC.Padding.METHOD_1);
+
+    Decryptor(Map<Long, BaseDerivationKey> keySets) {
+      this.keySets = keySets;
+    }
+
+    /**
+     * @return false if the transaction could not be decrypted, or did not decrypt to what was
+     *         generated
+     */
+    boolean decrypt(Transaction transaction) throws Exception {
+      BaseDerivationKey bdk = keySets.get(transaction.ksn.getKeySetId());
+      if (bdk == null || transaction.data.length % 8 != 0) {
+        return false;
+      }
+
+      switch (transaction.kind) {
+        case TRACK:
+          DUKPTUtil.deriveKey(transaction.ksn, bdk, key, 0);
+          DUKPTUtil.calculatePinEncryptionKeyWithNoVariant(key, 0, key, 0);
+          decryptData(transaction.data);
+          return !transaction.generated || (data[0] == '%' && data[1] == 'B');
+
+        case PIN:
+          DecryptionStatus status = engine.decrypt(transaction.ksn, bdk, transaction.data, 0,
+              PinBlockFormat.ISO_0, transaction.pan, pin, 0);
+          return status == DecryptionStatus.SUCCESS && engine.getPinLength() == PIN.length();
+
+        default:
+          bundle.derive(transaction.ksn, bdk, EMV_KEYS);
+          mac.init(bundle.getLeft(WorkingKey.MAC_REQUEST), bundle.getRight(WorkingKey.MAC_REQUEST));
+          mac.update(transaction.data, 0, transaction.data.length);
+          if (!mac.verify(transaction.mac, 0, MAC_LENGTH)) {
+            bundle.destroy();
+            return false;
+          }
+
+          bundle.getKey(WorkingKey.DATA_REQUEST, key, 0);
+          bundle.destroy();
+          decryptData(transaction.data);
+          return data[0] == (byte) 0x9F && data[1] == 0x26;
+      }
+    }
+
+    private void decryptData(byte[] encrypted) throws Exception {
+      long k1 = ByteArrayUtil.toLong(key, 0);
+      long k2 = ByteArrayUtil.toLong(key, 8);
+      DESEngine.expandTripleKey(k1, k2, k1, schedule, 0);
+      DESEngine.tdesDecrypt(encrypted, 0, encrypted.length, data, 0, schedule, 0);
+      Arrays.fill(key, (byte) 0);
+    }
+  }
+
+  /**
+   * Latencies and errors of one replay.
+   */
+  private static final class Run {
+    final LatencyHistogram[] histograms = new LatencyHistogram[Kind.values().length];
+    final AtomicLong[] errors = new AtomicLong[Kind.values().length];
+    final LatencyHistogram total = new LatencyHistogram();
+    long nanos;
+
+    Run() {
+      for (int k = 0; k < histograms.length; k++) {
+        histograms[k] = new LatencyHistogram();
+        errors[k] = new AtomicLong();
+      }
+    }
+
+    long totalErrors() {
+      long sum = 0;
+      for (AtomicLong count : errors) {
+        sum += count.get();
+      }
+
+      return sum;
+    }
+
+    void print(String kind, LatencyHistogram histogram, long errorCount, int rate,
+        String hitRatio, String evictions) {
+      if (histogram.getCount() == 0) {
+        return;
+      }
+
+      System.out.println(String.format("%-6s %10s %12.0f %10.1f %10.1f %10.1f %10.1f %8d %8s %10s",
+          kind, rate == 0 ? "max" : Integer.toString(rate), histogram.getCount() / (nanos / 1e9),
+          histogram.getPercentile(0.5) / 1e3, histogram.getPercentile(0.99) / 1e3,
+          histogram.getPercentile(0.999) / 1e3, histogram.getMaximum() / 1e3, errorCount,
+          hitRatio, evictions));
+    }
+  }
+}
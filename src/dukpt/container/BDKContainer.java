@@ -1,41 +1,252 @@
 package dukpt.container;
 
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 
+import dukpt.util.ByteArrayUtil;
+import dukpt.util.DESEngine;
+import dukpt.util.StringUtil;
+
+/**
+ * Keystore of the BDKs, shared by all threads.
+ *
+ * Keys are parsed once, when stored, into immutable {@link BaseDerivationKey}s. Each key name gets a
+ * compact identifier, so a key can also be looked up by index. Lookups are lock-free; insertions,
+ * replacements and removals are serialized among themselves. A key that gets replaced or removed is
+ * not zeroized, since a concurrent reader may still be using it, but it is retired (see
+ * {@link BaseDerivationKey#isRetired()}) and the IPEKs generated from it are dropped from
+ * {@link IPEKCache} before the write completes.
+ */
 public class BDKContainer {
-	private static BDKContainer instance;
-	private HashMap<String,String> keyMap;
-	
-	private BDKContainer() { 
-		keyMap = new HashMap<String, String>();
+	private static final long KEY_REGISTER_MASK = 0xC0C0C0C000000000L;
+
+	private final ConcurrentHashMap<String, BaseDerivationKey> keyMap;
+	// Copy on write, indexed by BaseDerivationKey.getId()
+	private volatile BaseDerivationKey[] keysById;
+	private final Object writeLock = new Object();
+	private int nextId;
+	private long nextVersion;
+
+	private BDKContainer() {
+		keyMap = new ConcurrentHashMap<String, BaseDerivationKey>();
+		keysById = new BaseDerivationKey[0];
 	}
-	
-	public static synchronized BDKContainer getInstance() {
-		if(instance == null) {
-			instance = new BDKContainer();
-		}
-		
-		return instance;
+
+	private static final class Holder {
+		static final BDKContainer INSTANCE = new BDKContainer();
+	}
+
+	public static BDKContainer getInstance() {
+		return Holder.INSTANCE;
 	}
-	
+
+	/**
+	 * @param BDK
+	 *          hex representation of a 16 or 24 bytes key, spaces allowed
+	 * @return false if a BDK is already stored under <code>key</code>, or if <code>BDK</code> is
+	 *         not a valid key (it is not stored)
+	 */
 	public boolean insertBDK(String key, String BDK) {
-		if(!keyMap.containsKey(key)) {
-			keyMap. put(key, BDK);
-			return true;
+		byte[] bdk = parse(BDK);
+		if(bdk == null) {
+			return false;
+		}
+
+		try {
+			return putIfAbsent(key, BDK, bdk, true) == null;
+		} finally {
+			Arrays.fill(bdk, (byte)0);
 		}
-		
-		return false;
 	}
-	
+
+	/**
+	 * @return the BDK stored under <code>key</code>, as it was inserted (hex representation), or null
+	 */
 	public String getBDK(String key) {
-		if(keyMap.containsKey(key)) {
-			return keyMap.get(key);
+		BaseDerivationKey bdk = keyMap.get(key);
+		return bdk == null ? null : bdk.getHexKey();
+	}
+
+	public BaseDerivationKey get(String name) {
+		return keyMap.get(name);
+	}
+
+	/**
+	 * @return the BDK with the given compact identifier, or null
+	 */
+	public BaseDerivationKey get(int id) {
+		BaseDerivationKey[] keys = keysById;
+		return id >= 0 && id < keys.length ? keys[id] : null;
+	}
+
+	/**
+	 * Stores a BDK together with its TDES key schedules, unless one is already stored under
+	 * <code>name</code>.
+	 *
+	 * @param bdk
+	 *          16 or 24 bytes key, copied
+	 * @return the BDK already stored under <code>name</code>, or null if <code>bdk</code> was stored
+	 */
+	public BaseDerivationKey putIfAbsent(String name, byte[] bdk) {
+		return putIfAbsent(name, bdk, true);
+	}
+
+	/**
+	 * @param withSchedules
+	 *          whether to compute the TDES key schedules used to generate IPEKs
+	 * @see #putIfAbsent(String, byte[])
+	 */
+	public BaseDerivationKey putIfAbsent(String name, byte[] bdk, boolean withSchedules) {
+		checkKey("putIfAbsent", bdk);
+		return putIfAbsent(name, null, bdk, withSchedules);
+	}
+
+	/**
+	 * Replaces the BDK stored under <code>name</code>, if any. The name keeps its compact identifier,
+	 * and the cached IPEKs of the old key are invalidated.
+	 *
+	 * @param bdk
+	 *          16 or 24 bytes key, copied
+	 * @return the replaced BDK, or null if nothing was stored under <code>name</code> (and
+	 *         <code>bdk</code> was not stored)
+	 */
+	public BaseDerivationKey replace(String name, byte[] bdk) {
+		return replace(name, bdk, true);
+	}
+
+	/**
+	 * @param withSchedules
+	 *          whether to compute the TDES key schedules used to generate IPEKs
+	 * @see #replace(String, byte[])
+	 */
+	public BaseDerivationKey replace(String name, byte[] bdk, boolean withSchedules) {
+		checkKey("replace", bdk);
+
+		BaseDerivationKey previous;
+		synchronized(writeLock) {
+			previous = keyMap.get(name);
+			if(previous == null) {
+				return null;
+			}
+
+			store(create(previous.getId(), name, nextVersion++, null, bdk, withSchedules));
+			retire(previous);
 		}
-		
-		return null;
+
+		return previous;
 	}
-	
+
+	/**
+	 * @return the removed BDK, or null
+	 */
+	public BaseDerivationKey remove(String name) {
+		BaseDerivationKey previous;
+		synchronized(writeLock) {
+			previous = keyMap.remove(name);
+			if(previous == null) {
+				return null;
+			}
+
+			BaseDerivationKey[] keys = keysById.clone();
+			keys[previous.getId()] = null;
+			keysById = keys;
+			retire(previous);
+		}
+
+		return previous;
+	}
+
+	public int size() {
+		return keyMap.size();
+	}
+
 	public void clear() {
-		keyMap.clear();
+		synchronized(writeLock) {
+			BaseDerivationKey[] previous = keysById;
+			keyMap.clear();
+			keysById = new BaseDerivationKey[0];
+			nextId = 0;
+
+			for(BaseDerivationKey bdk : previous) {
+				if(bdk != null) {
+					retire(bdk);
+				}
+			}
+		}
+	}
+
+	private BaseDerivationKey putIfAbsent(String name, String hexKey, byte[] bdk, boolean withSchedules) {
+		// Lock-free fast path for keys that are already there
+		BaseDerivationKey existing = keyMap.get(name);
+		if(existing != null) {
+			return existing;
+		}
+
+		synchronized(writeLock) {
+			existing = keyMap.get(name);
+			if(existing != null) {
+				return existing;
+			}
+
+			store(create(nextId++, name, nextVersion++, hexKey, bdk, withSchedules));
+			return null;
+		}
+	}
+
+	/**
+	 * Must be called holding writeLock.
+	 */
+	private void store(BaseDerivationKey bdk) {
+		BaseDerivationKey[] keys = Arrays.copyOf(keysById, Math.max(keysById.length, bdk.getId() + 1));
+		keys[bdk.getId()] = bdk;
+		keysById = keys;
+		keyMap.put(bdk.getName(), bdk);
+	}
+
+	/**
+	 * Must be called holding writeLock. The key is retired first, so that a reader caching an IPEK
+	 * of it concurrently either sees it retired or has its IPEK invalidated here.
+	 */
+	private static void retire(BaseDerivationKey bdk) {
+		bdk.retire();
+		IPEKCache.getInstance().invalidate(bdk.getCacheId());
+		IPEKCache.getAESInstance().invalidate(bdk.getCacheId());
+	}
+
+	private static BaseDerivationKey create(int id, String name, long version, String hexKey, byte[] bdk, boolean withSchedules) {
+		if(hexKey == null) {
+			hexKey = StringUtil.toHexString(bdk, false);
+		}
+
+		int[] schedule = null;
+		int[] maskedSchedule = null;
+		if(withSchedules) {
+			long k1 = ByteArrayUtil.toLong(bdk, 0);
+			long k2 = ByteArrayUtil.toLong(bdk, 8);
+			long k3 = bdk.length == 24 ? ByteArrayUtil.toLong(bdk, 16) : k1;
+			schedule = DESEngine.expandTripleKey(k1, k2, k3);
+			maskedSchedule = DESEngine.expandTripleKey(k1 ^ KEY_REGISTER_MASK, k2 ^ KEY_REGISTER_MASK, k3 ^ KEY_REGISTER_MASK);
+		}
+
+		return new BaseDerivationKey(id, name, version, hexKey, bdk, schedule, maskedSchedule);
+	}
+
+	/**
+	 * @return the key, or null if <code>hexKey</code> is not the hex representation of a 16 or 24
+	 *         bytes key
+	 */
+	private static byte[] parse(String hexKey) {
+		byte[] bdk = StringUtil.hexStringToBytes(hexKey);
+		if(bdk == null || (bdk.length != 16 && bdk.length != 24)) {
+			return null;
+		}
+
+		return bdk;
+	}
+
+	private static void checkKey(String method, byte[] bdk) {
+		if(bdk == null || (bdk.length != 16 && bdk.length != 24)) {
+			throw new IllegalArgumentException("@ BDKContainer." + method + "(). Parameter <bdk> must be 16 or 24 bytes long (double/triple key), but was " + (bdk == null ? "null" : bdk.length) + ".");
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,37 @@
+package dukpt.container;
+
+/**
+ * Tells which BDK a device was injected with, for operations that work on KSNs of many devices.
+ */
+public interface BDKResolver {
+	/**
+	 * The identifier is also the one the IPEKs derived from the BDK are cached under in
+	 * {@link IPEKCache}: it must change whenever the key bytes behind it change (a new identifier
+	 * per key version, as {@link BaseDerivationKey#getCacheId()} does), otherwise IPEKs of the old
+	 * key keep being used.
+	 *
+	 * @param KSN 10 bytes KSN of a transaction
+	 * @return identifier of the BDK of the device that produced <code>KSN</code>, or null if unknown
+	 */
+	String getBDKId(byte[] KSN);
+	
+	/**
+	 * Same as {@link #getBDKId(byte[])}, for the KSN of an AES DUKPT transaction (ANSI X9.24-3),
+	 * whose layout differs: the 4 bytes BDK ID, the 4 bytes derivation ID, then the counter. The
+	 * identifier is the one the initial keys are cached under in {@link IPEKCache#getAESInstance()}.
+	 *
+	 * @param KSN 12 bytes AES DUKPT KSN of a transaction
+	 * @return identifier of the AES BDK of the device that produced <code>KSN</code>, or null if
+	 *         unknown, which is all a resolver of TDES devices only answers
+	 */
+	default String getAESBDKId(byte[] KSN) {
+		return null;
+	}
+	
+	/**
+	 * @param bdkId an identifier returned by {@link #getBDKId(byte[])} or {@link #getAESBDKId(byte[])}
+	 * @return the 16 bytes (double-length) or 24 bytes (triple-length) BDK, an AES BDK of 16, 24 or
+	 *         32 bytes for an identifier of {@link #getAESBDKId(byte[])}, or null if unknown
+	 */
+	byte[] getBDK(String bdkId);
+}
@@ -0,0 +1,121 @@
+package dukpt.container;
+
+import dukpt.util.ByteArrayUtil;
+
+/**
+ * An immutable BDK as stored by {@link BDKContainer}: the binary key, parsed once, and optionally
+ * the TDES key schedules used to generate IPEKs from it.
+ */
+public final class BaseDerivationKey {
+	private final int id;
+	private final String name;
+	private final String cacheId;
+	private final String hexKey;
+	private final byte[] key;
+	private final long k1;
+	private final long k2;
+	private final long k3;
+	private final int[] schedule;
+	private final int[] maskedSchedule;
+	private volatile boolean retired;
+
+	BaseDerivationKey(int id, String name, long version, String hexKey, byte[] key, int[] schedule, int[] maskedSchedule) {
+		this.id = id;
+		this.name = name;
+		this.cacheId = name + '#' + version;
+		this.hexKey = hexKey;
+		this.key = key.clone();
+		this.k1 = ByteArrayUtil.toLong(key, 0);
+		this.k2 = ByteArrayUtil.toLong(key, 8);
+		this.k3 = key.length == 24 ? ByteArrayUtil.toLong(key, 16) : k1;
+		this.schedule = schedule;
+		this.maskedSchedule = maskedSchedule;
+	}
+
+	/**
+	 * @return the compact identifier of the key's name in its {@link BDKContainer}, stable across
+	 *         replacements of the key
+	 */
+	public int getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the BDK identifier of this key in {@link IPEKCache}, unique to each version of the key
+	 *         stored under {@link #getName()}, so that no IPEK of a replaced key is ever used
+	 */
+	public String getCacheId() {
+		return cacheId;
+	}
+
+	/**
+	 * @return true once the key was replaced or removed from its {@link BDKContainer}. IPEKs cached
+	 *         for it past that point must be invalidated, since the container may already have done
+	 *         so.
+	 */
+	public boolean isRetired() {
+		return retired;
+	}
+
+	void retire() {
+		retired = true;
+	}
+
+	String getHexKey() {
+		return hexKey;
+	}
+
+	/**
+	 * @return 16 or 24
+	 */
+	public int getLength() {
+		return key.length;
+	}
+
+	/**
+	 * @return a copy of the key
+	 */
+	public byte[] getKey() {
+		return key.clone();
+	}
+
+	public void copyKey(byte[] destination, int offset) {
+		System.arraycopy(key, 0, destination, offset, key.length);
+	}
+
+	public long getK1() {
+		return k1;
+	}
+
+	public long getK2() {
+		return k2;
+	}
+
+	/**
+	 * @return the third key, K1 for double-length keys
+	 */
+	public long getK3() {
+		return k3;
+	}
+
+	/**
+	 * @return the {@link dukpt.util.DESEngine} TDES schedule of the key, or null if the key was
+	 *         stored without schedules. It must not be modified.
+	 */
+	public int[] getSchedule() {
+		return schedule;
+	}
+
+	/**
+	 * @return the {@link dukpt.util.DESEngine} TDES schedule of the key XOR'ed with
+	 *         {@link dukpt.util.DUKPTUtil#BDK_MASK} (right half of the IPEK), or null if the key was
+	 *         stored without schedules. It must not be modified.
+	 */
+	public int[] getMaskedSchedule() {
+		return maskedSchedule;
+	}
+}
@@ -0,0 +1,442 @@
+package dukpt.container;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.StampedLock;
+
+import dukpt.util.ByteArrayUtil;
+
+/**
+ * Off-heap table of device IPEKs, kept in a memory-mapped file, for key injection facilities that
+ * hold the IPEK of every device instead of (or besides) the BDKs.
+ *
+ * The file is a 64 bytes header followed by a fixed number of 32 bytes records:
+ * <pre>
+ * offset  length
+ *      0       8  masked KSN (8 leftmost bytes of the KSN, transaction counter bits zeroed)
+ *      8      16  IPEK
+ *     24       4  state (0 empty, 1 used, 2 removed)
+ *     28       4  metadata, free for the application (e.g. the id of the BDK of the device)
+ * </pre>
+ * Records are placed by open addressing (linear probing) on a hash of the masked KSN, so a lookup
+ * reads a few records in place and allocates nothing. Opening a table only maps the file: pages
+ * are loaded by the OS when first read.
+ *
+ * The capacity is fixed when the table is created; puts fail once {@link #MAXIMUM_LOAD_FACTOR} of
+ * the records are used. Lookups are lock-free (optimistic reads, retried under a read lock if a
+ * write interfered); writes are serialized.
+ */
+public class DeviceKeyTable implements Closeable {
+	public static final double MAXIMUM_LOAD_FACTOR = 0.75;
+
+	private static final int MAGIC = 0x444B5431; // "DKT1"
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER_LENGTH = 64;
+	private static final int RECORD_LENGTH = 32;
+
+	private static final int HEADER_MAGIC = 0;
+	private static final int HEADER_VERSION = 4;
+	private static final int HEADER_CAPACITY = 8;
+	private static final int HEADER_SIZE = 16;
+	private static final int HEADER_USED = 24;
+
+	private static final int RECORD_KSN = 0;
+	private static final int RECORD_IPEK = 8;
+	private static final int RECORD_STATE = 24;
+	private static final int RECORD_METADATA = 28;
+
+	private static final int EMPTY = 0;
+	private static final int USED = 1;
+	private static final int REMOVED = 2;
+
+	// A single mapping can not exceed 2GB, so the records are mapped in segments of 2^24 (512MB)
+	private static final int SEGMENT_SHIFT = 24;
+	private static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+	private static final long IPEK_KSN_MASK = 0xFFFFFFFFFFFFFFE0L;
+
+	private final RandomAccessFile file;
+	private final boolean readOnly;
+	private final MappedByteBuffer header;
+	private final MappedByteBuffer[] segments;
+	private final long capacity;
+	private final long capacityMask;
+	private final long maximumUsed;
+	private final StampedLock lock = new StampedLock();
+	private long size;
+	// Used plus removed records, the ones that lengthen probe sequences
+	private long used;
+
+	private DeviceKeyTable(RandomAccessFile file, boolean readOnly) throws IOException {
+		this.file = file;
+		this.readOnly = readOnly;
+
+		FileChannel channel = file.getChannel();
+		FileChannel.MapMode mode = readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE;
+		if(channel.size() < HEADER_LENGTH) {
+			throw new IOException("@ DeviceKeyTable.open(). The file is not a device key table (" + channel.size() + " bytes).");
+		}
+
+		header = channel.map(mode, 0, HEADER_LENGTH);
+		if(header.getInt(HEADER_MAGIC) != MAGIC || header.getInt(HEADER_VERSION) != FORMAT_VERSION) {
+			throw new IOException("@ DeviceKeyTable.open(). The file is not a device key table of version " + FORMAT_VERSION + ".");
+		}
+
+		capacity = header.getLong(HEADER_CAPACITY);
+		if(Long.bitCount(capacity) != 1 || channel.size() < HEADER_LENGTH + capacity * RECORD_LENGTH) {
+			throw new IOException("@ DeviceKeyTable.open(). The file is truncated or corrupted, capacity " + capacity + " for " + channel.size() + " bytes.");
+		}
+
+		capacityMask = capacity - 1;
+		maximumUsed = (long)(capacity * MAXIMUM_LOAD_FACTOR);
+		size = header.getLong(HEADER_SIZE);
+		used = header.getLong(HEADER_USED);
+
+		int segmentCount = (int)((capacity + SEGMENT_MASK) >>> SEGMENT_SHIFT);
+		segments = new MappedByteBuffer[segmentCount];
+		for(int i = 0; i < segmentCount; i++) {
+			long records = Math.min(capacity - ((long)i << SEGMENT_SHIFT), 1L << SEGMENT_SHIFT);
+			segments[i] = channel.map(mode, HEADER_LENGTH + ((long)i << SEGMENT_SHIFT) * RECORD_LENGTH, records * RECORD_LENGTH);
+		}
+	}
+
+	/**
+	 * Creates an empty table, replacing <code>path</code> if it exists.
+	 *
+	 * @param expectedDevices
+	 *          number of devices the table must be able to hold
+	 */
+	public static DeviceKeyTable create(String path, long expectedDevices) throws IOException {
+		if(expectedDevices < 1) {
+			throw new IllegalArgumentException("@ DeviceKeyTable.create(). Parameter <expectedDevices> must be positive, but was " + expectedDevices + ".");
+		}
+
+		long capacity = Long.highestOneBit((long)Math.ceil(expectedDevices / MAXIMUM_LOAD_FACTOR) - 1) << 1;
+		capacity = Math.max(capacity, 16);
+
+		RandomAccessFile file = new RandomAccessFile(path, "rw");
+		try {
+			// Any previous content is dropped, the records are sparse zeroes (EMPTY) until written
+			file.setLength(0);
+			file.setLength(HEADER_LENGTH + capacity * RECORD_LENGTH);
+			file.writeInt(MAGIC);
+			file.writeInt(FORMAT_VERSION);
+			file.writeLong(capacity);
+			return new DeviceKeyTable(file, false);
+		} catch(IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Maps an existing table for reading and writing.
+	 */
+	public static DeviceKeyTable open(String path) throws IOException {
+		return open(path, false);
+	}
+
+	public static DeviceKeyTable open(String path, boolean readOnly) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(path, readOnly ? "r" : "rw");
+		try {
+			return new DeviceKeyTable(file, readOnly);
+		} catch(IOException e) {
+			file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the 8 leftmost bytes of <code>ksn</code> with the transaction counter bits zeroed, the
+	 *         key of the device in the table
+	 */
+	public static long maskedKSN(byte[] ksn) {
+		return ByteArrayUtil.toLong(ksn, 0) & IPEK_KSN_MASK;
+	}
+
+	/**
+	 * Copies the IPEK of a device into <code>ipek</code>.
+	 *
+	 * @return false if the device is not in the table
+	 */
+	public boolean get(byte[] ksn, byte[] ipek, int offset) {
+		return get(maskedKSN(ksn), ipek, offset);
+	}
+
+	/**
+	 * @param maskedKSN
+	 *          see {@link #maskedKSN(byte[])}
+	 * @return false if the device is not in the table
+	 */
+	public boolean get(long maskedKSN, byte[] ipek, int offset) {
+		long stamp = lock.tryOptimisticRead();
+		long record = find(maskedKSN);
+		// Read into locals: ipek is only written once the read is known to be consistent
+		long ipekL = 0;
+		long ipekR = 0;
+		if(record >= 0) {
+			MappedByteBuffer segment = segment(record);
+			int position = position(record) + RECORD_IPEK;
+			ipekL = segment.getLong(position);
+			ipekR = segment.getLong(position + 8);
+		}
+
+		if(lock.validate(stamp)) {
+			if(record >= 0) {
+				ByteArrayUtil.putLong(ipekL, ipek, offset);
+				ByteArrayUtil.putLong(ipekR, ipek, offset + 8);
+			}
+		} else {
+			stamp = lock.readLock();
+			try {
+				record = find(maskedKSN);
+				if(record >= 0) {
+					copyIPEK(record, ipek, offset);
+				}
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		return record >= 0;
+	}
+
+	/**
+	 * @return the metadata stored with the device, or <code>defaultValue</code> if the device is not
+	 *         in the table
+	 */
+	public int getMetadata(long maskedKSN, int defaultValue) {
+		long stamp = lock.tryOptimisticRead();
+		long record = find(maskedKSN);
+		int metadata = record >= 0 ? segment(record).getInt(position(record) + RECORD_METADATA) : defaultValue;
+
+		if(!lock.validate(stamp)) {
+			stamp = lock.readLock();
+			try {
+				record = find(maskedKSN);
+				metadata = record >= 0 ? segment(record).getInt(position(record) + RECORD_METADATA) : defaultValue;
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		return metadata;
+	}
+
+	public boolean contains(long maskedKSN) {
+		long stamp = lock.tryOptimisticRead();
+		long record = find(maskedKSN);
+		if(!lock.validate(stamp)) {
+			stamp = lock.readLock();
+			try {
+				record = find(maskedKSN);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		return record >= 0;
+	}
+
+	/**
+	 * Stores (or replaces) the IPEK of a device.
+	 *
+	 * @param maskedKSN
+	 *          see {@link #maskedKSN(byte[])}
+	 * @param ipek
+	 *          16 bytes IPEK, at <code>offset</code>
+	 * @return false if the table is full
+	 */
+	public boolean put(long maskedKSN, byte[] ipek, int offset, int metadata) {
+		checkWritable("put");
+
+		long stamp = lock.writeLock();
+		try {
+			long free = -1;
+			long record = slot(maskedKSN);
+			for(long probes = 0; probes < capacity; probes++, record = (record + 1) & capacityMask) {
+				MappedByteBuffer segment = segment(record);
+				int position = position(record);
+				int state = segment.getInt(position + RECORD_STATE);
+
+				if(state == USED && segment.getLong(position + RECORD_KSN) == maskedKSN) {
+					write(segment, position, maskedKSN, ipek, offset, metadata);
+					return true;
+				}
+
+				if(state == REMOVED && free < 0) {
+					free = record;
+				} else if(state == EMPTY) {
+					if(free < 0) {
+						if(used >= maximumUsed) {
+							return false;
+						}
+
+						free = record;
+						used++;
+					}
+					break;
+				}
+			}
+
+			if(free < 0) {
+				return false;
+			}
+
+			write(segment(free), position(free), maskedKSN, ipek, offset, metadata);
+			size++;
+			writeCounters();
+			return true;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Removes a device, zeroing its IPEK.
+	 *
+	 * @return false if the device was not in the table
+	 */
+	public boolean remove(long maskedKSN) {
+		checkWritable("remove");
+
+		long stamp = lock.writeLock();
+		try {
+			long record = find(maskedKSN);
+			if(record < 0) {
+				return false;
+			}
+
+			MappedByteBuffer segment = segment(record);
+			int position = position(record);
+			for(int i = 0; i < RECORD_STATE; i += 8) {
+				segment.putLong(position + i, 0);
+			}
+			segment.putInt(position + RECORD_METADATA, 0);
+			segment.putInt(position + RECORD_STATE, REMOVED);
+
+			size--;
+			writeCounters();
+			return true;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @return the number of devices in the table
+	 */
+	public long size() {
+		long stamp = lock.readLock();
+		try {
+			return size;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * @return the number of records of the file
+	 */
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Writes the changes through to the file.
+	 */
+	public void force() {
+		if(readOnly) {
+			return;
+		}
+
+		long stamp = lock.readLock();
+		try {
+			header.force();
+			for(MappedByteBuffer segment : segments) {
+				segment.force();
+			}
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Forces the changes to the file and closes it. The mappings themselves are released when they
+	 * are garbage collected, so the table must not be used anymore.
+	 */
+	@Override
+	public void close() throws IOException {
+		force();
+		file.close();
+	}
+
+	/**
+	 * @return the record of the device, or -1
+	 */
+	private long find(long maskedKSN) {
+		long record = slot(maskedKSN);
+		for(long probes = 0; probes < capacity; probes++, record = (record + 1) & capacityMask) {
+			MappedByteBuffer segment = segment(record);
+			int position = position(record);
+			int state = segment.getInt(position + RECORD_STATE);
+			if(state == EMPTY) {
+				return -1;
+			}
+
+			if(state == USED && segment.getLong(position + RECORD_KSN) == maskedKSN) {
+				return record;
+			}
+		}
+
+		return -1;
+	}
+
+	private long slot(long maskedKSN) {
+		// MurmurHash3 finalizer, the low bits of a masked KSN are always zero
+		long h = maskedKSN;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return h & capacityMask;
+	}
+
+	private MappedByteBuffer segment(long record) {
+		return segments[(int)(record >>> SEGMENT_SHIFT)];
+	}
+
+	private static int position(long record) {
+		return (int)(record & SEGMENT_MASK) * RECORD_LENGTH;
+	}
+
+	private void copyIPEK(long record, byte[] ipek, int offset) {
+		MappedByteBuffer segment = segment(record);
+		int position = position(record) + RECORD_IPEK;
+		ByteArrayUtil.putLong(segment.getLong(position), ipek, offset);
+		ByteArrayUtil.putLong(segment.getLong(position + 8), ipek, offset + 8);
+	}
+
+	private static void write(MappedByteBuffer segment, int position, long maskedKSN, byte[] ipek, int offset, int metadata) {
+		segment.putLong(position + RECORD_KSN, maskedKSN);
+		segment.putLong(position + RECORD_IPEK, ByteArrayUtil.toLong(ipek, offset));
+		segment.putLong(position + RECORD_IPEK + 8, ByteArrayUtil.toLong(ipek, offset + 8));
+		segment.putInt(position + RECORD_METADATA, metadata);
+		segment.putInt(position + RECORD_STATE, USED);
+	}
+
+	private void writeCounters() {
+		header.putLong(HEADER_SIZE, size);
+		header.putLong(HEADER_USED, used);
+	}
+
+	private void checkWritable(String method) {
+		if(readOnly) {
+			throw new IllegalStateException("@ DeviceKeyTable." + method + "(). The table was opened read-only.");
+		}
+	}
+}
@@ -0,0 +1,491 @@
+package dukpt.container;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import dukpt.util.ByteArrayUtil;
+
+/**
+ * Bounded, concurrent cache of IPEKs, keyed by BDK identifier plus the KSN with its transaction
+ * counter zeroed (the only inputs of the IPEK generation).
+ *
+ * Admission and eviction follow TinyLFU: every lookup is counted in a small frequency sketch, and
+ * once the cache is full a new IPEK only gets in if its device has been seen more often than the
+ * least frequently seen of a sample of cached devices, which is then evicted. A long tail of
+ * devices that transact once in a while can not push the hot ones out.
+ *
+ * Besides the IPEK, each device keeps the intermediate keys of its recent derivations (see
+ * {@link DeviceKeys}), so that consecutive transaction counters only need the last one or two steps
+ * of the key derivation.
+ *
+ * Lookups never take the lock of the cache: finding a device is lock-free, and its keys are
+ * read under the monitor of that device only, which only its own lookups and derivations contend
+ * for. Insertions and evictions are serialized. Evicted (or cleared) keys are zeroized.
+ */
+public class IPEKCache {
+	public static final int DEFAULT_MAXIMUM_SIZE = 16384;
+	// Number of cached devices compared with a new one before it is admitted
+	private static final int EVICTION_SAMPLE_SIZE = 8;
+
+	private static IPEKCache instance;
+	private static IPEKCache aesInstance;
+
+	private final int maximumSize;
+	private final ConcurrentHashMap<DeviceKey, DeviceKeys> entries;
+	// Every cached entry has a fixed slot. The eviction sample is taken around a moving clock hand.
+	private final DeviceKeys[] slots;
+	private final FrequencySketch sketch;
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	private int usedSlots;
+	private int clockHand;
+
+	// Counted by every lookup, from any thread
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public IPEKCache(int maximumSize) {
+		if(maximumSize < 1) {
+			throw new IllegalArgumentException("@ IPEKCache(). Parameter <maximumSize> must be positive, but was " + maximumSize + ".");
+		}
+
+		this.maximumSize = maximumSize;
+		this.entries = new ConcurrentHashMap<DeviceKey, DeviceKeys>(maximumSize * 4 / 3 + 1);
+		this.slots = new DeviceKeys[maximumSize];
+		this.sketch = new FrequencySketch(maximumSize);
+	}
+
+	/**
+	 * @return the cache shared by {@link dukpt.util.DUKPTUtil}, holding up to {@link #DEFAULT_MAXIMUM_SIZE} IPEKs
+	 */
+	public static synchronized IPEKCache getInstance() {
+		if(instance == null) {
+			instance = new IPEKCache(DEFAULT_MAXIMUM_SIZE);
+		}
+
+		return instance;
+	}
+
+	/**
+	 * @return the cache shared by {@link dukpt.util.AESDUKPTUtil}, holding up to
+	 *         {@link #DEFAULT_MAXIMUM_SIZE} initial keys, keyed by initial key ID
+	 */
+	public static synchronized IPEKCache getAESInstance() {
+		if(aesInstance == null) {
+			aesInstance = new IPEKCache(DEFAULT_MAXIMUM_SIZE);
+		}
+
+		return aesInstance;
+	}
+
+	/**
+	 * Copies the cached IPEK of a device into <code>ipek</code>.
+	 *
+	 * @param bdkId identifier of the BDK the device was injected with
+	 * @param maskedKSN 8 leftmost bytes of the KSN, with the transaction counter bits zeroed
+	 * @return false if the IPEK is not cached
+	 */
+	public boolean get(String bdkId, long maskedKSN, byte[] ipek, int offset) {
+		DeviceKeys device = getDevice(bdkId, maskedKSN);
+		return device != null && device.getDeepestKey(0, ipek, offset) == 0;
+	}
+
+	/**
+	 * @param bdkId identifier of the BDK the device was injected with
+	 * @param maskedKSN 8 leftmost bytes of the KSN, with the transaction counter bits zeroed
+	 * @return the cached keys of the device, or null if it is not cached
+	 */
+	public DeviceKeys getDevice(String bdkId, long maskedKSN) {
+		DeviceKey key = new DeviceKey(bdkId, maskedKSN);
+		sketch.increment(key.hashCode());
+
+		DeviceKeys device = entries.get(key);
+		if(device != null) {
+			hits.increment();
+			return device;
+		}
+
+		misses.increment();
+		return null;
+	}
+
+	/**
+	 * Offers the 16 bytes IPEK of a device to the cache. Once the cache is full the IPEK is only
+	 * stored if its device is used more frequently than the one it would replace.
+	 *
+	 * @return the cached keys of the device, or null if the IPEK was not admitted
+	 */
+	public DeviceKeys put(String bdkId, long maskedKSN, byte[] ipek, int offset) {
+		return put(bdkId, maskedKSN, ipek, offset, 16);
+	}
+
+	/**
+	 * Same as {@link #put(String, long, byte[], int)}, for initial keys of any length.
+	 *
+	 * @param deviceId
+	 *          masked KSN of a TDES DUKPT device, or initial key ID of an AES DUKPT device
+	 * @param length
+	 *          length of the initial key, a multiple of 8 bytes
+	 */
+	public DeviceKeys put(String bdkId, long deviceId, byte[] ipek, int offset, int length) {
+		DeviceKey key = new DeviceKey(bdkId, deviceId);
+
+		evictionLock.lock();
+		try {
+			DeviceKeys existing = entries.get(key);
+			if(existing != null) {
+				return existing;
+			}
+
+			int slot;
+			if(usedSlots < maximumSize) {
+				slot = usedSlots++;
+			} else {
+				slot = selectVictim();
+				DeviceKeys victim = slots[slot];
+				if(sketch.frequency(key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+					return null;
+				}
+
+				entries.remove(victim.key);
+				victim.zeroize();
+				evictions.incrementAndGet();
+			}
+
+			DeviceKeys device = new DeviceKeys(key, ipek, offset, length);
+			slots[slot] = device;
+			entries.put(key, device);
+			return device;
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes and zeroizes every cached IPEK.
+	 */
+	public void clear() {
+		evictionLock.lock();
+		try {
+			for(int i = 0; i < usedSlots; i++) {
+				slots[i].zeroize();
+				slots[i] = null;
+			}
+
+			entries.clear();
+			usedSlots = 0;
+			clockHand = 0;
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/**
+	 * Removes and zeroizes the cached IPEKs of every device injected with a BDK, to be called when
+	 * that BDK is replaced or removed.
+	 */
+	public void invalidate(String bdkId) {
+		evictionLock.lock();
+		try {
+			for(int i = 0; i < usedSlots;) {
+				DeviceKeys device = slots[i];
+				if(!device.key.bdkId.equals(bdkId)) {
+					i++;
+					continue;
+				}
+
+				entries.remove(device.key);
+				device.zeroize();
+				// Keep the used slots contiguous, the hole is filled with the last one
+				slots[i] = slots[--usedSlots];
+				slots[usedSlots] = null;
+			}
+
+			if(clockHand >= usedSlots) {
+				clockHand = 0;
+			}
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public int getMaximumSize() {
+		return maximumSize;
+	}
+
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	public long getEvictionCount() {
+		return evictions.get();
+	}
+
+	/**
+	 * Must be called holding evictionLock, with the cache full.
+	 *
+	 * @return the slot of the least frequently used entry among the sampled ones
+	 */
+	private int selectVictim() {
+		int victimSlot = clockHand;
+		int victimFrequency = Integer.MAX_VALUE;
+
+		int sampleSize = Math.min(EVICTION_SAMPLE_SIZE, maximumSize);
+		for(int i = 0; i < sampleSize; i++) {
+			int slot = (clockHand + i) % maximumSize;
+			int frequency = sketch.frequency(slots[slot].key.hashCode());
+			if(frequency < victimFrequency) {
+				victimFrequency = frequency;
+				victimSlot = slot;
+			}
+		}
+
+		clockHand = (clockHand + sampleSize) % maximumSize;
+		return victimSlot;
+	}
+
+	private static final class DeviceKey {
+		private final String bdkId;
+		private final long maskedKSN;
+		private final int hash;
+
+		DeviceKey(String bdkId, long maskedKSN) {
+			this.bdkId = bdkId;
+			this.maskedKSN = maskedKSN;
+
+			int h = bdkId.hashCode() * 31 + (int)(maskedKSN ^ (maskedKSN >>> 32));
+			this.hash = h ^ (h >>> 16);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof DeviceKey)) {
+				return false;
+			}
+
+			DeviceKey other = (DeviceKey)o;
+			return maskedKSN == other.maskedKSN && bdkId.equals(other.bdkId);
+		}
+	}
+
+	/**
+	 * The cached keys of one device: its IPEK (initial key), and the intermediate keys of its
+	 * derivation tree.
+	 *
+	 * The key of transaction counter c is derived from the key of c with its rightmost set bit
+	 * cleared, up to the IPEK (counter 0). Every intermediate key is stored in the slot of the
+	 * rightmost set bit of its counter prefix, together with that prefix, so a new counter can
+	 * resume from its deepest cached ancestor. Counters are 21 bits long for TDES DUKPT and 32 bits
+	 * long for AES DUKPT.
+	 */
+	public static final class DeviceKeys {
+		private static final int COUNTER_BITS = 32;
+
+		final DeviceKey key;
+		// Key length in longs
+		private final int words;
+		private final long[] initialKey;
+		// Allocated on the first intermediate key. prefixes[b] is 0 for an empty slot, since a
+		// prefix stored in slot b always has bit b set.
+		private int[] prefixes;
+		private long[] intermediateKeys;
+		private boolean zeroized;
+
+		DeviceKeys(DeviceKey key, byte[] initialKey, int offset, int length) {
+			this.key = key;
+			this.words = length / 8;
+			this.initialKey = new long[words];
+			for(int w = 0; w < words; w++) {
+				this.initialKey[w] = ByteArrayUtil.toLong(initialKey, offset + 8 * w);
+			}
+		}
+
+		/**
+		 * @return the length in bytes of the keys of the device
+		 */
+		public int getKeyLength() {
+			return 8 * words;
+		}
+
+		/**
+		 * Copies the key of the deepest cached ancestor of <code>counter</code> (<code>counter</code>
+		 * itself included) into <code>key</code>.
+		 *
+		 * @return the counter prefix the copied key belongs to (0 for the IPEK), or -1 if the keys of
+		 *         the device have been evicted meanwhile
+		 */
+		public synchronized int getDeepestKey(int counter, byte[] key, int offset) {
+			if(zeroized) {
+				return -1;
+			}
+
+			if(prefixes != null) {
+				for(int prefix = counter; prefix != 0; prefix &= prefix - 1) {
+					int slot = Integer.numberOfTrailingZeros(prefix);
+					if(prefixes[slot] == prefix) {
+						copy(intermediateKeys, slot * words, key, offset);
+						return prefix;
+					}
+				}
+			}
+
+			copy(initialKey, 0, key, offset);
+			return 0;
+		}
+
+		/**
+		 * Stores the 16 bytes key derived for the counter prefix <code>counterPrefix</code>,
+		 * replacing the one of any other prefix ending at the same bit.
+		 */
+		public synchronized void putIntermediateKey(int counterPrefix, long keyL, long keyR) {
+			if(!prepareSlots(counterPrefix)) {
+				return;
+			}
+
+			int slot = Integer.numberOfTrailingZeros(counterPrefix);
+			prefixes[slot] = counterPrefix;
+			intermediateKeys[slot * words] = keyL;
+			intermediateKeys[slot * words + 1] = keyR;
+		}
+
+		/**
+		 * Same as {@link #putIntermediateKey(int, long, long)}, for keys of any length.
+		 */
+		public synchronized void putIntermediateKey(int counterPrefix, byte[] key, int offset) {
+			if(!prepareSlots(counterPrefix)) {
+				return;
+			}
+
+			int slot = Integer.numberOfTrailingZeros(counterPrefix);
+			prefixes[slot] = counterPrefix;
+			for(int w = 0; w < words; w++) {
+				intermediateKeys[slot * words + w] = ByteArrayUtil.toLong(key, offset + 8 * w);
+			}
+		}
+
+		synchronized void zeroize() {
+			Arrays.fill(initialKey, 0);
+			if(prefixes != null) {
+				Arrays.fill(prefixes, 0);
+				Arrays.fill(intermediateKeys, 0);
+			}
+			zeroized = true;
+		}
+
+		private boolean prepareSlots(int counterPrefix) {
+			if(zeroized || counterPrefix == 0) {
+				return false;
+			}
+
+			if(prefixes == null) {
+				prefixes = new int[COUNTER_BITS];
+				intermediateKeys = new long[COUNTER_BITS * words];
+			}
+
+			return true;
+		}
+
+		private void copy(long[] source, int from, byte[] key, int offset) {
+			for(int w = 0; w < words; w++) {
+				ByteArrayUtil.putLong(source[from + w], key, offset + 8 * w);
+			}
+		}
+	}
+
+	/**
+	 * Count-min sketch of 4 bit counters, 16 per long, estimating how often each device was looked
+	 * up. All counters are halved every 10 * maximumSize increments, so that old popularity fades.
+	 * Counters are incremented with a CAS of their long, so that they saturate at 15 instead of
+	 * carrying into their neighbour; a halving racing with increments may lose a few of them, which
+	 * only makes the estimate slightly less precise.
+	 */
+	private static final class FrequencySketch {
+		private static final long[] SEEDS = { 0x97CB3127L, 0xB7B3C3A1L, 0xC3A5C85CL, 0x9E3779B9L };
+		private static final long RESET_MASK = 0x7777777777777777L;
+
+		private final AtomicLongArray table;
+		private final int tableMask;
+		private final int sampleSize;
+		private final AtomicInteger additions = new AtomicInteger();
+
+		FrequencySketch(int maximumSize) {
+			int length = Integer.highestOneBit(Math.max(maximumSize, 16) - 1) << 1;
+			table = new AtomicLongArray(length);
+			tableMask = length - 1;
+			sampleSize = 10 * maximumSize;
+		}
+
+		int frequency(int hash) {
+			int frequency = Integer.MAX_VALUE;
+			for(int i = 0; i < 4; i++) {
+				int index = index(hash, i);
+				int shift = counterShift(hash, i);
+				frequency = Math.min(frequency, (int)((table.getPlain(index) >>> shift) & 0xF));
+			}
+
+			return frequency;
+		}
+
+		void increment(int hash) {
+			boolean added = false;
+			for(int i = 0; i < 4; i++) {
+				int index = index(hash, i);
+				int shift = counterShift(hash, i);
+				long value;
+				do {
+					value = table.getPlain(index);
+					if(((value >>> shift) & 0xF) == 0xF) {
+						break;
+					}
+				} while(!table.compareAndSet(index, value, value + (1L << shift)));
+				added |= ((value >>> shift) & 0xF) != 0xF;
+			}
+
+			if(added) {
+				// Only the thread taking the count back to 0 resets
+				int count = additions.incrementAndGet();
+				if(count >= sampleSize && additions.compareAndSet(count, 0)) {
+					reset();
+				}
+			}
+		}
+
+		private void reset() {
+			for(int i = 0; i < table.length(); i++) {
+				long value;
+				do {
+					value = table.getPlain(i);
+				} while(!table.compareAndSet(i, value, (value >>> 1) & RESET_MASK));
+			}
+		}
+
+		private int index(int hash, int i) {
+			long h = (hash + SEEDS[i]) * SEEDS[i];
+			h += h >>> 32;
+			return (int)h & tableMask;
+		}
+
+		private static int counterShift(int hash, int i) {
+			// one of the 16 counters of the long, a different nibble of the hash for each row
+			return ((hash >>> (i << 3)) & 0xF) << 2;
+		}
+	}
+}
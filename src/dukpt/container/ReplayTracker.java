@@ -0,0 +1,264 @@
+package dukpt.container;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import dukpt.model.DecryptionStatus;
+import dukpt.model.KSN;
+
+/**
+ * Tells, for every transaction of every device, whether its KSN counter was already used, so that
+ * replayed transactions are rejected before any key is derived.
+ *
+ * Devices are kept in a lock-free open addressing table (linear probing) keyed by their masked KSN
+ * (see {@link DeviceKeyTable#maskedKSN(byte[])}). Each entry is two longs, side by side in a single
+ * {@link AtomicLongArray}: the masked KSN, and the state of the device, packed as
+ * <pre>
+ * highest counter seen (21 bits) | window (43 bits)
+ * </pre>
+ * where bit i of the window tells whether counter <code>highest - 1 - i</code> was seen. Counters
+ * may then arrive out of order, as long as they are within {@link #WINDOW} of the highest one.
+ * Both the entry claim and the state update are a single compare-and-set, so threads checking
+ * different devices never wait for each other, and the ones checking the same device retry.
+ *
+ * The capacity is fixed when the tracker is created: devices are never removed, and once
+ * {@link #MAXIMUM_LOAD_FACTOR} of the entries are used, new devices are refused.
+ */
+public class ReplayTracker {
+	public static final double MAXIMUM_LOAD_FACTOR = 0.75;
+	// Number of counters below the highest one that are still accepted
+	public static final int WINDOW = 43;
+	private static final long WINDOW_MASK = (1L << WINDOW) - 1;
+	private static final long IPEK_KSN_MASK = 0xFFFFFFFFFFFFFFE0L;
+	// Set in every stored key, so that 0 always means an empty entry. The 5 rightmost bits of a
+	// masked KSN are always 0.
+	private static final long OCCUPIED = 1L;
+	private static final int MAXIMUM_CAPACITY = 1 << 29;
+
+	/**
+	 * Outcome of {@link ReplayTracker#check(long, int)}.
+	 */
+	public enum Verdict {
+		// First time the counter is seen, now recorded
+		ACCEPTED,
+		// The counter was already seen
+		REPLAYED,
+		// The counter is more than WINDOW below the highest one seen, and can not be told apart from
+		// a replay
+		STALE,
+		// The counter is 0 or has more than KSN.MAXIMUM_COUNTER_BITS bits set
+		INVALID_COUNTER,
+		// The device is not tracked yet and the tracker is full
+		FULL;
+
+		/**
+		 * @return {@link DecryptionStatus#SUCCESS} if the transaction may go on, the status to reject it
+		 *         with otherwise. A full tracker rejects new devices rather than letting them through
+		 *         unchecked.
+		 */
+		public DecryptionStatus getDecryptionStatus() {
+			switch(this) {
+			case ACCEPTED:
+				return DecryptionStatus.SUCCESS;
+			case INVALID_COUNTER:
+				return DecryptionStatus.INVALID_KSN;
+			default:
+				return DecryptionStatus.REPLAYED;
+			}
+		}
+	}
+
+	private final AtomicLongArray entries;
+	private final int capacity;
+	private final int capacityMask;
+	private final int maximumSize;
+	private final AtomicInteger size = new AtomicInteger();
+
+	/**
+	 * @param expectedDevices
+	 *          number of devices the tracker must hold without exceeding its load factor
+	 */
+	public ReplayTracker(int expectedDevices) {
+		if(expectedDevices < 1) {
+			throw new IllegalArgumentException("@ ReplayTracker(). Parameter <expectedDevices> must be positive, but was " + expectedDevices + ".");
+		}
+
+		long minimumCapacity = (long)Math.ceil(expectedDevices / MAXIMUM_LOAD_FACTOR);
+		if(minimumCapacity > MAXIMUM_CAPACITY) {
+			throw new IllegalArgumentException("@ ReplayTracker(). Parameter <expectedDevices> must be at most " + (long)(MAXIMUM_CAPACITY * MAXIMUM_LOAD_FACTOR) + ", but was " + expectedDevices + ".");
+		}
+
+		this.capacity = Math.max(2, Integer.highestOneBit((int)minimumCapacity * 2 - 1));
+		this.capacityMask = capacity - 1;
+		this.maximumSize = (int)(capacity * MAXIMUM_LOAD_FACTOR);
+		this.entries = new AtomicLongArray(2 * capacity);
+	}
+
+	/**
+	 * Same as {@link #check(long, int)}, for a 10 bytes KSN.
+	 */
+	public Verdict check(byte[] ksn) {
+		long left = 0;
+		for(int i = 0; i < 8; i++) {
+			left = (left << 8) | (ksn[i] & 0xFF);
+		}
+		int counter = (((int)left & 0x1F) << 16) | ((ksn[8] & 0xFF) << 8) | (ksn[9] & 0xFF);
+
+		return check(left & IPEK_KSN_MASK, counter);
+	}
+
+	public Verdict check(KSN ksn) {
+		return check(ksn.getMaskedKSN(), ksn.getCounter());
+	}
+
+	/**
+	 * Checks a transaction counter of a device, and records it if it was not seen before.
+	 *
+	 * @param maskedKSN the 8 leftmost bytes of the KSN, counter bits zeroed
+	 * @param counter the 21 bits transaction counter
+	 */
+	public Verdict check(long maskedKSN, int counter) {
+		if(counter <= 0 || counter > KSN.MAXIMUM_COUNTER
+				|| Integer.bitCount(counter) > KSN.MAXIMUM_COUNTER_BITS) {
+			return Verdict.INVALID_COUNTER;
+		}
+
+		int entry = findOrClaim(maskedKSN);
+		if(entry < 0) {
+			return Verdict.FULL;
+		}
+
+		int stateIndex = 2 * entry + 1;
+		while(true) {
+			long state = entries.get(stateIndex);
+			long next;
+			if(state == 0) {
+				// First counter of the device
+				next = (long)counter << WINDOW;
+			} else {
+				int highest = (int)(state >>> WINDOW);
+				long window = state & WINDOW_MASK;
+				if(counter > highest) {
+					// The previous highest counter moves into the window, counter - highest - 1 bits down
+					int shift = counter - highest;
+					long shifted = shift > WINDOW ? 0 : ((window << shift) | (1L << (shift - 1))) & WINDOW_MASK;
+					next = ((long)counter << WINDOW) | shifted;
+				} else if(counter == highest) {
+					return Verdict.REPLAYED;
+				} else {
+					int distance = highest - counter;
+					if(distance > WINDOW) {
+						return Verdict.STALE;
+					}
+
+					long bit = 1L << (distance - 1);
+					if((window & bit) != 0) {
+						return Verdict.REPLAYED;
+					}
+					next = state | bit;
+				}
+			}
+
+			if(entries.compareAndSet(stateIndex, state, next)) {
+				return Verdict.ACCEPTED;
+			}
+		}
+	}
+
+	/**
+	 * @return the highest counter seen for the device, or -1 if none
+	 */
+	public int getHighestCounter(long maskedKSN) {
+		int entry = find(maskedKSN);
+		if(entry < 0) {
+			return -1;
+		}
+
+		long state = entries.get(2 * entry + 1);
+		return state == 0 ? -1 : (int)(state >>> WINDOW);
+	}
+
+	/**
+	 * Forgets the counters of a device, for instance after it was injected with a new key. The device
+	 * keeps its entry.
+	 */
+	public void reset(long maskedKSN) {
+		int entry = find(maskedKSN);
+		if(entry >= 0) {
+			entries.set(2 * entry + 1, 0);
+		}
+	}
+
+	/**
+	 * @return the number of devices tracked
+	 */
+	public int size() {
+		return Math.min(size.get(), maximumSize);
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	private int find(long maskedKSN) {
+		long key = (maskedKSN & IPEK_KSN_MASK) | OCCUPIED;
+		int entry = slot(key);
+		for(int probes = 0; probes < capacity; probes++, entry = (entry + 1) & capacityMask) {
+			long current = entries.get(2 * entry);
+			if(current == key) {
+				return entry;
+			}
+			if(current == 0) {
+				return -1;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * @return the entry of the device, claimed for it if it had none, or -1 if the tracker is full
+	 */
+	private int findOrClaim(long maskedKSN) {
+		long key = (maskedKSN & IPEK_KSN_MASK) | OCCUPIED;
+		int entry = slot(key);
+		for(int probes = 0; probes < capacity; probes++, entry = (entry + 1) & capacityMask) {
+			int keyIndex = 2 * entry;
+			long current = entries.get(keyIndex);
+			if(current == key) {
+				return entry;
+			}
+
+			if(current == 0) {
+				// Reserve room before claiming, so that the load factor is never exceeded
+				if(size.incrementAndGet() > maximumSize) {
+					size.decrementAndGet();
+					return -1;
+				}
+
+				if(entries.compareAndSet(keyIndex, 0, key)) {
+					return entry;
+				}
+
+				size.decrementAndGet();
+				// Another thread claimed the entry, maybe for the same device
+				if(entries.get(keyIndex) == key) {
+					return entry;
+				}
+			}
+		}
+
+		return -1;
+	}
+
+	private int slot(long key) {
+		// MurmurHash3 finalizer, the low bits of a masked KSN are always zero
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB9FE1A85EC53L;
+		h ^= h >>> 33;
+		return (int)h & capacityMask;
+	}
+}
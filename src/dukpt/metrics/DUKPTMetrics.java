@@ -0,0 +1,276 @@
+package dukpt.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import dukpt.container.BDKContainer;
+import dukpt.container.IPEKCache;
+import dukpt.model.DecryptionStatus;
+
+/**
+ * Instrumentation of the DUKPT operations: a latency histogram per {@link Stage}, derivation,
+ * DES operation and decryption counters, and the state of {@link IPEKCache} and
+ * {@link BDKContainer}, all exposed as JMX MBeans by {@link #registerMBeans()} under the
+ * <code>dukpt</code> domain.
+ *
+ * Recording is off unless the <code>dukpt.metrics</code> system property is true, and can be
+ * switched at any time with {@link #setRecording(boolean)} or the <code>Enabled</code> attribute.
+ * The instrumented code brackets a stage as
+ * <pre>
+ * long start = DUKPTMetrics.start();
+ * ...
+ * DUKPTMetrics.record(Stage.DERIVE_KEY, start);
+ * </pre>
+ * While recording is off, {@link #start()} is a read of a volatile flag returning
+ * {@link #NOT_RECORDING}, and the record methods ignore that start, so the instrumentation costs a
+ * load and a branch.
+ */
+public final class DUKPTMetrics implements DUKPTMetricsMBean {
+  public static final String ENABLED_PROPERTY = "dukpt.metrics";
+  public static final String DOMAIN = "dukpt";
+  // DES operations of an IPEK: 2 TDES encryptions
+  public static final int IPEK_DES_OPERATIONS = 6;
+  // Start of a stage while recording is off, never returned by start() otherwise (nanoTime may be
+  // 0, or any other value)
+  public static final long NOT_RECORDING = Long.MIN_VALUE;
+
+  private static final int DES_OPERATIONS_BUCKETS = 64;
+
+  private static volatile boolean recording = Boolean.getBoolean(ENABLED_PROPERTY);
+
+  private static final DUKPTMetrics INSTANCE = new DUKPTMetrics();
+
+  private final StageMetrics[] stages;
+  private final LongAdder derivations = new LongAdder();
+  private final LongAdder desOperations = new LongAdder();
+  private final AtomicLongArray desOperationsDistribution = new AtomicLongArray(
+      DES_OPERATIONS_BUCKETS);
+  private final LongAdder decryptions = new LongAdder();
+  private final LongAdder failedDecryptions = new LongAdder();
+
+  private DUKPTMetrics() {
+    Stage[] values = Stage.values();
+    stages = new StageMetrics[values.length];
+    for (int i = 0; i < values.length; i++) {
+      stages[i] = new StageMetrics(values[i]);
+    }
+  }
+
+  public static DUKPTMetrics getInstance() {
+    return INSTANCE;
+  }
+
+  public static boolean isRecording() {
+    return recording;
+  }
+
+  public static void setRecording(boolean recording) {
+    DUKPTMetrics.recording = recording;
+  }
+
+  /**
+   * @return the start time of a stage, or {@link #NOT_RECORDING} if recording is off
+   */
+  public static long start() {
+    if (!recording) {
+      return NOT_RECORDING;
+    }
+
+    long now = System.nanoTime();
+    return now != NOT_RECORDING ? now : now + 1;
+  }
+
+  /**
+   * Records the duration of a stage started at <code>start</code>, unless it is {@link #NOT_RECORDING}.
+   */
+  public static void record(Stage stage, long start) {
+    if (start != NOT_RECORDING) {
+      INSTANCE.stages[stage.ordinal()].getHistogram().record(System.nanoTime() - start);
+    }
+  }
+
+  /**
+   * Records a key derivation started at <code>start</code>, unless it is {@link #NOT_RECORDING}.
+   * 
+   * @param desOperations
+   *          single DES operations of the derivation, the IPEK included if it was generated for it
+   */
+  public static void recordDerivation(long start, int desOperations) {
+    if (start != NOT_RECORDING) {
+      record(Stage.DERIVE_KEY, start);
+      INSTANCE.derivations.increment();
+      INSTANCE.desOperations.add(desOperations);
+      INSTANCE.desOperationsDistribution.incrementAndGet(Math.min(desOperations,
+          DES_OPERATIONS_BUCKETS - 1));
+    }
+  }
+
+  /**
+   * Records a whole decryption started at <code>start</code>, unless it is {@link #NOT_RECORDING}.
+   */
+  public static void recordDecryption(long start, DecryptionStatus status) {
+    if (start != NOT_RECORDING) {
+      record(Stage.DECRYPT, start);
+      INSTANCE.decryptions.increment();
+      if (status != DecryptionStatus.SUCCESS) {
+        INSTANCE.failedDecryptions.increment();
+      }
+    }
+  }
+
+  public StageMetrics getStage(Stage stage) {
+    return stages[stage.ordinal()];
+  }
+
+  /**
+   * Registers this MBean as <code>dukpt:type=Metrics</code> and one
+   * <code>dukpt:type=Stage,name=...</code> MBean per stage in the platform MBean server. Does
+   * nothing for the ones already registered.
+   */
+  public static void registerMBeans() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    register(server, INSTANCE, metricsName());
+    for (StageMetrics stage : INSTANCE.stages) {
+      register(server, stage, stageName(stage.getStage()));
+    }
+  }
+
+  public static void unregisterMBeans() throws JMException {
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    unregister(server, metricsName());
+    for (StageMetrics stage : INSTANCE.stages) {
+      unregister(server, stageName(stage.getStage()));
+    }
+  }
+
+  private static void register(MBeanServer server, Object mbean, ObjectName name)
+      throws JMException {
+    try {
+      server.registerMBean(mbean, name);
+    } catch (InstanceAlreadyExistsException e) {
+      // Registered before
+    }
+  }
+
+  private static void unregister(MBeanServer server, ObjectName name) throws JMException {
+    try {
+      server.unregisterMBean(name);
+    } catch (InstanceNotFoundException e) {
+      // Never registered
+    }
+  }
+
+  private static ObjectName metricsName() throws JMException {
+    return new ObjectName(DOMAIN + ":type=Metrics");
+  }
+
+  private static ObjectName stageName(Stage stage) throws JMException {
+    return new ObjectName(DOMAIN + ":type=Stage,name=" + stage.getDisplayName());
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return recording;
+  }
+
+  @Override
+  public void setEnabled(boolean enabled) {
+    setRecording(enabled);
+  }
+
+  @Override
+  public long getDerivations() {
+    return derivations.sum();
+  }
+
+  @Override
+  public long getDesOperations() {
+    return desOperations.sum();
+  }
+
+  @Override
+  public double getDesOperationsPerDerivation() {
+    long n = derivations.sum();
+    return n == 0 ? 0 : (double) desOperations.sum() / n;
+  }
+
+  @Override
+  public long[] getDesOperationsDistribution() {
+    long[] distribution = new long[DES_OPERATIONS_BUCKETS];
+    for (int i = 0; i < distribution.length; i++) {
+      distribution[i] = desOperationsDistribution.get(i);
+    }
+
+    return distribution;
+  }
+
+  @Override
+  public long getDecryptions() {
+    return decryptions.sum();
+  }
+
+  @Override
+  public long getFailedDecryptions() {
+    return failedDecryptions.sum();
+  }
+
+  @Override
+  public double getIPEKCacheHitRatio() {
+    return hitRatio(IPEKCache.getInstance());
+  }
+
+  @Override
+  public int getIPEKCacheSize() {
+    return IPEKCache.getInstance().size();
+  }
+
+  @Override
+  public long getIPEKCacheEvictions() {
+    return IPEKCache.getInstance().getEvictionCount();
+  }
+
+  @Override
+  public double getAESCacheHitRatio() {
+    return hitRatio(IPEKCache.getAESInstance());
+  }
+
+  @Override
+  public int getAESCacheSize() {
+    return IPEKCache.getAESInstance().size();
+  }
+
+  @Override
+  public int getBDKCount() {
+    return BDKContainer.getInstance().size();
+  }
+
+  private static double hitRatio(IPEKCache cache) {
+    long hits = cache.getHitCount();
+    long lookups = hits + cache.getMissCount();
+    return lookups == 0 ? 0 : (double) hits / lookups;
+  }
+
+  /**
+   * Resets the counters and the histograms of every stage. The caches keep their own counters.
+   */
+  @Override
+  public void reset() {
+    for (StageMetrics stage : stages) {
+      stage.reset();
+    }
+    derivations.reset();
+    desOperations.reset();
+    for (int i = 0; i < DES_OPERATIONS_BUCKETS; i++) {
+      desOperationsDistribution.set(i, 0);
+    }
+    decryptions.reset();
+    failedDecryptions.reset();
+  }
+}
@@ -0,0 +1,40 @@
+package dukpt.metrics;
+
+/**
+ * Switch of the DUKPT instrumentation, with its counters and the state of the key stores.
+ */
+public interface DUKPTMetricsMBean {
+  boolean isEnabled();
+
+  void setEnabled(boolean enabled);
+
+  long getDerivations();
+
+  long getDesOperations();
+
+  double getDesOperationsPerDerivation();
+
+  /**
+   * @return the number of derivations that took each number of DES operations, index being the
+   *         number of DES operations (the last one counting that many or more)
+   */
+  long[] getDesOperationsDistribution();
+
+  long getDecryptions();
+
+  long getFailedDecryptions();
+
+  double getIPEKCacheHitRatio();
+
+  int getIPEKCacheSize();
+
+  long getIPEKCacheEvictions();
+
+  double getAESCacheHitRatio();
+
+  int getAESCacheSize();
+
+  int getBDKCount();
+
+  void reset();
+}
@@ -0,0 +1,143 @@
+package dukpt.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of durations in nanoseconds.
+ *
+ * Values are counted in log-linear buckets: 8 buckets per power of two, so a percentile is exact
+ * to within 12.5%. Recording is one bucket increment, one adder increment and one read of the
+ * maximum, and never blocks. The buckets are striped by thread so that threads recording the same
+ * duration do not contend on the same counter.
+ */
+public final class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  // Values below SUB_BUCKETS have a bucket each, then SUB_BUCKETS buckets per power of two up to
+  // 2^62
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+  private static final int STRIPES = stripes();
+
+  private final AtomicLongArray counts = new AtomicLongArray(STRIPES * BUCKETS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final AtomicLong maximum = new AtomicLong();
+
+  private static int stripes() {
+    int processors = Math.min(Runtime.getRuntime().availableProcessors(), 16);
+    return Integer.highestOneBit(Math.max(processors, 1) * 2 - 1);
+  }
+
+  public void record(long nanos) {
+    if (nanos < 0) {
+      nanos = 0;
+    }
+
+    counts.incrementAndGet(stripe() * BUCKETS + bucket(nanos));
+    count.increment();
+    sum.add(nanos);
+
+    long current = maximum.get();
+    while (nanos > current && !maximum.compareAndSet(current, nanos)) {
+      current = maximum.get();
+    }
+  }
+
+  public long getCount() {
+    return count.sum();
+  }
+
+  public long getSum() {
+    return sum.sum();
+  }
+
+  public double getMean() {
+    long n = count.sum();
+    return n == 0 ? 0 : (double) sum.sum() / n;
+  }
+
+  public long getMaximum() {
+    return maximum.get();
+  }
+
+  /**
+   * @param quantile
+   *          between 0 and 1, 0.99 for the 99th percentile
+   * @return the value below which <code>quantile</code> of the recorded values fall (midpoint of its
+   *         bucket), 0 if nothing was recorded
+   */
+  public long getPercentile(double quantile) {
+    long[] merged = new long[BUCKETS];
+    long total = 0;
+    for (int stripe = 0; stripe < STRIPES; stripe++) {
+      for (int bucket = 0; bucket < BUCKETS; bucket++) {
+        long n = counts.get(stripe * BUCKETS + bucket);
+        merged[bucket] += n;
+        total += n;
+      }
+    }
+
+    if (total == 0) {
+      return 0;
+    }
+
+    long rank = Math.max(1, (long) Math.ceil(quantile * total));
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      seen += merged[bucket];
+      if (seen >= rank) {
+        return Math.min(midpoint(bucket), maximum.get());
+      }
+    }
+
+    return maximum.get();
+  }
+
+  /**
+   * Forgets every recorded value. Values recorded while resetting may or may not be kept.
+   */
+  public void reset() {
+    for (int i = 0; i < counts.length(); i++) {
+      counts.set(i, 0);
+    }
+    count.reset();
+    sum.reset();
+    maximum.set(0);
+  }
+
+  static int bucket(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long lowerBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+
+    int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BUCKET_BITS);
+  }
+
+  private static long midpoint(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+
+    long width = 1L << (bucket / SUB_BUCKETS - 1);
+    return lowerBound(bucket) + width / 2;
+  }
+
+  private static int stripe() {
+    long id = Thread.currentThread().getId();
+    int h = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+    return (h >>> 16) & (STRIPES - 1);
+  }
+}
@@ -0,0 +1,30 @@
+package dukpt.metrics;
+
+/**
+ * The timed stages of a DUKPT operation.
+ */
+public enum Stage {
+  // IPEK from the BDK and the KSN, 2 TDES encryptions
+  GENERATE_IPEK("generateIPEK"),
+  // Key derivation from the IPEK or a cached intermediate key, 2 DES encryptions per step
+  DERIVE_KEY("deriveKey"),
+  // PIN/data/MAC variant of a derived key
+  VARIANT("variant"),
+  // TDES/CBC decryption of the data
+  TDES_DECRYPT("tdesDecrypt"),
+  // A whole decryption, from the KSN and the encrypted data to the clear data
+  DECRYPT("decrypt");
+
+  private final String displayName;
+
+  private Stage(String displayName) {
+    this.displayName = displayName;
+  }
+
+  /**
+   * @return the name of the stage in the JMX object names
+   */
+  public String getDisplayName() {
+    return displayName;
+  }
+}
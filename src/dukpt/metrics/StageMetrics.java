@@ -0,0 +1,64 @@
+package dukpt.metrics;
+
+/**
+ * The {@link LatencyHistogram} of one {@link Stage}, as a JMX MBean.
+ */
+public final class StageMetrics implements StageMetricsMBean {
+  private final Stage stage;
+  private final LatencyHistogram histogram = new LatencyHistogram();
+  private volatile long resetNanos = System.nanoTime();
+
+  StageMetrics(Stage stage) {
+    this.stage = stage;
+  }
+
+  public Stage getStage() {
+    return stage;
+  }
+
+  public LatencyHistogram getHistogram() {
+    return histogram;
+  }
+
+  @Override
+  public long getCount() {
+    return histogram.getCount();
+  }
+
+  @Override
+  public double getThroughput() {
+    long elapsed = System.nanoTime() - resetNanos;
+    return elapsed <= 0 ? 0 : histogram.getCount() * 1e9 / elapsed;
+  }
+
+  @Override
+  public double getMeanNanos() {
+    return histogram.getMean();
+  }
+
+  @Override
+  public long getMedianNanos() {
+    return histogram.getPercentile(0.5);
+  }
+
+  @Override
+  public long get99thPercentileNanos() {
+    return histogram.getPercentile(0.99);
+  }
+
+  @Override
+  public long get999thPercentileNanos() {
+    return histogram.getPercentile(0.999);
+  }
+
+  @Override
+  public long getMaximumNanos() {
+    return histogram.getMaximum();
+  }
+
+  @Override
+  public void reset() {
+    histogram.reset();
+    resetNanos = System.nanoTime();
+  }
+}
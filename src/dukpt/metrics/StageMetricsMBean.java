@@ -0,0 +1,25 @@
+package dukpt.metrics;
+
+/**
+ * Latency and throughput of one {@link Stage}, in nanoseconds.
+ */
+public interface StageMetricsMBean {
+  long getCount();
+
+  /**
+   * @return operations per second since the last reset
+   */
+  double getThroughput();
+
+  double getMeanNanos();
+
+  long getMedianNanos();
+
+  long get99thPercentileNanos();
+
+  long get999thPercentileNanos();
+
+  long getMaximumNanos();
+
+  void reset();
+}
@@ -0,0 +1,34 @@
+package dukpt.model;
+
+public class DecryptionResult {
+
+	private PaymentData paymentData;
+	private DecryptionStatus status;
+	private byte[] decryptedData;
+	
+	public DecryptionResult(PaymentData paymentData, DecryptionStatus status, byte[] decryptedData) {
+		this.paymentData = paymentData;
+		this.status = status;
+		this.decryptedData = decryptedData;
+	}
+
+	public PaymentData getPaymentData() {
+		return paymentData;
+	}
+
+	public DecryptionStatus getStatus() {
+		return status;
+	}
+
+	/**
+	 * @return the decrypted data, or null unless the status is {@link DecryptionStatus#SUCCESS}
+	 */
+	public byte[] getDecryptedData() {
+		return decryptedData;
+	}
+	
+	public boolean isSuccess() {
+		return status == DecryptionStatus.SUCCESS;
+	}
+
+}
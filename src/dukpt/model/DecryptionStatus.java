@@ -0,0 +1,23 @@
+package dukpt.model;
+
+public enum DecryptionStatus {
+	SUCCESS,
+	// The KSN is missing, is not 10 bytes long or, where checked, has a counter no originator uses
+	INVALID_KSN,
+	// The encrypted data is missing or is not a whole number of 8 byte blocks
+	INVALID_DATA,
+	// No BDK is known for the device
+	UNKNOWN_BDK,
+	// The BDK is not a valid double/triple-length key
+	INVALID_BDK,
+	// Any other failure of the cryptographic operations
+	CRYPTO_ERROR,
+	// The transaction counter was already used by the device, or is too far behind its latest one
+	// to tell (see dukpt.container.ReplayTracker)
+	REPLAYED,
+	// The decrypted PIN block does not follow its ISO 9564-1 format: wrong key, wrong PAN or
+	// tampered block
+	INVALID_PIN_BLOCK,
+	// The service had no thread left for the request, which may be retried
+	OVERLOADED
+}
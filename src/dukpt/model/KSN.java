@@ -0,0 +1,241 @@
+package dukpt.model;
+
+import dukpt.util.HexCodec;
+
+/**
+ * An immutable 10 bytes Key Serial Number, packed into a <code>short</code> (its 2 leftmost
+ * bytes) and a <code>long</code> (its 8 rightmost bytes), so that its fields are read with a
+ * shift and a mask, and it can be used as a map key without any array behind it.
+ *
+ * The layout is the one of {@link dukpt.util.DUKPTUtil#generateIPEK(byte[], byte[])}, in hex
+ * digits:
+ * <pre>
+ * FF FF | BDK_ID[6] | TRSM_ID[5] | COUNTER[5]
+ * </pre>
+ * where the rightmost bit of TRSM_ID belongs to the 21 bits transaction counter, leaving 19 bits
+ * to the device.
+ */
+public final class KSN {
+	public static final int LENGTH = 10;
+	// The originator never uses a counter with more than 10 bits set
+	public static final int MAXIMUM_COUNTER_BITS = 10;
+	public static final int COUNTER_BITS = 21;
+	public static final int MAXIMUM_COUNTER = (1 << COUNTER_BITS) - 1;
+
+	private static final long COUNTER_MASK = MAXIMUM_COUNTER;
+	private static final int DEVICE_ID_BITS = 19;
+	private static final long DEVICE_ID_MASK = (1L << DEVICE_ID_BITS) - 1;
+	private static final int BDK_ID_SHIFT = COUNTER_BITS + DEVICE_ID_BITS;
+	private static final long BDK_ID_MASK = 0xFFFFFFL;
+
+	// Bytes 0-1
+	private final short high;
+	// Bytes 2-9
+	private final long low;
+
+	private KSN(short high, long low) {
+		this.high = high;
+		this.low = low;
+	}
+
+	/**
+	 * @param high the 2 leftmost bytes, big-endian, in the 16 low bits
+	 * @param low the 8 rightmost bytes, big-endian
+	 */
+	public static KSN of(int high, long low) {
+		return new KSN((short)high, low);
+	}
+
+	public static KSN fromBytes(byte[] ksn) {
+		if(ksn == null || ksn.length != LENGTH) {
+			throw new IllegalArgumentException("@ KSN.fromBytes(). Parameter <ksn> must be " + LENGTH
+					+ " bytes long, but was " + (ksn == null ? "null" : ksn.length + " bytes long") + ".");
+		}
+
+		return fromBytes(ksn, 0);
+	}
+
+	/**
+	 * Reads the 10 bytes of <code>ksn</code> starting at <code>offset</code>.
+	 */
+	public static KSN fromBytes(byte[] ksn, int offset) {
+		long low = 0;
+		for(int i = offset + 2; i < offset + LENGTH; i++) {
+			low = (low << 8) | (ksn[i] & 0xFF);
+		}
+
+		return new KSN((short)(((ksn[offset] & 0xFF) << 8) | (ksn[offset + 1] & 0xFF)), low);
+	}
+
+	/**
+	 * Parses 20 hex digits, in upper or lower case, optionally separated by spaces (as in
+	 * "FF FF 98 76 54 32 10 E0 00 01").
+	 * 
+	 * @throws IllegalArgumentException if <code>hex</code> is not a 10 bytes KSN
+	 */
+	public static KSN fromHex(CharSequence hex) {
+		long high = 0;
+		long low = 0;
+		int digits = 0;
+		for(int i = 0; i < hex.length(); i++) {
+			char c = hex.charAt(i);
+			if(c == ' ') {
+				continue;
+			}
+
+			int value = HexCodec.digit(c);
+			if(value < 0 || digits == 2 * LENGTH) {
+				digits = -1;
+				break;
+			}
+
+			// The 4 leftmost digits shift out of low into high
+			high = (high << 4) | (low >>> 60);
+			low = (low << 4) | value;
+			digits++;
+		}
+
+		if(digits != 2 * LENGTH) {
+			throw new IllegalArgumentException("@ KSN.fromHex(). Parameter <hex> must be "
+					+ 2 * LENGTH + " hex digits, but was \"" + hex + "\".");
+		}
+
+		return new KSN((short)high, low);
+	}
+
+	/**
+	 * @return the 2 leftmost bytes, usually FF FF
+	 */
+	public int getHigh() {
+		return high & 0xFFFF;
+	}
+
+	/**
+	 * @return the 8 rightmost bytes, as read by a big-endian long
+	 */
+	public long getLow() {
+		return low;
+	}
+
+	/**
+	 * @return the 24 bits BDK identifier
+	 */
+	public int getBDKId() {
+		return (int)((low >>> BDK_ID_SHIFT) & BDK_ID_MASK);
+	}
+
+	/**
+	 * @return the 40 bits key set identifier: the 2 leftmost bytes and the BDK identifier
+	 */
+	public long getKeySetId() {
+		return ((long)getHigh() << 24) | getBDKId();
+	}
+
+	/**
+	 * @return the 19 bits identifier of the device (TRSM) inside its key set
+	 */
+	public int getDeviceId() {
+		return (int)((low >>> COUNTER_BITS) & DEVICE_ID_MASK);
+	}
+
+	/**
+	 * @return the 21 bits transaction counter
+	 */
+	public int getCounter() {
+		return (int)(low & COUNTER_MASK);
+	}
+
+	/**
+	 * @return the 8 leftmost bytes with the counter bits cleared, the value encrypted to produce
+	 *         the IPEK and the device key of {@link dukpt.container.IPEKCache} and
+	 *         {@link dukpt.container.DeviceKeyTable}
+	 */
+	public long getMaskedKSN() {
+		return (((long)getHigh() << 48) | (low >>> 16)) & 0xFFFFFFFFFFFFFFE0L;
+	}
+
+	/**
+	 * @return true if the counter is one an originator can use: not 0, and with at most
+	 *         {@link #MAXIMUM_COUNTER_BITS} bits set
+	 */
+	public boolean isCounterValid() {
+		int counter = getCounter();
+		return counter != 0 && Integer.bitCount(counter) <= MAXIMUM_COUNTER_BITS;
+	}
+
+	/**
+	 * @return the KSN of the same device with <code>counter</code> as its transaction counter
+	 */
+	public KSN withCounter(int counter) {
+		if(counter < 0 || counter > MAXIMUM_COUNTER) {
+			throw new IllegalArgumentException("@ KSN.withCounter(). Parameter <counter> must be between 0 and "
+					+ MAXIMUM_COUNTER + ", but was " + counter + ".");
+		}
+
+		return new KSN(high, (low & ~COUNTER_MASK) | counter);
+	}
+
+	public KSN withZeroedCounter() {
+		return new KSN(high, low & ~COUNTER_MASK);
+	}
+
+	/**
+	 * @return true if <code>other</code> is a KSN of the same device, whatever its counter
+	 */
+	public boolean isSameDevice(KSN other) {
+		return high == other.high && (low & ~COUNTER_MASK) == (other.low & ~COUNTER_MASK);
+	}
+
+	public byte[] toBytes() {
+		byte[] ksn = new byte[LENGTH];
+		copyTo(ksn, 0);
+		return ksn;
+	}
+
+	/**
+	 * Writes the 10 bytes into <code>destination</code>, starting at <code>offset</code>.
+	 */
+	public void copyTo(byte[] destination, int offset) {
+		destination[offset] = (byte)(high >>> 8);
+		destination[offset + 1] = (byte)high;
+		long value = low;
+		for(int i = offset + LENGTH - 1; i >= offset + 2; i--) {
+			destination[i] = (byte)value;
+			value >>>= 8;
+		}
+	}
+
+	/**
+	 * @return the 20 hex digits, in upper case, without spaces
+	 */
+	public String toHexString() {
+		char[] hex = new char[2 * LENGTH];
+		for(int i = 2 * LENGTH - 1, j = 0; i >= 0; i--, j++) {
+			long value = j < 16 ? low >>> (4 * j) : high >>> (4 * (j - 16));
+			hex[i] = Character.toUpperCase(Character.forDigit((int)(value & 0xF), 16));
+		}
+
+		return new String(hex);
+	}
+
+	@Override
+	public int hashCode() {
+		long h = low * 0x9E3779B97F4A7C15L + high;
+		return (int)(h ^ (h >>> 32));
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof KSN)) {
+			return false;
+		}
+
+		KSN other = (KSN)o;
+		return low == other.low && high == other.high;
+	}
+
+	@Override
+	public String toString() {
+		return toHexString();
+	}
+}
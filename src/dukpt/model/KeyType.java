@@ -0,0 +1,56 @@
+package dukpt.model;
+
+/**
+ * Types of the keys derived by AES DUKPT (ANSI X9.24-3), with their algorithm indicator and
+ * length as written in the derivation data.
+ */
+public enum KeyType {
+	TDES_2KEY(0x0000, 128),
+	TDES_3KEY(0x0001, 192),
+	AES_128(0x0002, 128),
+	AES_192(0x0003, 192),
+	AES_256(0x0004, 256);
+
+	private final int indicator;
+	private final int bits;
+
+	private KeyType(int indicator, int bits) {
+		this.indicator = indicator;
+		this.bits = bits;
+	}
+
+	/**
+	 * @return the 2 bytes algorithm value of the derivation data
+	 */
+	public int getIndicator() {
+		return indicator;
+	}
+
+	public int getBits() {
+		return bits;
+	}
+
+	public int getLength() {
+		return bits / 8;
+	}
+
+	public boolean isAES() {
+		return this == AES_128 || this == AES_192 || this == AES_256;
+	}
+
+	/**
+	 * @return the AES type of a key of <code>length</code> bytes, or null
+	 */
+	public static KeyType aesKeyType(int length) {
+		switch(length) {
+		case 16:
+			return AES_128;
+		case 24:
+			return AES_192;
+		case 32:
+			return AES_256;
+		default:
+			return null;
+		}
+	}
+}
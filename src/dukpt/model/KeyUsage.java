@@ -0,0 +1,32 @@
+package dukpt.model;
+
+/**
+ * Key usage indicators of the AES DUKPT (ANSI X9.24-3) derivation data.
+ */
+public enum KeyUsage {
+	KEY_ENCRYPTION_KEY(0x0002),
+	PIN_ENCRYPTION(0x1000),
+	MAC_GENERATION(0x2000),
+	MAC_VERIFICATION(0x2001),
+	MAC_BOTH_WAYS(0x2002),
+	DATA_ENCRYPTION(0x3000),
+	DATA_DECRYPTION(0x3001),
+	DATA_BOTH_WAYS(0x3002),
+	// Intermediate derivation keys
+	KEY_DERIVATION(0x8000),
+	// Initial key, derived from the BDK
+	KEY_DERIVATION_INITIAL_KEY(0x8001);
+
+	private final int indicator;
+
+	private KeyUsage(int indicator) {
+		this.indicator = indicator;
+	}
+
+	/**
+	 * @return the 2 bytes value of the derivation data
+	 */
+	public int getIndicator() {
+		return indicator;
+	}
+}
@@ -0,0 +1,61 @@
+package dukpt.model;
+
+/**
+ * ISO 9564-1 PIN block formats. Formats 0, 1 and 3 are 8 bytes blocks encrypted with TDES,
+ * format 4 is a 16 bytes block encrypted with AES.
+ */
+public enum PinBlockFormat {
+	// PIN, F fill, XORed with the PAN
+	ISO_0(0, 8, true),
+	// PIN, random fill, no PAN
+	ISO_1(1, 8, false),
+	// PIN, random A to F fill, XORed with the PAN
+	ISO_3(3, 8, true),
+	// PIN, A fill and 8 random bytes, enciphered twice around the PAN
+	ISO_4(4, 16, true);
+
+	private final int control;
+	private final int blockLength;
+	private final boolean panBound;
+
+	private PinBlockFormat(int control, int blockLength, boolean panBound) {
+		this.control = control;
+		this.blockLength = blockLength;
+		this.panBound = panBound;
+	}
+
+	/**
+	 * @return the control field, the leftmost nibble of the clear block
+	 */
+	public int getControl() {
+		return control;
+	}
+
+	public int getBlockLength() {
+		return blockLength;
+	}
+
+	/**
+	 * @return true if the PAN is part of the block, and required to encrypt and decrypt it
+	 */
+	public boolean isPANBound() {
+		return panBound;
+	}
+
+	public boolean isAES() {
+		return this == ISO_4;
+	}
+
+	/**
+	 * @return the format of a control field, or null
+	 */
+	public static PinBlockFormat fromControl(int control) {
+		for(PinBlockFormat format : values()) {
+			if(format.control == control) {
+				return format;
+			}
+		}
+
+		return null;
+	}
+}
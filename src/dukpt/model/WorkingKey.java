@@ -0,0 +1,32 @@
+package dukpt.model;
+
+/**
+ * The TDES DUKPT (ANSI X9.24-1) working keys of a transaction, each a variant of the key derived
+ * from the KSN. Request keys protect what the device sends, response keys what the host sends back.
+ */
+public enum WorkingKey {
+	PIN,
+	MAC_REQUEST,
+	MAC_RESPONSE,
+	// One-way data keys: the data variant, each half then TDES encrypted under the variant itself
+	DATA_REQUEST,
+	DATA_RESPONSE;
+
+	/**
+	 * @return the bit of this key in a working key mask, see {@link #mask(WorkingKey...)}
+	 */
+	public int getBit() {
+		return 1 << ordinal();
+	}
+
+	/**
+	 * @return the working key mask of <code>keys</code>, for the allocation free bundle derivations
+	 */
+	public static int mask(WorkingKey... keys) {
+		int mask = 0;
+		for(WorkingKey key : keys) {
+			mask |= key.getBit();
+		}
+		return mask;
+	}
+}
@@ -0,0 +1,735 @@
+package dukpt.service;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.crypto.IllegalBlockSizeException;
+
+import dukpt.container.BDKResolver;
+import dukpt.container.ReplayTracker;
+import dukpt.model.DecryptionResult;
+import dukpt.model.DecryptionStatus;
+import dukpt.model.KSN;
+import dukpt.model.PaymentData;
+import dukpt.model.PinBlockFormat;
+import dukpt.util.ByteArrayUtil;
+import dukpt.util.DESEngine;
+import dukpt.util.DUKPTUtil;
+import dukpt.util.PinBlockEngine;
+import dukpt.util.PinBlockUtil;
+import dukpt.util.PinKey;
+
+/**
+ * Asynchronous facade of the DUKPT operations, for callers that must not block: every operation
+ * returns a {@link CompletableFuture} at once and runs on a virtual thread per task when the JVM
+ * has them (Java 21 and later), as {@link DUKPTServer} does. Otherwise requests run on a fixed pool
+ * of platform threads with a bounded queue, and their steps on a bounded pool of their own without
+ * a queue, so that steps never wait behind the requests waiting for them; a request that finds the
+ * queue or the pool of steps full has the status {@link DecryptionStatus#OVERLOADED}.
+ *
+ * The steps of a request run in a {@link Scope}: the BDK lookup goes on while the request is
+ * checked, and the PIN block and the data of a transaction are decrypted concurrently once the key
+ * is derived. The first step that fails cancels the others, and so does the deadline of the call,
+ * interrupting the steps still running; the returned future completes once all the steps of the
+ * request are over and their permits released, even past the deadline. Cancelling the future
+ * completes it at once, as with any {@link CompletableFuture}: its steps are interrupted and end
+ * shortly after. Java 17 has no <code>StructuredTaskScope</code>
+ * (incubating in 19 and 20, preview from 21), so {@link Scope} gives its shutdown-on-failure
+ * behaviour over plain futures.
+ *
+ * The work done under one BDK, from the key derivation on, is bounded by a semaphore per BDK, so
+ * that a burst of transactions of one key set does not hold every thread; a request that gets no
+ * permit before its deadline fails with a {@link TimeoutException}.
+ *
+ * As with {@link dukpt.util.DUKPTBatchUtil}, the outcome of a request is a {@link DecryptionStatus}:
+ * the futures only complete exceptionally on timeouts, cancellations and unexpected errors.
+ */
+public class DUKPTAsync implements AutoCloseable {
+  private static final int REQUEST_THREADS = Math.max(16,
+      4 * Runtime.getRuntime().availableProcessors());
+  private static final int REQUEST_QUEUE_CAPACITY = 4096;
+  // A request has up to 3 steps at once: the lookup, then the data and the PIN block
+  private static final int STEP_THREADS = 3 * REQUEST_THREADS;
+
+  private final BDKResolver resolver;
+  private final ReplayTracker tracker;
+  private final int maximumPerBDK;
+  private final ExecutorService executor;
+  private final ExecutorService stepExecutor;
+  private final boolean virtualThreads;
+  private final ConcurrentHashMap<String, Semaphore> permits = new ConcurrentHashMap<>();
+  // PIN block engines hold a DRBG each, too costly to create per virtual thread
+  private final ConcurrentLinkedQueue<PinBlockEngine> engines = new ConcurrentLinkedQueue<>();
+
+  public DUKPTAsync(BDKResolver resolver, int maximumPerBDK) {
+    this(resolver, null, maximumPerBDK);
+  }
+
+  /**
+   * @param tracker
+   *          counters of the devices, checked once a permit of the BDK is taken and before the key
+   *          is derived, so that a request timing out for a permit does not use up its counter, or
+   *          null for no replay check
+   * @param maximumPerBDK
+   *          number of requests of the same BDK that may derive keys and decrypt at once
+   */
+  public DUKPTAsync(BDKResolver resolver, ReplayTracker tracker, int maximumPerBDK) {
+    if (maximumPerBDK < 1) {
+      throw new IllegalArgumentException(
+          "@ DUKPTAsync(). Parameter <maximumPerBDK> must be at least 1, but was " + maximumPerBDK
+              + ".");
+    }
+
+    this.resolver = resolver;
+    this.tracker = tracker;
+    this.maximumPerBDK = maximumPerBDK;
+
+    ExecutorService virtualThreadExecutor = DUKPTServer.newVirtualThreadExecutor();
+    this.virtualThreads = virtualThreadExecutor != null;
+    if (virtualThreads) {
+      this.executor = virtualThreadExecutor;
+      this.stepExecutor = virtualThreadExecutor;
+    } else {
+      this.stepExecutor = new ThreadPoolExecutor(0, STEP_THREADS, 60, TimeUnit.SECONDS,
+          new SynchronousQueue<>(), new DUKPTServer.ServiceThreadFactory());
+      this.executor = new ThreadPoolExecutor(REQUEST_THREADS, REQUEST_THREADS, 0,
+          TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(REQUEST_QUEUE_CAPACITY),
+          new DUKPTServer.ServiceThreadFactory()) {
+        @Override
+        protected void terminated() {
+          // Only once the requests submitted before close() are over, steps included
+          stepExecutor.shutdown();
+        }
+      };
+    }
+  }
+
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  public int getMaximumPerBDK() {
+    return maximumPerBDK;
+  }
+
+  /**
+   * Decrypts track data, the asynchronous counterpart of the records of
+   * {@link dukpt.util.DUKPTBatchUtil#decryptTrack1(PaymentData[], BDKResolver)}.
+   */
+  public CompletableFuture<DecryptionResult> decrypt(PaymentData record, Duration timeout) {
+    return submit(timeout, scope -> decrypt(record, scope), new DecryptionResult(record,
+        DecryptionStatus.OVERLOADED, null));
+  }
+
+  /**
+   * Decrypts the track data of a transaction and translates its PIN block (see
+   * {@link PinBlockEngine#translate(PinKey, byte[], int, PinBlockFormat, CharSequence, PinKey,
+   * PinBlockFormat, byte[], int)}) concurrently, from one key derivation. If either fails, the
+   * other is cancelled and the result has the status of the failure.
+   *
+   * @param pan
+   *          the PAN of the card, ignored by format 1
+   */
+  public CompletableFuture<TransactionResult> decryptTransaction(byte[] ksn, byte[] encryptedData,
+      byte[] pinBlock, PinBlockFormat from, CharSequence pan, PinKey destination,
+      PinBlockFormat to, Duration timeout) {
+    return submit(timeout, scope -> decryptTransaction(ksn, encryptedData, pinBlock, from, pan,
+        destination, to, scope), new TransactionResult(DecryptionStatus.OVERLOADED, null, null));
+  }
+
+  /**
+   * Runs <code>task</code> in a new {@link Scope} with a deadline <code>timeout</code> from now. The
+   * returned future completes with the value of the task, or with what it threw (the cause of an
+   * {@link ExecutionException} of {@link Scope#join()}), or with a {@link TimeoutException} past
+   * the deadline, in every case once the forks are over. It completes with a
+   * {@link RejectedExecutionException} if no thread is left for the task. Cancelling it interrupts
+   * the task and its forks.
+   */
+  public <T> CompletableFuture<T> submit(Duration timeout, ScopedTask<T> task) {
+    return submit(timeout, task, null);
+  }
+
+  /**
+   * @param overloaded
+   *          the value to complete with if no thread is left for the task, or null to complete with
+   *          the {@link RejectedExecutionException}
+   */
+  private <T> CompletableFuture<T> submit(Duration timeout, ScopedTask<T> task, T overloaded) {
+    long timeoutNanos = timeout.toNanos();
+    CompletableFuture<T> result = new CompletableFuture<>();
+    Root<T> root = new Root<>(stepExecutor, System.nanoTime() + timeoutNanos, task, result);
+    try {
+      executor.execute(root);
+    } catch (RejectedExecutionException e) {
+      if (overloaded != null) {
+        result.complete(overloaded);
+      } else {
+        result.completeExceptionally(e);
+      }
+      return result;
+    }
+
+    CompletableFuture.delayedExecutor(timeoutNanos, TimeUnit.NANOSECONDS).execute(() -> root.stop(
+        new TimeoutException("@ DUKPTAsync.submit(). The deadline of " + timeout + " passed.")));
+    result.whenComplete((value, failure) -> {
+      if (failure != null) {
+        root.stop(failure);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Stops accepting requests. The ones already submitted complete.
+   */
+  @Override
+  public void close() {
+    executor.shutdown();
+  }
+
+  private DecryptionResult decrypt(PaymentData record, Scope scope) throws Exception {
+    byte[] ksn = record.getKSN();
+    CompletableFuture<ResolvedBDK> lookup = lookup(ksn, scope);
+
+    byte[] encryptedData = record.getEncryptedData();
+    DecryptionStatus status = ksn == null || ksn.length != KSN.LENGTH ? DecryptionStatus.INVALID_KSN
+        : encryptedData == null || encryptedData.length % 8 != 0 ? DecryptionStatus.INVALID_DATA
+            : null;
+    if (status != null) {
+      return new DecryptionResult(record, status, null);
+    }
+
+    byte[] key = new byte[16];
+    Semaphore permit = null;
+    try {
+      permit = deriveKey(ksn, scope.join(lookup), key, scope);
+      return new DecryptionResult(record, DecryptionStatus.SUCCESS, decryptData(key,
+          encryptedData));
+    } catch (StatusException e) {
+      return new DecryptionResult(record, e.status, null);
+    } catch (ExecutionException e) {
+      status = statusOf(e);
+      if (status != null) {
+        return new DecryptionResult(record, status, null);
+      }
+      throw e;
+    } finally {
+      Arrays.fill(key, (byte) 0);
+      if (permit != null) {
+        permit.release();
+      }
+    }
+  }
+
+  private TransactionResult decryptTransaction(byte[] ksn, byte[] encryptedData, byte[] pinBlock,
+      PinBlockFormat from, CharSequence pan, PinKey destination, PinBlockFormat to, Scope scope)
+      throws Exception {
+    CompletableFuture<ResolvedBDK> lookup = lookup(ksn, scope);
+
+    // A translation that can not succeed is rejected before the permit and the replay check
+    DecryptionStatus status = ksn == null || ksn.length != KSN.LENGTH ? DecryptionStatus.INVALID_KSN
+        : encryptedData == null || encryptedData.length % 8 != 0 || !canTranslate(pinBlock, from,
+            pan, destination, to) ? DecryptionStatus.INVALID_DATA : null;
+    if (status != null) {
+      return new TransactionResult(status, null, null);
+    }
+
+    byte[] key = new byte[16];
+    Semaphore permit = null;
+    try {
+      permit = deriveKey(ksn, scope.join(lookup), key, scope);
+      CompletableFuture<byte[]> data = scope.fork(() -> decryptData(key, encryptedData));
+      CompletableFuture<byte[]> translated = scope.fork(() -> translatePin(key, pinBlock, from,
+          pan, destination, to));
+      scope.join();
+      return new TransactionResult(DecryptionStatus.SUCCESS, data.join(), translated.join());
+    } catch (StatusException e) {
+      return new TransactionResult(e.status, null, null);
+    } catch (ExecutionException e) {
+      status = statusOf(e);
+      if (status != null) {
+        return new TransactionResult(status, null, null);
+      }
+      throw e;
+    } finally {
+      // The forks are over: they were joined, or the scope shut down before the key is zeroed
+      scope.shutdown();
+      scope.awaitForks();
+      Arrays.fill(key, (byte) 0);
+      if (permit != null) {
+        permit.release();
+      }
+    }
+  }
+
+  /**
+   * @return the status of the request whose step failed with <code>e</code>, or null if the failure
+   *         is not an outcome of the request
+   */
+  private static DecryptionStatus statusOf(ExecutionException e) {
+    Throwable cause = e.getCause();
+    return cause instanceof StatusException ? ((StatusException) cause).status
+        : cause instanceof RejectedExecutionException ? DecryptionStatus.OVERLOADED : null;
+  }
+
+  /**
+   * Forks the BDK lookup of <code>ksn</code>, which the resolver may do remotely.
+   */
+  private CompletableFuture<ResolvedBDK> lookup(byte[] ksn, Scope scope) {
+    if (ksn == null || ksn.length != KSN.LENGTH) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    return scope.fork(() -> {
+      String bdkId = resolver.getBDKId(ksn);
+      byte[] bdk = bdkId == null ? null : resolver.getBDK(bdkId);
+      return bdk == null ? null : new ResolvedBDK(bdkId, bdk);
+    });
+  }
+
+  /**
+   * Takes a permit of the BDK, checks the counter of <code>ksn</code> and derives the key of the
+   * transaction into <code>key</code>. The counter is only checked with the permit taken, so that
+   * a request that times out waiting for one can be retried with the same KSN.
+   *
+   * @return the permit, to release once the work under the BDK is done
+   */
+  private Semaphore deriveKey(byte[] ksn, ResolvedBDK bdk, byte[] key, Scope scope)
+      throws StatusException, InterruptedException, TimeoutException {
+    if (bdk == null) {
+      throw new StatusException(DecryptionStatus.UNKNOWN_BDK);
+    }
+
+    Semaphore permit = permits.computeIfAbsent(bdk.id, id -> new Semaphore(maximumPerBDK));
+    if (!permit.tryAcquire(scope.remainingNanos(), TimeUnit.NANOSECONDS)) {
+      throw new TimeoutException("@ DUKPTAsync.deriveKey(). No permit of BDK " + bdk.id
+          + " before the deadline.");
+    }
+
+    try {
+      if (tracker != null) {
+        DecryptionStatus status = tracker.check(ksn).getDecryptionStatus();
+        if (status != DecryptionStatus.SUCCESS) {
+          throw new StatusException(status);
+        }
+      }
+
+      DUKPTUtil.deriveKey(ksn, bdk.id, bdk.key, key, 0);
+      return permit;
+    } catch (StatusException e) {
+      permit.release();
+      throw e;
+    } catch (InvalidKeyException e) {
+      permit.release();
+      throw new StatusException(DecryptionStatus.INVALID_BDK);
+    } catch (GeneralSecurityException e) {
+      permit.release();
+      throw new StatusException(DecryptionStatus.CRYPTO_ERROR);
+    } catch (RuntimeException e) {
+      permit.release();
+      throw e;
+    }
+  }
+
+  private static byte[] decryptData(byte[] derivedKey, byte[] encryptedData)
+      throws IllegalBlockSizeException {
+    byte[] key = new byte[16];
+    int[] schedule = new int[DESEngine.TRIPLE_SCHEDULE_LENGTH];
+    try {
+      DUKPTUtil.calculatePinEncryptionKeyWithNoVariant(derivedKey, 0, key, 0);
+      long k1 = ByteArrayUtil.toLong(key, 0);
+      long k2 = ByteArrayUtil.toLong(key, 8);
+      DESEngine.expandTripleKey(k1, k2, k1, schedule, 0);
+
+      byte[] data = new byte[encryptedData.length];
+      DESEngine.tdesDecrypt(encryptedData, 0, encryptedData.length, data, 0, schedule, 0);
+      return data;
+    } finally {
+      Arrays.fill(key, (byte) 0);
+      Arrays.fill(schedule, 0);
+    }
+  }
+
+  /**
+   * The checks of {@link DUKPTEndpoints}: a TDES source format, a PAN binding kept, the PAN the
+   * formats need and a destination key of the destination format.
+   */
+  private static boolean canTranslate(byte[] pinBlock, PinBlockFormat from, CharSequence pan,
+      PinKey destination, PinBlockFormat to) {
+    return from != null && to != null && !from.isAES() && (!from.isPANBound() || to.isPANBound())
+        && pinBlock != null && pinBlock.length == from.getBlockLength()
+        && PinBlockUtil.checkPAN(from, to, pan) && destination != null
+        && destination.supports(to);
+  }
+
+  private byte[] translatePin(byte[] derivedKey, byte[] pinBlock, PinBlockFormat from,
+      CharSequence pan, PinKey destination, PinBlockFormat to) throws StatusException {
+    byte[] key = new byte[16];
+    PinKey source = null;
+    PinBlockEngine engine = engines.poll();
+    if (engine == null) {
+      engine = new PinBlockEngine();
+    }
+
+    try {
+      DUKPTUtil.calculatePinKey(derivedKey, 0, key, 0);
+      source = PinKey.tdes(key);
+
+      byte[] translated = new byte[to.getBlockLength()];
+      DecryptionStatus status = engine.translate(source, pinBlock, 0, from, pan, destination, to,
+          translated, 0);
+      if (status != DecryptionStatus.SUCCESS) {
+        throw new StatusException(status);
+      }
+      return translated;
+    } catch (InvalidKeyException e) {
+      // 16 bytes key
+      throw new IllegalStateException(e);
+    } finally {
+      Arrays.fill(key, (byte) 0);
+      if (source != null) {
+        source.destroy();
+      }
+      engines.offer(engine);
+    }
+  }
+
+  /**
+   * A request that forks steps, for {@link DUKPTAsync#submit(Duration, ScopedTask)}.
+   */
+  public interface ScopedTask<T> {
+    T run(Scope scope) throws Exception;
+  }
+
+  /**
+   * The concurrent steps of one request, with its deadline. Steps are forked by the thread that
+   * owns the scope; the first one to fail shuts the scope down, which cancels the others and
+   * interrupts the ones running. Closing the scope shuts it down too, and waits for every step to
+   * be over, so that no step outlives its request.
+   */
+  public static final class Scope implements AutoCloseable {
+    private final ExecutorService executor;
+    private final long deadline;
+    private final List<Fork<?>> forks = new CopyOnWriteArrayList<>();
+    // The owner is a party, each fork another one until it is over
+    private final Phaser running = new Phaser(1);
+    private volatile Throwable failure;
+    private volatile boolean shutdown;
+
+    Scope(ExecutorService executor, long deadline) {
+      this.executor = executor;
+      this.deadline = deadline;
+    }
+
+    /**
+     * Starts <code>task</code> on its own thread.
+     *
+     * @return its result, cancelled if the scope shuts down first
+     */
+    public <T> CompletableFuture<T> fork(Callable<T> task) {
+      Fork<T> fork = new Fork<>(this, task);
+      if (shutdown) {
+        fork.result.cancel(false);
+        return fork.result;
+      }
+
+      forks.add(fork);
+      running.register();
+      try {
+        executor.execute(fork);
+      } catch (RejectedExecutionException e) {
+        running.arriveAndDeregister();
+        fork.fail(e);
+      }
+      return fork.result;
+    }
+
+    /**
+     * Waits for <code>fork</code> until the deadline.
+     *
+     * @throws ExecutionException
+     *           with the first failure of the scope, if it failed
+     */
+    public <T> T join(CompletableFuture<T> fork)
+        throws InterruptedException, ExecutionException, TimeoutException {
+      try {
+        return fork.get(remainingNanos(), TimeUnit.NANOSECONDS);
+      } catch (ExecutionException | CancellationException e) {
+        throw failure();
+      }
+    }
+
+    /**
+     * Waits for all the forks until the deadline.
+     *
+     * @throws ExecutionException
+     *           with the first failure of the scope, if it failed
+     */
+    public void join() throws InterruptedException, ExecutionException, TimeoutException {
+      CompletableFuture<?>[] results = new CompletableFuture<?>[forks.size()];
+      for (int i = 0; i < results.length; i++) {
+        results[i] = forks.get(i).result;
+      }
+
+      try {
+        CompletableFuture.allOf(results).get(remainingNanos(), TimeUnit.NANOSECONDS);
+      } catch (ExecutionException | CancellationException e) {
+        throw failure();
+      }
+    }
+
+    /**
+     * @return the time left before the deadline, in nanoseconds, 0 once it passed
+     */
+    public long remainingNanos() {
+      return Math.max(0, deadline - System.nanoTime());
+    }
+
+    /**
+     * Cancels the forks not over yet, interrupting the running ones.
+     */
+    public void shutdown() {
+      shutdown = true;
+      for (Fork<?> fork : forks) {
+        fork.cancel();
+      }
+    }
+
+    @Override
+    public void close() {
+      shutdown();
+      awaitForks();
+    }
+
+    void awaitForks() {
+      // The owner stays a party for the next phase
+      running.arriveAndAwaitAdvance();
+    }
+
+    private ExecutionException failure() {
+      Throwable cause = failure;
+      return new ExecutionException(cause != null ? cause : new CancellationException(
+          "@ DUKPTAsync.Scope. The scope was shut down."));
+    }
+
+    private void recordFailure(Throwable t) {
+      if (failure == null) {
+        synchronized (this) {
+          if (failure == null) {
+            failure = t;
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * The task of a request: runs it in its scope and completes the future of the request once the
+   * scope is closed. The deadline and the cancellation of the future stop it, interrupting it.
+   */
+  private static final class Root<T> implements Runnable {
+    private final ExecutorService executor;
+    private final long deadline;
+    private final ScopedTask<T> task;
+    private final CompletableFuture<T> result;
+    // Guarded by this
+    private Thread thread;
+    private Throwable stopped;
+
+    Root(ExecutorService executor, long deadline, ScopedTask<T> task, CompletableFuture<T> result) {
+      this.executor = executor;
+      this.deadline = deadline;
+      this.task = task;
+      this.result = result;
+    }
+
+    @Override
+    public void run() {
+      synchronized (this) {
+        if (stopped != null) {
+          result.completeExceptionally(stopped);
+          return;
+        }
+        thread = Thread.currentThread();
+      }
+
+      T value = null;
+      Throwable failure = null;
+      try (Scope scope = new Scope(executor, deadline)) {
+        value = task.run(scope);
+      } catch (ExecutionException e) {
+        failure = e.getCause();
+      } catch (Throwable t) {
+        failure = t;
+      } finally {
+        synchronized (this) {
+          thread = null;
+          // A task interrupted by stop() fails for the reason it was stopped
+          if (failure != null && stopped != null) {
+            failure = stopped;
+          }
+        }
+        Thread.interrupted();
+      }
+
+      if (failure == null) {
+        result.complete(value);
+      } else {
+        result.completeExceptionally(failure);
+      }
+    }
+
+    synchronized void stop(Throwable reason) {
+      if (stopped == null) {
+        stopped = reason;
+        if (thread != null) {
+          thread.interrupt();
+        }
+      }
+    }
+  }
+
+  private static final class Fork<T> implements Runnable {
+    private final Scope scope;
+    private final Callable<T> task;
+    final CompletableFuture<T> result = new CompletableFuture<>();
+    // Guarded by this
+    private Thread thread;
+    private boolean cancelled;
+
+    Fork(Scope scope, Callable<T> task) {
+      this.scope = scope;
+      this.task = task;
+    }
+
+    @Override
+    public void run() {
+      try {
+        synchronized (this) {
+          if (cancelled) {
+            return;
+          }
+          thread = Thread.currentThread();
+        }
+
+        try {
+          result.complete(task.call());
+        } catch (Throwable t) {
+          fail(t);
+        } finally {
+          synchronized (this) {
+            thread = null;
+          }
+          // An interrupt of cancel() must not leak to the next task of a pooled thread
+          Thread.interrupted();
+        }
+      } finally {
+        scope.running.arriveAndDeregister();
+      }
+    }
+
+    void fail(Throwable t) {
+      if (result.isDone()) {
+        return;
+      }
+
+      // Recorded first: a join woken up by the result must find the failure of the scope
+      scope.recordFailure(t);
+      if (result.completeExceptionally(t)) {
+        scope.shutdown();
+      }
+    }
+
+    synchronized void cancel() {
+      cancelled = true;
+      result.cancel(false);
+      if (thread != null) {
+        thread.interrupt();
+      }
+    }
+  }
+
+  private static final class ResolvedBDK {
+    final String id;
+    final byte[] key;
+
+    ResolvedBDK(String id, byte[] key) {
+      this.id = id;
+      this.key = key;
+    }
+  }
+
+  /**
+   * A failed step of a request, carrying the status to answer with. Thrown for expected outcomes
+   * only, so it skips the stack trace.
+   */
+  private static final class StatusException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    final DecryptionStatus status;
+
+    StatusException(DecryptionStatus status) {
+      super(status.name(), null, false, false);
+      this.status = status;
+    }
+  }
+
+  /**
+   * Outcome of {@link DUKPTAsync#decryptTransaction(byte[], byte[], byte[], PinBlockFormat,
+   * CharSequence, PinKey, PinBlockFormat, Duration)}.
+   */
+  public static final class TransactionResult {
+    private final DecryptionStatus status;
+    private final byte[] data;
+    private final byte[] pinBlock;
+
+    TransactionResult(DecryptionStatus status, byte[] data, byte[] pinBlock) {
+      this.status = status;
+      this.data = data;
+      this.pinBlock = pinBlock;
+    }
+
+    public DecryptionStatus getStatus() {
+      return status;
+    }
+
+    /**
+     * @return the decrypted track data, or null unless the status is
+     *         {@link DecryptionStatus#SUCCESS}
+     */
+    public byte[] getData() {
+      return data;
+    }
+
+    /**
+     * @return the translated PIN block, or null unless the status is
+     *         {@link DecryptionStatus#SUCCESS}
+     */
+    public byte[] getPinBlock() {
+      return pinBlock;
+    }
+
+    public boolean isSuccess() {
+      return status == DecryptionStatus.SUCCESS;
+    }
+  }
+}
@@ -0,0 +1,306 @@
+package dukpt.service;
+
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.Map;
+
+import javax.crypto.IllegalBlockSizeException;
+
+import dukpt.container.BDKContainer;
+import dukpt.container.BaseDerivationKey;
+import dukpt.container.ReplayTracker;
+import dukpt.metrics.DUKPTMetrics;
+import dukpt.model.DecryptionStatus;
+import dukpt.model.KSN;
+import dukpt.model.PinBlockFormat;
+import dukpt.util.ByteArrayUtil;
+import dukpt.util.DESEngine;
+import dukpt.util.DUKPTUtil;
+import dukpt.util.HexCodec;
+import dukpt.util.PinBlockEngine;
+import dukpt.util.PinBlockUtil;
+import dukpt.util.PinKey;
+
+/**
+ * The operations of {@link DUKPTServer}, on the fields of a request. The BDKs are the ones of
+ * {@link BDKContainer#getInstance()}, found by name, and all keys are derived through its
+ * {@link dukpt.container.IPEKCache}.
+ *
+ * Every key buffer is local to the call and zeroed before returning, so the operations can run on
+ * any number of threads, virtual or not.
+ *
+ * Given a {@link ReplayTracker}, {@link #decrypt(Map, ReplayTracker)} and
+ * {@link #translatePin(Map, ReplayTracker)} check the transaction counter once the BDK is found,
+ * before any key is derived, and answer {@link DecryptionStatus#REPLAYED} to a KSN already used.
+ */
+final class DUKPTEndpoints {
+  static final String BDK = "bdk";
+  static final String KSN_FIELD = "ksn";
+  static final String DATA = "data";
+  static final String PIN_BLOCK = "pinBlock";
+  static final String DESTINATION_KEY = "destinationKey";
+  static final String VARIANT = "variant";
+  static final String KEY = "key";
+  static final String FORMAT = "format";
+  static final String DESTINATION_FORMAT = "destinationFormat";
+  static final String PAN = "pan";
+
+  private DUKPTEndpoints() {
+  }
+
+  /**
+   * Decrypts track data, encrypted with TDES/CBC under
+   * {@link DUKPTUtil#calculatePinEncryptionKeyWithNoVariant(byte[])} of the derived key.
+   * 
+   * Fields: <code>bdk</code>, <code>ksn</code>, <code>data</code> (hex). Returns <code>data</code>.
+   * 
+   * @param tracker
+   *          counters of the devices, or null for no replay check
+   */
+  static ServiceResponse decrypt(Map<String, String> request, ReplayTracker tracker) {
+    long start = DUKPTMetrics.start();
+    ServiceResponse response = decryptData(request, tracker);
+    DUKPTMetrics.recordDecryption(start, response.getStatus());
+    return response;
+  }
+
+  private static ServiceResponse decryptData(Map<String, String> request, ReplayTracker tracker) {
+    byte[] data = HexCodec.decode(field(request, DATA));
+    if (data == null || data.length == 0 || data.length % 8 != 0) {
+      return ServiceResponse.failure(DecryptionStatus.INVALID_DATA,
+          "data must be a non empty multiple of 8 bytes, in hex");
+    }
+
+    byte[] key = new byte[16];
+    int[] schedule = new int[DESEngine.TRIPLE_SCHEDULE_LENGTH];
+    try {
+      ServiceResponse failure = deriveKey(request, tracker, key);
+      if (failure != null) {
+        return failure;
+      }
+
+      DUKPTUtil.calculatePinEncryptionKeyWithNoVariant(key, 0, key, 0);
+      expand(key, 0, 16, schedule);
+      DESEngine.tdesDecrypt(data, 0, data.length, data, 0, schedule, 0);
+      return ServiceResponse.success().with(DATA, HexCodec.encode(data, true));
+    } catch (IllegalBlockSizeException e) {
+      return ServiceResponse.failure(DecryptionStatus.INVALID_DATA, e.getMessage());
+    } finally {
+      Arrays.fill(key, (byte) 0);
+      Arrays.fill(schedule, 0);
+      Arrays.fill(data, (byte) 0);
+    }
+  }
+
+  /**
+   * Translates a PIN block encrypted under the DUKPT PIN key of the device (see
+   * {@link DUKPTUtil#calculatePinKey(byte[], int, byte[], int)}) to the same PIN block encrypted
+   * under a double or triple-length destination key, both with TDES/ECB.
+   * 
+   * Fields: <code>bdk</code>, <code>ksn</code>, <code>pinBlock</code>,
+   * <code>destinationKey</code> (hex). Returns <code>pinBlock</code>.
+   * 
+   * With a <code>format</code> field (<code>0</code>, <code>1</code> or <code>3</code>), the PIN
+   * block is checked against its ISO 9564-1 format and translated by {@link PinBlockEngine} to
+   * <code>destinationFormat</code> (the same format by default, <code>4</code> for an AES
+   * destination key), with the <code>pan</code> field for the PAN-bound formats.
+   * 
+   * @param tracker
+   *          counters of the devices, or null for no replay check
+   */
+  static ServiceResponse translatePin(Map<String, String> request, ReplayTracker tracker) {
+    if (request.containsKey(FORMAT)) {
+      return translateFormattedPin(request, tracker);
+    }
+
+    byte[] pinBlock = HexCodec.decode(field(request, PIN_BLOCK));
+    if (pinBlock == null || pinBlock.length != 8) {
+      return ServiceResponse.failure(DecryptionStatus.INVALID_DATA,
+          "pinBlock must be 8 bytes, in hex");
+    }
+
+    byte[] destinationKey = HexCodec.decode(field(request, DESTINATION_KEY));
+    if (destinationKey == null || (destinationKey.length != 16 && destinationKey.length != 24)) {
+      return ServiceResponse.failure(DecryptionStatus.INVALID_DATA,
+          "destinationKey must be 16 or 24 bytes, in hex");
+    }
+
+    byte[] key = new byte[16];
+    int[] schedule = new int[DESEngine.TRIPLE_SCHEDULE_LENGTH];
+    try {
+      ServiceResponse failure = deriveKey(request, tracker, key);
+      if (failure != null) {
+        return failure;
+      }
+
+      DUKPTUtil.calculatePinKey(key, 0, key, 0);
+      expand(key, 0, 16, schedule);
+      long clearPinBlock = DESEngine.tdesDecrypt(ByteArrayUtil.toLong(pinBlock, 0), schedule, 0);
+
+      expand(destinationKey, 0, destinationKey.length, schedule);
+      ByteArrayUtil.putLong(DESEngine.tdesEncrypt(clearPinBlock, schedule, 0), pinBlock, 0);
+      return ServiceResponse.success().with(PIN_BLOCK, HexCodec.encode(pinBlock, true));
+    } finally {
+      Arrays.fill(key, (byte) 0);
+      Arrays.fill(schedule, 0);
+      Arrays.fill(destinationKey, (byte) 0);
+    }
+  }
+
+  private static ServiceResponse translateFormattedPin(Map<String, String> request,
+      ReplayTracker tracker) {
+    PinBlockFormat from = format(request.get(FORMAT));
+    String destinationFormat = request.get(DESTINATION_FORMAT);
+    PinBlockFormat to = destinationFormat == null ? from : format(destinationFormat);
+    if (from == null || from.isAES() || to == null) {
+      return ServiceResponse.failure(DecryptionStatus.INVALID_DATA,
+          "format must be 0, 1 or 3, destinationFormat 0, 1, 3 or 4");
+    }
+    if (from.isPANBound() && !to.isPANBound()) {
+      return ServiceResponse.failure(DecryptionStatus.INVALID_DATA,
+          "a PIN block bound to the PAN can not be translated to format 1");
+    }
+    // Checked before the key derivation, which uses up the counter of the KSN
+    if (!PinBlockUtil.checkPAN(from, to, request.get(PAN))) {
+      return ServiceResponse.failure(DecryptionStatus.INVALID_DATA, "pan must be 1 to 19 digits");
+    }
+
+    byte[] pinBlock = HexCodec.decode(field(request, PIN_BLOCK));
+    if (pinBlock == null || pinBlock.length != from.getBlockLength()) {
+      return ServiceResponse.failure(DecryptionStatus.INVALID_DATA,
+          "pinBlock must be 8 bytes, in hex");
+    }
+
+    byte[] destinationKey = HexCodec.decode(field(request, DESTINATION_KEY));
+    if (destinationKey == null || (destinationKey.length != 16 && destinationKey.length != 24
+        && !(to.isAES() && destinationKey.length == 32))) {
+      return ServiceResponse.failure(DecryptionStatus.INVALID_DATA, "destinationKey must be "
+          + (to.isAES() ? "16, 24 or 32" : "16 or 24") + " bytes, in hex");
+    }
+
+    byte[] key = new byte[16];
+    PinKey source = null;
+    PinKey destination = null;
+    try {
+      ServiceResponse failure = deriveKey(request, tracker, key);
+      if (failure != null) {
+        return failure;
+      }
+
+      DUKPTUtil.calculatePinKey(key, 0, key, 0);
+      source = PinKey.tdes(key);
+      destination = to.isAES() ? PinKey.aes(destinationKey) : PinKey.tdes(destinationKey);
+
+      byte[] translated = new byte[to.getBlockLength()];
+      DecryptionStatus status = PinBlockEngine.current().translate(source, pinBlock, 0, from,
+          request.get(PAN), destination, to, translated, 0);
+      if (status != DecryptionStatus.SUCCESS) {
+        return ServiceResponse.failure(status, status == DecryptionStatus.INVALID_DATA
+            ? "pan must be 1 to 19 digits" : status == DecryptionStatus.INVALID_PIN_BLOCK
+                ? "pinBlock does not follow its format" : "translation failed");
+      }
+      return ServiceResponse.success().with(PIN_BLOCK, HexCodec.encode(translated, true));
+    } catch (InvalidKeyException e) {
+      // Lengths checked above
+      throw new IllegalStateException(e);
+    } finally {
+      Arrays.fill(key, (byte) 0);
+      Arrays.fill(destinationKey, (byte) 0);
+      if (source != null) {
+        source.destroy();
+      }
+      if (destination != null) {
+        destination.destroy();
+      }
+    }
+  }
+
+  /**
+   * @return the format of a control field value (0, 1, 3 or 4), or null
+   */
+  private static PinBlockFormat format(String control) {
+    return control == null || control.length() != 1 ? null : PinBlockFormat.fromControl(
+        control.charAt(0) - '0');
+  }
+
+  /**
+   * Derives a key of the device.
+   * 
+   * Fields: <code>bdk</code>, <code>ksn</code> and an optional <code>variant</code>:
+   * <code>session</code> (default, the derived key), <code>data</code> (the key of
+   * {@link #decrypt(Map, ReplayTracker)}) or <code>pin</code> (the key of
+   * {@link #translatePin(Map, ReplayTracker)}). Returns <code>key</code>. Deriving uses up no
+   * transaction, so it is never checked for replays.
+   */
+  static ServiceResponse derive(Map<String, String> request) {
+    String variant = request.get(VARIANT);
+    if (variant == null) {
+      variant = "session";
+    }
+    if (!variant.equals("session") && !variant.equals("data") && !variant.equals("pin")) {
+      return ServiceResponse.failure(DecryptionStatus.INVALID_DATA,
+          "variant must be session, data or pin");
+    }
+
+    byte[] key = new byte[16];
+    try {
+      ServiceResponse failure = deriveKey(request, null, key);
+      if (failure != null) {
+        return failure;
+      }
+
+      if (variant.equals("data")) {
+        DUKPTUtil.calculatePinEncryptionKeyWithNoVariant(key, 0, key, 0);
+      } else if (variant.equals("pin")) {
+        DUKPTUtil.calculatePinKey(key, 0, key, 0);
+      }
+      return ServiceResponse.success().with(KEY, HexCodec.encode(key, true));
+    } finally {
+      Arrays.fill(key, (byte) 0);
+    }
+  }
+
+  /**
+   * Writes the derived key of the device of the request into <code>key</code>, once its counter
+   * passed <code>tracker</code> if not null.
+   * 
+   * @return the failure to answer with, or null if the key was derived
+   */
+  private static ServiceResponse deriveKey(Map<String, String> request, ReplayTracker tracker,
+      byte[] key) {
+    KSN ksn;
+    try {
+      ksn = KSN.fromHex(field(request, KSN_FIELD));
+    } catch (IllegalArgumentException e) {
+      return ServiceResponse.failure(DecryptionStatus.INVALID_KSN, "ksn must be 10 bytes, in hex");
+    }
+
+    BaseDerivationKey bdk = BDKContainer.getInstance().get(field(request, BDK));
+    if (bdk == null) {
+      return ServiceResponse.failure(DecryptionStatus.UNKNOWN_BDK, "unknown bdk");
+    }
+
+    if (tracker != null) {
+      ReplayTracker.Verdict verdict = tracker.check(ksn);
+      if (verdict != ReplayTracker.Verdict.ACCEPTED) {
+        return ServiceResponse.failure(verdict.getDecryptionStatus(),
+            "transaction counter " + verdict.name().toLowerCase().replace('_', ' '));
+      }
+    }
+
+    DUKPTUtil.deriveKey(ksn, bdk, key, 0);
+    return null;
+  }
+
+  private static void expand(byte[] key, int offset, int length, int[] schedule) {
+    long k1 = ByteArrayUtil.toLong(key, offset);
+    long k2 = ByteArrayUtil.toLong(key, offset + 8);
+    long k3 = length == 24 ? ByteArrayUtil.toLong(key, offset + 16) : k1;
+    DESEngine.expandTripleKey(k1, k2, k3, schedule, 0);
+  }
+
+  private static String field(Map<String, String> request, String name) {
+    String value = request.get(name);
+    return value == null ? "" : value;
+  }
+}
@@ -0,0 +1,499 @@
+package dukpt.service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import dukpt.container.BDKContainer;
+import dukpt.container.ReplayTracker;
+import dukpt.metrics.DUKPTMetrics;
+
+/**
+ * Standalone HTTP service in front of {@link dukpt.util.DUKPTUtil} and {@link BDKContainer}, on the JDK
+ * {@link HttpServer}.
+ *
+ * Endpoints, all POST with an <code>application/x-www-form-urlencoded</code> body of hex fields,
+ * answering with the <code>name=value</code> lines of {@link ServiceResponse}:
+ * <ul>
+ * <li><code>/decrypt</code>: <code>bdk</code>, <code>ksn</code>, <code>data</code></li>
+ * <li><code>/pin/translate</code>: <code>bdk</code>, <code>ksn</code>, <code>pinBlock</code>,
+ * <code>destinationKey</code>, optional <code>format</code>, <code>destinationFormat</code> and
+ * <code>pan</code></li>
+ * <li><code>/derive</code>: <code>bdk</code>, <code>ksn</code>, optional <code>variant</code></li>
+ * </ul>
+ *
+ * Each request runs on its own virtual thread when the JVM has them (Java 21 and later), and on a
+ * fixed pool of platform threads otherwise. At most <code>maximumConcurrentRequests</code> requests
+ * are processed at once; the next ones wait up to {@link #ADMISSION_TIMEOUT_MILLIS} for a slot and
+ * are answered 503 past it. On platform threads, requests queue for a thread first: at most
+ * <code>maximumConcurrentRequests</code> of them, the next ones being answered 503 at once, and so
+ * are the ones that queued past {@link #ADMISSION_TIMEOUT_MILLIS}. Responses always carry their length, so connections stay open for
+ * the next requests of the client (keep-alive), which are served in order.
+ *
+ * {@link #stop(long, TimeUnit)} drains the service: the requests already admitted complete, the
+ * new ones are answered 503 with <code>Connection: close</code>.
+ *
+ * Given {@link ReplayTracker}s, <code>/decrypt</code> and <code>/pin/translate</code> reject a KSN
+ * already used with 409 before deriving any key. The data and PIN of a transaction share its KSN,
+ * so each endpoint has its own tracker.
+ */
+public class DUKPTServer {
+  public static final int DEFAULT_MAXIMUM_CONCURRENT_REQUESTS = 32768;
+  public static final int MAXIMUM_REQUEST_LENGTH = 16 * 1024;
+  public static final long ADMISSION_TIMEOUT_MILLIS = 100;
+
+  private static final int BACKLOG = 4096;
+  private static final String MAXIMUM_IDLE_CONNECTIONS = "sun.net.httpserver.maxIdleConnections";
+
+  private final HttpServer server;
+  private final ExecutorService executor;
+  private final boolean virtualThreads;
+  private final int maximumConcurrentRequests;
+  private final Semaphore permits;
+  private final ReplayTracker dataTracker;
+  private final ReplayTracker pinTracker;
+  private volatile boolean draining;
+
+  public DUKPTServer(InetSocketAddress address) throws IOException {
+    this(address, DEFAULT_MAXIMUM_CONCURRENT_REQUESTS);
+  }
+
+  public DUKPTServer(InetSocketAddress address, int maximumConcurrentRequests) throws IOException {
+    this(address, maximumConcurrentRequests, null, null);
+  }
+
+  /**
+   * @param dataTracker
+   *          counters checked by <code>/decrypt</code>, or null for no replay check
+   * @param pinTracker
+   *          counters checked by <code>/pin/translate</code>, or null for no replay check
+   */
+  public DUKPTServer(InetSocketAddress address, int maximumConcurrentRequests,
+      ReplayTracker dataTracker, ReplayTracker pinTracker) throws IOException {
+    if (maximumConcurrentRequests < 1) {
+      throw new IllegalArgumentException(
+          "@ DUKPTServer(). Parameter <maximumConcurrentRequests> must be at least 1, but was "
+              + maximumConcurrentRequests + ".");
+    }
+
+    this.maximumConcurrentRequests = maximumConcurrentRequests;
+    this.permits = new Semaphore(maximumConcurrentRequests);
+    this.dataTracker = dataTracker;
+    this.pinTracker = pinTracker;
+
+    ExecutorService virtualThreadExecutor = newVirtualThreadExecutor();
+    this.virtualThreads = virtualThreadExecutor != null;
+    Executor exchangeExecutor;
+    if (virtualThreads) {
+      this.executor = virtualThreadExecutor;
+      exchangeExecutor = virtualThreadExecutor;
+    } else {
+      int threads = 2 * Runtime.getRuntime().availableProcessors();
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<Runnable>(maximumConcurrentRequests), new ServiceThreadFactory());
+      this.executor = pool;
+      exchangeExecutor = new AdmissionExecutor(pool);
+    }
+
+    this.server = HttpServer.create(address, BACKLOG);
+    server.setExecutor(exchangeExecutor);
+    server.createContext("/decrypt", new EndpointHandler(Endpoint.DECRYPT));
+    server.createContext("/pin/translate", new EndpointHandler(Endpoint.TRANSLATE_PIN));
+    server.createContext("/derive", new EndpointHandler(Endpoint.DERIVE));
+  }
+
+  /**
+   * @return an executor starting a virtual thread per task, or null if the JVM has none
+   */
+  static ExecutorService newVirtualThreadExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      return (ExecutorService) factory.invoke(null);
+    } catch (NoSuchMethodException e) {
+      return null;
+    } catch (ReflectiveOperationException e) {
+      // Preview builds may refuse to start virtual threads
+      return null;
+    }
+  }
+
+  /**
+   * Past <code>sun.net.httpserver.maxIdleConnections</code> idle keep-alive connections (200 by
+   * default), the JDK server closes every connection as soon as its exchange completes, dropping
+   * the requests pipelined behind it. Raises the limit to <code>maximumConcurrentRequests</code>,
+   * unless it is set already.
+   * 
+   * The property is global to the JVM and read once, when the first {@link HttpServer} is created:
+   * call it before creating any.
+   */
+  public static void keepIdleConnections(int maximumConcurrentRequests) {
+    if (System.getProperty(MAXIMUM_IDLE_CONNECTIONS) == null) {
+      System.setProperty(MAXIMUM_IDLE_CONNECTIONS, String.valueOf(maximumConcurrentRequests));
+    }
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  /**
+   * @return the address the service listens on, with the actual port if it was started on port 0
+   */
+  public InetSocketAddress getAddress() {
+    return server.getAddress();
+  }
+
+  public boolean isVirtualThreads() {
+    return virtualThreads;
+  }
+
+  public int getMaximumConcurrentRequests() {
+    return maximumConcurrentRequests;
+  }
+
+  /**
+   * @return the number of requests being processed
+   */
+  public int getInFlightRequests() {
+    return maximumConcurrentRequests - permits.availablePermits();
+  }
+
+  /**
+   * Stops admitting requests, waits for the ones in flight to complete, then closes the listener
+   * and the connections.
+   * 
+   * @return true if all the requests in flight completed before <code>timeout</code>
+   */
+  public boolean stop(long timeout, TimeUnit unit) throws InterruptedException {
+    draining = true;
+
+    boolean drained = permits.tryAcquire(maximumConcurrentRequests, timeout, unit);
+    try {
+      server.stop(0);
+      executor.shutdown();
+      executor.awaitTermination(timeout, unit);
+    } finally {
+      if (drained) {
+        permits.release(maximumConcurrentRequests);
+      }
+    }
+
+    return drained;
+  }
+
+  private enum Endpoint {
+    DECRYPT, TRANSLATE_PIN, DERIVE
+  }
+
+  private final class EndpointHandler implements HttpHandler {
+    private final Endpoint endpoint;
+
+    EndpointHandler(Endpoint endpoint) {
+      this.endpoint = endpoint;
+    }
+
+    @Override
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        if (draining) {
+          exchange.getResponseHeaders().set("Connection", "close");
+          sendError(exchange, 503, "draining");
+          return;
+        }
+
+        if (AdmissionExecutor.isOverloaded()) {
+          exchange.getResponseHeaders().set("Retry-After", "1");
+          sendError(exchange, 503, "overloaded");
+          return;
+        }
+
+        boolean admitted;
+        try {
+          admitted = permits.tryAcquire(ADMISSION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          admitted = false;
+        }
+        if (!admitted) {
+          exchange.getResponseHeaders().set("Retry-After", "1");
+          sendError(exchange, 503, "overloaded");
+          return;
+        }
+
+        try {
+          process(exchange);
+        } finally {
+          permits.release();
+        }
+      } finally {
+        exchange.close();
+      }
+    }
+
+    private void process(HttpExchange exchange) throws IOException {
+      if (!"POST".equals(exchange.getRequestMethod())) {
+        exchange.getResponseHeaders().set("Allow", "POST");
+        sendError(exchange, 405, "method not allowed");
+        return;
+      }
+
+      byte[] body = new byte[MAXIMUM_REQUEST_LENGTH + 1];
+      int length = readBody(exchange.getRequestBody(), body);
+      if (length > MAXIMUM_REQUEST_LENGTH) {
+        exchange.getResponseHeaders().set("Connection", "close");
+        sendError(exchange, 413, "request too long");
+        return;
+      }
+
+      Map<String, String> request = parseForm(body, length);
+      if (request == null) {
+        sendError(exchange, 400, "malformed request");
+        return;
+      }
+
+      ServiceResponse response;
+      switch (endpoint) {
+      case DECRYPT:
+        response = DUKPTEndpoints.decrypt(request, dataTracker);
+        break;
+      case TRANSLATE_PIN:
+        response = DUKPTEndpoints.translatePin(request, pinTracker);
+        break;
+      default:
+        response = DUKPTEndpoints.derive(request);
+        break;
+      }
+
+      send(exchange, response.getHttpStatus(), response.toBytes());
+    }
+  }
+
+  /**
+   * Reads the body up to the end of the request, or up to one byte more than fits in
+   * <code>buffer</code>.
+   * 
+   * @return the number of bytes read, <code>buffer.length</code> if the body did not fit
+   */
+  private static int readBody(InputStream in, byte[] buffer) throws IOException {
+    int length = 0;
+    int read;
+    while (length < buffer.length && (read = in.read(buffer, length, buffer.length - length)) > 0) {
+      length += read;
+    }
+
+    return length;
+  }
+
+  /**
+   * @return the fields of a <code>name=value&amp;name=value</code> body, or null if it is malformed
+   */
+  static Map<String, String> parseForm(byte[] body, int length) {
+    Map<String, String> fields = new HashMap<String, String>();
+    int start = 0;
+    while (start < length) {
+      int end = start;
+      int equals = -1;
+      while (end < length && body[end] != '&') {
+        if (equals < 0 && body[end] == '=') {
+          equals = end;
+        }
+        end++;
+      }
+
+      if (end > start) {
+        if (equals < 0) {
+          return null;
+        }
+
+        String name = decode(body, start, equals);
+        String value = decode(body, equals + 1, end);
+        if (name == null || value == null) {
+          return null;
+        }
+        fields.put(name, value.trim());
+      }
+
+      start = end + 1;
+    }
+
+    return fields;
+  }
+
+  private static String decode(byte[] body, int from, int to) {
+    String text = new String(body, from, to - from, StandardCharsets.US_ASCII);
+    if (text.indexOf('%') < 0 && text.indexOf('+') < 0) {
+      return text;
+    }
+
+    try {
+      return URLDecoder.decode(text, "UTF-8");
+    } catch (IllegalArgumentException e) {
+      return null;
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void sendError(HttpExchange exchange, int status, String message)
+      throws IOException {
+    send(exchange, status, ("error=" + message + "\n").getBytes(StandardCharsets.US_ASCII));
+  }
+
+  private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+    Headers headers = exchange.getResponseHeaders();
+    headers.set("Content-Type", "text/plain; charset=US-ASCII");
+    headers.set("Cache-Control", "no-store");
+    exchange.sendResponseHeaders(status, body.length);
+
+    OutputStream out = exchange.getResponseBody();
+    out.write(body);
+    out.flush();
+  }
+
+  /**
+   * Hands the exchanges of the {@link HttpServer} to a pool with a bounded queue, so that they are
+   * admitted before they queue. An exchange finding the queue full is run on the dispatcher thread
+   * of the server, and one that waited in the queue past {@link #ADMISSION_TIMEOUT_MILLIS} on its
+   * pool thread, both flagged as overloaded so that they are only answered 503.
+   */
+  private static final class AdmissionExecutor implements Executor {
+    private static final long ADMISSION_TIMEOUT_NANOS = TimeUnit.MILLISECONDS
+        .toNanos(ADMISSION_TIMEOUT_MILLIS);
+    private static final ThreadLocal<Boolean> OVERLOADED = new ThreadLocal<Boolean>();
+
+    private final ThreadPoolExecutor pool;
+
+    AdmissionExecutor(ThreadPoolExecutor pool) {
+      this.pool = pool;
+    }
+
+    @Override
+    public void execute(final Runnable exchange) {
+      final long queued = System.nanoTime();
+      try {
+        pool.execute(new Runnable() {
+          @Override
+          public void run() {
+            AdmissionExecutor.run(exchange, System.nanoTime() - queued > ADMISSION_TIMEOUT_NANOS);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        if (pool.isShutdown()) {
+          throw e;
+        }
+        run(exchange, true);
+      }
+    }
+
+    private static void run(Runnable exchange, boolean overloaded) {
+      if (!overloaded) {
+        exchange.run();
+        return;
+      }
+
+      OVERLOADED.set(Boolean.TRUE);
+      try {
+        exchange.run();
+      } finally {
+        OVERLOADED.remove();
+      }
+    }
+
+    /**
+     * @return true if the exchange handled by the current thread must be answered 503
+     */
+    static boolean isOverloaded() {
+      return OVERLOADED.get() != null;
+    }
+  }
+
+  static final class ServiceThreadFactory implements ThreadFactory {
+    private final AtomicInteger count = new AtomicInteger();
+
+    @Override
+    public Thread newThread(Runnable task) {
+      Thread thread = new Thread(task, "dukpt-service-" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  }
+
+  /**
+   * Usage:
+   * <code>DUKPTServer [-p port] [-c maximumConcurrentRequests] [-r devices] [-b name=hexBDK]...</code>
+   * 
+   * With <code>-r</code>, replayed transactions are rejected, for up to <code>devices</code> devices.
+   * 
+   * Runs until the JVM is stopped, then drains the requests in flight for up to 30 seconds. The
+   * {@link DUKPTMetrics} MBeans are registered, recording only if <code>-Ddukpt.metrics=true</code>
+   * or once enabled through JMX.
+   */
+  public static void main(String[] args) throws Exception {
+    int port = 8080;
+    int maximumConcurrentRequests = DEFAULT_MAXIMUM_CONCURRENT_REQUESTS;
+    int expectedDevices = 0;
+
+    for (int i = 0; i < args.length; i++) {
+      if ("-p".equals(args[i])) {
+        port = Integer.parseInt(args[++i]);
+      } else if ("-c".equals(args[i])) {
+        maximumConcurrentRequests = Integer.parseInt(args[++i]);
+      } else if ("-r".equals(args[i])) {
+        expectedDevices = Integer.parseInt(args[++i]);
+      } else if ("-b".equals(args[i])) {
+        String[] bdk = args[++i].split("=", 2);
+        if (bdk.length != 2) {
+          throw new IllegalArgumentException("@ DUKPTServer.main(). Expected name=hexBDK after -b.");
+        }
+        if (!BDKContainer.getInstance().insertBDK(bdk[0], bdk[1])) {
+          throw new IllegalArgumentException("@ DUKPTServer.main(). BDK " + bdk[0]
+              + " is given twice or is not the hex representation of a 16 or 24 bytes key.");
+        }
+      }
+    }
+
+    keepIdleConnections(maximumConcurrentRequests);
+    ReplayTracker dataTracker = expectedDevices > 0 ? new ReplayTracker(expectedDevices) : null;
+    ReplayTracker pinTracker = expectedDevices > 0 ? new ReplayTracker(expectedDevices) : null;
+    final DUKPTServer server = new DUKPTServer(new InetSocketAddress(port),
+        maximumConcurrentRequests, dataTracker, pinTracker);
+    Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          server.stop(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }, "dukpt-service-drain"));
+
+    DUKPTMetrics.registerMBeans();
+    server.start();
+    System.out.println("DUKPT service listening on " + server.getAddress() + " ("
+        + (server.isVirtualThreads() ? "virtual threads" : "platform threads") + ", at most "
+        + maximumConcurrentRequests + " requests in flight)");
+  }
+}
@@ -0,0 +1,66 @@
+package dukpt.service;
+
+import java.nio.charset.StandardCharsets;
+
+import dukpt.model.DecryptionStatus;
+
+/**
+ * Body of a response of {@link DUKPTServer}: one <code>name=value</code> line per field, the first
+ * one always being the {@link DecryptionStatus} of the request, as in
+ * <pre>
+ * status=SUCCESS
+ * data=4B2A...
+ * </pre>
+ */
+final class ServiceResponse {
+  private final DecryptionStatus status;
+  private final StringBuilder body = new StringBuilder(64);
+
+  private ServiceResponse(DecryptionStatus status) {
+    this.status = status;
+    body.append("status=").append(status.name()).append('\n');
+  }
+
+  static ServiceResponse success() {
+    return new ServiceResponse(DecryptionStatus.SUCCESS);
+  }
+
+  static ServiceResponse failure(DecryptionStatus status, String message) {
+    return new ServiceResponse(status).with("message", message);
+  }
+
+  ServiceResponse with(String name, String value) {
+    body.append(name).append('=').append(value).append('\n');
+    return this;
+  }
+
+  DecryptionStatus getStatus() {
+    return status;
+  }
+
+  /**
+   * @return the HTTP status code of the response
+   */
+  int getHttpStatus() {
+    switch (status) {
+    case SUCCESS:
+      return 200;
+    case INVALID_KSN:
+    case INVALID_DATA:
+    case INVALID_PIN_BLOCK:
+      return 400;
+    case UNKNOWN_BDK:
+      return 404;
+    case REPLAYED:
+      return 409;
+    case OVERLOADED:
+      return 503;
+    default:
+      return 500;
+    }
+  }
+
+  byte[] toBytes() {
+    return body.toString().getBytes(StandardCharsets.US_ASCII);
+  }
+}
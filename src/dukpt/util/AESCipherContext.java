@@ -0,0 +1,190 @@
+package dukpt.util;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Per thread cache of initialized AES {@link Cipher} objects, the AES counterpart of
+ * {@link DESCipherContext}. The providers of the JDK run AES on the AES-NI instructions where the
+ * CPU has them.
+ *
+ * A context must only be used by the thread that obtained it through {@link #current()}. Each
+ * transformation/mode pair keeps its own {@link Cipher}, remembering the last key it was
+ * initialized with.
+ */
+public final class AESCipherContext {
+  private static final String ECB_TRANSFORMATION = "AES/ECB/NoPadding";
+  private static final String CBC_TRANSFORMATION = "AES/CBC/NoPadding";
+  private static final String ALGORITHM = "AES";
+
+  private static final IvParameterSpec ZERO_IV = new IvParameterSpec(new byte[16]);
+
+  private static final ThreadLocal<AESCipherContext> CONTEXT = new ThreadLocal<AESCipherContext>() {
+    @Override
+    protected AESCipherContext initialValue() {
+      return new AESCipherContext();
+    }
+  };
+
+  private final CachedCipher ecbEncrypter = new CachedCipher(ECB_TRANSFORMATION,
+      Cipher.ENCRYPT_MODE, null);
+  private final CachedCipher cbcEncrypter = new CachedCipher(CBC_TRANSFORMATION,
+      Cipher.ENCRYPT_MODE, ZERO_IV);
+  private final CachedCipher cbcDecrypter = new CachedCipher(CBC_TRANSFORMATION,
+      Cipher.DECRYPT_MODE, ZERO_IV);
+
+  private AESCipherContext() {
+  }
+
+  /**
+   * @return the context bound to the calling thread
+   */
+  public static AESCipherContext current() {
+    return CONTEXT.get();
+  }
+
+  /**
+   * Encrypts one 16 bytes block with AES/ECB.
+   *
+   * @param key
+   *          16, 24 or 32 bytes AES key, at <code>keyOffset</code>
+   */
+  public void encryptBlock(byte[] key, int keyOffset, int keyLength, byte[] input,
+      int inputOffset, byte[] output, int outputOffset) throws NoSuchAlgorithmException,
+      NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    checkKey(keyLength, "encryptBlock");
+
+    try {
+      ecbEncrypter.doFinal(key, keyOffset, keyLength, input, inputOffset, 16, output,
+          outputOffset);
+    } catch (InvalidAlgorithmParameterException e) {
+      // ECB ciphers are never initialized with parameters
+      throw new InvalidKeyException(e);
+    } catch (ShortBufferException e) {
+      throw new IllegalBlockSizeException(e.getMessage());
+    }
+  }
+
+  /**
+   * AES/CBC encryption with a zero IV, the way {@link DESCryptoUtil} runs TDES.
+   *
+   * @return the number of bytes written
+   */
+  public int cbcEncrypt(byte[] input, int inputOffset, int length, byte[] key, byte[] output,
+      int outputOffset) throws NoSuchAlgorithmException, NoSuchPaddingException,
+      InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException,
+      BadPaddingException, ShortBufferException {
+    checkKey(key.length, "cbcEncrypt");
+    return cbcEncrypter.doFinal(key, 0, key.length, input, inputOffset, length, output,
+        outputOffset);
+  }
+
+  /**
+   * AES/CBC decryption with a zero IV.
+   *
+   * @return the number of bytes written
+   */
+  public int cbcDecrypt(byte[] input, int inputOffset, int length, byte[] key, byte[] output,
+      int outputOffset) throws NoSuchAlgorithmException, NoSuchPaddingException,
+      InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException,
+      BadPaddingException, ShortBufferException {
+    checkKey(key.length, "cbcDecrypt");
+    return cbcDecrypter.doFinal(key, 0, key.length, input, inputOffset, length, output,
+        outputOffset);
+  }
+
+  private static void checkKey(int keyLength, String operation) throws InvalidKeyException {
+    if (keyLength != 16 && keyLength != 24 && keyLength != 32) {
+      throw new InvalidKeyException("@ AESCipherContext." + operation
+          + "(). Parameter <key> must be 16, 24 or 32 bytes long, but was " + keyLength + ".");
+    }
+  }
+
+  /**
+   * A {@link Cipher} for one transformation and mode, together with the key it is currently
+   * initialized with.
+   */
+  private static final class CachedCipher {
+    private final String transformation;
+    private final int mode;
+    // null for ECB transformations
+    private final IvParameterSpec iv;
+    private final byte[] currentKey = new byte[32];
+    private int currentKeyLength;
+    private Cipher cipher;
+    private boolean initialized;
+
+    CachedCipher(String transformation, int mode, IvParameterSpec iv) {
+      this.transformation = transformation;
+      this.mode = mode;
+      this.iv = iv;
+    }
+
+    private Cipher cipher(byte[] key, int keyOffset, int keyLength)
+        throws NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+        InvalidAlgorithmParameterException {
+      if (cipher == null) {
+        cipher = Cipher.getInstance(transformation);
+      }
+
+      if (initialized && isCurrentKey(key, keyOffset, keyLength)) {
+        return cipher;
+      }
+
+      initialized = false;
+      System.arraycopy(key, keyOffset, currentKey, 0, keyLength);
+      currentKeyLength = keyLength;
+
+      SecretKeySpec keySpec = new SecretKeySpec(currentKey, 0, keyLength, ALGORITHM);
+      if (iv == null) {
+        cipher.init(mode, keySpec);
+      } else {
+        cipher.init(mode, keySpec, iv);
+      }
+      initialized = true;
+
+      return cipher;
+    }
+
+    int doFinal(byte[] key, int keyOffset, int keyLength, byte[] input, int inputOffset,
+        int length, byte[] output, int outputOffset) throws NoSuchAlgorithmException,
+        NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException,
+        IllegalBlockSizeException, BadPaddingException, ShortBufferException {
+      boolean completed = false;
+      try {
+        int written = cipher(key, keyOffset, keyLength).doFinal(input, inputOffset, length,
+            output, outputOffset);
+        completed = true;
+        return written;
+      } finally {
+        if (!completed) {
+          // Don't trust the state of a cipher whose last operation failed
+          initialized = false;
+        }
+      }
+    }
+
+    private boolean isCurrentKey(byte[] key, int keyOffset, int keyLength) {
+      if (keyLength != currentKeyLength) {
+        return false;
+      }
+
+      for (int i = 0; i < keyLength; i++) {
+        if (currentKey[i] != key[keyOffset + i]) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+  }
+}
@@ -0,0 +1,305 @@
+package dukpt.util;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+
+import dukpt.container.IPEKCache;
+import dukpt.model.KeyType;
+import dukpt.model.KeyUsage;
+
+/**
+ * Receiving side of AES DUKPT (ANSI X9.24-3), the AES counterpart of {@link DUKPTUtil}.
+ *
+ * The KSN is 12 bytes long: the 8 bytes initial key ID (4 bytes BDK ID and 4 bytes derivation ID)
+ * followed by a 32 bits transaction counter. Every key is derived with AES/ECB from its parent and
+ * 16 bytes of derivation data (version, block counter, key usage, algorithm, length, and either the
+ * initial key ID or the derivation ID plus a counter):
+ * <ul>
+ * <li>the initial key from the BDK and the initial key ID,</li>
+ * <li>an intermediate derivation key per set bit of the counter, from the leftmost one down, each
+ * one from the previous one,</li>
+ * <li>the working key (PIN, MAC, data...) from the last intermediate derivation key.</li>
+ * </ul>
+ * The BDK, the initial key and the intermediate keys are AES-128, AES-192 or AES-256 keys of the
+ * same type. Working keys can be TDES or AES keys, no stronger than the derivation keys.
+ */
+public class AESDUKPTUtil {
+  public static final int KSN_LENGTH = 12;
+  // Counters with more set bits are never used
+  public static final int MAXIMUM_COUNTER_BITS = 16;
+
+  private static final int DERIVATION_DATA_VERSION = 0x01;
+  private static final long DERIVATION_ID_MASK = 0xFFFFFFFF00000000L;
+  private static final long COUNTER_MASK = 0x00000000FFFFFFFFL;
+
+  private static final int DERIVATION_DATA = 0;
+  private static final int DERIVED_KEY = 1;
+  private static final int DERIVATION_KEY = 2;
+
+  // Derivation data, output of the key derivation function and current derivation key of the
+  // calling thread
+  private static final ThreadLocal<byte[][]> SCRATCH = new ThreadLocal<byte[][]>() {
+    @Override
+    protected byte[][] initialValue() {
+      return new byte[][] { new byte[16], new byte[32], new byte[32] };
+    }
+  };
+
+  /**
+   * @param bdk
+   *          16, 24 or 32 bytes AES key
+   * @param ksn
+   *          12 bytes KSN (only the initial key ID is used)
+   * @return the initial key of the device, of the same type as <code>bdk</code>
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   */
+  public static byte[] deriveInitialKey(byte[] bdk, byte[] ksn) throws InvalidKeyException,
+      IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException,
+      NoSuchPaddingException {
+    byte[] initialKey = new byte[bdk.length];
+    deriveInitialKey(bdk, ksn, initialKey, 0);
+    return initialKey;
+  }
+
+  /**
+   * Same as {@link #deriveInitialKey(byte[], byte[])}, writing the key into <code>key</code>.
+   */
+  public static void deriveInitialKey(byte[] bdk, byte[] ksn, byte[] key, int keyOffset)
+      throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException,
+      NoSuchAlgorithmException, NoSuchPaddingException {
+    KeyType bdkType = derivationKeyType(bdk.length, "deriveInitialKey");
+    checkKSN(ksn, "deriveInitialKey");
+
+    deriveKey(bdk, 0, bdkType, KeyUsage.KEY_DERIVATION_INITIAL_KEY, bdkType,
+        ByteArrayUtil.toLong(ksn, 0), key, keyOffset);
+  }
+
+  /**
+   * @param bdk
+   *          16, 24 or 32 bytes AES key
+   * @param ksn
+   *          12 bytes KSN
+   * @param usage
+   *          what the working key is for
+   * @param type
+   *          type of the working key, no longer than <code>bdk</code>
+   * @return the working key of the transaction
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchPaddingException
+   */
+  public static byte[] deriveWorkingKey(byte[] bdk, byte[] ksn, KeyUsage usage, KeyType type)
+      throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException,
+      NoSuchAlgorithmException, NoSuchPaddingException {
+    byte[] initialKey = deriveInitialKey(bdk, ksn);
+    try {
+      return deriveWorkingKeyFromInitialKey(ksn, initialKey, usage, type);
+    } finally {
+      Arrays.fill(initialKey, (byte) 0);
+    }
+  }
+
+  /**
+   * Same as {@link #deriveWorkingKey(byte[], byte[], KeyUsage, KeyType)}, but the keys of devices
+   * seen before are taken from {@link IPEKCache#getAESInstance()}: the initial key is not derived
+   * again, and the derivation resumes from the deepest intermediate derivation key already
+   * computed for an earlier transaction counter of the device.
+   *
+   * @param bdkId
+   *          identifier of <code>bdk</code>, such as its key in {@link dukpt.container.BDKContainer}
+   * @param key
+   *          destination of the working key, {@link KeyType#getLength()} bytes
+   * @param keyOffset
+   *          position of the working key inside <code>key</code>
+   */
+  public static void deriveWorkingKey(byte[] ksn, String bdkId, byte[] bdk, KeyUsage usage,
+      KeyType type, byte[] key, int keyOffset) throws InvalidKeyException,
+      IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException,
+      NoSuchPaddingException {
+    KeyType bdkType = derivationKeyType(bdk.length, "deriveWorkingKey");
+    checkKSN(ksn, "deriveWorkingKey");
+    checkWorkingKeyType(type, bdkType, "deriveWorkingKey");
+
+    IPEKCache cache = IPEKCache.getAESInstance();
+    long initialKeyId = ByteArrayUtil.toLong(ksn, 0);
+    int counter = (int) ByteArrayUtil.toLong(ksn, 4);
+
+    // The derivation runs in the scratch buffer, the working key is only written at the end
+    byte[] derivationKey = SCRATCH.get()[DERIVATION_KEY];
+    IPEKCache.DeviceKeys device = cache.getDevice(bdkId, initialKeyId);
+    int ancestor = device == null || device.getKeyLength() != bdk.length ? -1 : device
+        .getDeepestKey(counter, derivationKey, 0);
+    if (ancestor < 0) {
+      deriveKey(bdk, 0, bdkType, KeyUsage.KEY_DERIVATION_INITIAL_KEY, bdkType, initialKeyId,
+          derivationKey, 0);
+      device = cache.put(bdkId, initialKeyId, derivationKey, 0, bdk.length);
+      ancestor = 0;
+    }
+
+    try {
+      deriveWorkingKey(ksn, ancestor, derivationKey, bdkType, usage, type, key, keyOffset, device);
+    } finally {
+      Arrays.fill(derivationKey, (byte) 0);
+    }
+  }
+
+  /**
+   * Derives the working key of a transaction from the initial key of the device, without the BDK.
+   *
+   * @param ksn
+   *          12 bytes KSN
+   * @param initialKey
+   *          16, 24 or 32 bytes initial key, result of {@link #deriveInitialKey(byte[], byte[])}
+   * @return the working key of the transaction
+   */
+  public static byte[] deriveWorkingKeyFromInitialKey(byte[] ksn, byte[] initialKey,
+      KeyUsage usage, KeyType type) throws InvalidKeyException, IllegalBlockSizeException,
+      BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException {
+    byte[] key = new byte[type.getLength()];
+    deriveWorkingKeyFromInitialKey(ksn, initialKey, usage, type, key, 0);
+    return key;
+  }
+
+  /**
+   * Same as {@link #deriveWorkingKeyFromInitialKey(byte[], byte[], KeyUsage, KeyType)}, writing the
+   * key into <code>key</code>.
+   */
+  public static void deriveWorkingKeyFromInitialKey(byte[] ksn, byte[] initialKey,
+      KeyUsage usage, KeyType type, byte[] key, int keyOffset) throws InvalidKeyException,
+      IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException,
+      NoSuchPaddingException {
+    KeyType derivationKeyType = derivationKeyType(initialKey.length,
+        "deriveWorkingKeyFromInitialKey");
+    checkKSN(ksn, "deriveWorkingKeyFromInitialKey");
+    checkWorkingKeyType(type, derivationKeyType, "deriveWorkingKeyFromInitialKey");
+
+    byte[] derivationKey = SCRATCH.get()[DERIVATION_KEY];
+    System.arraycopy(initialKey, 0, derivationKey, 0, initialKey.length);
+    try {
+      deriveWorkingKey(ksn, 0, derivationKey, derivationKeyType, usage, type, key, keyOffset,
+          null);
+    } finally {
+      Arrays.fill(derivationKey, (byte) 0);
+    }
+  }
+
+  /**
+   * @return the transaction counter of a 12 bytes KSN
+   */
+  public static int transactionCounter(byte[] ksn) {
+    return (int) ByteArrayUtil.toLong(ksn, 4);
+  }
+
+  /**
+   * Walks from the key of the counter prefix <code>ancestor</code> (in
+   * <code>derivationKey</code>) down to the intermediate derivation key of the counter, then
+   * derives the working key from it.
+   */
+  private static void deriveWorkingKey(byte[] ksn, int ancestor, byte[] derivationKey,
+      KeyType derivationKeyType, KeyUsage usage, KeyType type, byte[] key, int keyOffset,
+      IPEKCache.DeviceKeys device) throws InvalidKeyException, IllegalBlockSizeException,
+      BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException {
+    long derivationId = ByteArrayUtil.toLong(ksn, 4) & DERIVATION_ID_MASK;
+    int counter = (int) ByteArrayUtil.toLong(ksn, 4);
+
+    int workingCounter = ancestor;
+    int mask = ancestor == 0 ? 0x80000000 : Integer.lowestOneBit(ancestor) >>> 1;
+    for (; mask != 0; mask >>>= 1) {
+      if ((counter & mask) == 0) {
+        continue;
+      }
+
+      workingCounter |= mask;
+      deriveKey(derivationKey, 0, derivationKeyType, KeyUsage.KEY_DERIVATION, derivationKeyType,
+          derivationId | (workingCounter & COUNTER_MASK), derivationKey, 0);
+
+      if (device != null) {
+        device.putIntermediateKey(workingCounter, derivationKey, 0);
+      }
+    }
+
+    deriveKey(derivationKey, 0, derivationKeyType, usage, type,
+        derivationId | (counter & COUNTER_MASK), key, keyOffset);
+  }
+
+  /**
+   * DUKPT key derivation function: AES/ECB encryption of the derivation data, once per 16 bytes of
+   * derived key. <code>key</code> may be the derivation key itself.
+   *
+   * @param deviceData
+   *          last 8 bytes of the derivation data
+   */
+  private static void deriveKey(byte[] derivationKey, int derivationKeyOffset,
+      KeyType derivationKeyType, KeyUsage usage, KeyType type, long deviceData, byte[] key,
+      int keyOffset) throws InvalidKeyException, IllegalBlockSizeException, BadPaddingException,
+      NoSuchAlgorithmException, NoSuchPaddingException {
+    AESCipherContext context = AESCipherContext.current();
+    byte[][] scratch = SCRATCH.get();
+    byte[] derivationData = scratch[DERIVATION_DATA];
+    byte[] derivedKey = scratch[DERIVED_KEY];
+
+    derivationData[0] = DERIVATION_DATA_VERSION;
+    derivationData[2] = (byte) (usage.getIndicator() >>> 8);
+    derivationData[3] = (byte) usage.getIndicator();
+    derivationData[4] = (byte) (type.getIndicator() >>> 8);
+    derivationData[5] = (byte) type.getIndicator();
+    derivationData[6] = (byte) (type.getBits() >>> 8);
+    derivationData[7] = (byte) type.getBits();
+    ByteArrayUtil.putLong(deviceData, derivationData, 8);
+
+    int length = type.getLength();
+    for (int block = 0; 16 * block < length; block++) {
+      derivationData[1] = (byte) (block + 1);
+      context.encryptBlock(derivationKey, derivationKeyOffset, derivationKeyType.getLength(),
+          derivationData, 0, derivedKey, 16 * block);
+    }
+
+    System.arraycopy(derivedKey, 0, key, keyOffset, length);
+    Arrays.fill(derivedKey, (byte) 0);
+  }
+
+  private static KeyType derivationKeyType(int length, String method) throws InvalidKeyException {
+    KeyType type = KeyType.aesKeyType(length);
+    if (type == null) {
+      throw new InvalidKeyException("@ AESDUKPTUtil." + method
+          + "(). The derivation key must be 16, 24 or 32 bytes long (AES-128/192/256), but was "
+          + length + ".");
+    }
+
+    return type;
+  }
+
+  private static void checkWorkingKeyType(KeyType type, KeyType derivationKeyType, String method)
+      throws InvalidKeyException {
+    if (type.getBits() > derivationKeyType.getBits()) {
+      throw new InvalidKeyException("@ AESDUKPTUtil." + method + "(). A " + type
+          + " working key can not be derived from a " + derivationKeyType + " key.");
+    }
+  }
+
+  private static void checkKSN(byte[] ksn, String method) {
+    if (ksn == null || ksn.length != KSN_LENGTH) {
+      throw new IllegalArgumentException("@ AESDUKPTUtil." + method
+          + "(). Parameter <ksn> must be " + KSN_LENGTH + " bytes long, but was "
+          + (ksn == null ? "null" : ksn.length) + ".");
+    }
+
+    int counter = transactionCounter(ksn);
+    if (Integer.bitCount(counter) > MAXIMUM_COUNTER_BITS) {
+      throw new IllegalArgumentException("@ AESDUKPTUtil." + method
+          + "(). The transaction counter must have at most " + MAXIMUM_COUNTER_BITS
+          + " bits set, but was " + Integer.toHexString(counter) + ".");
+    }
+  }
+}
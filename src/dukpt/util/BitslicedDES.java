@@ -0,0 +1,389 @@
+package dukpt.util;
+
+/**
+ * Bitsliced DES/TDES: 64 independent blocks, each under its own key, encrypted together.
+ *
+ * Blocks and keys are held as 64 bit planes: plane i holds bit i (from the left, bit 1 of the
+ * FIPS 46-3 tables) of the 64 lanes, lane j being bit 63 - j of each plane, which is what
+ * {@link #transpose(long[])} makes of 64 big-endian blocks. IP, FP, E, P and the key schedule then
+ * only choose which plane goes where, so keys cost nothing to expand and can change with every
+ * block, and the S-boxes are boolean circuits run on all the lanes at once. A block costs less
+ * than half of a {@link DESEngine} encryption, for work where 64 operations can wait for each
+ * other, such as the batch derivations of {@link DUKPTUtil}.
+ *
+ * An instance holds the working planes and is not thread safe.
+ */
+public final class BitslicedDES {
+  public static final int LANES = 64;
+
+  // state[i] = block[IP_INDEX[i]]
+  private static final int[] IP_INDEX = new int[64];
+  // output[i] = state[FP_INDEX[i]]
+  private static final int[] FP_INDEX = new int[64];
+  // Bit of the right half each bit of E(R) comes from
+  private static final int[] E_INDEX = new int[48];
+  // Bit of f(R, K) each S-box output bit goes to through P
+  private static final int[] P_TARGET = new int[32];
+  // ROUND_KEYS[round * 48 + i] is the key bit that ends up in bit i of the round key
+  private static final int[] ROUND_KEYS = new int[16 * 48];
+
+  static {
+    for (int i = 0; i < 64; i++) {
+      IP_INDEX[i] = DESEngine.IP[i] - 1;
+      FP_INDEX[DESEngine.IP[i] - 1] = i;
+    }
+    for (int i = 0; i < 48; i++) {
+      E_INDEX[i] = (4 * (i / 6) + i % 6 + 31) % 32;
+    }
+    for (int i = 0; i < 32; i++) {
+      P_TARGET[DESEngine.P[i] - 1] = i;
+    }
+
+    int shift = 0;
+    for (int round = 0; round < 16; round++) {
+      shift += DESEngine.ROTATIONS[round];
+      for (int i = 0; i < 48; i++) {
+        // Position in C|D after the rotations, then in the key through PC1
+        int cd = DESEngine.PC2[i] - 1;
+        cd = cd < 28 ? (cd + shift) % 28 : 28 + (cd - 28 + shift) % 28;
+        ROUND_KEYS[round * 48 + i] = DESEngine.PC1[cd] - 1;
+      }
+    }
+
+    checkSBoxes();
+  }
+
+  private final long[] state = new long[64];
+  private final long[] y = new long[4];
+  private final long[] planes = new long[64];
+  private final long[] keyPlanes = new long[64];
+  private final long[] keyPlanes2 = new long[64];
+  private final long[] keyPlanes3 = new long[64];
+
+  /**
+   * Transposes the 64x64 bit matrix of <code>matrix</code> in place: bit 63 - j of row i and bit
+   * 63 - i of row j are swapped. Turns 64 big-endian blocks into their bit planes, and back.
+   */
+  public static void transpose(long[] matrix) {
+    long mask = 0x00000000FFFFFFFFL;
+    for (int j = 32; j != 0; j >>>= 1, mask ^= mask << j) {
+      for (int k = 0; k < 64; k = (k + j + 1) & ~j) {
+        long t = (matrix[k] ^ (matrix[k + j] >>> j)) & mask;
+        matrix[k] ^= t;
+        matrix[k + j] ^= t << j;
+      }
+    }
+  }
+
+  /**
+   * DES encryption of the 64 blocks of <code>blocks</code>, in place, each under the key of
+   * <code>keys</code> with the same index. Both are big-endian, and the keys are left untouched.
+   */
+  public void encrypt(long[] blocks, long[] keys) {
+    crypt(blocks, keys, false);
+  }
+
+  public void decrypt(long[] blocks, long[] keys) {
+    crypt(blocks, keys, true);
+  }
+
+  /**
+   * TDES (EDE) encryption of the 64 blocks of <code>blocks</code>, in place, the keys of each lane
+   * being the ones of <code>k1</code>, <code>k2</code> and <code>k3</code> with the same index.
+   */
+  public void tdesEncrypt(long[] blocks, long[] k1, long[] k2, long[] k3) {
+    System.arraycopy(blocks, 0, planes, 0, 64);
+    System.arraycopy(k1, 0, keyPlanes, 0, 64);
+    System.arraycopy(k2, 0, keyPlanes2, 0, 64);
+    System.arraycopy(k3, 0, keyPlanes3, 0, 64);
+    transpose(planes);
+    transpose(keyPlanes);
+    transpose(keyPlanes2);
+    transpose(keyPlanes3);
+    tdesEncryptPlanes(planes, keyPlanes, keyPlanes2, keyPlanes3);
+    transpose(planes);
+    System.arraycopy(planes, 0, blocks, 0, 64);
+  }
+
+  /**
+   * DES encryption of the 64 planes of <code>block</code>, in place, under the key planes of
+   * <code>key</code>.
+   */
+  public void encryptPlanes(long[] block, long[] key) {
+    int left = initialPermutation(block);
+    left = rounds(key, false, left);
+    finalPermutation(left, block);
+  }
+
+  public void decryptPlanes(long[] block, long[] key) {
+    int left = initialPermutation(block);
+    left = rounds(key, true, left);
+    finalPermutation(left, block);
+  }
+
+  /**
+   * TDES (EDE) encryption on bit planes. As with {@link DESEngine#tdesEncrypt(long, long, long, long)},
+   * IP and FP are only applied once.
+   */
+  public void tdesEncryptPlanes(long[] block, long[] k1, long[] k2, long[] k3) {
+    int left = initialPermutation(block);
+    left = rounds(k1, false, left);
+    left = rounds(k2, true, left);
+    left = rounds(k3, false, left);
+    finalPermutation(left, block);
+  }
+
+  private void crypt(long[] blocks, long[] keys, boolean decrypt) {
+    System.arraycopy(blocks, 0, planes, 0, 64);
+    System.arraycopy(keys, 0, keyPlanes, 0, 64);
+    transpose(planes);
+    transpose(keyPlanes);
+    if (decrypt) {
+      decryptPlanes(planes, keyPlanes);
+    } else {
+      encryptPlanes(planes, keyPlanes);
+    }
+    transpose(planes);
+    System.arraycopy(planes, 0, blocks, 0, 64);
+  }
+
+  /**
+   * @return the offset of the left half in {@link #state}
+   */
+  private int initialPermutation(long[] block) {
+    for (int i = 0; i < 64; i++) {
+      state[i] = block[IP_INDEX[i]];
+    }
+    return 0;
+  }
+
+  private void finalPermutation(int left, long[] block) {
+    for (int i = 0; i < 64; i++) {
+      block[i] = state[(left + FP_INDEX[i]) & 63];
+    }
+  }
+
+  /**
+   * The 16 Feistel rounds. The halves are never moved: f(R, K) is XORed into the left half in
+   * place, which makes it the next right half, and the two halves swap roles.
+   *
+   * @return the offset of the left half of the output, the final swap of halves included
+   */
+  private int rounds(long[] key, boolean decrypt, int left) {
+    long[] state = this.state;
+    long[] y = this.y;
+    for (int round = 0; round < 16; round++) {
+      int k = (decrypt ? 15 - round : round) * 48;
+      int right = left ^ 32;
+
+      for (int box = 0, e = 0, p = 0; box < 8; box++, e += 6, p += 4) {
+        sbox(box,
+            state[right + E_INDEX[e]] ^ key[ROUND_KEYS[k + e]],
+            state[right + E_INDEX[e + 1]] ^ key[ROUND_KEYS[k + e + 1]],
+            state[right + E_INDEX[e + 2]] ^ key[ROUND_KEYS[k + e + 2]],
+            state[right + E_INDEX[e + 3]] ^ key[ROUND_KEYS[k + e + 3]],
+            state[right + E_INDEX[e + 4]] ^ key[ROUND_KEYS[k + e + 4]],
+            state[right + E_INDEX[e + 5]] ^ key[ROUND_KEYS[k + e + 5]], y);
+        state[left + P_TARGET[p]] ^= y[0];
+        state[left + P_TARGET[p + 1]] ^= y[1];
+        state[left + P_TARGET[p + 2]] ^= y[2];
+        state[left + P_TARGET[p + 3]] ^= y[3];
+      }
+
+      left = right;
+    }
+
+    return left ^ 32;
+  }
+
+  /**
+   * S-box <code>box</code> on the six input planes <code>a</code> (leftmost) to <code>f</code>,
+   * into the four output planes of <code>y</code>. Each output bit is, for each row (a, f), the OR
+   * of the columns (b, c, d, e) where the table has it set; with every row of an S-box a permutation
+   * of 0 to 15, that is 8 of the 16 column minterms. The circuits are checked against
+   * {@link DESEngine#S} when the class is loaded.
+   */
+  private static void sbox(int box, long a, long b, long c, long d, long e, long f, long[] y) {
+    long nb = ~b, nc = ~c, nd = ~d, ne = ~e;
+    long bc0 = nb & nc, bc1 = nb & c, bc2 = b & nc, bc3 = b & c;
+    long de0 = nd & ne, de1 = nd & e, de2 = d & ne, de3 = d & e;
+    long m0 = bc0 & de0, m1 = bc0 & de1, m2 = bc0 & de2, m3 = bc0 & de3;
+    long m4 = bc1 & de0, m5 = bc1 & de1, m6 = bc1 & de2, m7 = bc1 & de3;
+    long m8 = bc2 & de0, m9 = bc2 & de1, m10 = bc2 & de2, m11 = bc2 & de3;
+    long m12 = bc3 & de0, m13 = bc3 & de1, m14 = bc3 & de2, m15 = bc3 & de3;
+
+    switch (box) {
+    case 0:
+      y[0] = row(a, f, m0 | m2 | m5 | m6 | m7 | m9 | m11 | m13,
+          m1 | m4 | m6 | m8 | m10 | m11 | m12 | m15,
+          m2 | m3 | m4 | m7 | m8 | m9 | m10 | m13,
+          m0 | m1 | m2 | m5 | m9 | m11 | m12 | m15);
+      y[1] = row(a, f, m0 | m1 | m2 | m5 | m10 | m11 | m12 | m15,
+          m1 | m2 | m3 | m4 | m6 | m9 | m10 | m13,
+          m0 | m2 | m4 | m5 | m8 | m9 | m11 | m14,
+          m0 | m1 | m4 | m7 | m8 | m11 | m14 | m15);
+      y[2] = row(a, f, m0 | m4 | m5 | m6 | m8 | m9 | m10 | m15,
+          m1 | m2 | m4 | m5 | m8 | m9 | m11 | m14,
+          m2 | m5 | m6 | m7 | m8 | m11 | m12 | m13,
+          m0 | m3 | m7 | m9 | m10 | m11 | m12 | m14);
+      y[3] = row(a, f, m2 | m3 | m5 | m6 | m8 | m12 | m13 | m15,
+          m1 | m2 | m6 | m7 | m11 | m12 | m13 | m14,
+          m1 | m4 | m7 | m8 | m10 | m11 | m12 | m14,
+          m0 | m5 | m6 | m7 | m8 | m9 | m10 | m15);
+      break;
+    case 1:
+      y[0] = row(a, f, m0 | m2 | m3 | m5 | m8 | m11 | m12 | m15,
+          m1 | m4 | m6 | m7 | m8 | m11 | m13 | m14,
+          m1 | m3 | m4 | m6 | m9 | m10 | m12 | m15,
+          m0 | m1 | m2 | m5 | m8 | m11 | m14 | m15);
+      y[1] = row(a, f, m0 | m3 | m4 | m7 | m9 | m11 | m12 | m14,
+          m1 | m2 | m3 | m4 | m7 | m8 | m12 | m15,
+          m1 | m2 | m5 | m6 | m8 | m10 | m11 | m15,
+          m0 | m5 | m6 | m9 | m10 | m11 | m13 | m14);
+      y[2] = row(a, f, m0 | m3 | m4 | m5 | m6 | m9 | m10 | m15,
+          m0 | m3 | m4 | m5 | m7 | m11 | m12 | m14,
+          m1 | m2 | m3 | m4 | m11 | m13 | m14 | m15,
+          m2 | m4 | m5 | m7 | m8 | m9 | m10 | m14);
+      y[3] = row(a, f, m0 | m1 | m5 | m6 | m8 | m9 | m11 | m14,
+          m0 | m1 | m3 | m4 | m10 | m13 | m14 | m15,
+          m2 | m3 | m6 | m7 | m8 | m12 | m13 | m15,
+          m0 | m3 | m4 | m5 | m8 | m10 | m13 | m15);
+      break;
+    case 2:
+      y[0] = row(a, f, m0 | m2 | m3 | m6 | m9 | m10 | m12 | m15,
+          m0 | m3 | m7 | m9 | m11 | m12 | m13 | m14,
+          m0 | m3 | m4 | m5 | m8 | m11 | m13 | m14,
+          m1 | m2 | m5 | m6 | m9 | m10 | m12 | m15);
+      y[1] = row(a, f, m3 | m4 | m6 | m7 | m9 | m10 | m11 | m13,
+          m0 | m1 | m5 | m6 | m10 | m11 | m12 | m14,
+          m0 | m1 | m2 | m5 | m11 | m12 | m14 | m15,
+          m2 | m4 | m7 | m8 | m9 | m10 | m13 | m15);
+      y[2] = row(a, f, m0 | m3 | m4 | m5 | m6 | m11 | m12 | m14,
+          m1 | m4 | m6 | m7 | m8 | m11 | m13 | m14,
+          m1 | m5 | m6 | m8 | m10 | m13 | m14 | m15,
+          m1 | m4 | m7 | m9 | m10 | m11 | m12 | m14);
+      y[3] = row(a, f, m2 | m5 | m6 | m7 | m8 | m9 | m11 | m12,
+          m0 | m1 | m3 | m4 | m10 | m13 | m14 | m15,
+          m0 | m3 | m5 | m6 | m8 | m9 | m12 | m15,
+          m0 | m2 | m5 | m7 | m9 | m11 | m12 | m13);
+      break;
+    case 3:
+      y[0] = row(a, f, m1 | m2 | m6 | m7 | m10 | m12 | m13 | m15,
+          m0 | m1 | m2 | m5 | m11 | m13 | m14 | m15,
+          m0 | m2 | m4 | m5 | m7 | m8 | m11 | m14,
+          m1 | m4 | m6 | m7 | m8 | m11 | m12 | m15);
+      y[1] = row(a, f, m0 | m1 | m2 | m5 | m11 | m13 | m14 | m15,
+          m0 | m3 | m4 | m5 | m8 | m9 | m11 | m14,
+          m1 | m4 | m6 | m7 | m8 | m11 | m12 | m15,
+          m1 | m3 | m6 | m9 | m10 | m12 | m13 | m15);
+      y[2] = row(a, f, m0 | m2 | m3 | m5 | m7 | m9 | m12 | m15,
+          m2 | m4 | m5 | m7 | m9 | m10 | m13 | m14,
+          m0 | m1 | m5 | m6 | m8 | m10 | m11 | m13,
+          m0 | m1 | m3 | m4 | m11 | m13 | m14 | m15);
+      y[3] = row(a, f, m0 | m1 | m3 | m6 | m8 | m11 | m12 | m15,
+          m0 | m2 | m3 | m5 | m7 | m9 | m12 | m15,
+          m2 | m5 | m6 | m7 | m8 | m9 | m10 | m12,
+          m0 | m1 | m5 | m6 | m8 | m10 | m11 | m13);
+      break;
+    case 4:
+      y[0] = row(a, f, m1 | m5 | m6 | m8 | m11 | m12 | m14 | m15,
+          m0 | m1 | m3 | m6 | m10 | m11 | m13 | m14,
+          m3 | m4 | m5 | m7 | m8 | m9 | m10 | m15,
+          m0 | m1 | m2 | m5 | m7 | m9 | m11 | m12);
+      y[1] = row(a, f, m1 | m2 | m4 | m7 | m9 | m11 | m12 | m14,
+          m0 | m3 | m4 | m5 | m6 | m8 | m10 | m15,
+          m0 | m5 | m6 | m8 | m10 | m11 | m12 | m15,
+          m2 | m3 | m5 | m7 | m8 | m9 | m13 | m14);
+      y[2] = row(a, f, m0 | m4 | m5 | m6 | m7 | m10 | m11 | m14,
+          m0 | m1 | m2 | m5 | m10 | m11 | m12 | m15,
+          m1 | m3 | m4 | m6 | m8 | m12 | m13 | m15,
+          m0 | m3 | m5 | m6 | m8 | m9 | m12 | m15);
+      y[3] = row(a, f, m3 | m4 | m6 | m9 | m10 | m11 | m12 | m15,
+          m1 | m5 | m6 | m7 | m8 | m10 | m12 | m13,
+          m2 | m3 | m5 | m6 | m8 | m9 | m11 | m13,
+          m0 | m3 | m4 | m7 | m9 | m11 | m14 | m15);
+      break;
+    case 5:
+      y[0] = row(a, f, m0 | m2 | m3 | m4 | m7 | m9 | m12 | m15,
+          m0 | m1 | m5 | m6 | m10 | m11 | m13 | m15,
+          m0 | m1 | m2 | m5 | m6 | m11 | m13 | m14,
+          m3 | m4 | m6 | m7 | m8 | m9 | m14 | m15);
+      y[1] = row(a, f, m0 | m3 | m6 | m9 | m11 | m12 | m13 | m14,
+          m1 | m2 | m4 | m5 | m7 | m8 | m10 | m11,
+          m1 | m2 | m3 | m6 | m8 | m10 | m13 | m15,
+          m0 | m3 | m5 | m6 | m9 | m11 | m12 | m15);
+      y[2] = row(a, f, m2 | m3 | m5 | m6 | m10 | m12 | m13 | m15,
+          m0 | m1 | m3 | m4 | m8 | m11 | m13 | m14,
+          m1 | m2 | m4 | m7 | m8 | m11 | m14 | m15,
+          m1 | m2 | m6 | m7 | m8 | m9 | m11 | m12);
+      y[3] = row(a, f, m1 | m3 | m4 | m9 | m10 | m13 | m14 | m15,
+          m1 | m4 | m6 | m7 | m9 | m10 | m13 | m14,
+          m0 | m2 | m3 | m7 | m8 | m12 | m13 | m14,
+          m1 | m4 | m5 | m6 | m8 | m10 | m11 | m15);
+      break;
+    case 6:
+      y[0] = row(a, f, m1 | m3 | m4 | m6 | m7 | m9 | m10 | m13,
+          m0 | m2 | m5 | m7 | m8 | m11 | m13 | m14,
+          m2 | m3 | m4 | m7 | m8 | m9 | m11 | m14,
+          m1 | m2 | m3 | m6 | m8 | m11 | m12 | m15);
+      y[1] = row(a, f, m0 | m3 | m4 | m7 | m9 | m11 | m12 | m14,
+          m0 | m3 | m4 | m8 | m10 | m11 | m13 | m15,
+          m1 | m3 | m4 | m6 | m7 | m9 | m10 | m13,
+          m0 | m2 | m5 | m7 | m9 | m11 | m12 | m15);
+      y[2] = row(a, f, m1 | m2 | m3 | m4 | m8 | m11 | m13 | m14,
+          m2 | m3 | m7 | m8 | m9 | m12 | m13 | m15,
+          m2 | m5 | m6 | m7 | m8 | m9 | m10 | m15,
+          m0 | m1 | m6 | m7 | m11 | m12 | m13 | m14);
+      y[3] = row(a, f, m1 | m4 | m7 | m8 | m10 | m11 | m12 | m15,
+          m0 | m2 | m3 | m5 | m6 | m9 | m10 | m13,
+          m0 | m2 | m3 | m5 | m6 | m9 | m13 | m14,
+          m1 | m2 | m4 | m7 | m8 | m9 | m11 | m14);
+      break;
+    default:
+      y[0] = row(a, f, m0 | m2 | m5 | m6 | m8 | m9 | m11 | m14,
+          m1 | m2 | m3 | m4 | m8 | m11 | m13 | m14,
+          m1 | m4 | m5 | m6 | m10 | m11 | m12 | m15,
+          m2 | m5 | m6 | m7 | m8 | m9 | m10 | m15);
+      y[1] = row(a, f, m0 | m3 | m4 | m5 | m11 | m12 | m14 | m15,
+          m1 | m2 | m6 | m7 | m8 | m9 | m10 | m13,
+          m0 | m2 | m5 | m6 | m9 | m11 | m12 | m14,
+          m2 | m3 | m4 | m7 | m8 | m9 | m13 | m14);
+      y[2] = row(a, f, m1 | m4 | m5 | m6 | m8 | m10 | m11 | m15,
+          m1 | m4 | m5 | m6 | m10 | m11 | m13 | m15,
+          m0 | m1 | m6 | m7 | m9 | m10 | m12 | m13,
+          m0 | m2 | m3 | m5 | m8 | m12 | m14 | m15);
+      y[3] = row(a, f, m0 | m5 | m6 | m7 | m9 | m10 | m12 | m15,
+          m0 | m1 | m2 | m5 | m6 | m9 | m11 | m14,
+          m0 | m1 | m3 | m4 | m11 | m12 | m13 | m14,
+          m1 | m3 | m7 | m8 | m10 | m12 | m13 | m15);
+      break;
+    }
+  }
+
+  /**
+   * Selects, lane by lane, the row (a, f) of an S-box output bit: <code>r0</code> for (0, 0),
+   * <code>r1</code> for (0, 1), <code>r2</code> for (1, 0) and <code>r3</code> for (1, 1).
+   */
+  private static long row(long a, long f, long r0, long r1, long r2, long r3) {
+    long low = r0 ^ (f & (r0 ^ r1));
+    long high = r2 ^ (f & (r2 ^ r3));
+    return low ^ (a & (low ^ high));
+  }
+
+  private static void checkSBoxes() {
+    long[] y = new long[4];
+    for (int box = 0; box < 8; box++) {
+      for (int v = 0; v < 64; v++) {
+        sbox(box, -(v >>> 5 & 1), -(v >>> 4 & 1), -(v >>> 3 & 1), -(v >>> 2 & 1), -(v >>> 1 & 1),
+            -(v & 1), y);
+        int row = ((v >>> 4) & 0x02) | (v & 0x01);
+        int column = (v >>> 1) & 0x0F;
+        int output = (int) (y[0] & 8 | y[1] & 4 | y[2] & 2 | y[3] & 1);
+        if (output != DESEngine.S[box][row * 16 + column]) {
+          throw new IllegalStateException(
+              "@ BitslicedDES.checkSBoxes(). S-box " + (box + 1) + " circuit is wrong for " + v + ".");
+        }
+      }
+    }
+  }
+}
@@ -1,94 +1,62 @@
 package dukpt.util;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.math.BigInteger;
+import java.nio.ByteOrder;
 
+/**
+ * Byte array helpers.
+ *
+ * The methods taking a single array or two arrays allocate their result. The ones taking offsets
+ * and a length write into a destination given by the caller instead, which may be one of the
+ * sources (same array, same offset) to work in place, so that calls can be chained without any
+ * temporary array. Those work on 8 bytes at a time through a big-endian long view of the arrays.
+ */
 public class ByteArrayUtil {
+	private static final VarHandle LONG_VIEW = MethodHandles.byteArrayViewVarHandle(long[].class,
+			ByteOrder.BIG_ENDIAN);
+
 	public static byte[] padLeftWithZeroes(byte[] byteArray, int length) {
 		byte[] newByteArray = new byte[length];
-		int offset = length - byteArray.length;
-		for(int i = 0; i < offset; i++) {
-			newByteArray[i] = (byte)0x00;
-		}
-		
-		for(int i = 0, j = offset; i < byteArray.length; i ++) {
-			newByteArray[j++] = byteArray[i];
-		}
-		
+		padLeft(byteArray, 0, byteArray.length, (byte)0x00, newByteArray, 0, length);
 		return newByteArray;
 	}
 	
 	public static byte[] padLeftWith0xFF(byte[] byteArray, int length) {
 		byte[] newByteArray = new byte[length];
-		int offset = length - byteArray.length;
-		for(int i = 0; i < offset; i++) {
-			newByteArray[i] = (byte)0xFF;
-		}
-		
-		for(int i = 0, j = offset; i < byteArray.length; i ++) {
-			newByteArray[j++] = byteArray[i];
-		}
-		
+		padLeft(byteArray, 0, byteArray.length, (byte)0xFF, newByteArray, 0, length);
 		return newByteArray;
 	}
 	
 	public static byte[] and(byte[] array1, byte[] array2) {
 		byte[] maskedArray = new byte[array1.length];
-		for(int i = 0; i < array1.length; i++) {
-			int a = array1[i] & 0xFF;
-			int b = array2[i] & 0xFF;
-			int result = a & b;
-			maskedArray[i] = (byte)result;
-		}
-		
+		and(array1, 0, array2, 0, maskedArray, 0, array1.length);
 		return maskedArray;
 	}
 	
 	public static byte[] or(byte[] array1, byte[] array2) {
 		byte[] maskedArray = new byte[array1.length];
-		for(int i = 0; i < array1.length; i++) {
-			int a = array1[i] & 0xFF;
-			int b = array2[i] & 0xFF;
-			int result = a | b;
-			maskedArray[i] = (byte)result;
-		}
-		
+		or(array1, 0, array2, 0, maskedArray, 0, array1.length);
 		return maskedArray;
 	}
 	
 	public static byte[] xor(byte[] array1, byte[] array2) {
 		byte[] maskedArray = new byte[array1.length];
-		for(int i = 0; i < array1.length; i++) {
-			int a = array1[i] & 0xFF;
-			int b = array2[i] & 0xFF;
-			int result = a ^ b;
-			maskedArray[i] = (byte)result;
-		}
-		
+		xor(array1, 0, array2, 0, maskedArray, 0, array1.length);
 		return maskedArray;
 	}
 	
 	public static byte[] subArray(byte[] array, int from, int to) {
 		int length = (to - from) + 1;
 		byte[] subArray = new byte[length];
-		
-		for(int i = 0, j = from; j < to + 1; i++, j++) {
-			subArray[i] = array[j];
-		}
-		
+		System.arraycopy(array, from, subArray, 0, length);
 		return subArray;
 	}
 	
 	public static byte[] join(byte[] left, byte[] right) {
 		byte[] result = new byte[left.length + right.length];
-		
-		for(int i = 0; i < left.length; i ++) {
-			result[i] = left[i];
-		}
-		
-		for(int i = 0; i < right.length; i ++) {
-			result[i + left.length] = right[i];
-		}
-		
+		join(left, 0, left.length, right, 0, right.length, result, 0);
 		return result;
 	}
 
@@ -112,4 +80,135 @@ public class ByteArrayUtil {
 		
 		return newArray;
 	}
+
+	// Offset based operations
+
+	/**
+	 * <code>destination[destinationOffset + i] = array1[offset1 + i] & array2[offset2 + i]</code>,
+	 * for <code>i</code> in [0, <code>length</code>). The destination may be one of the sources.
+	 */
+	public static void and(byte[] array1, int offset1, byte[] array2, int offset2,
+			byte[] destination, int destinationOffset, int length) {
+		int i = 0;
+		for(; i <= length - 8; i += 8) {
+			LONG_VIEW.set(destination, destinationOffset + i, (long)LONG_VIEW.get(array1, offset1 + i)
+					& (long)LONG_VIEW.get(array2, offset2 + i));
+		}
+		
+		for(; i < length; i++) {
+			destination[destinationOffset + i] = (byte)(array1[offset1 + i] & array2[offset2 + i]);
+		}
+	}
+	
+	/**
+	 * @see #and(byte[], int, byte[], int, byte[], int, int)
+	 */
+	public static void or(byte[] array1, int offset1, byte[] array2, int offset2,
+			byte[] destination, int destinationOffset, int length) {
+		int i = 0;
+		for(; i <= length - 8; i += 8) {
+			LONG_VIEW.set(destination, destinationOffset + i, (long)LONG_VIEW.get(array1, offset1 + i)
+					| (long)LONG_VIEW.get(array2, offset2 + i));
+		}
+		
+		for(; i < length; i++) {
+			destination[destinationOffset + i] = (byte)(array1[offset1 + i] | array2[offset2 + i]);
+		}
+	}
+	
+	/**
+	 * @see #and(byte[], int, byte[], int, byte[], int, int)
+	 */
+	public static void xor(byte[] array1, int offset1, byte[] array2, int offset2,
+			byte[] destination, int destinationOffset, int length) {
+		int i = 0;
+		for(; i <= length - 8; i += 8) {
+			LONG_VIEW.set(destination, destinationOffset + i, (long)LONG_VIEW.get(array1, offset1 + i)
+					^ (long)LONG_VIEW.get(array2, offset2 + i));
+		}
+		
+		for(; i < length; i++) {
+			destination[destinationOffset + i] = (byte)(array1[offset1 + i] ^ array2[offset2 + i]);
+		}
+	}
+	
+	/**
+	 * Copies <code>length</code> bytes of <code>array</code> right-aligned into
+	 * <code>destinationLength</code> bytes of <code>destination</code>, filling the bytes on their
+	 * left with <code>pad</code>.
+	 */
+	public static void padLeft(byte[] array, int offset, int length, byte pad, byte[] destination,
+			int destinationOffset, int destinationLength) {
+		int padLength = destinationLength - length;
+		System.arraycopy(array, offset, destination, destinationOffset + padLength, length);
+		for(int i = destinationOffset; i < destinationOffset + padLength; i++) {
+			destination[i] = pad;
+		}
+	}
+	
+	/**
+	 * Writes <code>left</code> then <code>right</code> into <code>destination</code>.
+	 * 
+	 * @return the number of bytes written
+	 */
+	public static int join(byte[] left, int leftOffset, int leftLength, byte[] right,
+			int rightOffset, int rightLength, byte[] destination, int destinationOffset) {
+		System.arraycopy(left, leftOffset, destination, destinationOffset, leftLength);
+		System.arraycopy(right, rightOffset, destination, destinationOffset + leftLength, rightLength);
+		return leftLength + rightLength;
+	}
+	
+	/**
+	 * Shifts the <code>length</code> bytes of <code>array</code>, taken as an unsigned big-endian
+	 * number, <code>n</code> bits to the right, into <code>destination</code>. The destination may
+	 * be the source.
+	 */
+	public static void shiftRight(byte[] array, int offset, int length, int n, byte[] destination,
+			int destinationOffset) {
+		int byteShift = n >>> 3;
+		int bitShift = n & 7;
+		
+		// From right to left, so that no source byte is overwritten before it is read
+		for(int i = length - 1; i >= 0; i--) {
+			int source = i - byteShift;
+			int value = 0;
+			if(source >= 0) {
+				value = (array[offset + source] & 0xFF) >>> bitShift;
+				if(source > 0 && bitShift != 0) {
+					value |= (array[offset + source - 1] << (8 - bitShift)) & 0xFF;
+				}
+			}
+			destination[destinationOffset + i] = (byte)value;
+		}
+	}
+	
+	// 64 bits operations
+
+	/**
+	 * Reads 8 bytes, starting at <code>offset</code>, as a big-endian long.
+	 */
+	public static long toLong(byte[] array, int offset) {
+		return (long)LONG_VIEW.get(array, offset);
+	}
+	
+	/**
+	 * Writes <code>value</code> as 8 big-endian bytes into <code>array</code>, starting at <code>offset</code>.
+	 */
+	public static void putLong(long value, byte[] array, int offset) {
+		LONG_VIEW.set(array, offset, value);
+	}
+	
+	/**
+	 * XORs <code>value</code> into the 8 big-endian bytes of <code>array</code> at <code>offset</code>.
+	 */
+	public static void xorLong(byte[] array, int offset, long value) {
+		LONG_VIEW.set(array, offset, (long)LONG_VIEW.get(array, offset) ^ value);
+	}
+	
+	/**
+	 * ANDs <code>value</code> into the 8 big-endian bytes of <code>array</code> at <code>offset</code>.
+	 */
+	public static void andLong(byte[] array, int offset, long value) {
+		LONG_VIEW.set(array, offset, (long)LONG_VIEW.get(array, offset) & value);
+	}
 }
@@ -0,0 +1,249 @@
+package dukpt.util;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Per thread cache of initialized {@link Cipher} objects for the transformations used by
+ * {@link DESCryptoUtil}.
+ *
+ * A context must only be used by the thread that obtained it through {@link #current()}. Each
+ * transformation/mode pair keeps its own {@link Cipher}, remembering the last key it was
+ * initialized with, so consecutive calls with the same key skip the provider lookup, the key spec
+ * creation and the <code>init</code> call altogether.
+ */
+public final class DESCipherContext {
+  private static final String TRIPLE_DES_TRANSFORMATION = "DESede/CBC/NoPadding";
+  private static final String TRIPLE_DES_ALGORITHM = "DESede";
+  private static final String DES_TRANSFORMATION = "DES/ECB/NoPadding";
+  private static final String DES_ALGORITHM = "DES";
+
+  // IvParameterSpec keeps its own copy of the IV, so a single instance can be shared by all
+  // threads
+  private static final IvParameterSpec ZERO_IV = new IvParameterSpec(new byte[8]);
+
+  private static final ThreadLocal<DESCipherContext> CONTEXT = new ThreadLocal<DESCipherContext>() {
+    @Override
+    protected DESCipherContext initialValue() {
+      return new DESCipherContext();
+    }
+  };
+
+  private final CachedCipher tdesEncrypter = new CachedCipher(TRIPLE_DES_TRANSFORMATION,
+      TRIPLE_DES_ALGORITHM, Cipher.ENCRYPT_MODE, 24, ZERO_IV);
+  private final CachedCipher tdesDecrypter = new CachedCipher(TRIPLE_DES_TRANSFORMATION,
+      TRIPLE_DES_ALGORITHM, Cipher.DECRYPT_MODE, 24, ZERO_IV);
+  private final CachedCipher desEncrypter = new CachedCipher(DES_TRANSFORMATION, DES_ALGORITHM,
+      Cipher.ENCRYPT_MODE, 8, null);
+
+  // Scratch buffers for the long based operations
+  private final byte[] block = new byte[8];
+  private final byte[] singleKey = new byte[8];
+
+  private DESCipherContext() {
+  }
+
+  /**
+   * @return the context bound to the calling thread
+   */
+  public static DESCipherContext current() {
+    return CONTEXT.get();
+  }
+
+  public byte[] tdesEncrypt(byte[] input, byte[] key) throws IllegalBlockSizeException,
+      BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+      InvalidAlgorithmParameterException {
+    checkTripleKey(key, "tdesEncrypt");
+    return tdesEncrypter.doFinal(key, input);
+  }
+
+  public int tdesEncrypt(byte[] input, int inputOffset, int length, byte[] key, byte[] output,
+      int outputOffset) throws IllegalBlockSizeException, BadPaddingException,
+      NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+      InvalidAlgorithmParameterException, ShortBufferException {
+    checkTripleKey(key, "tdesEncrypt");
+    return tdesEncrypter.doFinal(key, input, inputOffset, length, output, outputOffset);
+  }
+
+  public byte[] tdesDecrypt(byte[] input, byte[] key) throws IllegalBlockSizeException,
+      BadPaddingException, NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+      InvalidAlgorithmParameterException {
+    checkTripleKey(key, "tdesDecrypt");
+    return tdesDecrypter.doFinal(key, input);
+  }
+
+  public int tdesDecrypt(byte[] input, int inputOffset, int length, byte[] key, byte[] output,
+      int outputOffset) throws IllegalBlockSizeException, BadPaddingException,
+      NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+      InvalidAlgorithmParameterException, ShortBufferException {
+    checkTripleKey(key, "tdesDecrypt");
+    return tdesDecrypter.doFinal(key, input, inputOffset, length, output, outputOffset);
+  }
+
+  public byte[] desEncrypt(byte[] input, byte[] key) throws NoSuchAlgorithmException,
+      NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    checkSingleKey(key);
+    checkSingleBlock(input.length);
+
+    try {
+      return desEncrypter.doFinal(key, input);
+    } catch (InvalidAlgorithmParameterException e) {
+      // ECB ciphers are never initialized with parameters
+      throw new InvalidKeyException(e);
+    }
+  }
+
+  /**
+   * Single block DES encryption without allocating any array.
+   *
+   * @param input
+   *          8 byte block, big-endian
+   * @param key
+   *          8 byte DES key, big-endian
+   * @return the encrypted block, big-endian
+   */
+  public long desEncrypt(long input, long key) throws NoSuchAlgorithmException,
+      NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    ByteArrayUtil.putLong(input, block, 0);
+    ByteArrayUtil.putLong(key, singleKey, 0);
+
+    try {
+      desEncrypter.doFinal(singleKey, block, 0, 8, block, 0);
+    } catch (InvalidAlgorithmParameterException e) {
+      throw new InvalidKeyException(e);
+    } catch (ShortBufferException e) {
+      // The block is encrypted in place, so the output always has room for it
+      throw new IllegalBlockSizeException(e.getMessage());
+    }
+
+    return ByteArrayUtil.toLong(block, 0);
+  }
+
+  private static void checkTripleKey(byte[] key, String operation) throws InvalidKeyException {
+    if (key.length != 16 && key.length != 24) {
+      throw new InvalidKeyException(
+          "@ DESCryptoUtil." + operation + "(). Parameter <key> must be 16 or 24 bytes long (bouble/triple key), but was "
+              + key.length + ".");
+    }
+  }
+
+  private static void checkSingleKey(byte[] key) throws InvalidKeyException {
+    if (key.length != 8) {
+      throw new InvalidKeyException(
+          "@ DESCryptoUtil.desEncrypt(). Parameter <key> must be 8 bytes long, but was "
+              + key.length + ".");
+    }
+  }
+
+  private static void checkSingleBlock(int length) throws IllegalBlockSizeException {
+    if (length != 8) {
+      throw new IllegalBlockSizeException(
+          "@ DESCryptoUtil.desEncrypt(). Parameter <input> must be 8 bytes long, but was "
+              + length + ".");
+    }
+  }
+
+  /**
+   * A {@link Cipher} for one transformation and mode, together with the key it is currently
+   * initialized with.
+   */
+  private static final class CachedCipher {
+    private final String transformation;
+    private final String algorithm;
+    private final int mode;
+    // null for ECB transformations
+    private final IvParameterSpec iv;
+    // The key the cipher was last initialized with. Double-length keys are stored extended to
+    // triple-length (K3 = K1), exactly as the provider sees them.
+    private final byte[] currentKey;
+    private Cipher cipher;
+    private boolean initialized;
+
+    CachedCipher(String transformation, String algorithm, int mode, int keyLength,
+        IvParameterSpec iv) {
+      this.transformation = transformation;
+      this.algorithm = algorithm;
+      this.mode = mode;
+      this.iv = iv;
+      this.currentKey = new byte[keyLength];
+    }
+
+    private Cipher cipher(byte[] key) throws NoSuchAlgorithmException, NoSuchPaddingException,
+        InvalidKeyException, InvalidAlgorithmParameterException {
+      if (cipher == null) {
+        cipher = Cipher.getInstance(transformation);
+      }
+
+      if (initialized && isCurrentKey(key)) {
+        // doFinal() leaves the cipher as it was right after init(), IV included
+        return cipher;
+      }
+
+      initialized = false;
+      for (int i = 0; i < currentKey.length; i++) {
+        currentKey[i] = key[i % key.length];
+      }
+
+      SecretKeySpec keySpec = new SecretKeySpec(currentKey, algorithm);
+      if (iv == null) {
+        cipher.init(mode, keySpec);
+      } else {
+        cipher.init(mode, keySpec, iv);
+      }
+      initialized = true;
+
+      return cipher;
+    }
+
+    byte[] doFinal(byte[] key, byte[] input) throws NoSuchAlgorithmException,
+        NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException,
+        IllegalBlockSizeException, BadPaddingException {
+      boolean completed = false;
+      try {
+        byte[] output = cipher(key).doFinal(input);
+        completed = true;
+        return output;
+      } finally {
+        if (!completed) {
+          // Don't trust the state of a cipher whose last operation failed
+          initialized = false;
+        }
+      }
+    }
+
+    int doFinal(byte[] key, byte[] input, int inputOffset, int length, byte[] output,
+        int outputOffset) throws NoSuchAlgorithmException, NoSuchPaddingException,
+        InvalidKeyException, InvalidAlgorithmParameterException, IllegalBlockSizeException,
+        BadPaddingException, ShortBufferException {
+      boolean completed = false;
+      try {
+        int written = cipher(key).doFinal(input, inputOffset, length, output, outputOffset);
+        completed = true;
+        return written;
+      } finally {
+        if (!completed) {
+          initialized = false;
+        }
+      }
+    }
+
+    private boolean isCurrentKey(byte[] key) {
+      for (int i = 0; i < currentKey.length; i++) {
+        if (currentKey[i] != key[i % key.length]) {
+          return false;
+        }
+      }
+
+      return true;
+    }
+  }
+}
@@ -6,97 +6,86 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 
 import javax.crypto.BadPaddingException;
-import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
+import javax.crypto.ShortBufferException;
 
+import dukpt.metrics.DUKPTMetrics;
+import dukpt.metrics.Stage;
+
+/**
+ * DES/TDES operations used by DUKPT. The {@link javax.crypto.Cipher} objects behind these methods
+ * are cached per thread by {@link DESCipherContext}.
+ */
 public class DESCryptoUtil {
-  // private static String TRIPLE_DES_TRANSFORMATION = "DESede/ECB/NoPadding";
-  private static String TRIPLE_DES_TRANSFORMATION = "DESede/CBC/NoPadding";
-  private static String ALGORITHM = "DESede";
-  private static byte[] iv = { 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00 };
+  // TDES runs as "DESede/CBC/NoPadding" with a zero IV, see DESCipherContext
 
   public static byte[] tdesEncrypt(byte[] input, byte[] key)
       throws IllegalBlockSizeException,
       BadPaddingException, NoSuchAlgorithmException, NoSuchProviderException,
       NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
-    if (key.length != 16 && key.length != 24) {
-      throw new InvalidKeyException(
-          "@ DESCryptoUtil.tdesEncrypt(). Parameter <key> must be 16 or 24 bytes long (bouble/triple key), but was "
-              + key.length + ".");
-    }
-
-    if (key.length == 16) {
-      key = extendDoubleKeyToTripleKey(key);
-    }
-
-    IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-
-    SecretKey keySpec = new SecretKeySpec(key, ALGORITHM);
-    Cipher encrypter = Cipher.getInstance(TRIPLE_DES_TRANSFORMATION);
-    encrypter.init(Cipher.ENCRYPT_MODE, keySpec, ivParameterSpec);
+    return DESCipherContext.current().tdesEncrypt(input, key);
+  }
 
-    return encrypter.doFinal(input);
+  /**
+   * Same as {@link #tdesEncrypt(byte[], byte[])}, writing into <code>output</code> instead of a new
+   * array.
+   * 
+   * @return the number of bytes written
+   */
+  public static int tdesEncrypt(byte[] input, int inputOffset, int length, byte[] key,
+      byte[] output, int outputOffset) throws IllegalBlockSizeException, BadPaddingException,
+      NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+      InvalidAlgorithmParameterException, ShortBufferException {
+    return DESCipherContext.current().tdesEncrypt(input, inputOffset, length, key, output,
+        outputOffset);
   }
 
   public static byte[] tdesDecrypt(byte[] input, byte[] key)
       throws IllegalBlockSizeException,
       BadPaddingException, NoSuchAlgorithmException, NoSuchProviderException,
       NoSuchPaddingException, InvalidKeyException, InvalidAlgorithmParameterException {
-    if (key.length != 16 && key.length != 24) {
-      throw new InvalidKeyException(
-          "@ DESCryptoUtil.tdesDecrypt(). Parameter <key> must be 16 or 24 bytes long (bouble/triple key), but was "
-              + key.length + ".");
-    }
-
-    if (key.length == 16) {
-      key = extendDoubleKeyToTripleKey(key);
-    }
-
-    IvParameterSpec ivParameterSpec = new IvParameterSpec(iv);
-
-    SecretKey keySpec = new SecretKeySpec(key, ALGORITHM);
-    Cipher cipher = Cipher.getInstance(TRIPLE_DES_TRANSFORMATION);
-    cipher.init(Cipher.DECRYPT_MODE, keySpec, ivParameterSpec);
+    long start = DUKPTMetrics.start();
+    byte[] output = DESCipherContext.current().tdesDecrypt(input, key);
+    DUKPTMetrics.record(Stage.TDES_DECRYPT, start);
+    return output;
+  }
 
-    return cipher.doFinal(input);
+  /**
+   * Same as {@link #tdesDecrypt(byte[], byte[])}, writing into <code>output</code> instead of a new
+   * array.
+   * 
+   * @return the number of bytes written
+   */
+  public static int tdesDecrypt(byte[] input, int inputOffset, int length, byte[] key,
+      byte[] output, int outputOffset) throws IllegalBlockSizeException, BadPaddingException,
+      NoSuchAlgorithmException, NoSuchPaddingException, InvalidKeyException,
+      InvalidAlgorithmParameterException, ShortBufferException {
+    long start = DUKPTMetrics.start();
+    int written = DESCipherContext.current().tdesDecrypt(input, inputOffset, length, key, output,
+        outputOffset);
+    DUKPTMetrics.record(Stage.TDES_DECRYPT, start);
+    return written;
   }
 
   public static byte[] desEncrypt(byte[] input, byte[] key) throws NoSuchAlgorithmException,
       NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
-    if (key.length != 8) {
-      throw new InvalidKeyException(
-          "@ DESCryptoUtil.desEncrypt(). Parameter <key> must be 8 bytes long, but was "
-              + key.length + ".");
-    }
-
-    if (input.length != 8) {
-      throw new IllegalBlockSizeException(
-          "@ DESCryptoUtil.desEncrypt(). Parameter <input> must be 8 bytes long, but was "
-              + input.length + ".");
-    }
-
-    Cipher desCipher = Cipher.getInstance("DES/ECB/NoPadding");
-    SecretKey keySpec = new SecretKeySpec(key, "DES");
-    desCipher.init(Cipher.ENCRYPT_MODE, keySpec);
-
-    return desCipher.doFinal(input);
+    return DESCipherContext.current().desEncrypt(input, key);
   }
 
-  private static byte[] extendDoubleKeyToTripleKey(byte[] doubleKey) {
-    byte[] tripleKey = new byte[24];
-
-    for (int i = 0; i < 16; i++) {
-      tripleKey[i] = doubleKey[i];
-    }
-
-    for (int i = 0, j = 16; j < 24; i++, j++) {
-      tripleKey[j] = doubleKey[i];
-    }
-
-    return tripleKey;
+  /**
+   * Single block DES encryption for callers that keep their registers in <code>long</code>s,
+   * through the JCE provider. {@link DESEngine#encrypt(long, long)} is the allocation-free
+   * equivalent used by {@link DUKPTUtil}.
+   *
+   * @param input
+   *          8 byte block, big-endian
+   * @param key
+   *          8 byte DES key, big-endian
+   * @return the encrypted block, big-endian
+   */
+  public static long desEncrypt(long input, long key) throws NoSuchAlgorithmException,
+      NoSuchPaddingException, InvalidKeyException, IllegalBlockSizeException, BadPaddingException {
+    return DESCipherContext.current().desEncrypt(input, key);
   }
 }
@@ -0,0 +1,423 @@
+package dukpt.util;
+
+import java.security.InvalidKeyException;
+
+import javax.crypto.IllegalBlockSizeException;
+
+import dukpt.metrics.DUKPTMetrics;
+import dukpt.metrics.Stage;
+
+/**
+ * Pure Java DES/TDES block engine for the many single 8 byte operations DUKPT performs.
+ *
+ * Blocks and keys are big-endian <code>long</code>s. A key schedule holds the 16 round keys of a
+ * DES key as 8 six bit chunks each ({@link #SCHEDULE_LENGTH} ints, or
+ * {@link #TRIPLE_SCHEDULE_LENGTH} for K1|K2|K3); it is expanded once and can then be shared by any
+ * number of threads, since the block operations never write to it. For keys that are used only
+ * once, as in the DUKPT key derivation loop, {@link #encrypt(long, long)} computes the round keys on
+ * the fly instead.
+ *
+ * The S-boxes and the P permutation are combined into {@link #SP} lookup tables, and IP, FP, PC1
+ * and PC2 are applied a byte at a time through precomputed tables, so none of the block operations
+ * allocate.
+ */
+public final class DESEngine {
+  public static final int SCHEDULE_LENGTH = 16 * 8;
+  public static final int TRIPLE_SCHEDULE_LENGTH = 3 * SCHEDULE_LENGTH;
+
+  // FIPS 46-3 tables, bits numbered from 1 (leftmost) as in the standard
+
+  static final byte[] IP = {
+      58, 50, 42, 34, 26, 18, 10, 2, 60, 52, 44, 36, 28, 20, 12, 4,
+      62, 54, 46, 38, 30, 22, 14, 6, 64, 56, 48, 40, 32, 24, 16, 8,
+      57, 49, 41, 33, 25, 17, 9, 1, 59, 51, 43, 35, 27, 19, 11, 3,
+      61, 53, 45, 37, 29, 21, 13, 5, 63, 55, 47, 39, 31, 23, 15, 7 };
+
+  static final byte[] P = {
+      16, 7, 20, 21, 29, 12, 28, 17, 1, 15, 23, 26, 5, 18, 31, 10,
+      2, 8, 24, 14, 32, 27, 3, 9, 19, 13, 30, 6, 22, 11, 4, 25 };
+
+  static final byte[] PC1 = {
+      57, 49, 41, 33, 25, 17, 9, 1, 58, 50, 42, 34, 26, 18,
+      10, 2, 59, 51, 43, 35, 27, 19, 11, 3, 60, 52, 44, 36,
+      63, 55, 47, 39, 31, 23, 15, 7, 62, 54, 46, 38, 30, 22,
+      14, 6, 61, 53, 45, 37, 29, 21, 13, 5, 28, 20, 12, 4 };
+
+  static final byte[] PC2 = {
+      14, 17, 11, 24, 1, 5, 3, 28, 15, 6, 21, 10,
+      23, 19, 12, 4, 26, 8, 16, 7, 27, 20, 13, 2,
+      41, 52, 31, 37, 47, 55, 30, 40, 51, 45, 33, 48,
+      44, 49, 39, 56, 34, 53, 46, 42, 50, 36, 29, 32 };
+
+  static final int[] ROTATIONS = { 1, 1, 2, 2, 2, 2, 2, 2, 1, 2, 2, 2, 2, 2, 2, 1 };
+
+  static final byte[][] S = {
+      { 14, 4, 13, 1, 2, 15, 11, 8, 3, 10, 6, 12, 5, 9, 0, 7,
+        0, 15, 7, 4, 14, 2, 13, 1, 10, 6, 12, 11, 9, 5, 3, 8,
+        4, 1, 14, 8, 13, 6, 2, 11, 15, 12, 9, 7, 3, 10, 5, 0,
+        15, 12, 8, 2, 4, 9, 1, 7, 5, 11, 3, 14, 10, 0, 6, 13 },
+      { 15, 1, 8, 14, 6, 11, 3, 4, 9, 7, 2, 13, 12, 0, 5, 10,
+        3, 13, 4, 7, 15, 2, 8, 14, 12, 0, 1, 10, 6, 9, 11, 5,
+        0, 14, 7, 11, 10, 4, 13, 1, 5, 8, 12, 6, 9, 3, 2, 15,
+        13, 8, 10, 1, 3, 15, 4, 2, 11, 6, 7, 12, 0, 5, 14, 9 },
+      { 10, 0, 9, 14, 6, 3, 15, 5, 1, 13, 12, 7, 11, 4, 2, 8,
+        13, 7, 0, 9, 3, 4, 6, 10, 2, 8, 5, 14, 12, 11, 15, 1,
+        13, 6, 4, 9, 8, 15, 3, 0, 11, 1, 2, 12, 5, 10, 14, 7,
+        1, 10, 13, 0, 6, 9, 8, 7, 4, 15, 14, 3, 11, 5, 2, 12 },
+      { 7, 13, 14, 3, 0, 6, 9, 10, 1, 2, 8, 5, 11, 12, 4, 15,
+        13, 8, 11, 5, 6, 15, 0, 3, 4, 7, 2, 12, 1, 10, 14, 9,
+        10, 6, 9, 0, 12, 11, 7, 13, 15, 1, 3, 14, 5, 2, 8, 4,
+        3, 15, 0, 6, 10, 1, 13, 8, 9, 4, 5, 11, 12, 7, 2, 14 },
+      { 2, 12, 4, 1, 7, 10, 11, 6, 8, 5, 3, 15, 13, 0, 14, 9,
+        14, 11, 2, 12, 4, 7, 13, 1, 5, 0, 15, 10, 3, 9, 8, 6,
+        4, 2, 1, 11, 10, 13, 7, 8, 15, 9, 12, 5, 6, 3, 0, 14,
+        11, 8, 12, 7, 1, 14, 2, 13, 6, 15, 0, 9, 10, 4, 5, 3 },
+      { 12, 1, 10, 15, 9, 2, 6, 8, 0, 13, 3, 4, 14, 7, 5, 11,
+        10, 15, 4, 2, 7, 12, 9, 5, 6, 1, 13, 14, 0, 11, 3, 8,
+        9, 14, 15, 5, 2, 8, 12, 3, 7, 0, 4, 10, 1, 13, 11, 6,
+        4, 3, 2, 12, 9, 5, 15, 10, 11, 14, 1, 7, 6, 0, 8, 13 },
+      { 4, 11, 2, 14, 15, 0, 8, 13, 3, 12, 9, 7, 5, 10, 6, 1,
+        13, 0, 11, 7, 4, 9, 1, 10, 14, 3, 5, 12, 2, 15, 8, 6,
+        1, 4, 11, 13, 12, 3, 7, 14, 10, 15, 6, 8, 0, 5, 9, 2,
+        6, 11, 13, 8, 1, 4, 10, 7, 9, 5, 0, 15, 14, 2, 3, 12 },
+      { 13, 2, 8, 4, 6, 15, 11, 1, 10, 9, 3, 14, 5, 0, 12, 7,
+        1, 15, 13, 8, 10, 3, 7, 4, 12, 5, 6, 11, 0, 14, 9, 2,
+        7, 11, 4, 1, 9, 12, 14, 2, 0, 6, 10, 13, 15, 3, 5, 8,
+        2, 1, 14, 7, 4, 10, 8, 13, 15, 12, 9, 0, 3, 5, 6, 11 } };
+
+  // Byte-at-a-time permutation tables: TABLE[i * 256 + b] is the permutation of byte b placed at
+  // byte position i (leftmost first) of the input
+  private static final long[] IP_TABLE = permutationTable(IP, 64);
+  private static final long[] FP_TABLE = permutationTable(inverse(IP), 64);
+  private static final long[] PC1_TABLE = permutationTable(PC1, 64);
+  private static final long[] PC2_TABLE = permutationTable(PC2, 56);
+
+  // SP[j * 64 + v] is P applied to the output of S-box j for the six bit input v, so that the whole
+  // round function is eight lookups
+  private static final int[] SP = new int[8 * 64];
+
+  static {
+    for (int j = 0; j < 8; j++) {
+      for (int v = 0; v < 64; v++) {
+        int row = ((v >>> 4) & 0x02) | (v & 0x01);
+        int column = (v >>> 1) & 0x0F;
+        long sOutput = (long) S[j][row * 16 + column] << (28 - 4 * j);
+        SP[j * 64 + v] = (int) permute(sOutput, P, 32);
+      }
+    }
+  }
+
+  private DESEngine() {
+  }
+
+  /**
+   * @param key
+   *          8 byte DES key, big-endian (parity bits are ignored)
+   * @return a new {@link #SCHEDULE_LENGTH} key schedule
+   */
+  public static int[] expandKey(long key) {
+    int[] schedule = new int[SCHEDULE_LENGTH];
+    expandKey(key, schedule, 0);
+    return schedule;
+  }
+
+  /**
+   * Expands <code>key</code> into <code>schedule</code>, starting at <code>offset</code>.
+   */
+  public static void expandKey(long key, int[] schedule, int offset) {
+    long cd = permute(key, PC1_TABLE, 8);
+    int c = (int) (cd >>> 28);
+    int d = (int) cd & 0x0FFFFFFF;
+
+    for (int round = 0; round < 16; round++) {
+      c = rotateLeft28(c, ROTATIONS[round]);
+      d = rotateLeft28(d, ROTATIONS[round]);
+      long roundKey = permute(((long) c << 28) | d, PC2_TABLE, 7);
+
+      for (int j = 0, i = offset + round * 8; j < 8; j++, i++) {
+        schedule[i] = (int) (roundKey >>> (42 - 6 * j)) & 0x3F;
+      }
+    }
+  }
+
+  /**
+   * @param key
+   *          16 (K1|K2, K3 = K1) or 24 (K1|K2|K3) bytes TDES key
+   * @return a new {@link #TRIPLE_SCHEDULE_LENGTH} key schedule
+   */
+  public static int[] expandTripleKey(byte[] key) throws InvalidKeyException {
+    if (key.length != 16 && key.length != 24) {
+      throw new InvalidKeyException(
+          "@ DESEngine.expandTripleKey(). Parameter <key> must be 16 or 24 bytes long (bouble/triple key), but was "
+              + key.length + ".");
+    }
+
+    long k1 = ByteArrayUtil.toLong(key, 0);
+    long k2 = ByteArrayUtil.toLong(key, 8);
+    long k3 = key.length == 24 ? ByteArrayUtil.toLong(key, 16) : k1;
+
+    return expandTripleKey(k1, k2, k3);
+  }
+
+  public static int[] expandTripleKey(long k1, long k2, long k3) {
+    int[] schedule = new int[TRIPLE_SCHEDULE_LENGTH];
+    expandTripleKey(k1, k2, k3, schedule, 0);
+    return schedule;
+  }
+
+  public static void expandTripleKey(long k1, long k2, long k3, int[] schedule, int offset) {
+    expandKey(k1, schedule, offset);
+    expandKey(k2, schedule, offset + SCHEDULE_LENGTH);
+    expandKey(k3, schedule, offset + 2 * SCHEDULE_LENGTH);
+  }
+
+  public static long encrypt(long block, int[] schedule, int offset) {
+    return permute(rounds(permute(block, IP_TABLE, 8), schedule, offset, false), FP_TABLE, 8);
+  }
+
+  public static long decrypt(long block, int[] schedule, int offset) {
+    return permute(rounds(permute(block, IP_TABLE, 8), schedule, offset, true), FP_TABLE, 8);
+  }
+
+  /**
+   * Single block DES encryption with a key that will not be reused: the round keys are computed as
+   * the rounds go, without any schedule.
+   */
+  public static long encrypt(long block, long key) {
+    return permute(rounds(permute(block, IP_TABLE, 8), key, false), FP_TABLE, 8);
+  }
+
+  public static long decrypt(long block, long key) {
+    return permute(rounds(permute(block, IP_TABLE, 8), key, true), FP_TABLE, 8);
+  }
+
+  /**
+   * TDES (EDE) encryption of a single block. IP and FP between the three DES operations cancel each
+   * other out, so they are applied only once.
+   */
+  public static long tdesEncrypt(long block, int[] schedule, int offset) {
+    long x = permute(block, IP_TABLE, 8);
+    x = rounds(x, schedule, offset, false);
+    x = rounds(x, schedule, offset + SCHEDULE_LENGTH, true);
+    x = rounds(x, schedule, offset + 2 * SCHEDULE_LENGTH, false);
+    return permute(x, FP_TABLE, 8);
+  }
+
+  public static long tdesDecrypt(long block, int[] schedule, int offset) {
+    long x = permute(block, IP_TABLE, 8);
+    x = rounds(x, schedule, offset + 2 * SCHEDULE_LENGTH, true);
+    x = rounds(x, schedule, offset + SCHEDULE_LENGTH, false);
+    x = rounds(x, schedule, offset, true);
+    return permute(x, FP_TABLE, 8);
+  }
+
+  /**
+   * TDES (EDE) encryption of a single block with a double-length key (K3 = K1) whose two halves are
+   * expanded anywhere in <code>schedule</code>, so that K1 is expanded only once.
+   */
+  static long tdesEncrypt(long block, int[] schedule, int k1Offset, int k2Offset) {
+    long x = permute(block, IP_TABLE, 8);
+    x = rounds(x, schedule, k1Offset, false);
+    x = rounds(x, schedule, k2Offset, true);
+    x = rounds(x, schedule, k1Offset, false);
+    return permute(x, FP_TABLE, 8);
+  }
+
+  /**
+   * Single block TDES (EDE) encryption with keys that will not be reused.
+   */
+  public static long tdesEncrypt(long block, long k1, long k2, long k3) {
+    long x = permute(block, IP_TABLE, 8);
+    x = rounds(x, k1, false);
+    x = rounds(x, k2, true);
+    x = rounds(x, k3, false);
+    return permute(x, FP_TABLE, 8);
+  }
+
+  public static long tdesDecrypt(long block, long k1, long k2, long k3) {
+    long x = permute(block, IP_TABLE, 8);
+    x = rounds(x, k3, true);
+    x = rounds(x, k2, false);
+    x = rounds(x, k1, true);
+    return permute(x, FP_TABLE, 8);
+  }
+
+  /**
+   * TDES encryption in CBC mode with a zero IV, the same transformation as
+   * {@link DESCryptoUtil#tdesEncrypt(byte[], byte[])}. <code>input</code> and <code>output</code>
+   * may overlap exactly (in place encryption).
+   */
+  public static void tdesEncrypt(byte[] input, int inputOffset, int length, byte[] output,
+      int outputOffset, int[] schedule, int offset) throws IllegalBlockSizeException {
+    checkBlockAligned(length, "tdesEncrypt");
+
+    long chain = 0;
+    for (int i = 0; i < length; i += 8) {
+      chain = tdesEncrypt(ByteArrayUtil.toLong(input, inputOffset + i) ^ chain, schedule, offset);
+      ByteArrayUtil.putLong(chain, output, outputOffset + i);
+    }
+  }
+
+  /**
+   * TDES decryption in CBC mode with a zero IV, the same transformation as
+   * {@link DESCryptoUtil#tdesDecrypt(byte[], byte[])}. <code>input</code> and <code>output</code>
+   * may overlap exactly (in place decryption).
+   */
+  public static void tdesDecrypt(byte[] input, int inputOffset, int length, byte[] output,
+      int outputOffset, int[] schedule, int offset) throws IllegalBlockSizeException {
+    checkBlockAligned(length, "tdesDecrypt");
+
+    long start = DUKPTMetrics.start();
+    long chain = 0;
+    for (int i = 0; i < length; i += 8) {
+      long block = ByteArrayUtil.toLong(input, inputOffset + i);
+      ByteArrayUtil.putLong(tdesDecrypt(block, schedule, offset) ^ chain, output, outputOffset + i);
+      chain = block;
+    }
+    DUKPTMetrics.record(Stage.TDES_DECRYPT, start);
+  }
+
+  /**
+   * One DES CBC-MAC step, <code>IP(E(FP(chain) ^ block))</code>. The chaining value is kept
+   * IP-permuted between blocks: IP is linear and cancels the FP of the previous encryption, so only
+   * the IP of the message block is left to compute.
+   */
+  static long cbcMacStep(long permutedChain, long block, int[] schedule, int offset) {
+    return rounds(permutedChain ^ permute(block, IP_TABLE, 8), schedule, offset, false);
+  }
+
+  /**
+   * Last step of an ISO 9797-1 Algorithm 3 MAC: the final CBC-MAC step with K1, then decryption
+   * with K2 and encryption with K1 again, before the one FP of the whole message.
+   */
+  static long retailMacFinal(long permutedChain, long block, int[] schedule, int k1Offset,
+      int k2Offset) {
+    long x = rounds(permutedChain ^ permute(block, IP_TABLE, 8), schedule, k1Offset, false);
+    x = rounds(x, schedule, k2Offset, true);
+    x = rounds(x, schedule, k1Offset, false);
+    return permute(x, FP_TABLE, 8);
+  }
+
+  private static void checkBlockAligned(int length, String operation)
+      throws IllegalBlockSizeException {
+    if (length % 8 != 0) {
+      throw new IllegalBlockSizeException(
+          "@ DESEngine." + operation + "(). Parameter <length> must be a multiple of 8, but was "
+              + length + ".");
+    }
+  }
+
+  /**
+   * The 16 Feistel rounds on an IP-permuted block, with the final swap of halves.
+   */
+  private static long rounds(long block, int[] schedule, int offset, boolean decrypt) {
+    int l = (int) (block >>> 32);
+    int r = (int) block;
+
+    for (int round = 0; round < 16; round++) {
+      int k = offset + (decrypt ? 15 - round : round) * 8;
+      int t = l ^ f(r, schedule[k], schedule[k + 1], schedule[k + 2], schedule[k + 3],
+          schedule[k + 4], schedule[k + 5], schedule[k + 6], schedule[k + 7]);
+      l = r;
+      r = t;
+    }
+
+    return ((long) r << 32) | (l & 0xFFFFFFFFL);
+  }
+
+  /**
+   * Same as {@link #rounds(long, int[], int, boolean)}, computing each round key from the C and D
+   * registers as it goes.
+   */
+  private static long rounds(long block, long key, boolean decrypt) {
+    int l = (int) (block >>> 32);
+    int r = (int) block;
+
+    long cd = permute(key, PC1_TABLE, 8);
+    int c = (int) (cd >>> 28);
+    int d = (int) cd & 0x0FFFFFFF;
+
+    for (int round = 0; round < 16; round++) {
+      if (!decrypt) {
+        c = rotateLeft28(c, ROTATIONS[round]);
+        d = rotateLeft28(d, ROTATIONS[round]);
+      } else if (round > 0) {
+        // C16/D16 equal C0/D0, so decryption starts from them and rotates backwards
+        c = rotateLeft28(c, 28 - ROTATIONS[16 - round]);
+        d = rotateLeft28(d, 28 - ROTATIONS[16 - round]);
+      }
+
+      long k = permute(((long) c << 28) | d, PC2_TABLE, 7);
+      int t = l ^ f(r, (int) (k >>> 42), (int) (k >>> 36), (int) (k >>> 30), (int) (k >>> 24),
+          (int) (k >>> 18), (int) (k >>> 12), (int) (k >>> 6), (int) k);
+      l = r;
+      r = t;
+    }
+
+    return ((long) r << 32) | (l & 0xFFFFFFFFL);
+  }
+
+  /**
+   * The DES round function. The expansion E is done with rotations: the j-th six bit group of E(r)
+   * is r rotated right by 27 - 4j, masked to its six lowest bits.
+   */
+  private static int f(int r, int k0, int k1, int k2, int k3, int k4, int k5, int k6, int k7) {
+    return SP[((Integer.rotateRight(r, 27) ^ k0) & 0x3F)]
+        | SP[64 + ((Integer.rotateRight(r, 23) ^ k1) & 0x3F)]
+        | SP[128 + ((Integer.rotateRight(r, 19) ^ k2) & 0x3F)]
+        | SP[192 + ((Integer.rotateRight(r, 15) ^ k3) & 0x3F)]
+        | SP[256 + ((Integer.rotateRight(r, 11) ^ k4) & 0x3F)]
+        | SP[320 + ((Integer.rotateRight(r, 7) ^ k5) & 0x3F)]
+        | SP[384 + ((Integer.rotateRight(r, 3) ^ k6) & 0x3F)]
+        | SP[448 + ((Integer.rotateLeft(r, 1) ^ k7) & 0x3F)];
+  }
+
+  private static int rotateLeft28(int value, int n) {
+    return ((value << n) | (value >>> (28 - n))) & 0x0FFFFFFF;
+  }
+
+  private static long permute(long input, long[] table, int inputBytes) {
+    long output = 0;
+    for (int i = 0, shift = 8 * (inputBytes - 1); i < inputBytes; i++, shift -= 8) {
+      output |= table[i * 256 + (int) ((input >>> shift) & 0xFF)];
+    }
+
+    return output;
+  }
+
+  /**
+   * Bit by bit permutation, only used to build the lookup tables. Output bit i (from the left) is
+   * input bit <code>table[i]</code>.
+   */
+  private static long permute(long input, byte[] table, int inputBits) {
+    long output = 0;
+    for (int i = 0; i < table.length; i++) {
+      if (((input >>> (inputBits - table[i])) & 1) != 0) {
+        output |= 1L << (table.length - 1 - i);
+      }
+    }
+
+    return output;
+  }
+
+  private static long[] permutationTable(byte[] table, int inputBits) {
+    int inputBytes = inputBits / 8;
+    long[] lookup = new long[inputBytes * 256];
+    for (int i = 0; i < inputBytes; i++) {
+      for (int b = 0; b < 256; b++) {
+        lookup[i * 256 + b] = permute((long) b << (inputBits - 8 - 8 * i), table, inputBits);
+      }
+    }
+
+    return lookup;
+  }
+
+  private static byte[] inverse(byte[] table) {
+    byte[] inverse = new byte[table.length];
+    for (int i = 0; i < table.length; i++) {
+      inverse[table[i] - 1] = (byte) (i + 1);
+    }
+
+    return inverse;
+  }
+}
@@ -0,0 +1,383 @@
+package dukpt.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import dukpt.container.BDKResolver;
+import dukpt.container.ReplayTracker;
+import dukpt.metrics.DUKPTMetrics;
+import dukpt.model.DecryptionStatus;
+
+/**
+ * Decryption of transaction batch files, the file counterpart of {@link DUKPTBatchUtil}.
+ *
+ * A batch file is a sequence of records, each one a 10 bytes KSN followed by its encrypted data
+ * (see {@link RecordFormat}). The file is memory-mapped and cut into chunks of whole records,
+ * which are decrypted in parallel straight from the mapping, without any per-record object. The
+ * results are written to the output channel in input order, each record as
+ * <pre>
+ * status (1 byte, a DecryptionStatus ordinal) | input record, with the data decrypted
+ * </pre>
+ * The data of a record that could not be decrypted is zeroed. Only a fixed number of chunks is
+ * in flight at any time, so memory stays bounded whatever the size of the file.
+ *
+ * Records whose KSN has a counter no originator uses (see {@link DUKPTUtil#checkKSN(byte[])}) are
+ * rejected as {@link DecryptionStatus#INVALID_KSN} before any lookup. Given a
+ * {@link ReplayTracker}, replayed transactions are rejected before their key is derived.
+ * Chunks are decrypted in parallel, so when the same KSN appears in two chunks, which of its
+ * records is decrypted depends on timing; within a chunk, the first one always is.
+ */
+public class DUKPTBatchFileUtil {
+  public static final int DEFAULT_CHUNK_SIZE = 4 << 20;
+
+  private static final int KSN_LENGTH = 10;
+  private static final int LENGTH_PREFIX = 2;
+  private static final int MAXIMUM_DATA_LENGTH = 0xFFFF;
+  // Largest part of the file mapped at once
+  private static final long WINDOW_SIZE = 1L << 30;
+
+  /**
+   * Layout of the records of a batch file.
+   */
+  public static final class RecordFormat {
+    private final int dataLength;
+
+    private RecordFormat(int dataLength) {
+      this.dataLength = dataLength;
+    }
+
+    /**
+     * @return records of a KSN followed by <code>dataLength</code> bytes of encrypted data
+     */
+    public static RecordFormat fixed(int dataLength) {
+      if (dataLength < 0 || dataLength > MAXIMUM_DATA_LENGTH) {
+        throw new IllegalArgumentException(
+            "@ RecordFormat.fixed(). Parameter <dataLength> must be between 0 and "
+                + MAXIMUM_DATA_LENGTH + ", but was " + dataLength + ".");
+      }
+
+      return new RecordFormat(dataLength);
+    }
+
+    /**
+     * @return records of a KSN, the length of the encrypted data (2 bytes, big-endian) and the
+     *         encrypted data
+     */
+    public static RecordFormat lengthPrefixed() {
+      return new RecordFormat(-1);
+    }
+
+    public boolean isFixed() {
+      return dataLength >= 0;
+    }
+
+    int headerLength() {
+      return isFixed() ? KSN_LENGTH : KSN_LENGTH + LENGTH_PREFIX;
+    }
+
+    int maximumRecordLength() {
+      return headerLength() + (isFixed() ? dataLength : MAXIMUM_DATA_LENGTH);
+    }
+
+    /**
+     * @return the length of the record starting at <code>position</code>, or -1 if its header is
+     *         not complete
+     */
+    int recordLength(ByteBuffer buffer, int position) {
+      if (buffer.limit() - position < headerLength()) {
+        return -1;
+      }
+
+      if (isFixed()) {
+        return KSN_LENGTH + dataLength;
+      }
+
+      return KSN_LENGTH + LENGTH_PREFIX + (buffer.getShort(position + KSN_LENGTH) & 0xFFFF);
+    }
+  }
+
+  public static long decryptFile(String input, String output, RecordFormat format,
+      BDKResolver resolver) throws IOException {
+    FileChannel in = FileChannel.open(Paths.get(input), StandardOpenOption.READ);
+    try {
+      FileChannel out = FileChannel.open(Paths.get(output), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      try {
+        return decryptFile(in, out, format, resolver, ForkJoinPool.commonPool(),
+            DEFAULT_CHUNK_SIZE);
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * @param input
+   *          batch file, read from its beginning to its end
+   * @param output
+   *          where the decrypted records are written, in input order
+   * @param resolver
+   *          gives the BDK of each device
+   * @param pool
+   *          pool the chunks are decrypted on
+   * @param chunkSize
+   *          number of bytes of records per chunk
+   * @return the number of records
+   * @throws IOException
+   *           if the file can not be read, ends in the middle of a record, or the output can not be
+   *           written
+   */
+  public static long decryptFile(FileChannel input, WritableByteChannel output,
+      RecordFormat format, BDKResolver resolver, ForkJoinPool pool, int chunkSize)
+      throws IOException {
+    return decryptFile(input, output, format, resolver, null, pool, chunkSize);
+  }
+
+  /**
+   * Same as {@link #decryptFile(FileChannel, WritableByteChannel, RecordFormat, BDKResolver,
+   * ForkJoinPool, int)}, rejecting replayed transactions.
+   *
+   * @param tracker
+   *          records the counters of every device. No check if null.
+   */
+  public static long decryptFile(FileChannel input, WritableByteChannel output,
+      RecordFormat format, BDKResolver resolver, ReplayTracker tracker, ForkJoinPool pool,
+      int chunkSize) throws IOException {
+    if (chunkSize < format.maximumRecordLength()) {
+      throw new IllegalArgumentException(
+          "@ DUKPTBatchFileUtil.decryptFile(). Parameter <chunkSize> must be at least "
+              + format.maximumRecordLength() + ", but was " + chunkSize + ".");
+    }
+
+    // Each chunk holds at most chunkSize / headerLength records, each one a status byte longer
+    int outputCapacity = chunkSize + chunkSize / format.headerLength();
+    int maximumInFlight = 2 * pool.getParallelism();
+    BlockingQueue<ByteBuffer> outputBuffers = new ArrayBlockingQueue<ByteBuffer>(maximumInFlight);
+    for (int i = 0; i < maximumInFlight; i++) {
+      outputBuffers.add(ByteBuffer.allocateDirect(outputCapacity));
+    }
+
+    ArrayDeque<Future<ByteBuffer>> inFlight = new ArrayDeque<Future<ByteBuffer>>();
+    long records = 0;
+    long size = input.size();
+    long windowStart = 0;
+
+    try {
+      while (windowStart < size) {
+        MappedByteBuffer window = input.map(FileChannel.MapMode.READ_ONLY, windowStart,
+            Math.min(WINDOW_SIZE, size - windowStart));
+
+        int position = 0;
+        while (true) {
+          int chunkEnd = position;
+          int chunkRecords = 0;
+          int recordLength;
+          while ((recordLength = format.recordLength(window, chunkEnd)) >= 0
+              && chunkEnd + recordLength <= window.limit()
+              && chunkEnd + recordLength - position <= chunkSize) {
+            chunkEnd += recordLength;
+            chunkRecords++;
+          }
+
+          if (chunkRecords == 0) {
+            break;
+          }
+
+          if (inFlight.size() == maximumInFlight) {
+            write(inFlight.poll(), output, outputBuffers);
+          }
+
+          ByteBuffer chunk = window.duplicate();
+          chunk.position(position);
+          chunk.limit(chunkEnd);
+          inFlight.add(pool.submit(new DecryptChunk(chunk.slice(), format, resolver,
+              tracker, outputBuffers)));
+
+          records += chunkRecords;
+          position = chunkEnd;
+        }
+
+        if (position == 0) {
+          throw new IOException("@ DUKPTBatchFileUtil.decryptFile(). Truncated record at offset "
+              + windowStart + ".");
+        }
+
+        // The next window starts with the first record that did not fit in this one
+        windowStart += position;
+      }
+
+      while (!inFlight.isEmpty()) {
+        write(inFlight.poll(), output, outputBuffers);
+      }
+    } finally {
+      for (Future<ByteBuffer> future : inFlight) {
+        future.cancel(false);
+      }
+    }
+
+    return records;
+  }
+
+  private static void write(Future<ByteBuffer> result, WritableByteChannel output,
+      BlockingQueue<ByteBuffer> outputBuffers) throws IOException {
+    ByteBuffer buffer;
+    try {
+      buffer = result.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("@ DUKPTBatchFileUtil.decryptFile(). Interrupted.", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+
+    try {
+      while (buffer.hasRemaining()) {
+        output.write(buffer);
+      }
+    } finally {
+      buffer.clear();
+      outputBuffers.add(buffer);
+    }
+  }
+
+  /**
+   * Buffers of a worker thread, reused for all its records.
+   */
+  private static final class Scratch {
+    final byte[] ksn = new byte[KSN_LENGTH];
+    final byte[] key = new byte[16];
+    final int[] schedule = new int[DESEngine.TRIPLE_SCHEDULE_LENGTH];
+    final byte[] encryptedData = new byte[MAXIMUM_DATA_LENGTH];
+    final byte[] decryptedData = new byte[MAXIMUM_DATA_LENGTH];
+  }
+
+  private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
+
+  private static final class DecryptChunk implements Callable<ByteBuffer> {
+    private final ByteBuffer records;
+    private final RecordFormat format;
+    private final BDKResolver resolver;
+    private final ReplayTracker tracker;
+    private final BlockingQueue<ByteBuffer> outputBuffers;
+
+    DecryptChunk(ByteBuffer records, RecordFormat format, BDKResolver resolver,
+        ReplayTracker tracker, BlockingQueue<ByteBuffer> outputBuffers) {
+      this.records = records;
+      this.format = format;
+      this.resolver = resolver;
+      this.tracker = tracker;
+      this.outputBuffers = outputBuffers;
+    }
+
+    @Override
+    public ByteBuffer call() throws InterruptedException {
+      // Never blocks: there are as many buffers as chunks in flight
+      ByteBuffer output = outputBuffers.take();
+      Scratch scratch = SCRATCH.get();
+      int headerLength = format.headerLength();
+
+      try {
+        int position = 0;
+        while (position < records.limit()) {
+          int recordLength = format.recordLength(records, position);
+          int dataLength = recordLength - headerLength;
+
+          records.position(position);
+          records.get(scratch.ksn);
+          records.position(position + headerLength);
+          records.get(scratch.encryptedData, 0, dataLength);
+
+          long start = DUKPTMetrics.start();
+          DecryptionStatus status = decrypt(scratch, dataLength);
+          DUKPTMetrics.recordDecryption(start, status);
+
+          output.put((byte) status.ordinal());
+          records.position(position);
+          records.limit(position + headerLength);
+          output.put(records);
+          records.limit(records.capacity());
+          if (status == DecryptionStatus.SUCCESS) {
+            output.put(scratch.decryptedData, 0, dataLength);
+          } else {
+            for (int i = 0; i < dataLength; i++) {
+              output.put((byte) 0);
+            }
+          }
+
+          position += recordLength;
+        }
+      } finally {
+        Arrays.fill(scratch.key, (byte) 0);
+        Arrays.fill(scratch.schedule, 0);
+      }
+
+      output.flip();
+      return output;
+    }
+
+    private DecryptionStatus decrypt(Scratch scratch, int dataLength) {
+      DecryptionStatus ksnStatus = DUKPTUtil.checkKSN(scratch.ksn);
+      if (ksnStatus != DecryptionStatus.SUCCESS) {
+        return ksnStatus;
+      }
+
+      if (dataLength % 8 != 0) {
+        return DecryptionStatus.INVALID_DATA;
+      }
+
+      String bdkId = resolver.getBDKId(scratch.ksn);
+      byte[] bdk = bdkId == null ? null : resolver.getBDK(bdkId);
+      if (bdk == null) {
+        return DecryptionStatus.UNKNOWN_BDK;
+      }
+
+      if (tracker != null) {
+        DecryptionStatus status = tracker.check(scratch.ksn).getDecryptionStatus();
+        if (status != DecryptionStatus.SUCCESS) {
+          return status;
+        }
+      }
+
+      try {
+        DUKPTUtil.deriveKey(scratch.ksn, bdkId, bdk, scratch.key, 0);
+        DUKPTUtil.calculatePinEncryptionKeyWithNoVariant(scratch.key, 0, scratch.key, 0);
+
+        long k1 = ByteArrayUtil.toLong(scratch.key, 0);
+        long k2 = ByteArrayUtil.toLong(scratch.key, 8);
+        DESEngine.expandTripleKey(k1, k2, k1, scratch.schedule, 0);
+        DESEngine.tdesDecrypt(scratch.encryptedData, 0, dataLength, scratch.decryptedData, 0,
+            scratch.schedule, 0);
+        return DecryptionStatus.SUCCESS;
+      } catch (InvalidKeyException e) {
+        return DecryptionStatus.INVALID_BDK;
+      } catch (GeneralSecurityException e) {
+        return DecryptionStatus.CRYPTO_ERROR;
+      }
+    }
+  }
+}
@@ -0,0 +1,231 @@
+package dukpt.util;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import dukpt.container.BDKResolver;
+import dukpt.container.IPEKCache;
+import dukpt.container.ReplayTracker;
+import dukpt.metrics.DUKPTMetrics;
+import dukpt.model.DecryptionResult;
+import dukpt.model.DecryptionStatus;
+import dukpt.model.PaymentData;
+
+/**
+ * Parallel decryption of many {@link PaymentData} records, the batch counterpart of
+ * {@link DUKPTUtil#decryptTrack1(byte[], byte[], byte[])}.
+ *
+ * Records are grouped by device (KSN with a zeroed transaction counter) and the groups are split
+ * across a fork/join pool, so that all the transactions of a device are handled by the same task,
+ * one after the other, and its keys stay hot in {@link IPEKCache}. Results come back in input
+ * order, and failures are reported through {@link DecryptionResult#getStatus()} instead of
+ * exceptions or nulls.
+ *
+ * Given a {@link ReplayTracker}, each transaction counter is checked before its key is derived,
+ * and the records of a device are checked in input order, so that of two records with the same KSN
+ * the first one is decrypted and the second one is {@link DecryptionStatus#REPLAYED}.
+ */
+public class DUKPTBatchUtil {
+  // Number of records below which a task decrypts its records instead of splitting them further
+  private static final int SPLIT_THRESHOLD = 256;
+
+  // KSN_MASK over the 8 leftmost bytes of the KSN
+  private static final long DEVICE_KSN_MASK = 0xFFFFFFFFFFFFFFE0L;
+
+  public static DecryptionResult[] decryptTrack1(PaymentData[] records, BDKResolver resolver) {
+    return decryptTrack1(records, resolver, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * @param records
+   *          encrypted payment data, as produced by {@link DESCryptoUtil#tdesEncrypt(byte[], byte[])}
+   *          with {@link DUKPTUtil#calculatePinEncryptionKeyWithNoVariant(byte[])} of each KSN
+   * @param resolver
+   *          gives the BDK of each device
+   * @param pool
+   *          pool the decryption runs on
+   * @return one result per record, in the same order as <code>records</code>
+   */
+  public static DecryptionResult[] decryptTrack1(PaymentData[] records, BDKResolver resolver,
+      ForkJoinPool pool) {
+    return decryptTrack1(records, resolver, pool, null);
+  }
+
+  /**
+   * Same as {@link #decryptTrack1(PaymentData[], BDKResolver, ForkJoinPool)}, rejecting replayed
+   * transactions.
+   * 
+   * @param tracker
+   *          records the counters of every device, shared with the other batches and services
+   *          decrypting for the same devices. No check if null.
+   */
+  public static DecryptionResult[] decryptTrack1(PaymentData[] records, BDKResolver resolver,
+      ForkJoinPool pool, ReplayTracker tracker) {
+    DecryptionResult[] results = new DecryptionResult[records.length];
+    long[] order = groupByDevice(records);
+
+    pool.invoke(new DecryptTask(records, resolver, tracker, results, order, 0, order.length));
+    return results;
+  }
+
+  public static List<DecryptionResult> decryptTrack1(Collection<PaymentData> records,
+      BDKResolver resolver) {
+    return Arrays.asList(decryptTrack1(records.toArray(new PaymentData[records.size()]),
+        resolver));
+  }
+
+  public static List<DecryptionResult> decryptTrack1(Collection<PaymentData> records,
+      BDKResolver resolver, ForkJoinPool pool) {
+    return Arrays.asList(decryptTrack1(records.toArray(new PaymentData[records.size()]),
+        resolver, pool));
+  }
+
+  /**
+   * @return the record indexes (low 32 bits of each element), sorted by a hash of their device
+   *         (high 32 bits). Two devices sharing a hash may end up interleaved, which only costs
+   *         some cache locality.
+   */
+  private static long[] groupByDevice(PaymentData[] records) {
+    long[] order = new long[records.length];
+    for (int i = 0; i < records.length; i++) {
+      order[i] = ((long) deviceHash(records[i]) << 32) | i;
+    }
+
+    Arrays.parallelSort(order);
+    return order;
+  }
+
+  private static int deviceHash(PaymentData record) {
+    byte[] ksn = record.getKSN();
+    if (ksn == null || ksn.length != 10) {
+      // Rejected without any key work, so any group will do
+      return 0;
+    }
+
+    long device = ByteArrayUtil.toLong(ksn, 0) & DEVICE_KSN_MASK;
+    int h = (int) (device ^ (device >>> 32));
+    return h ^ (h >>> 16);
+  }
+
+  private static DecryptionResult decrypt(PaymentData record, BDKResolver resolver,
+      ReplayTracker tracker, byte[] key, int[] schedule) {
+    byte[] ksn = record.getKSN();
+    if (ksn == null || ksn.length != 10) {
+      return new DecryptionResult(record, DecryptionStatus.INVALID_KSN, null);
+    }
+
+    byte[] encryptedData = record.getEncryptedData();
+    if (encryptedData == null || encryptedData.length % 8 != 0) {
+      return new DecryptionResult(record, DecryptionStatus.INVALID_DATA, null);
+    }
+
+    String bdkId = resolver.getBDKId(ksn);
+    byte[] bdk = bdkId == null ? null : resolver.getBDK(bdkId);
+    if (bdk == null) {
+      return new DecryptionResult(record, DecryptionStatus.UNKNOWN_BDK, null);
+    }
+
+    if (tracker != null) {
+      DecryptionStatus status = tracker.check(ksn).getDecryptionStatus();
+      if (status != DecryptionStatus.SUCCESS) {
+        return new DecryptionResult(record, status, null);
+      }
+    }
+
+    try {
+      DUKPTUtil.deriveKey(ksn, bdkId, bdk, key, 0);
+      DUKPTUtil.calculatePinEncryptionKeyWithNoVariant(key, 0, key, 0);
+
+      long k1 = ByteArrayUtil.toLong(key, 0);
+      long k2 = ByteArrayUtil.toLong(key, 8);
+      DESEngine.expandTripleKey(k1, k2, k1, schedule, 0);
+
+      byte[] decryptedData = new byte[encryptedData.length];
+      DESEngine.tdesDecrypt(encryptedData, 0, encryptedData.length, decryptedData, 0, schedule,
+          0);
+      return new DecryptionResult(record, DecryptionStatus.SUCCESS, decryptedData);
+    } catch (InvalidKeyException e) {
+      return new DecryptionResult(record, DecryptionStatus.INVALID_BDK, null);
+    } catch (GeneralSecurityException e) {
+      return new DecryptionResult(record, DecryptionStatus.CRYPTO_ERROR, null);
+    } finally {
+      Arrays.fill(key, (byte) 0);
+    }
+  }
+
+  private static final class DecryptTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final PaymentData[] records;
+    private final BDKResolver resolver;
+    private final ReplayTracker tracker;
+    private final DecryptionResult[] results;
+    private final long[] order;
+    private final int from;
+    private final int to;
+
+    DecryptTask(PaymentData[] records, BDKResolver resolver, ReplayTracker tracker,
+        DecryptionResult[] results, long[] order, int from, int to) {
+      this.records = records;
+      this.resolver = resolver;
+      this.tracker = tracker;
+      this.results = results;
+      this.order = order;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      int split = to - from > SPLIT_THRESHOLD ? deviceBoundary() : -1;
+      if (split < 0) {
+        decryptAll();
+        return;
+      }
+
+      invokeAll(new DecryptTask(records, resolver, tracker, results, order, from, split),
+          new DecryptTask(records, resolver, tracker, results, order, split, to));
+    }
+
+    /**
+     * @return the index closest to the middle of the range where a new device starts, or -1 if the
+     *         whole range belongs to a single device
+     */
+    private int deviceBoundary() {
+      int middle = (from + to) >>> 1;
+      for (int after = middle, before = middle; after < to || before > from; after++, before--) {
+        if (after < to && device(after) != device(after - 1)) {
+          return after;
+        }
+        if (before > from + 1 && device(before - 1) != device(before - 2)) {
+          return before - 1;
+        }
+      }
+
+      return -1;
+    }
+
+    private int device(int position) {
+      return (int) (order[position] >>> 32);
+    }
+
+    private void decryptAll() {
+      byte[] key = new byte[16];
+      int[] schedule = new int[DESEngine.TRIPLE_SCHEDULE_LENGTH];
+
+      for (int i = from; i < to; i++) {
+        int index = (int) order[i];
+        long start = DUKPTMetrics.start();
+        results[index] = decrypt(records[index], resolver, tracker, key, schedule);
+        DUKPTMetrics.recordDecryption(start, results[index].getStatus());
+      }
+
+      Arrays.fill(schedule, 0);
+    }
+  }
+}
@@ -0,0 +1,156 @@
+package dukpt.util;
+
+import java.util.Arrays;
+
+/**
+ * Originator (terminal / PIN pad) side of ANSI X9.24-1 DUKPT.
+ *
+ * Where {@link DUKPTUtil#deriveKey(byte[], byte[])} walks from the IPEK down to the key of a
+ * transaction, the originator keeps the 21 future key registers of the standard: the register of
+ * bit b holds the key of the next transaction counter whose rightmost set bit is b. Each
+ * transaction takes the key of its register, fills the registers of the lower bits from it and
+ * erases it, so that no key of an earlier transaction can be recomputed from what the originator
+ * holds. Every transaction costs one key generation on average (two DES operations), and counters
+ * with more than 10 bits set are skipped, as they are by the receiving side.
+ *
+ * Instances are not thread-safe: a terminal runs one transaction at a time.
+ */
+public final class DUKPTOriginator {
+  // Counters with more set bits are never used
+  public static final int MAXIMUM_COUNTER_BITS = 10;
+
+  private static final int COUNTER_BITS = 21;
+  private static final long TRANSACTION_COUNTER_BITS = 0x1FFFFFL;
+  private static final long KEY_REGISTER_MASK = 0xC0C0C0C000000000L;
+
+  // Bytes 0-1 of the KSN, which are not part of the KSN register
+  private final byte ksn0;
+  private final byte ksn1;
+  // Bytes 2-9 of the initial KSN, transaction counter bits zeroed
+  private final long initialKSNRegister;
+  // Left and right half of the key of each future key register, indexed by counter bit
+  private final long[] futureKeys = new long[2 * COUNTER_BITS];
+  private int counter;
+
+  /**
+   * Loads an initial key, as done during key injection.
+   *
+   * @param ipek
+   *          16 bytes IPEK, erased from the originator once the future keys are generated
+   * @param initialKSN
+   *          ten byte array, the transaction counter bits are ignored
+   */
+  public DUKPTOriginator(byte[] ipek, byte[] initialKSN) {
+    if (ipek == null || ipek.length != 16) {
+      throw new IllegalArgumentException(
+          "@ DUKPTOriginator(). Parameter <ipek> must be 16 bytes long (double key), but was "
+              + (ipek == null ? "null" : ipek.length) + ".");
+    }
+    if (initialKSN == null || initialKSN.length != 10) {
+      throw new IllegalArgumentException(
+          "@ DUKPTOriginator(). Parameter <initialKSN> must be 10 bytes long, but was "
+              + (initialKSN == null ? "null" : initialKSN.length) + ".");
+    }
+
+    ksn0 = initialKSN[0];
+    ksn1 = initialKSN[1];
+    initialKSNRegister = ByteArrayUtil.toLong(initialKSN, 2) & ~TRANSACTION_COUNTER_BITS;
+
+    // The IPEK is the key of counter 0, the parent of the key of every single bit counter
+    generateFutureKeys(0, COUNTER_BITS, ByteArrayUtil.toLong(ipek, 0),
+        ByteArrayUtil.toLong(ipek, 8));
+    counter = 1;
+  }
+
+  /**
+   * @return the transaction counter of the next key, at least 2^21 once exhausted
+   */
+  public int getCounter() {
+    return counter;
+  }
+
+  /**
+   * @return true when all the keys have been used, and a new initial key must be loaded
+   */
+  public boolean isExhausted() {
+    return counter > TRANSACTION_COUNTER_BITS;
+  }
+
+  /**
+   * Moves to the next transaction: writes its KSN and its key (the one {@link DUKPTUtil#deriveKey}
+   * gives the receiving side for that KSN), and erases that key from the originator.
+   *
+   * @param ksn
+   *          destination of the 10 bytes KSN of the transaction
+   * @param key
+   *          destination of the 16 bytes key of the transaction
+   * @return false if the originator is exhausted, in which case nothing is written
+   */
+  public boolean nextKey(byte[] ksn, int ksnOffset, byte[] key, int keyOffset) {
+    if (isExhausted()) {
+      return false;
+    }
+
+    int bit = Integer.numberOfTrailingZeros(counter);
+    long keyL = futureKeys[2 * bit];
+    long keyR = futureKeys[2 * bit + 1];
+
+    ksn[ksnOffset] = ksn0;
+    ksn[ksnOffset + 1] = ksn1;
+    ByteArrayUtil.putLong(initialKSNRegister | counter, ksn, ksnOffset + 2);
+    ByteArrayUtil.putLong(keyL, key, keyOffset);
+    ByteArrayUtil.putLong(keyR, key, keyOffset + 8);
+
+    boolean moreBitsAllowed = Integer.bitCount(counter) < MAXIMUM_COUNTER_BITS;
+    if (moreBitsAllowed && bit > 0) {
+      // The keys of counter | 1, counter | 2, ... up to the bit below the current one
+      generateFutureKeys(counter, bit, keyL, keyR);
+    }
+
+    futureKeys[2 * bit] = 0;
+    futureKeys[2 * bit + 1] = 0;
+
+    // Either the child counter | 1 just generated, or the next counter with no more set bits
+    counter += moreBitsAllowed && bit > 0 ? 1 : Integer.lowestOneBit(counter);
+    return true;
+  }
+
+  /**
+   * Same as {@link #nextKey(byte[], int, byte[], int)}, allocating the key.
+   *
+   * @param ksn
+   *          destination of the 10 bytes KSN of the transaction
+   * @return the key of the transaction, or null if the originator is exhausted
+   */
+  public byte[] nextKey(byte[] ksn) {
+    byte[] key = new byte[16];
+    return nextKey(ksn, 0, key, 0) ? key : null;
+  }
+
+  /**
+   * Erases all the future keys, making the originator exhausted.
+   */
+  public void zeroize() {
+    Arrays.fill(futureKeys, 0);
+    counter = (int) TRANSACTION_COUNTER_BITS + 1;
+  }
+
+  /**
+   * Fills the future key registers of the bits below <code>topBit</code> with the children of the
+   * key of <code>parentCounter</code>.
+   */
+  private void generateFutureKeys(int parentCounter, int topBit, long parentL, long parentR) {
+    for (int bit = topBit - 1; bit >= 0; bit--) {
+      long ksnRegister = initialKSNRegister | parentCounter | (1L << bit);
+
+      // Non-reversible key generation, as in the derivation of the receiving side
+      long cryptoRegister2 = DESEngine.encrypt(ksnRegister ^ parentR, parentL) ^ parentR;
+      long variantL = parentL ^ KEY_REGISTER_MASK;
+      long variantR = parentR ^ KEY_REGISTER_MASK;
+      long cryptoRegister1 = DESEngine.encrypt(ksnRegister ^ variantR, variantL) ^ variantR;
+
+      futureKeys[2 * bit] = cryptoRegister1;
+      futureKeys[2 * bit + 1] = cryptoRegister2;
+    }
+  }
+}
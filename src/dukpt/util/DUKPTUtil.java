@@ -1,15 +1,25 @@
 package dukpt.util;
 
-import java.math.BigInteger;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 
+import dukpt.container.BDKResolver;
+import dukpt.container.BaseDerivationKey;
+import dukpt.container.DeviceKeyTable;
+import dukpt.container.IPEKCache;
+import dukpt.metrics.DUKPTMetrics;
+import dukpt.metrics.Stage;
+import dukpt.model.DecryptionStatus;
+import dukpt.model.KSN;
+import dukpt.model.WorkingKey;
+
 public class DUKPTUtil {
   // When AND'ed to a 10 byte KSN, zeroes all the 21 bits of the transaction
   // counter
@@ -22,10 +32,31 @@ public class DUKPTUtil {
   // private static final String PIN_ENCRYPTION_VARIANT_CONSTANT = "00 00 00 00 00 00 00 FF"; // OLD
   private static final String PIN_ENCRYPTION_VARIANT_CONSTANT = "00 00 00 00 00 FF 00 00 ";
 
-  private static final String SHIFTR = "00 00 00 00 00 10 00 00";
-
   private static final String KSN_MODIFIER_MASK = "00 00 FF FF FF FF FF FF FF FF";
 
+  // Binary forms of the masks above, parsed once. They must never be modified.
+  private static final byte[] KSN_MASK_BYTES = StringUtil.hexStringToBytes(KSN_MASK);
+  private static final byte[] TRANSACTION_COUNTER_MASK_BYTES = StringUtil
+      .hexStringToBytes(TRANSACTION_COUNTER_MASK);
+
+  // BDK_MASK as applied to each 8 byte half of a double-length key register
+  private static final long KEY_REGISTER_MASK = 0xC0C0C0C000000000L;
+  // KSN_MASK over the 8 leftmost bytes of the KSN, the ones encrypted to produce the IPEK
+  private static final long IPEK_KSN_MASK = 0xFFFFFFFFFFFFFFE0L;
+  // PIN_ENCRYPTION_VARIANT_CONSTANT, applied to each half of the derived key
+  private static final long PIN_ENCRYPTION_VARIANT = 0x0000000000FF0000L;
+  // The OLD PIN_ENCRYPTION_VARIANT_CONSTANT: the ANSI X9.24-1 variant of PIN blocks
+  private static final long PIN_VARIANT = 0x00000000000000FFL;
+  // ANSI X9.24-1 MAC variants, request (generation) and response (verification) keys
+  private static final long MAC_REQUEST_VARIANT = 0x000000000000FF00L;
+  private static final long MAC_RESPONSE_VARIANT = 0x00000000FF000000L;
+  // ANSI X9.24-1 data response variant; the request one is PIN_ENCRYPTION_VARIANT
+  private static final long DATA_RESPONSE_VARIANT = 0x000000FF00000000L;
+  // Initial value of the shift register: the leftmost bit of the 21 bit transaction counter
+  private static final int SHIFT_REGISTER_START = 0x100000;
+  // TRANSACTION_COUNTER_MASK over the 8 rightmost bytes of the KSN
+  private static final long TRANSACTION_COUNTER_BITS = 0x1FFFFFL;
+
   /**
    * Generates an IPEK
    * 
@@ -59,40 +90,84 @@ public class DUKPTUtil {
     // number is less than 10 bytes, pad to the left with hex "FF" bytes.
 
     // 2) Set the 21 least-significant bits of this 10-byte register to zero.
-    byte[] KSN_mask = StringUtil.hexStringToBytes(KSN_MASK);
-    byte[] masked_KSN = ByteArrayUtil.and(KSN, KSN_mask);
-
     // 3) Take the 8 most-significant bytes of this 10-byte register, and encrypt/decrypt/encrypt
     // these 8 bytes using the double-length
     // derivation key, per the TECB mode of Reference 2.
-    byte[] eigth_byte_masked_KSN = new byte[8];
-    for (int i = 0; i < 8; i++) {
-      eigth_byte_masked_KSN[i] = masked_KSN[i];
-    }
+    long maskedKSN = ByteArrayUtil.toLong(KSN, 0) & IPEK_KSN_MASK;
+
+    byte[] IPEK = new byte[16];
+    generateIPEK(maskedKSN, BDK, IPEK, 0);
+    return IPEK;
+  }
 
-    byte[] IPEK_left = DESCryptoUtil.tdesEncrypt(eigth_byte_masked_KSN, BDK);
+  /**
+   * Runs steps 3 to 6 of {@link #generateIPEK(byte[], byte[])} on the 8 leftmost bytes of the KSN,
+   * already masked.
+   */
+  private static void generateIPEK(long maskedKSN, byte[] BDK, byte[] IPEK, int IPEKOffset)
+      throws InvalidKeyException {
+    if (BDK.length != 16 && BDK.length != 24) {
+      throw new InvalidKeyException(
+          "@ DUKPTUtil.generateIPEK(). Parameter <BDK> must be 16 or 24 bytes long (bouble/triple key), but was "
+              + BDK.length + ".");
+    }
+    long start = DUKPTMetrics.start();
+    long k1 = ByteArrayUtil.toLong(BDK, 0);
+    long k2 = ByteArrayUtil.toLong(BDK, 8);
+    long k3 = BDK.length == 24 ? ByteArrayUtil.toLong(BDK, 16) : k1;
 
     // 4) Use the cipher text produced by Step 3 as the left half of the
     // Initial Key.
-    byte[] IPEK = new byte[16];
-    for (int i = 0; i < 8; i++) {
-      IPEK[i] = IPEK_left[i];
-    }
+    ByteArrayUtil.putLong(DESEngine.tdesEncrypt(maskedKSN, k1, k2, k3), IPEK, IPEKOffset);
 
     // 5) Take the 8 most-significant bytes from the 10-byte register of step 2 and
     // encrypt/decrypt/encrypt these 8 bytes using as the key the
     // double-length derivation key XORed with hexadecimal C0C0 C0C0 0000 0000 C0C0 C0C0 0000 0000,
     // per the TECB mode of Reference 2.
-    byte[] derivation_mask = StringUtil.hexStringToBytes(BDK_MASK);
-    byte[] masked_derivation_key = ByteArrayUtil.xor(BDK, derivation_mask);
-    byte[] IPEK_right = DESCryptoUtil.tdesEncrypt(eigth_byte_masked_KSN, masked_derivation_key);
-
     // 6) Use the cipher text produced by Step 5 as the right half of the Initial Key.
-    for (int i = 0; i < 8; i++) {
-      IPEK[i + 8] = IPEK_right[i];
-    }
+    ByteArrayUtil.putLong(DESEngine.tdesEncrypt(maskedKSN, k1 ^ KEY_REGISTER_MASK,
+        k2 ^ KEY_REGISTER_MASK, k3 ^ KEY_REGISTER_MASK), IPEK, IPEKOffset + 8);
+    DUKPTMetrics.record(Stage.GENERATE_IPEK, start);
+  }
 
-    return IPEK;
+  /**
+   * Same as {@link #generateIPEK(byte[], byte[])}, for a BDK of {@link dukpt.container.BDKContainer}: the key is
+   * already parsed, and its TDES key schedules are used when it has them.
+   * 
+   * @param ipek
+   *          destination of the 16 bytes IPEK
+   * @param ipekOffset
+   *          position of the IPEK inside <code>ipek</code>
+   */
+  public static void generateIPEK(byte[] KSN, BaseDerivationKey BDK, byte[] ipek, int ipekOffset) {
+    generateIPEK(ByteArrayUtil.toLong(KSN, 0) & IPEK_KSN_MASK, BDK, ipek, ipekOffset);
+  }
+
+  /**
+   * Same as {@link #generateIPEK(byte[], BaseDerivationKey, byte[], int)}, for a packed KSN.
+   */
+  public static void generateIPEK(KSN ksn, BaseDerivationKey BDK, byte[] ipek, int ipekOffset) {
+    generateIPEK(ksn.getMaskedKSN(), BDK, ipek, ipekOffset);
+  }
+
+  private static void generateIPEK(long maskedKSN, BaseDerivationKey BDK, byte[] ipek,
+      int ipekOffset) {
+    long start = DUKPTMetrics.start();
+    int[] schedule = BDK.getSchedule();
+    int[] maskedSchedule = BDK.getMaskedSchedule();
+    if (schedule != null && maskedSchedule != null) {
+      ByteArrayUtil.putLong(DESEngine.tdesEncrypt(maskedKSN, schedule, 0), ipek, ipekOffset);
+      ByteArrayUtil.putLong(DESEngine.tdesEncrypt(maskedKSN, maskedSchedule, 0), ipek,
+          ipekOffset + 8);
+    } else {
+      long k1 = BDK.getK1();
+      long k2 = BDK.getK2();
+      long k3 = BDK.getK3();
+      ByteArrayUtil.putLong(DESEngine.tdesEncrypt(maskedKSN, k1, k2, k3), ipek, ipekOffset);
+      ByteArrayUtil.putLong(DESEngine.tdesEncrypt(maskedKSN, k1 ^ KEY_REGISTER_MASK,
+          k2 ^ KEY_REGISTER_MASK, k3 ^ KEY_REGISTER_MASK), ipek, ipekOffset + 8);
+    }
+    DUKPTMetrics.record(Stage.GENERATE_IPEK, start);
   }
 
   /**
@@ -102,7 +177,17 @@ public class DUKPTUtil {
    * @return the ksn with it's last 21 bits set to 0. (ex. FF FF 98 76 54 32 10 E0 00 00)
    */
   public static byte[] ksnWithZeroedTransactionCounter(byte[] ksn) {
-    return ByteArrayUtil.and(ksn, StringUtil.hexStringToBytes(KSN_MASK));
+    return ByteArrayUtil.and(ksn, KSN_MASK_BYTES);
+  }
+
+  /**
+   * Same as {@link #ksnWithZeroedTransactionCounter(byte[])}, into <code>destination</code>, which
+   * may be <code>ksn</code>.
+   */
+  public static void ksnWithZeroedTransactionCounter(byte[] ksn, int ksnOffset,
+      byte[] destination, int destinationOffset) {
+    ByteArrayUtil.and(ksn, ksnOffset, KSN_MASK_BYTES, 0, destination, destinationOffset,
+        KSN_MASK_BYTES.length);
   }
 
   /**
@@ -113,10 +198,33 @@ public class DUKPTUtil {
    *         as a 8 byte array (ex. 00 00 00 00 00 00 00 00 12 34)
    */
   public static byte[] extractTransactionCounterFromKSN(byte[] ksn) {
-    return ByteArrayUtil.subArray(
-        ByteArrayUtil.and(ksn,
-            StringUtil.hexStringToBytes(TRANSACTION_COUNTER_MASK)),
-        2, 9);
+    byte[] counter = new byte[8];
+    extractTransactionCounterFromKSN(ksn, 0, counter, 0);
+    return counter;
+  }
+
+  /**
+   * Same as {@link #extractTransactionCounterFromKSN(byte[])}, into the 8 bytes of
+   * <code>destination</code> at <code>destinationOffset</code>.
+   */
+  public static void extractTransactionCounterFromKSN(byte[] ksn, int ksnOffset,
+      byte[] destination, int destinationOffset) {
+    ByteArrayUtil.and(ksn, ksnOffset + 2, TRANSACTION_COUNTER_MASK_BYTES, 2, destination,
+        destinationOffset, 8);
+  }
+
+  /**
+   * @return the KSN with its transaction counter set to 0
+   */
+  public static KSN ksnWithZeroedTransactionCounter(KSN ksn) {
+    return ksn.withZeroedCounter();
+  }
+
+  /**
+   * @return the 21 bits transaction counter of the KSN
+   */
+  public static int extractTransactionCounterFromKSN(KSN ksn) {
+    return ksn.getCounter();
   }
 
   /**
@@ -142,78 +250,460 @@ public class DUKPTUtil {
       BadPaddingException, NoSuchAlgorithmException,
       NoSuchProviderException, NoSuchPaddingException,
       InvalidAlgorithmParameterException {
+    byte[] key = new byte[16];
+    deriveKey(ksn, bdk, key, 0);
+    return key;
+  }
+
+  /**
+   * Same as {@link #deriveKey(byte[], byte[])}, but writes the 16 byte session key into
+   * <code>key</code>, starting at <code>keyOffset</code>, instead of allocating a new array.
+   * 
+   * @param ksn
+   *          ten byte array, which 2 leftmost bytes value is 0xFF (ex. FF FF 98 76 54 32 10 E0 12
+   *          34)
+   * @param bdk
+   *          16 bytes array (double-length key)
+   * @param key
+   *          destination of the derived key
+   * @param keyOffset
+   *          position of the derived key inside <code>key</code>
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchProviderException
+   * @throws NoSuchPaddingException
+   * @throws InvalidAlgorithmParameterException
+   */
+  public static void deriveKey(byte[] ksn, byte[] bdk, byte[] key, int keyOffset)
+      throws InvalidKeyException, IllegalBlockSizeException,
+      BadPaddingException, NoSuchAlgorithmException,
+      NoSuchProviderException, NoSuchPaddingException,
+      InvalidAlgorithmParameterException {
+    deriveKeyFromAncestor(ByteArrayUtil.toLong(ksn, 2), 0, DUKPTUtil.generateIPEK(ksn, bdk), 0, key,
+        keyOffset, null, DUKPTMetrics.IPEK_DES_OPERATIONS);
+  }
+
+  /**
+   * Same as {@link #deriveKey(byte[], byte[], byte[], int)}, but the keys of devices seen before are
+   * taken from {@link IPEKCache#getInstance()}: the IPEK is not generated again, and the derivation
+   * resumes from the deepest intermediate key already computed for an earlier transaction counter
+   * of the device, usually leaving only one or two steps to go.
+   * 
+   * @param ksn
+   *          ten byte array, which 2 leftmost bytes value is 0xFF (ex. FF FF 98 76 54 32 10 E0 12
+   *          34)
+   * @param bdkId
+   *          identifier of <code>bdk</code>, such as its key in {@link dukpt.container.BDKContainer}
+   * @param bdk
+   *          16 bytes array (double-length key)
+   * @param key
+   *          destination of the derived key
+   * @param keyOffset
+   *          position of the derived key inside <code>key</code>
+   * @throws InvalidKeyException
+   * @throws IllegalBlockSizeException
+   * @throws BadPaddingException
+   * @throws NoSuchAlgorithmException
+   * @throws NoSuchProviderException
+   * @throws NoSuchPaddingException
+   * @throws InvalidAlgorithmParameterException
+   */
+  public static void deriveKey(byte[] ksn, String bdkId, byte[] bdk, byte[] key, int keyOffset)
+      throws InvalidKeyException, IllegalBlockSizeException,
+      BadPaddingException, NoSuchAlgorithmException,
+      NoSuchProviderException, NoSuchPaddingException,
+      InvalidAlgorithmParameterException {
+    deriveKey(ByteArrayUtil.toLong(ksn, 0) & IPEK_KSN_MASK, ByteArrayUtil.toLong(ksn, 2), bdkId,
+        bdk, key, keyOffset);
+  }
+
+  /**
+   * Same as {@link #deriveKey(byte[], String, byte[], byte[], int)}, for a packed KSN.
+   */
+  public static void deriveKey(KSN ksn, String bdkId, byte[] bdk, byte[] key, int keyOffset)
+      throws InvalidKeyException, IllegalBlockSizeException,
+      BadPaddingException, NoSuchAlgorithmException,
+      NoSuchProviderException, NoSuchPaddingException,
+      InvalidAlgorithmParameterException {
+    deriveKey(ksn.getMaskedKSN(), ksn.getLow(), bdkId, bdk, key, keyOffset);
+  }
+
+  /**
+   * @param maskedKSN
+   *          8 leftmost bytes of the KSN, counter bits cleared
+   * @param ksnRegister
+   *          8 rightmost bytes of the KSN
+   */
+  private static void deriveKey(long maskedKSN, long ksnRegister, String bdkId, byte[] bdk,
+      byte[] key, int keyOffset) throws InvalidKeyException {
+    IPEKCache cache = IPEKCache.getInstance();
+    int counter = (int) (ksnRegister & TRANSACTION_COUNTER_BITS);
+
+    // The starting key goes straight into the destination buffer, which is then derived in place
+    IPEKCache.DeviceKeys device = cache.getDevice(bdkId, maskedKSN);
+    int ancestor = device == null ? -1 : device.getDeepestKey(counter, key, keyOffset);
+    int desOperations = 0;
+    if (ancestor < 0) {
+      generateIPEK(maskedKSN, bdk, key, keyOffset);
+      device = cache.put(bdkId, maskedKSN, key, keyOffset);
+      ancestor = 0;
+      desOperations = DUKPTMetrics.IPEK_DES_OPERATIONS;
+    }
+
+    deriveKeyFromAncestor(ksnRegister, ancestor, key, keyOffset, key, keyOffset, device,
+        desOperations);
+  }
+
+  /**
+   * Same as {@link #deriveKey(byte[], String, byte[], byte[], int)}, for a BDK of
+   * {@link dukpt.container.BDKContainer}. The IPEKs are cached under {@link BaseDerivationKey#getCacheId()}.
+   * 
+   * @param ksn
+   *          ten byte array, which 2 leftmost bytes value is 0xFF (ex. FF FF 98 76 54 32 10 E0 12
+   *          34)
+   * @param bdk
+   *          a BDK of {@link dukpt.container.BDKContainer}
+   * @param key
+   *          destination of the derived key
+   * @param keyOffset
+   *          position of the derived key inside <code>key</code>
+   */
+  public static void deriveKey(byte[] ksn, BaseDerivationKey bdk, byte[] key, int keyOffset) {
+    deriveKey(ByteArrayUtil.toLong(ksn, 0) & IPEK_KSN_MASK, ByteArrayUtil.toLong(ksn, 2), bdk, key,
+        keyOffset);
+  }
+
+  /**
+   * Same as {@link #deriveKey(byte[], BaseDerivationKey, byte[], int)}, for a packed KSN.
+   */
+  public static void deriveKey(KSN ksn, BaseDerivationKey bdk, byte[] key, int keyOffset) {
+    deriveKey(ksn.getMaskedKSN(), ksn.getLow(), bdk, key, keyOffset);
+  }
+
+  private static void deriveKey(long maskedKSN, long ksnRegister, BaseDerivationKey bdk,
+      byte[] key, int keyOffset) {
+    IPEKCache cache = IPEKCache.getInstance();
+    int counter = (int) (ksnRegister & TRANSACTION_COUNTER_BITS);
+
+    IPEKCache.DeviceKeys device = cache.getDevice(bdk.getCacheId(), maskedKSN);
+    int ancestor = device == null ? -1 : device.getDeepestKey(counter, key, keyOffset);
+    int desOperations = 0;
+    if (ancestor < 0) {
+      generateIPEK(maskedKSN, bdk, key, keyOffset);
+      device = cache.put(bdk.getCacheId(), maskedKSN, key, keyOffset);
+      if (device != null && bdk.isRetired()) {
+        // Replaced or removed meanwhile: its IPEKs may have been invalidated before this one got in
+        cache.invalidate(bdk.getCacheId());
+      }
+      ancestor = 0;
+      desOperations = DUKPTMetrics.IPEK_DES_OPERATIONS;
+    }
+
+    deriveKeyFromAncestor(ksnRegister, ancestor, key, keyOffset, key, keyOffset, device,
+        desOperations);
+  }
+
+  /**
+   * Derives the session key that matches the encryption counter of <code>ksn</code> from the IPEK
+   * of the device in <code>table</code>, without the BDK.
+   * 
+   * @param ksn
+   *          ten byte array, which 2 leftmost bytes value is 0xFF (ex. FF FF 98 76 54 32 10 E0 12
+   *          34)
+   * @param table
+   *          IPEKs of the devices
+   * @param key
+   *          destination of the derived key
+   * @param keyOffset
+   *          position of the derived key inside <code>key</code>
+   * @return false if the device is not in <code>table</code>, in which case <code>key</code> is
+   *         left untouched
+   */
+  public static boolean deriveKey(byte[] ksn, DeviceKeyTable table, byte[] key, int keyOffset) {
+    if (!table.get(ksn, key, keyOffset)) {
+      return false;
+    }
+
+    deriveKeyFromAncestor(ByteArrayUtil.toLong(ksn, 2), 0, key, keyOffset, key, keyOffset, null,
+        0);
+    return true;
+  }
+
+  /**
+   * Same as {@link #deriveKey(byte[], DeviceKeyTable, byte[], int)}, for a packed KSN.
+   */
+  public static boolean deriveKey(KSN ksn, DeviceKeyTable table, byte[] key, int keyOffset) {
+    if (!table.get(ksn.getMaskedKSN(), key, keyOffset)) {
+      return false;
+    }
+
+    deriveKeyFromAncestor(ksn.getLow(), 0, key, keyOffset, key, keyOffset, null, 0);
+    return true;
+  }
+
+  /**
+   * Derives the session key that matches the encryption counter of <code>ksn</code>, starting from
+   * an already known IPEK instead of the BDK.
+   * 
+   * @param ksn
+   *          ten byte array, which 2 leftmost bytes value is 0xFF (ex. FF FF 98 76 54 32 10 E0 12
+   *          34)
+   * @param ipek
+   *          16 bytes array, result of {@link #generateIPEK(byte[], byte[])} for <code>ksn</code>
+   * @param key
+   *          destination of the derived key
+   * @param keyOffset
+   *          position of the derived key inside <code>key</code>
+   */
+  public static void deriveKeyFromIPEK(byte[] ksn, byte[] ipek, byte[] key, int keyOffset) {
+    deriveKeyFromIPEK(ksn, ipek, 0, key, keyOffset);
+  }
+
+  /**
+   * Same as {@link #deriveKeyFromIPEK(byte[], byte[], byte[], int)}, reading the IPEK from
+   * <code>ipek</code> at <code>ipekOffset</code>. The IPEK and the derived key may share the same
+   * 16 bytes.
+   */
+  public static void deriveKeyFromIPEK(byte[] ksn, byte[] ipek, int ipekOffset, byte[] key,
+      int keyOffset) {
+    deriveKeyFromAncestor(ByteArrayUtil.toLong(ksn, 2), 0, ipek, ipekOffset, key, keyOffset,
+        null, 0);
+  }
+
+  /**
+   * Same as {@link #deriveKeyFromIPEK(byte[], byte[], int, byte[], int)}, for a packed KSN.
+   */
+  public static void deriveKeyFromIPEK(KSN ksn, byte[] ipek, int ipekOffset, byte[] key,
+      int keyOffset) {
+    deriveKeyFromAncestor(ksn.getLow(), 0, ipek, ipekOffset, key, keyOffset, null, 0);
+  }
+
+  /**
+   * Batch counterpart of {@link #deriveKey(KSN, BaseDerivationKey, byte[], int)} for offline jobs
+   * (key injection runs, settlement re-decryption, load simulation): derives the keys of
+   * <code>ksns[offset]</code> to <code>ksns[offset + count - 1]</code>, all under
+   * <code>bdk</code>, 64 devices at a time with {@link BitslicedDES}. The IPEKs are computed on the
+   * bit planes too, and {@link IPEKCache} is neither read nor filled.
+   *
+   * @param keys
+   *          destination of the 16 bytes derived keys, one after the other in the order of
+   *          <code>ksns</code>
+   */
+  public static void deriveKeys(KSN[] ksns, int offset, int count, BaseDerivationKey bdk,
+      byte[] keys, int keysOffset) {
+    BitslicedDerivation derivation = new BitslicedDerivation();
+    for (int i = 0; i < count; i += BitslicedDES.LANES) {
+      int lanes = Math.min(BitslicedDES.LANES, count - i);
+      derivation.generateIPEKs(ksns, offset + i, lanes, bdk);
+      derivation.derive(ksns, offset + i, lanes, keys, keysOffset + i * 16);
+    }
+  }
+
+  /**
+   * Same as {@link #deriveKeys(KSN[], int, int, BaseDerivationKey, byte[], int)}, from the IPEK of
+   * each device instead of the BDK.
+   *
+   * @param ipeks
+   *          the 16 bytes IPEKs of the devices, one after the other in the order of
+   *          <code>ksns</code>; may be the same bytes as <code>keys</code>
+   */
+  public static void deriveKeysFromIPEK(KSN[] ksns, int offset, int count, byte[] ipeks,
+      int ipeksOffset, byte[] keys, int keysOffset) {
+    BitslicedDerivation derivation = new BitslicedDerivation();
+    for (int i = 0; i < count; i += BitslicedDES.LANES) {
+      int lanes = Math.min(BitslicedDES.LANES, count - i);
+      derivation.loadIPEKs(ipeks, ipeksOffset + i * 16, lanes);
+      derivation.derive(ksns, offset + i, lanes, keys, keysOffset + i * 16);
+    }
+  }
+
+  /**
+   * The key registers of 64 devices as bit planes, advanced in lockstep. Each device walks the set
+   * bits of its counter from the left, as in {@link #deriveKeyFromAncestor(long, int, byte[], int,
+   * byte[], int, IPEKCache.DeviceKeys, int)}, and step n of all the devices (for each, its n-th set
+   * bit) is done together with two bitsliced DES encryptions: the bits differ from a device to the
+   * other, but they only show in the KSN registers, which are per device anyway. A group therefore
+   * takes as many steps as the most set bits among its counters, at most 10 for valid counters,
+   * and the devices that are already done keep their key.
+   */
+  private static final class BitslicedDerivation {
+    // KEY_REGISTER_MASK as bit planes: all ones where the mask has a bit, zero elsewhere
+    private static final long[] KEY_REGISTER_PLANES = new long[64];
+
+    static {
+      for (int i = 0; i < 64; i++) {
+        KEY_REGISTER_PLANES[i] = (KEY_REGISTER_MASK << i) < 0 ? -1L : 0L;
+      }
+    }
+
+    private final BitslicedDES des = new BitslicedDES();
+    private final long[] keyL = new long[64];
+    private final long[] keyR = new long[64];
+    private final long[] maskedL = new long[64];
+    private final long[] maskedR = new long[64];
+    private final long[] register = new long[64];
+    private final long[] crypto1 = new long[64];
+    private final long[] crypto2 = new long[64];
+    private final int[] counters = new int[64];
+
+    void generateIPEKs(KSN[] ksns, int offset, int lanes, BaseDerivationKey bdk) {
+      for (int j = 0; j < 64; j++) {
+        keyL[j] = j < lanes ? ksns[offset + j].getMaskedKSN() : 0;
+      }
+      BitslicedDES.transpose(keyL);
+      System.arraycopy(keyL, 0, keyR, 0, 64);
+
+      // The same BDK in every lane: each key plane is all zeros or all ones
+      des.tdesEncryptPlanes(keyL, broadcast(bdk.getK1(), 0), broadcast(bdk.getK2(), 0),
+          broadcast(bdk.getK3(), 0));
+      des.tdesEncryptPlanes(keyR, broadcast(bdk.getK1(), KEY_REGISTER_MASK),
+          broadcast(bdk.getK2(), KEY_REGISTER_MASK), broadcast(bdk.getK3(), KEY_REGISTER_MASK));
+    }
+
+    void loadIPEKs(byte[] ipeks, int offset, int lanes) {
+      for (int j = 0; j < 64; j++) {
+        keyL[j] = j < lanes ? ByteArrayUtil.toLong(ipeks, offset + j * 16) : 0;
+        keyR[j] = j < lanes ? ByteArrayUtil.toLong(ipeks, offset + j * 16 + 8) : 0;
+      }
+      BitslicedDES.transpose(keyL);
+      BitslicedDES.transpose(keyR);
+    }
+
+    /**
+     * Derives the keys of <code>lanes</code> devices from the IPEKs in {@link #keyL} and
+     * {@link #keyR}.
+     */
+    void derive(KSN[] ksns, int offset, int lanes, byte[] keys, int keysOffset) {
+      for (int j = 0; j < 64; j++) {
+        long ksnRegister = j < lanes ? ksns[offset + j].getLow() : 0;
+        counters[j] = (int) (ksnRegister & TRANSACTION_COUNTER_BITS);
+        register[j] = ksnRegister & ~TRANSACTION_COUNTER_BITS;
+      }
+      BitslicedDES.transpose(register);
+
+      while (true) {
+        // Lane j is bit 63 - j of the planes
+        long stepping = 0;
+        for (int j = 0; j < lanes; j++) {
+          int shiftr = Integer.highestOneBit(counters[j]);
+          if (shiftr != 0) {
+            counters[j] ^= shiftr;
+            register[63 - Integer.numberOfTrailingZeros(shiftr)] |= Long.MIN_VALUE >>> j;
+            stepping |= Long.MIN_VALUE >>> j;
+          }
+        }
+        if (stepping == 0) {
+          break;
+        }
+
+        for (int i = 0; i < 64; i++) {
+          crypto2[i] = register[i] ^ keyR[i];
+          maskedL[i] = keyL[i] ^ KEY_REGISTER_PLANES[i];
+          maskedR[i] = keyR[i] ^ KEY_REGISTER_PLANES[i];
+          crypto1[i] = register[i] ^ maskedR[i];
+        }
+        des.encryptPlanes(crypto2, keyL);
+        des.encryptPlanes(crypto1, maskedL);
+
+        // keyL = crypto1 ^ maskedR and keyR = crypto2 ^ keyR, in the stepping lanes only
+        for (int i = 0; i < 64; i++) {
+          keyL[i] ^= (crypto1[i] ^ maskedR[i] ^ keyL[i]) & stepping;
+          keyR[i] ^= crypto2[i] & stepping;
+        }
+      }
+
+      BitslicedDES.transpose(keyL);
+      BitslicedDES.transpose(keyR);
+      for (int j = 0; j < lanes; j++) {
+        ByteArrayUtil.putLong(keyL[j], keys, keysOffset + j * 16);
+        ByteArrayUtil.putLong(keyR[j], keys, keysOffset + j * 16 + 8);
+      }
+    }
+
+    private static long[] broadcast(long key, long mask) {
+      long[] planes = new long[64];
+      key ^= mask;
+      for (int i = 0; i < 64; i++) {
+        planes[i] = (key << i) < 0 ? -1L : 0L;
+      }
+      return planes;
+    }
+  }
+
+  /**
+   * Runs the key derivation for the counter of the KSN, starting from the key of one of its
+   * counter prefixes (0 being the IPEK) instead of the IPEK.
+   * 
+   * @param ksnRegister
+   *          8 rightmost bytes of the KSN
+   * @param ancestor
+   *          transaction counter whose key is at <code>ancestorKey</code>; its set bits must all be
+   *          set in the counter of the KSN
+   * @param device
+   *          if not null, receives every intermediate key computed
+   * @param desOperations
+   *          DES operations already spent on the derivation, for {@link DUKPTMetrics}
+   */
+  private static void deriveKeyFromAncestor(long ksnRegister, int ancestor, byte[] ancestorKey,
+      int ancestorKeyOffset, byte[] key, int keyOffset, IPEKCache.DeviceKeys device,
+      int desOperations) {
+    long start = DUKPTMetrics.start();
+
     // 4) Store the Key Serial Number, as received, in the externally
     // initiated command, into the Key Serial Number Register.
     // 5) Clear the encryption counter (21st right-most bits of KSNR
-    byte[] r3 = DUKPTUtil.extractTransactionCounterFromKSN(ksn);
-    byte[] r8 = ByteArrayUtil.subArray(
-        DUKPTUtil.ksnWithZeroedTransactionCounter(ksn), 2, 9);
-    byte[] shiftr = StringUtil.hexStringToBytes(SHIFTR);
-    byte[] crypto_register_1 = ByteArrayUtil.subArray(
-        DUKPTUtil.ksnWithZeroedTransactionCounter(ksn), 2, 9);
-    byte[] curKey = bdk;
-
-    curKey = DUKPTUtil.generateIPEK(ksn, curKey);
-
-    BigInteger intShiftr = new BigInteger(shiftr);
-    BigInteger zero = new BigInteger("0");
-
-    while (intShiftr.compareTo(zero) == 1) {
-      byte[] temp = ByteArrayUtil.and(shiftr, r3);
-      BigInteger intTemp = new BigInteger(temp);
-
-      if (intTemp.compareTo(zero) == 1) {
-        r8 = ByteArrayUtil.or(r8, shiftr);
-        // crypto_register_1 =
-        // ByteArrayUtil.or(ByteArrayUtil.createSubArray(DUKPTUtil.ksnWithZeroedTransactionCounter(ksn),
-        // 2, 9)/*crypto_register_1*/, shiftr);
-
-        // 1) Crypto Register-1 XORed with the right half of the Key
-        // Register goes to Crypto Register-2.
-        byte[] crypto_register_2 = ByteArrayUtil.xor(
-            r8/* crypto_register_1 */,
-            ByteArrayUtil.subArray(curKey, 8, 15));
-
-        // 2) Crypto Register-2 DEA-encrypted using, as the key, the
-        // left half of the Key Register goes to Crypto Register-2.
-        crypto_register_2 = DESCryptoUtil.desEncrypt(crypto_register_2,
-            ByteArrayUtil.subArray(curKey, 0, 7));
-
-        // 3) Crypto Register-2 XORed with the right half of the Key
-        // Register goes to Crypto Register-2.
-        crypto_register_2 = ByteArrayUtil.xor(crypto_register_2,
-            ByteArrayUtil.subArray(curKey, 8, 15));
-
-        // 4) XOR the Key Register with hexadecimal C0C0 C0C0 0000 0000
-        // C0C0 C0C0 0000 0000.
-        curKey = ByteArrayUtil.xor(curKey,
-            StringUtil.hexStringToBytes(BDK_MASK));
-
-        // 5) Crypto Register-1 XORed with the right half of the Key
-        // Register goes to Crypto Register-1.
-        crypto_register_1 = ByteArrayUtil.xor(
-            r8/* crypto_register_1 */,
-            ByteArrayUtil.subArray(curKey, 8, 15));
-
-        // 6) Crypto Register-1 DEA-encrypted using, as the key, the
-        // left half of the Key Register goes to Crypto Register-1.
-        crypto_register_1 = DESCryptoUtil.desEncrypt(crypto_register_1,
-            ByteArrayUtil.subArray(curKey, 0, 7));
-
-        // 7) Crypto Register-1 XORed with the right half of the Key
-        // Register goes to Crypto Register-1.
-        crypto_register_1 = ByteArrayUtil.xor(crypto_register_1,
-            ByteArrayUtil.subArray(curKey, 8, 15));
-
-        curKey = ByteArrayUtil.join(crypto_register_1,
-            crypto_register_2);
+    int counter = (int) (ksnRegister & TRANSACTION_COUNTER_BITS);
+    ksnRegister &= ~TRANSACTION_COUNTER_BITS;
+
+    // Resume right below the rightmost set bit of the ancestor
+    ksnRegister |= ancestor;
+    int shiftr = ancestor == 0 ? SHIFT_REGISTER_START : Integer.lowestOneBit(ancestor) >>> 1;
+
+    long keyL = ByteArrayUtil.toLong(ancestorKey, ancestorKeyOffset);
+    long keyR = ByteArrayUtil.toLong(ancestorKey, ancestorKeyOffset + 8);
+
+    for (; shiftr != 0; shiftr >>>= 1) {
+      if ((counter & shiftr) == 0) {
+        continue;
       }
 
-      shiftr = ByteArrayUtil.shiftRight(shiftr, 1);
-      intShiftr = new BigInteger(shiftr);
+      ksnRegister |= shiftr;
+
+      // 1) Crypto Register-1 XORed with the right half of the Key
+      // Register goes to Crypto Register-2.
+      // 2) Crypto Register-2 DEA-encrypted using, as the key, the
+      // left half of the Key Register goes to Crypto Register-2.
+      // 3) Crypto Register-2 XORed with the right half of the Key
+      // Register goes to Crypto Register-2.
+      long cryptoRegister2 = DESEngine.encrypt(ksnRegister ^ keyR, keyL) ^ keyR;
+
+      // 4) XOR the Key Register with hexadecimal C0C0 C0C0 0000 0000
+      // C0C0 C0C0 0000 0000.
+      keyL ^= KEY_REGISTER_MASK;
+      keyR ^= KEY_REGISTER_MASK;
+
+      // 5) Crypto Register-1 XORed with the right half of the Key
+      // Register goes to Crypto Register-1.
+      // 6) Crypto Register-1 DEA-encrypted using, as the key, the
+      // left half of the Key Register goes to Crypto Register-1.
+      // 7) Crypto Register-1 XORed with the right half of the Key
+      // Register goes to Crypto Register-1.
+      long cryptoRegister1 = DESEngine.encrypt(ksnRegister ^ keyR, keyL) ^ keyR;
+
+      keyL = cryptoRegister1;
+      keyR = cryptoRegister2;
+      desOperations += 2;
+
+      if (device != null) {
+        device.putIntermediateKey((int) (ksnRegister & TRANSACTION_COUNTER_BITS), keyL, keyR);
+      }
     }
 
-    return curKey;
+    ByteArrayUtil.putLong(keyL, key, keyOffset);
+    ByteArrayUtil.putLong(keyR, key, keyOffset + 8);
+    DUKPTMetrics.recordDerivation(start, desOperations);
   }
 
   // public static byte[] calculateDataEncryptionKey(byte[] key) throws InvalidKeyException,
@@ -267,15 +757,15 @@ public class DUKPTUtil {
       throws InvalidKeyException,
       IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException,
       NoSuchProviderException, NoSuchPaddingException, InvalidAlgorithmParameterException {
-    byte[] derivedKeyL = ByteArrayUtil.subArray(derivedKey, 0, 7);
-    byte[] derivedKeyR = ByteArrayUtil.subArray(derivedKey, 8, 15);
-    byte[] KSN_Mod_Mask = StringUtil.hexStringToBytes(KSN_MODIFIER_MASK);
-    byte[] ksnMod = ByteArrayUtil.subArray(ByteArrayUtil.and(ksn, KSN_Mod_Mask), 2, 9);
+    long derivedKeyL = ByteArrayUtil.toLong(derivedKey, 0);
+    long derivedKeyR = ByteArrayUtil.toLong(derivedKey, 8);
+    // KSN_MODIFIER_MASK keeps the 8 rightmost bytes of the KSN as they are
+    long ksnMod = ByteArrayUtil.toLong(ksn, 2);
 
-    byte[] pin_encryption_key_part = ByteArrayUtil.xor(derivedKeyR, ksnMod);
+    long encryptedMessage = DESEngine.encrypt(derivedKeyR ^ ksnMod, derivedKeyL);
 
-    byte[] encryptedMessage = DESCryptoUtil.desEncrypt(pin_encryption_key_part, derivedKeyL);
-    pin_encryption_key_part = ByteArrayUtil.xor(derivedKeyR, encryptedMessage);
+    byte[] pin_encryption_key_part = new byte[8];
+    ByteArrayUtil.putLong(derivedKeyR ^ encryptedMessage, pin_encryption_key_part, 0);
     return pin_encryption_key_part;
   }
 
@@ -298,26 +788,80 @@ public class DUKPTUtil {
       throws InvalidKeyException,
       IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException,
       NoSuchProviderException, NoSuchPaddingException, InvalidAlgorithmParameterException {
-    byte[] variant_constant = StringUtil.hexStringToBytes(PIN_ENCRYPTION_VARIANT_CONSTANT);
-    byte[] derivedKeyL = ByteArrayUtil.subArray(derivedKey, 0, 7);
-    byte[] derivedKeyR = ByteArrayUtil.subArray(derivedKey, 8, 15);
-
+    long start = DUKPTMetrics.start();
     // 1 - derivedKey_L XOR pin_variant_constant = pin_key_L
-    byte[] pin_key_L = ByteArrayUtil.xor(derivedKeyL, variant_constant);
-    // System.out.println(Hex.encodeHexString(pin_key_L));
+    long pin_key_L = ByteArrayUtil.toLong(derivedKey, 0) ^ PIN_ENCRYPTION_VARIANT;
     // 2 - derivedKey_R XOR pin_variant_constant_R = pin_key_R
-    byte[] pin_key_R = ByteArrayUtil.xor(derivedKeyR, variant_constant);
-    // System.out.println(Hex.encodeHexString(pin_key_R));
+    long pin_key_R = ByteArrayUtil.toLong(derivedKey, 8) ^ PIN_ENCRYPTION_VARIANT;
+
+    byte[] pinKey = new byte[16];
+    ByteArrayUtil.putLong(pin_key_L, pinKey, 0);
+    ByteArrayUtil.putLong(pin_key_R, pinKey, 8);
+    DUKPTMetrics.record(Stage.VARIANT, start);
+    return pinKey;
+  }
+
+  /**
+   * Same key as {@link #calculatePinEncryptionKeyWithNoVariant(byte[])}, read from and written to
+   * caller buffers. <code>derivedKey</code> and <code>pinKey</code> may be the same 16 bytes.
+   */
+  public static void calculatePinEncryptionKeyWithNoVariant(byte[] derivedKey,
+      int derivedKeyOffset, byte[] pinKey, int pinKeyOffset) {
+    long start = DUKPTMetrics.start();
+    ByteArrayUtil.putLong(ByteArrayUtil.toLong(derivedKey, derivedKeyOffset)
+        ^ PIN_ENCRYPTION_VARIANT, pinKey, pinKeyOffset);
+    ByteArrayUtil.putLong(ByteArrayUtil.toLong(derivedKey, derivedKeyOffset + 8)
+        ^ PIN_ENCRYPTION_VARIANT, pinKey, pinKeyOffset + 8);
+    DUKPTMetrics.record(Stage.VARIANT, start);
+  }
+
+  /**
+   * Calculates the key PIN blocks are encrypted with (ANSI X9.24-1 PIN variant, both halves of the
+   * derived key XORed with 00 00 00 00 00 00 00 FF), into a caller buffer.
+   * <code>derivedKey</code> and <code>pinKey</code> may be the same 16 bytes.
+   */
+  public static void calculatePinKey(byte[] derivedKey, int derivedKeyOffset, byte[] pinKey,
+      int pinKeyOffset) {
+    long start = DUKPTMetrics.start();
+    ByteArrayUtil.putLong(ByteArrayUtil.toLong(derivedKey, derivedKeyOffset) ^ PIN_VARIANT,
+        pinKey, pinKeyOffset);
+    ByteArrayUtil.putLong(ByteArrayUtil.toLong(derivedKey, derivedKeyOffset + 8) ^ PIN_VARIANT,
+        pinKey, pinKeyOffset + 8);
+    DUKPTMetrics.record(Stage.VARIANT, start);
+  }
 
-    byte[] pekVariantL = DESCryptoUtil.tdesEncrypt(pin_key_L, ByteArrayUtil.join(pin_key_L,
-        pin_key_R));
-    // System.out.println(Hex.encodeHexString(pekVariantL));
+  /**
+   * Calculates the key the request messages of the device are MACed with (ANSI X9.24-1 MAC
+   * request variant, both halves of the derived key XORed with 00 00 00 00 00 00 FF 00), into a
+   * caller buffer. <code>derivedKey</code> and <code>macKey</code> may be the same 16 bytes.
+   *
+   * @see RetailMAC
+   */
+  public static void calculateRequestMacKey(byte[] derivedKey, int derivedKeyOffset, byte[] macKey,
+      int macKeyOffset) {
+    calculateVariant(derivedKey, derivedKeyOffset, MAC_REQUEST_VARIANT, macKey, macKeyOffset);
+  }
 
-    byte[] pekVariantR = DESCryptoUtil.tdesEncrypt(pin_key_R, ByteArrayUtil.join(pin_key_L,
-        pin_key_R));
-    // System.out.println(Hex.encodeHexString(pekVariantR));
+  /**
+   * Calculates the key the responses to the device are MACed with (ANSI X9.24-1 MAC response
+   * variant, both halves of the derived key XORed with 00 00 00 00 FF 00 00 00), into a caller
+   * buffer. <code>derivedKey</code> and <code>macKey</code> may be the same 16 bytes.
+   *
+   * @see RetailMAC
+   */
+  public static void calculateResponseMacKey(byte[] derivedKey, int derivedKeyOffset,
+      byte[] macKey, int macKeyOffset) {
+    calculateVariant(derivedKey, derivedKeyOffset, MAC_RESPONSE_VARIANT, macKey, macKeyOffset);
+  }
 
-    return ByteArrayUtil.join(pin_key_L, pin_key_R);
+  private static void calculateVariant(byte[] derivedKey, int derivedKeyOffset, long variant,
+      byte[] key, int keyOffset) {
+    long start = DUKPTMetrics.start();
+    ByteArrayUtil.putLong(ByteArrayUtil.toLong(derivedKey, derivedKeyOffset) ^ variant, key,
+        keyOffset);
+    ByteArrayUtil.putLong(ByteArrayUtil.toLong(derivedKey, derivedKeyOffset + 8) ^ variant, key,
+        keyOffset + 8);
+    DUKPTMetrics.record(Stage.VARIANT, start);
   }
 
   /**
@@ -339,26 +883,51 @@ public class DUKPTUtil {
       throws InvalidKeyException,
       IllegalBlockSizeException, BadPaddingException, NoSuchAlgorithmException,
       NoSuchProviderException, NoSuchPaddingException, InvalidAlgorithmParameterException {
-    byte[] variant_constant = StringUtil.hexStringToBytes(PIN_ENCRYPTION_VARIANT_CONSTANT);
-    byte[] derivedKeyL = ByteArrayUtil.subArray(derivedKey, 0, 7);
-    byte[] derivedKeyR = ByteArrayUtil.subArray(derivedKey, 8, 15);
-
+    long start = DUKPTMetrics.start();
     // 1 - derivedKey_L XOR pin_variant_constant = pin_key_L
-    byte[] pin_key_L = ByteArrayUtil.xor(derivedKeyL, variant_constant);
-    // System.out.println(Hex.encodeHexString(pin_key_L));
+    long pin_key_L = ByteArrayUtil.toLong(derivedKey, 0) ^ PIN_ENCRYPTION_VARIANT;
     // 2 - derivedKey_R XOR pin_variant_constant_R = pin_key_R
-    byte[] pin_key_R = ByteArrayUtil.xor(derivedKeyR, variant_constant);
-    // System.out.println(Hex.encodeHexString(pin_key_R));
+    long pin_key_R = ByteArrayUtil.toLong(derivedKey, 8) ^ PIN_ENCRYPTION_VARIANT;
 
-    byte[] pekVariantL = DESCryptoUtil.tdesEncrypt(pin_key_L, ByteArrayUtil.join(pin_key_L,
-        pin_key_R));
-    // System.out.println(Hex.encodeHexString(pekVariantL));
+    // 3 - each half TDES encrypted with pin_key_L|pin_key_R as the key
+    byte[] pekVariant = new byte[16];
+    calculateOneWayKey(pin_key_L, pin_key_R, new int[2 * DESEngine.SCHEDULE_LENGTH], pekVariant,
+        0);
+    DUKPTMetrics.record(Stage.VARIANT, start);
+    return pekVariant;
+  }
 
-    byte[] pekVariantR = DESCryptoUtil.tdesEncrypt(pin_key_R, ByteArrayUtil.join(pin_key_L,
-        pin_key_R));
-    // System.out.println(Hex.encodeHexString(pekVariantR));
+  /**
+   * @return the variant both halves of the derived key are XORed with to get <code>key</code>
+   */
+  static long getVariant(WorkingKey key) {
+    switch (key) {
+    case PIN:
+      return PIN_VARIANT;
+    case MAC_REQUEST:
+      return MAC_REQUEST_VARIANT;
+    case MAC_RESPONSE:
+      return MAC_RESPONSE_VARIANT;
+    case DATA_REQUEST:
+      return PIN_ENCRYPTION_VARIANT;
+    default:
+      return DATA_RESPONSE_VARIANT;
+    }
+  }
 
-    return ByteArrayUtil.join(pekVariantL, pekVariantR);
+  /**
+   * One-way data key of a data variant: each half TDES encrypted under variantL|variantR. The two
+   * halves are expanded once into <code>schedule</code> ({@link DESEngine#SCHEDULE_LENGTH} * 2
+   * ints of scratch) and shared by both encryptions.
+   */
+  static void calculateOneWayKey(long variantL, long variantR, int[] schedule, byte[] key,
+      int keyOffset) {
+    DESEngine.expandKey(variantL, schedule, 0);
+    DESEngine.expandKey(variantR, schedule, DESEngine.SCHEDULE_LENGTH);
+    ByteArrayUtil.putLong(DESEngine.tdesEncrypt(variantL, schedule, 0, DESEngine.SCHEDULE_LENGTH),
+        key, keyOffset);
+    ByteArrayUtil.putLong(DESEngine.tdesEncrypt(variantR, schedule, 0, DESEngine.SCHEDULE_LENGTH),
+        key, keyOffset + 8);
   }
 
   public static byte[] decryptTrack1(byte[] track1, byte[] KSN, byte[] BDK) {
@@ -375,4 +944,204 @@ public class DUKPTUtil {
       return null;
     }
   }
+
+  /**
+   * Same decryption as {@link #decryptTrack1(byte[], byte[], byte[])} for the hot path: nothing is
+   * allocated or printed, failures are returned as a status, and the cheap checks (KSN length and
+   * counter, block alignment of the data, presence and length of the BDK) come before any key
+   * work, so that a malformed transaction is rejected in nanoseconds. Unlike the legacy method,
+   * KSNs whose counter no originator uses (see {@link #checkKSN(byte[])}) are rejected.
+   *
+   * @param bdkId
+   *          identifier of <code>bdk</code>, to take the keys of the device from
+   *          {@link IPEKCache#getInstance()} (see
+   *          {@link #deriveKey(byte[], String, byte[], byte[], int)}), or null to derive them from
+   *          the BDK
+   * @param bdk
+   *          16 or 24 bytes BDK, null when the device has no known BDK
+   * @param output
+   *          destination of the <code>length</code> decrypted bytes, written only on success. It
+   *          may be <code>track1</code> at the same offset (in place decryption).
+   * @throws IllegalArgumentException
+   *           if the range of <code>track1</code> or of <code>output</code> is out of bounds (or
+   *           <code>output</code> is null), checked before any key work
+   * @return {@link DecryptionStatus#SUCCESS}, or the first check that failed:
+   *         {@link DecryptionStatus#INVALID_KSN}, {@link DecryptionStatus#INVALID_DATA},
+   *         {@link DecryptionStatus#UNKNOWN_BDK} or {@link DecryptionStatus#INVALID_BDK}
+   */
+  public static DecryptionStatus decryptTrack1(byte[] track1, int offset, int length, byte[] ksn,
+      String bdkId, byte[] bdk, byte[] output, int outputOffset) {
+    long start = DUKPTMetrics.start();
+    DecryptionStatus status = checkTrack1(track1, offset, length, ksn, output,
+        outputOffset);
+    if (status == DecryptionStatus.SUCCESS) {
+      status = checkBDK(bdk);
+    }
+    if (status == DecryptionStatus.SUCCESS) {
+      decryptChecked(track1, offset, length, ksn, bdkId, bdk, output, outputOffset);
+    }
+
+    DUKPTMetrics.recordDecryption(start, status);
+    return status;
+  }
+
+  /**
+   * Same as {@link #decryptTrack1(byte[], int, int, byte[], String, byte[], byte[], int)}, with the
+   * BDK given by <code>resolver</code>. It is only asked once the KSN and the data passed their
+   * checks.
+   */
+  public static DecryptionStatus decryptTrack1(byte[] track1, int offset, int length, byte[] ksn,
+      BDKResolver resolver, byte[] output, int outputOffset) {
+    long start = DUKPTMetrics.start();
+    DecryptionStatus status = checkTrack1(track1, offset, length, ksn, output,
+        outputOffset);
+    if (status == DecryptionStatus.SUCCESS) {
+      String bdkId = resolver.getBDKId(ksn);
+      byte[] bdk = bdkId == null ? null : resolver.getBDK(bdkId);
+      status = checkBDK(bdk);
+      if (status == DecryptionStatus.SUCCESS) {
+        decryptChecked(track1, offset, length, ksn, bdkId, bdk, output, outputOffset);
+      }
+    }
+
+    DUKPTMetrics.recordDecryption(start, status);
+    return status;
+  }
+
+  /**
+   * Same as {@link #deriveKey(byte[], String, byte[], byte[], int)}, with failures returned as a
+   * status instead of checked exceptions. The KSN and the BDK are checked before any key work.
+   *
+   * @param bdkId
+   *          identifier of <code>bdk</code> in {@link IPEKCache#getInstance()}, or null to derive
+   *          the key from the BDK
+   * @param bdk
+   *          16 or 24 bytes BDK, null when the device has no known BDK
+   * @return {@link DecryptionStatus#SUCCESS}, {@link DecryptionStatus#INVALID_KSN},
+   *         {@link DecryptionStatus#UNKNOWN_BDK} or {@link DecryptionStatus#INVALID_BDK}
+   */
+  public static DecryptionStatus tryDeriveKey(byte[] ksn, String bdkId, byte[] bdk, byte[] key,
+      int keyOffset) {
+    DecryptionStatus status = checkKSN(ksn);
+    if (status == DecryptionStatus.SUCCESS) {
+      status = checkBDK(bdk);
+    }
+    if (status == DecryptionStatus.SUCCESS) {
+      deriveChecked(ksn, bdkId, bdk, key, keyOffset);
+    }
+
+    return status;
+  }
+
+  /**
+   * Tells, without any key work, whether <code>ksn</code> can be the KSN of a transaction: 10 bytes
+   * long, with a counter an originator uses (not 0, at most {@link KSN#MAXIMUM_COUNTER_BITS} bits
+   * set).
+   *
+   * @return {@link DecryptionStatus#SUCCESS} or {@link DecryptionStatus#INVALID_KSN}
+   */
+  public static DecryptionStatus checkKSN(byte[] ksn) {
+    if (ksn == null || ksn.length != KSN.LENGTH) {
+      return DecryptionStatus.INVALID_KSN;
+    }
+
+    int counter = (int) (ByteArrayUtil.toLong(ksn, 2) & TRANSACTION_COUNTER_BITS);
+    return counter != 0 && Integer.bitCount(counter) <= KSN.MAXIMUM_COUNTER_BITS
+        ? DecryptionStatus.SUCCESS : DecryptionStatus.INVALID_KSN;
+  }
+
+  private static DecryptionStatus checkTrack1(byte[] track1, int offset, int length, byte[] ksn,
+      byte[] output, int outputOffset) {
+    DecryptionStatus status = checkKSN(ksn);
+    if (status != DecryptionStatus.SUCCESS) {
+      return status;
+    }
+
+    if (track1 == null || length % 8 != 0) {
+      return DecryptionStatus.INVALID_DATA;
+    }
+    if (offset < 0 || length < 0 || track1.length - offset < length) {
+      throw new IllegalArgumentException("@ DUKPTUtil.decryptTrack1(). Parameters <offset> "
+          + offset + " and <length> " + length + " must be within the " + track1.length
+          + " bytes of <track1>.");
+    }
+    // Before any key work: output is only written on success
+    if (output == null) {
+      throw new IllegalArgumentException(
+          "@ DUKPTUtil.decryptTrack1(). Parameter <output> must not be null.");
+    }
+    if (outputOffset < 0 || output.length - outputOffset < length) {
+      throw new IllegalArgumentException("@ DUKPTUtil.decryptTrack1(). Parameters <outputOffset> "
+          + outputOffset + " and <length> " + length + " must be within the " + output.length
+          + " bytes of <output>.");
+    }
+
+    return DecryptionStatus.SUCCESS;
+  }
+
+  private static DecryptionStatus checkBDK(byte[] bdk) {
+    if (bdk == null) {
+      return DecryptionStatus.UNKNOWN_BDK;
+    }
+
+    return bdk.length == 16 || bdk.length == 24 ? DecryptionStatus.SUCCESS
+        : DecryptionStatus.INVALID_BDK;
+  }
+
+  /**
+   * Derives the key of a KSN and a BDK that passed {@link #checkKSN(byte[])} and
+   * {@link #checkBDK(byte[])}.
+   */
+  private static void deriveChecked(byte[] ksn, String bdkId, byte[] bdk, byte[] key,
+      int keyOffset) {
+    long maskedKSN = ByteArrayUtil.toLong(ksn, 0) & IPEK_KSN_MASK;
+    long ksnRegister = ByteArrayUtil.toLong(ksn, 2);
+    try {
+      if (bdkId != null) {
+        deriveKey(maskedKSN, ksnRegister, bdkId, bdk, key, keyOffset);
+      } else {
+        generateIPEK(maskedKSN, bdk, key, keyOffset);
+        deriveKeyFromAncestor(ksnRegister, 0, key, keyOffset, key, keyOffset, null,
+            DUKPTMetrics.IPEK_DES_OPERATIONS);
+      }
+    } catch (InvalidKeyException e) {
+      // The length of the BDK was checked
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static void decryptChecked(byte[] track1, int offset, int length, byte[] ksn,
+      String bdkId, byte[] bdk, byte[] output, int outputOffset) {
+    Scratch scratch = SCRATCH.get();
+    byte[] key = scratch.key;
+    int[] schedule = scratch.schedule;
+    try {
+      deriveChecked(ksn, bdkId, bdk, key, 0);
+      calculatePinEncryptionKeyWithNoVariant(key, 0, key, 0);
+
+      long k1 = ByteArrayUtil.toLong(key, 0);
+      long k2 = ByteArrayUtil.toLong(key, 8);
+      DESEngine.expandTripleKey(k1, k2, k1, schedule, 0);
+      DESEngine.tdesDecrypt(track1, offset, length, output, outputOffset, schedule, 0);
+    } catch (IllegalBlockSizeException e) {
+      // The length was checked
+      throw new IllegalStateException(e);
+    } finally {
+      Arrays.fill(key, (byte) 0);
+      Arrays.fill(schedule, 0);
+    }
+  }
+
+  private static final class Scratch {
+    final byte[] key = new byte[16];
+    final int[] schedule = new int[DESEngine.TRIPLE_SCHEDULE_LENGTH];
+  }
+
+  // Keys of the decryption in progress on the calling thread
+  private static final ThreadLocal<Scratch> SCRATCH = new ThreadLocal<Scratch>() {
+    @Override
+    protected Scratch initialValue() {
+      return new Scratch();
+    }
+  };
 }
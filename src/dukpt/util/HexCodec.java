@@ -0,0 +1,318 @@
+package dukpt.util;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Table driven hex encoding and decoding into caller provided arrays and buffers.
+ *
+ * Decoding comes in two flavours: the strict one takes exactly two hex digits per byte, nothing
+ * else, and is the fast path; the lenient one skips spaces (as in "FF FF 98 76") and drops a
+ * trailing odd digit, like {@link StringUtil#hexStringToBytes(String)} always did. Both accept
+ * upper- and lower-case digits, and report invalid input by returning -1, in which case the
+ * content of the destination is unspecified.
+ */
+public final class HexCodec {
+  private static final char[] UPPER_DIGITS = "0123456789ABCDEF".toCharArray();
+  private static final char[] LOWER_DIGITS = "0123456789abcdef".toCharArray();
+
+  // Both digits of every byte value, at 2 * (value & 0xFF)
+  private static final char[] UPPER_PAIRS = pairs(UPPER_DIGITS);
+  private static final char[] LOWER_PAIRS = pairs(LOWER_DIGITS);
+
+  // Value of every ASCII hex digit, -1 for any other character below 128
+  private static final byte[] DIGIT_VALUES = new byte[128];
+
+  static {
+    Arrays.fill(DIGIT_VALUES, (byte) -1);
+    for (int i = 0; i < 16; i++) {
+      DIGIT_VALUES[UPPER_DIGITS[i]] = (byte) i;
+      DIGIT_VALUES[LOWER_DIGITS[i]] = (byte) i;
+    }
+  }
+
+  private HexCodec() {
+  }
+
+  private static char[] pairs(char[] digits) {
+    char[] pairs = new char[512];
+    for (int b = 0; b < 256; b++) {
+      pairs[2 * b] = digits[b >>> 4];
+      pairs[2 * b + 1] = digits[b & 0xF];
+    }
+
+    return pairs;
+  }
+
+  /**
+   * @return the value of a hex digit, or -1
+   */
+  public static int digit(char c) {
+    return c < 128 ? DIGIT_VALUES[c] : -1;
+  }
+
+  // Encoding
+
+  public static String encode(byte[] input, boolean upperCase) {
+    return encode(input, 0, input.length, upperCase);
+  }
+
+  public static String encode(byte[] input, int offset, int length, boolean upperCase) {
+    char[] chars = new char[2 * length];
+    encode(input, offset, length, chars, 0, upperCase);
+    return new String(chars);
+  }
+
+  /**
+   * @return the number of characters written, 2 * <code>length</code>
+   */
+  public static int encode(byte[] input, int offset, int length, char[] output, int outputOffset,
+      boolean upperCase) {
+    char[] pairs = upperCase ? UPPER_PAIRS : LOWER_PAIRS;
+    for (int i = offset, o = outputOffset; i < offset + length; i++, o += 2) {
+      int p = (input[i] & 0xFF) << 1;
+      output[o] = pairs[p];
+      output[o + 1] = pairs[p + 1];
+    }
+
+    return 2 * length;
+  }
+
+  /**
+   * Encodes into ASCII bytes.
+   *
+   * @return the number of bytes written, 2 * <code>length</code>
+   */
+  public static int encode(byte[] input, int offset, int length, byte[] output, int outputOffset,
+      boolean upperCase) {
+    char[] pairs = upperCase ? UPPER_PAIRS : LOWER_PAIRS;
+    for (int i = offset, o = outputOffset; i < offset + length; i++, o += 2) {
+      int p = (input[i] & 0xFF) << 1;
+      output[o] = (byte) pairs[p];
+      output[o + 1] = (byte) pairs[p + 1];
+    }
+
+    return 2 * length;
+  }
+
+  /**
+   * Encodes the remaining bytes of <code>input</code> into ASCII bytes, advancing both buffers.
+   *
+   * @throws BufferOverflowException
+   *           if <code>output</code> has less than 2 * <code>input.remaining()</code> bytes left
+   */
+  public static void encode(ByteBuffer input, ByteBuffer output, boolean upperCase) {
+    if (output.remaining() < 2 * input.remaining()) {
+      throw new BufferOverflowException();
+    }
+
+    char[] pairs = upperCase ? UPPER_PAIRS : LOWER_PAIRS;
+    while (input.hasRemaining()) {
+      int p = (input.get() & 0xFF) << 1;
+      output.put((byte) pairs[p]);
+      output.put((byte) pairs[p + 1]);
+    }
+  }
+
+  /**
+   * Encodes with a space between bytes, as in "FF FF 98 76".
+   *
+   * @return the number of characters written, 3 * <code>length</code> - 1 (0 if
+   *         <code>length</code> is 0)
+   */
+  public static int encodeSpaced(byte[] input, int offset, int length, char[] output,
+      int outputOffset, boolean upperCase) {
+    if (length == 0) {
+      return 0;
+    }
+
+    char[] pairs = upperCase ? UPPER_PAIRS : LOWER_PAIRS;
+    int o = outputOffset;
+    for (int i = offset; i < offset + length; i++) {
+      if (i > offset) {
+        output[o++] = ' ';
+      }
+      int p = (input[i] & 0xFF) << 1;
+      output[o++] = pairs[p];
+      output[o++] = pairs[p + 1];
+    }
+
+    return o - outputOffset;
+  }
+
+  public static String encodeSpaced(byte[] input, int offset, int length, boolean upperCase) {
+    if (length == 0) {
+      return "";
+    }
+
+    char[] chars = new char[3 * length - 1];
+    encodeSpaced(input, offset, length, chars, 0, upperCase);
+    return new String(chars);
+  }
+
+  // Strict decoding
+
+  /**
+   * @return the decoded bytes, or null if <code>hex</code> is not an even number of hex digits
+   */
+  public static byte[] decode(CharSequence hex) {
+    if (hex.length() % 2 != 0) {
+      return null;
+    }
+
+    byte[] bytes = new byte[hex.length() / 2];
+    return decode(hex, 0, hex.length(), bytes, 0) < 0 ? null : bytes;
+  }
+
+  /**
+   * @return the number of bytes written, <code>length</code> / 2, or -1 if <code>length</code> is
+   *         odd or a character is not a hex digit
+   */
+  public static int decode(CharSequence input, int offset, int length, byte[] output,
+      int outputOffset) {
+    if (length % 2 != 0) {
+      return -1;
+    }
+
+    for (int i = offset, o = outputOffset; i < offset + length; i += 2, o++) {
+      int b = decodePair(input.charAt(i), input.charAt(i + 1));
+      if (b < 0) {
+        return -1;
+      }
+      output[o] = (byte) b;
+    }
+
+    return length / 2;
+  }
+
+  /**
+   * @see #decode(CharSequence, int, int, byte[], int)
+   */
+  public static int decode(char[] input, int offset, int length, byte[] output, int outputOffset) {
+    if (length % 2 != 0) {
+      return -1;
+    }
+
+    for (int i = offset, o = outputOffset; i < offset + length; i += 2, o++) {
+      int b = decodePair(input[i], input[i + 1]);
+      if (b < 0) {
+        return -1;
+      }
+      output[o] = (byte) b;
+    }
+
+    return length / 2;
+  }
+
+  /**
+   * Decodes ASCII hex digits.
+   *
+   * @see #decode(CharSequence, int, int, byte[], int)
+   */
+  public static int decode(byte[] input, int offset, int length, byte[] output, int outputOffset) {
+    if (length % 2 != 0) {
+      return -1;
+    }
+
+    for (int i = offset, o = outputOffset; i < offset + length; i += 2, o++) {
+      int b = decodePair((char) (input[i] & 0xFF), (char) (input[i + 1] & 0xFF));
+      if (b < 0) {
+        return -1;
+      }
+      output[o] = (byte) b;
+    }
+
+    return length / 2;
+  }
+
+  /**
+   * Decodes the remaining ASCII hex digits of <code>input</code>, advancing both buffers.
+   *
+   * @return the number of bytes written, or -1 if the input is not an even number of hex digits
+   * @throws BufferOverflowException
+   *           if <code>output</code> has less than <code>input.remaining()</code> / 2 bytes left
+   */
+  public static int decode(ByteBuffer input, ByteBuffer output) {
+    int length = input.remaining();
+    if (length % 2 != 0) {
+      return -1;
+    }
+    if (output.remaining() < length / 2) {
+      throw new BufferOverflowException();
+    }
+
+    while (input.hasRemaining()) {
+      int b = decodePair((char) (input.get() & 0xFF), (char) (input.get() & 0xFF));
+      if (b < 0) {
+        return -1;
+      }
+      output.put((byte) b);
+    }
+
+    return length / 2;
+  }
+
+  // Lenient decoding
+
+  /**
+   * @return the number of decoded bytes <code>input</code> holds once its spaces are skipped,
+   *         without checking its digits
+   */
+  public static int decodedLengthLenient(CharSequence input, int offset, int length) {
+    int digits = 0;
+    for (int i = offset; i < offset + length; i++) {
+      if (input.charAt(i) != ' ') {
+        digits++;
+      }
+    }
+
+    return digits / 2;
+  }
+
+  /**
+   * Same as {@link #decode(CharSequence, int, int, byte[], int)}, skipping spaces and dropping a
+   * trailing odd digit.
+   *
+   * @return the number of bytes written, or -1 if a character is neither a hex digit nor a space
+   */
+  public static int decodeLenient(CharSequence input, int offset, int length, byte[] output,
+      int outputOffset) {
+    int o = outputOffset;
+    int high = -1;
+    for (int i = offset; i < offset + length; i++) {
+      char c = input.charAt(i);
+      if (c == ' ') {
+        continue;
+      }
+
+      int value = digit(c);
+      if (value < 0) {
+        return -1;
+      }
+
+      if (high < 0) {
+        high = value;
+      } else {
+        output[o++] = (byte) ((high << 4) | value);
+        high = -1;
+      }
+    }
+
+    return o - outputOffset;
+  }
+
+  /**
+   * @return the two digits as a byte value (0-255), or -1 if either is not a hex digit
+   */
+  private static int decodePair(char high, char low) {
+    if ((high | low) >= 128) {
+      return -1;
+    }
+
+    int h = DIGIT_VALUES[high];
+    int l = DIGIT_VALUES[low];
+    // A single negative value makes the whole result negative
+    return (h << 4) | l | (h >> 31) | (l >> 31);
+  }
+}
@@ -0,0 +1,501 @@
+package dukpt.util;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import dukpt.container.BDKResolver;
+import dukpt.container.BaseDerivationKey;
+import dukpt.model.DecryptionStatus;
+import dukpt.model.KSN;
+import dukpt.model.PinBlockFormat;
+
+/**
+ * Decryption, validation and translation of ISO 9564-1 PIN blocks (formats 0, 1, 3 and 4)
+ * encrypted under DUKPT or zone PIN keys.
+ *
+ * Formats 0, 1 and 3 are encrypted with TDES under the DUKPT PIN key of the transaction (see
+ * {@link DUKPTUtil#calculatePinKey(byte[], int, byte[], int)}) or a TDES {@link PinKey}; format 4
+ * with AES under the AES DUKPT PIN encryption key of the transaction or an AES {@link PinKey}. A
+ * translation decrypts the block, checks it against its format, moves the PIN field to the
+ * destination format and encrypts it under the destination key, without the PIN ever leaving the
+ * longs it is packed in. A PAN-bound block (formats 0, 3 and 4) is never translated to format 1.
+ *
+ * An engine keeps the key schedule of the source key, the scratch blocks and its random generator
+ * from a call to the next, so it must only be used by one thread at a time. Failures are reported
+ * as a {@link DecryptionStatus}, {@link DecryptionStatus#INVALID_PIN_BLOCK} whenever the decrypted
+ * block does not follow its format, whatever the reason (wrong key, wrong PAN or tampered block).
+ * {@link #translateAll(byte[], byte[], CharSequence[], PinBlockFormat, BDKResolver, PinKey,
+ * PinBlockFormat, byte[], ForkJoinPool)} translates many blocks at once, on one engine per thread.
+ */
+public final class PinBlockEngine {
+  // Number of blocks below which a task translates its blocks instead of splitting them further
+  private static final int SPLIT_THRESHOLD = 256;
+
+  private static final ThreadLocal<PinBlockEngine> ENGINE = new ThreadLocal<PinBlockEngine>() {
+    @Override
+    protected PinBlockEngine initialValue() {
+      return new PinBlockEngine();
+    }
+  };
+
+  // Random bytes are drawn in bulk, and from a generator of the engine's own: the default one
+  // of the JDK serializes all its callers on a global lock
+  private static final int RANDOM_POOL_LENGTH = 256;
+
+  private final SecureRandom random = newRandom();
+  private final byte[] randomPool = new byte[RANDOM_POOL_LENGTH];
+  private int randomPosition = RANDOM_POOL_LENGTH;
+  private final PinKey tdesSource = PinKey.tdesContext();
+  private final PinKey aesSource = PinKey.aesContext();
+  private final byte[] derivedKey = new byte[16];
+  private final byte[] ksn = new byte[KSN.LENGTH];
+  private final byte[] aesKSN = new byte[AESDUKPTUtil.KSN_LENGTH];
+  private final byte[] block = new byte[16];
+  private final byte[] panField = new byte[16];
+
+  // PAN field of formats 0 and 3 for the current call
+  private long panBits;
+  // Clear PIN field of the last block decrypted, and the 8 rightmost bytes of format 4
+  private long pinField;
+  private long pinFieldLow;
+  private int pinLength;
+
+  /**
+   * @return the engine bound to the calling thread
+   */
+  public static PinBlockEngine current() {
+    return ENGINE.get();
+  }
+
+  /**
+   * Decrypts a PIN block of format 0, 1 or 3 encrypted under the DUKPT PIN key of a transaction.
+   *
+   * @param pan
+   *          the PAN of the card, ignored by format 1
+   * @param pin
+   *          destination of the PIN digits, room for {@link PinBlockUtil#MAXIMUM_PIN_LENGTH}
+   * @see #getPinLength()
+   */
+  public DecryptionStatus decrypt(KSN ksn, BaseDerivationKey bdk, byte[] pinBlock,
+      int pinBlockOffset, PinBlockFormat format, CharSequence pan, char[] pin, int pinOffset) {
+    checkFormat(tdesSource, format, "decrypt");
+    if (!preparePAN(format, format, pan)) {
+      return DecryptionStatus.INVALID_DATA;
+    }
+
+    loadDUKPT(ksn, bdk);
+    return decryptPrepared(tdesSource, pinBlock, pinBlockOffset, format, pin, pinOffset);
+  }
+
+  /**
+   * Decrypts a PIN block encrypted under <code>key</code>.
+   *
+   * @see #decrypt(KSN, BaseDerivationKey, byte[], int, PinBlockFormat, CharSequence, char[], int)
+   */
+  public DecryptionStatus decrypt(PinKey key, byte[] pinBlock, int pinBlockOffset,
+      PinBlockFormat format, CharSequence pan, char[] pin, int pinOffset) {
+    checkFormat(key, format, "decrypt");
+    if (!preparePAN(format, format, pan)) {
+      return DecryptionStatus.INVALID_DATA;
+    }
+
+    return decryptPrepared(key, pinBlock, pinBlockOffset, format, pin, pinOffset);
+  }
+
+  private DecryptionStatus decryptPrepared(PinKey key, byte[] pinBlock, int pinBlockOffset,
+      PinBlockFormat format, char[] pin, int pinOffset) {
+    try {
+      DecryptionStatus status = decryptPinField(key, pinBlock, pinBlockOffset, format);
+      if (status == DecryptionStatus.SUCCESS) {
+        PinBlockUtil.pinDigits(pinField, pin, pinOffset);
+      }
+      return status;
+    } catch (GeneralSecurityException e) {
+      return DecryptionStatus.CRYPTO_ERROR;
+    } finally {
+      clear();
+    }
+  }
+
+  /**
+   * @return the number of PIN digits written by the last successful decryption
+   */
+  public int getPinLength() {
+    return pinLength;
+  }
+
+  /**
+   * Translates a PIN block of format 0, 1 or 3 encrypted under the DUKPT PIN key of a transaction
+   * to a block of format <code>to</code> encrypted under <code>destination</code>. Nothing is
+   * written to <code>output</code> unless the translation succeeds.
+   *
+   * @param pan
+   *          the PAN of the card, ignored if neither format is PAN-bound
+   * @param destination
+   *          zone PIN key, or the DUKPT PIN key of another transaction (see
+   *          {@link PinKey#dukpt(KSN, BaseDerivationKey)})
+   */
+  public DecryptionStatus translate(KSN ksn, BaseDerivationKey bdk, byte[] pinBlock,
+      int pinBlockOffset, PinBlockFormat from, CharSequence pan, PinKey destination,
+      PinBlockFormat to, byte[] output, int outputOffset) {
+    checkTranslation(tdesSource, from, destination, to, "translate");
+    if (!preparePAN(from, to, pan)) {
+      return DecryptionStatus.INVALID_DATA;
+    }
+
+    loadDUKPT(ksn, bdk);
+    return translatePrepared(tdesSource, pinBlock, pinBlockOffset, from, destination, to, output,
+        outputOffset);
+  }
+
+  /**
+   * Translates a PIN block encrypted under <code>source</code>, a zone PIN key or the PIN key of
+   * an AES DUKPT transaction (see {@link PinKey#aesDukpt(byte[], byte[])}).
+   *
+   * @see #translate(KSN, BaseDerivationKey, byte[], int, PinBlockFormat, CharSequence, PinKey,
+   *      PinBlockFormat, byte[], int)
+   */
+  public DecryptionStatus translate(PinKey source, byte[] pinBlock, int pinBlockOffset,
+      PinBlockFormat from, CharSequence pan, PinKey destination, PinBlockFormat to,
+      byte[] output, int outputOffset) {
+    checkTranslation(source, from, destination, to, "translate");
+    if (!preparePAN(from, to, pan)) {
+      return DecryptionStatus.INVALID_DATA;
+    }
+
+    return translatePrepared(source, pinBlock, pinBlockOffset, from, destination, to, output,
+        outputOffset);
+  }
+
+  private DecryptionStatus translatePrepared(PinKey source, byte[] pinBlock, int pinBlockOffset,
+      PinBlockFormat from, PinKey destination, PinBlockFormat to, byte[] output,
+      int outputOffset) {
+    try {
+      DecryptionStatus status = decryptPinField(source, pinBlock, pinBlockOffset, from);
+      if (status == DecryptionStatus.SUCCESS) {
+        encryptPinField(PinBlockUtil.reformat(pinField, to, fill(to)), to.isAES() ? nextRandom()
+            : 0, destination, to, output, outputOffset);
+      }
+      return status;
+    } catch (GeneralSecurityException e) {
+      return DecryptionStatus.CRYPTO_ERROR;
+    } finally {
+      clear();
+    }
+  }
+
+  /**
+   * Builds a PIN block of <code>format</code> and encrypts it under <code>key</code>, the way a
+   * PIN pad does.
+   *
+   * @return {@link DecryptionStatus#INVALID_DATA} if <code>pin</code> is not 4 to 12 digits or
+   *         the PAN is required and not 1 to 19 digits
+   */
+  public DecryptionStatus encrypt(CharSequence pin, PinBlockFormat format, CharSequence pan,
+      PinKey key, byte[] output, int outputOffset) {
+    checkFormat(key, format, "encrypt");
+
+    long field = PinBlockUtil.pinField(format, pin, fill(format));
+    if (field == -1 || !preparePAN(format, format, pan)) {
+      return DecryptionStatus.INVALID_DATA;
+    }
+
+    try {
+      encryptPinField(field, format.isAES() ? nextRandom() : 0, key, format, output,
+          outputOffset);
+      return DecryptionStatus.SUCCESS;
+    } catch (GeneralSecurityException e) {
+      return DecryptionStatus.CRYPTO_ERROR;
+    } finally {
+      clear();
+    }
+  }
+
+  private void loadDUKPT(KSN ksn, BaseDerivationKey bdk) {
+    DUKPTUtil.deriveKey(ksn, bdk, derivedKey, 0);
+    tdesSource.setDUKPT(derivedKey);
+    Arrays.fill(derivedKey, (byte) 0);
+  }
+
+  /**
+   * Computes the PAN fields of the formats that are bound to the PAN, once for the decryption and
+   * the encryption: {@link #panBits} for formats 0 and 3, {@link #panField} for format 4.
+   *
+   * @return false if <code>pan</code> is needed and not 1 to 19 digits
+   */
+  private boolean preparePAN(PinBlockFormat from, PinBlockFormat to, CharSequence pan) {
+    if ((from.isAES() || to.isAES()) && !PinBlockUtil.iso4PanField(pan, panField, 0)) {
+      return false;
+    }
+
+    panBits = 0;
+    if ((from.isPANBound() && !from.isAES()) || (to.isPANBound() && !to.isAES())) {
+      panBits = PinBlockUtil.panField(pan);
+    }
+    return panBits >= 0;
+  }
+
+  /**
+   * Decrypts the block into {@link #pinField}, {@link #pinFieldLow} and {@link #pinLength}.
+   */
+  private DecryptionStatus decryptPinField(PinKey key, byte[] pinBlock, int pinBlockOffset,
+      PinBlockFormat format) throws GeneralSecurityException {
+    pinLength = -1;
+    if (format.isAES()) {
+      key.decryptBlock(pinBlock, pinBlockOffset, block, 0);
+      ByteArrayUtil.xor(block, 0, panField, 0, block, 0, 16);
+      key.decryptBlock(block, 0, block, 0);
+      pinField = ByteArrayUtil.toLong(block, 0);
+      pinFieldLow = ByteArrayUtil.toLong(block, 8);
+    } else {
+      long pan = format.isPANBound() ? panBits : 0;
+      pinField = key.decrypt(ByteArrayUtil.toLong(pinBlock, pinBlockOffset)) ^ pan;
+    }
+
+    pinLength = PinBlockUtil.pinLength(format, pinField);
+    return pinLength < 0 ? DecryptionStatus.INVALID_PIN_BLOCK : DecryptionStatus.SUCCESS;
+  }
+
+  /**
+   * @param fieldLow
+   *          the 8 rightmost bytes of a format 4 PIN field, random
+   */
+  private void encryptPinField(long field, long fieldLow, PinKey key, PinBlockFormat format,
+      byte[] output, int outputOffset) throws GeneralSecurityException {
+    if (format.isAES()) {
+      ByteArrayUtil.putLong(field, block, 0);
+      ByteArrayUtil.putLong(fieldLow, block, 8);
+      key.encryptBlock(block, 0, block, 0);
+      ByteArrayUtil.xor(block, 0, panField, 0, block, 0, 16);
+      key.encryptBlock(block, 0, output, outputOffset);
+    } else {
+      long pan = format.isPANBound() ? panBits : 0;
+      ByteArrayUtil.putLong(key.encrypt(field ^ pan), output, outputOffset);
+    }
+  }
+
+  /**
+   * @return random bits for the fill of a PIN field of <code>format</code>
+   */
+  private long fill(PinBlockFormat format) {
+    return format == PinBlockFormat.ISO_1 || format == PinBlockFormat.ISO_3 ? nextRandom() : 0;
+  }
+
+  private long nextRandom() {
+    if (randomPosition == RANDOM_POOL_LENGTH) {
+      random.nextBytes(randomPool);
+      randomPosition = 0;
+    }
+
+    long value = ByteArrayUtil.toLong(randomPool, randomPosition);
+    randomPosition += 8;
+    return value;
+  }
+
+  private static SecureRandom newRandom() {
+    try {
+      return SecureRandom.getInstance("DRBG");
+    } catch (NoSuchAlgorithmException e) {
+      return new SecureRandom();
+    }
+  }
+
+  private void clear() {
+    pinField = 0;
+    pinFieldLow = 0;
+    Arrays.fill(block, (byte) 0);
+  }
+
+  private static void checkFormat(PinKey key, PinBlockFormat format, String method) {
+    if (!key.supports(format)) {
+      throw new IllegalArgumentException("@ PinBlockEngine." + method + "(). Format " + format
+          + " requires " + (format.isAES() ? "an AES" : "a TDES") + " key.");
+    }
+  }
+
+  private static void checkTranslation(PinKey source, PinBlockFormat from, PinKey destination,
+      PinBlockFormat to, String method) {
+    checkFormat(source, from, method);
+    checkFormat(destination, to, method);
+    checkPANBinding(from, to, method);
+  }
+
+  private static void checkPANBinding(PinBlockFormat from, PinBlockFormat to, String method) {
+    if (from.isPANBound() && !to.isPANBound()) {
+      throw new IllegalArgumentException("@ PinBlockEngine." + method + "(). A " + from
+          + " PIN block must not be translated to " + to + ", which is not bound to the PAN.");
+    }
+  }
+
+  // Batch translation
+
+  public static DecryptionStatus[] translateAll(byte[] ksns, byte[] pinBlocks, CharSequence[] pans,
+      PinBlockFormat from, BDKResolver resolver, PinKey destination, PinBlockFormat to,
+      byte[] output) {
+    return translateAll(ksns, pinBlocks, pans, from, resolver, destination, to, output,
+        ForkJoinPool.commonPool());
+  }
+
+  /**
+   * Translates many PIN blocks to the same destination key, in parallel. Each thread of the pool
+   * keeps its own engine, so the source keys are derived in place (through
+   * {@link dukpt.container.IPEKCache}), <code>destination</code> is expanded once for the whole
+   * batch, and the blocks are read from and written to flat arrays, without any per-block object.
+   *
+   * @param ksns
+   *          the KSNs of the blocks, one after the other: 10 bytes DUKPT KSNs for formats 0, 1 and 3,
+   *          12 bytes AES DUKPT KSNs for format 4
+   * @param pinBlocks
+   *          the encrypted blocks of format <code>from</code>, one after the other
+   * @param pans
+   *          the PAN of each block, null if neither format is PAN-bound
+   * @param resolver
+   *          gives the BDK of each device, through {@link BDKResolver#getAESBDKId(byte[])} for
+   *          12 bytes AES DUKPT KSNs
+   * @param output
+   *          destination of the translated blocks of format <code>to</code>, one after the other.
+   *          The block of a failed translation is zeroed.
+   * @return the status of each block
+   */
+  public static DecryptionStatus[] translateAll(byte[] ksns, byte[] pinBlocks, CharSequence[] pans,
+      PinBlockFormat from, BDKResolver resolver, PinKey destination, PinBlockFormat to,
+      byte[] output, ForkJoinPool pool) {
+    int ksnLength = from.isAES() ? AESDUKPTUtil.KSN_LENGTH : KSN.LENGTH;
+    int count = ksns.length / ksnLength;
+    if (ksns.length % ksnLength != 0) {
+      throw new IllegalArgumentException(
+          "@ PinBlockEngine.translateAll(). Parameter <ksns> must be a multiple of " + ksnLength
+              + " bytes long, but was " + ksns.length + ".");
+    }
+    if (pinBlocks.length != count * from.getBlockLength()) {
+      throw new IllegalArgumentException(
+          "@ PinBlockEngine.translateAll(). Parameter <pinBlocks> must be "
+              + count * from.getBlockLength() + " bytes long, but was " + pinBlocks.length + ".");
+    }
+    if (output.length < count * to.getBlockLength()) {
+      throw new IllegalArgumentException(
+          "@ PinBlockEngine.translateAll(). Parameter <output> must be at least "
+              + count * to.getBlockLength() + " bytes long, but was " + output.length + ".");
+    }
+    if ((from.isPANBound() || to.isPANBound()) && (pans == null || pans.length != count)) {
+      throw new IllegalArgumentException(
+          "@ PinBlockEngine.translateAll(). Parameter <pans> must hold " + count
+              + " PANs, but was " + (pans == null ? "null" : String.valueOf(pans.length)) + ".");
+    }
+    checkFormat(destination, to, "translateAll");
+    checkPANBinding(from, to, "translateAll");
+
+    DecryptionStatus[] statuses = new DecryptionStatus[count];
+    pool.invoke(new TranslateTask(new Batch(ksns, pinBlocks, pans, from, resolver, destination, to,
+        output, statuses), 0, count));
+    return statuses;
+  }
+
+  /**
+   * Translates the block <code>index</code> of a batch.
+   */
+  private DecryptionStatus translate(Batch batch, int index) {
+    PinBlockFormat from = batch.from;
+    CharSequence pan = batch.pans == null ? null : batch.pans[index];
+    byte[] ksn = from.isAES() ? aesKSN : this.ksn;
+    System.arraycopy(batch.ksns, index * ksn.length, ksn, 0, ksn.length);
+
+    String bdkId = from.isAES() ? batch.resolver.getAESBDKId(ksn)
+        : batch.resolver.getBDKId(ksn);
+    byte[] bdk = bdkId == null ? null : batch.resolver.getBDK(bdkId);
+    if (bdk == null) {
+      return DecryptionStatus.UNKNOWN_BDK;
+    }
+    if (!preparePAN(from, batch.to, pan)) {
+      return DecryptionStatus.INVALID_DATA;
+    }
+
+    PinKey source;
+    try {
+      if (from.isAES()) {
+        aesSource.setAESDUKPT(ksn, bdkId, bdk);
+        source = aesSource;
+      } else {
+        DUKPTUtil.deriveKey(ksn, bdkId, bdk, derivedKey, 0);
+        tdesSource.setDUKPT(derivedKey);
+        source = tdesSource;
+      }
+    } catch (InvalidKeyException e) {
+      return DecryptionStatus.INVALID_BDK;
+    } catch (GeneralSecurityException e) {
+      return DecryptionStatus.CRYPTO_ERROR;
+    } finally {
+      Arrays.fill(derivedKey, (byte) 0);
+    }
+
+    return translatePrepared(source, batch.pinBlocks, index * from.getBlockLength(), from,
+        batch.destination, batch.to, batch.output, index * batch.to.getBlockLength());
+  }
+
+  /**
+   * The parameters of a batch, shared by all its tasks.
+   */
+  private static final class Batch {
+    final byte[] ksns;
+    final byte[] pinBlocks;
+    final CharSequence[] pans;
+    final PinBlockFormat from;
+    final BDKResolver resolver;
+    final PinKey destination;
+    final PinBlockFormat to;
+    final byte[] output;
+    final DecryptionStatus[] statuses;
+
+    Batch(byte[] ksns, byte[] pinBlocks, CharSequence[] pans, PinBlockFormat from,
+        BDKResolver resolver, PinKey destination, PinBlockFormat to, byte[] output,
+        DecryptionStatus[] statuses) {
+      this.ksns = ksns;
+      this.pinBlocks = pinBlocks;
+      this.pans = pans;
+      this.from = from;
+      this.resolver = resolver;
+      this.destination = destination;
+      this.to = to;
+      this.output = output;
+      this.statuses = statuses;
+    }
+  }
+
+  private static final class TranslateTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Batch batch;
+    private final int from;
+    private final int to;
+
+    TranslateTask(Batch batch, int from, int to) {
+      this.batch = batch;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > SPLIT_THRESHOLD) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new TranslateTask(batch, from, middle), new TranslateTask(batch, middle, to));
+        return;
+      }
+
+      PinBlockEngine engine = current();
+      int blockLength = batch.to.getBlockLength();
+      for (int i = from; i < to; i++) {
+        DecryptionStatus status = engine.translate(batch, i);
+        if (status != DecryptionStatus.SUCCESS) {
+          Arrays.fill(batch.output, i * blockLength, (i + 1) * blockLength, (byte) 0);
+        }
+        batch.statuses[i] = status;
+      }
+    }
+  }
+}
@@ -0,0 +1,216 @@
+package dukpt.util;
+
+import dukpt.model.PinBlockFormat;
+
+/**
+ * Clear ISO 9564-1 PIN blocks, packed in longs: building, validating and reformatting the PIN
+ * field, and the PAN fields it is combined with. Encryption is left to {@link PinBlockEngine}.
+ *
+ * The PIN field of formats 0, 1 and 3, and the 8 leftmost bytes of the one of format 4, share the
+ * same layout, one nibble per digit:
+ * <pre>
+ * C | L | P P P P (P...) | fill
+ * </pre>
+ * where C is the format, L the number of PIN digits (4 to 12) and P the digits. Only the fill and
+ * C change from a format to another, so a PIN field can be reformatted without its digits ever
+ * leaving the long.
+ */
+public final class PinBlockUtil {
+  public static final int MINIMUM_PIN_LENGTH = 4;
+  public static final int MAXIMUM_PIN_LENGTH = 12;
+  public static final int MAXIMUM_PAN_LENGTH = 19;
+
+  // Digits of the PAN of formats 0 and 3, excluding its check digit
+  private static final int PAN_FIELD_DIGITS = 12;
+  private static final long ISO_4_FILL = 0xAAAAAAAAAAAAAAAAL;
+
+  private PinBlockUtil() {
+  }
+
+  /**
+   * @param random
+   *          source of the random fill of formats 1, 3 and 4, ignored by format 0
+   * @return the clear PIN field (the 8 leftmost bytes for format 4), or -1 if <code>pin</code> is
+   *         not 4 to 12 decimal digits
+   */
+  public static long pinField(PinBlockFormat format, CharSequence pin, long random) {
+    int length = pin.length();
+    if (length < MINIMUM_PIN_LENGTH || length > MAXIMUM_PIN_LENGTH) {
+      return -1;
+    }
+
+    long field = ((long) format.getControl() << 60) | ((long) length << 56);
+    for (int i = 0; i < length; i++) {
+      int digit = pin.charAt(i) - '0';
+      if (digit < 0 || digit > 9) {
+        return -1;
+      }
+      field |= (long) digit << (52 - 4 * i);
+    }
+
+    return field | fill(format, length, random);
+  }
+
+  /**
+   * Checks the clear PIN field against its format: control field, PIN length, decimal digits and
+   * fill (all F for format 0, A to F for format 3, all A for format 4, anything for format 1).
+   * 
+   * @return the number of PIN digits, or -1 if the field does not follow <code>format</code>
+   */
+  public static int pinLength(PinBlockFormat format, long pinField) {
+    if ((int) (pinField >>> 60) != format.getControl()) {
+      return -1;
+    }
+
+    int length = (int) (pinField >>> 56) & 0xF;
+    if (length < MINIMUM_PIN_LENGTH || length > MAXIMUM_PIN_LENGTH) {
+      return -1;
+    }
+
+    for (int i = 0; i < length; i++) {
+      if (((pinField >>> (52 - 4 * i)) & 0xF) > 9) {
+        return -1;
+      }
+    }
+
+    int fillBits = 56 - 4 * length;
+    long fill = pinField & ((1L << fillBits) - 1);
+    switch (format) {
+    case ISO_0:
+      return fill == (1L << fillBits) - 1 ? length : -1;
+    case ISO_3:
+      for (int shift = 0; shift < fillBits; shift += 4) {
+        if (((fill >>> shift) & 0xF) < 0xA) {
+          return -1;
+        }
+      }
+      return length;
+    case ISO_4:
+      return fill == (ISO_4_FILL & ((1L << fillBits) - 1)) ? length : -1;
+    default:
+      return length;
+    }
+  }
+
+  /**
+   * Writes the PIN digits of a valid PIN field, as characters.
+   * 
+   * @return the number of digits written
+   */
+  public static int pinDigits(long pinField, char[] pin, int offset) {
+    int length = (int) (pinField >>> 56) & 0xF;
+    for (int i = 0; i < length; i++) {
+      pin[offset + i] = (char) ('0' + ((pinField >>> (52 - 4 * i)) & 0xF));
+    }
+
+    return length;
+  }
+
+  /**
+   * @param pinField
+   *          valid PIN field of any format, see {@link #pinLength(PinBlockFormat, long)}
+   * @return the same PIN in a PIN field of format <code>to</code>
+   */
+  public static long reformat(long pinField, PinBlockFormat to, long random) {
+    int length = (int) (pinField >>> 56) & 0xF;
+    long lengthAndDigits = pinField & (((1L << (4 + 4 * length)) - 1) << (56 - 4 * length));
+    return ((long) to.getControl() << 60) | lengthAndDigits | fill(to, length, random);
+  }
+
+  private static long fill(PinBlockFormat format, int length, long random) {
+    int fillBits = 56 - 4 * length;
+    long mask = (1L << fillBits) - 1;
+    switch (format) {
+    case ISO_0:
+      return mask;
+    case ISO_1:
+      return random & mask;
+    case ISO_3:
+      long fill = 0;
+      for (int shift = 0; shift < fillBits; shift += 4) {
+        // A to F, slightly biased towards A and B, which the format does not care about
+        fill |= (0xAL + (((random >>> shift) & 0xF) % 6)) << shift;
+      }
+      return fill;
+    default:
+      return ISO_4_FILL & mask;
+    }
+  }
+
+  /**
+   * @return the PAN field of formats 0 and 3: the 12 rightmost digits of the PAN, excluding its
+   *         check digit, left padded with zeros, or -1 if <code>pan</code> is not 1 to 19 decimal
+   *         digits
+   */
+  public static long panField(CharSequence pan) {
+    int length = pan == null ? 0 : pan.length();
+    if (length < 1 || length > MAXIMUM_PAN_LENGTH) {
+      return -1;
+    }
+
+    long field = 0;
+    for (int i = 0; i < length; i++) {
+      int digit = pan.charAt(i) - '0';
+      if (digit < 0 || digit > 9) {
+        return -1;
+      }
+      // The first digits and the check digit fall off the field
+      if (i >= length - 1 - PAN_FIELD_DIGITS && i < length - 1) {
+        field = (field << 4) | digit;
+      }
+    }
+
+    return field;
+  }
+
+  /**
+   * Writes the 16 bytes PAN field of format 4: the number of PAN digits beyond 12, then the whole
+   * PAN (left padded with zeros to 12 digits if shorter), then zeros.
+   * 
+   * @return false if <code>pan</code> is not 1 to 19 decimal digits, in which case
+   *         <code>field</code> is left untouched
+   */
+  public static boolean iso4PanField(CharSequence pan, byte[] field, int offset) {
+    int length = pan == null ? 0 : pan.length();
+    if (length < 1 || length > MAXIMUM_PAN_LENGTH) {
+      return false;
+    }
+
+    int padding = Math.max(0, PAN_FIELD_DIGITS - length);
+    long high = (long) Math.max(0, length - PAN_FIELD_DIGITS) << 60;
+    long low = 0;
+    for (int i = 0; i < length; i++) {
+      long digit = pan.charAt(i) - '0';
+      if (digit < 0 || digit > 9) {
+        return false;
+      }
+
+      int nibble = 1 + padding + i;
+      if (nibble < 16) {
+        high |= digit << (60 - 4 * nibble);
+      } else {
+        low |= digit << (60 - 4 * (nibble - 16));
+      }
+    }
+
+    ByteArrayUtil.putLong(high, field, offset);
+    ByteArrayUtil.putLong(low, field, offset + 8);
+    return true;
+  }
+
+  /**
+   * Tells, without any key work, whether a translation from <code>from</code> to <code>to</code>
+   * has the PAN it needs: <code>pan</code> must be 1 to 19 decimal digits if either format is bound
+   * to the PAN, and is ignored otherwise.
+   */
+  public static boolean checkPAN(PinBlockFormat from, PinBlockFormat to, CharSequence pan) {
+    if ((from.isAES() || to.isAES()) && !iso4PanField(pan, new byte[16], 0)) {
+      return false;
+    }
+
+    if ((from.isPANBound() && !from.isAES()) || (to.isPANBound() && !to.isAES())) {
+      return panField(pan) >= 0;
+    }
+    return true;
+  }
+}
@@ -0,0 +1,155 @@
+package dukpt.util;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+import dukpt.container.BaseDerivationKey;
+import dukpt.model.KSN;
+import dukpt.model.KeyType;
+import dukpt.model.KeyUsage;
+import dukpt.model.PinBlockFormat;
+
+/**
+ * A key PIN blocks are encrypted under, ready to use: a TDES key, kept as its expanded schedule,
+ * for formats 0, 1 and 3, or an AES key for format 4. Zone PIN keys are created once and shared by
+ * any number of translations and threads; {@link #destroy()} zeroes them once they are not needed
+ * any more.
+ */
+public final class PinKey {
+  // TDES keys only
+  private final int[] schedule;
+  // AES keys only
+  private final byte[] aesKey;
+
+  private PinKey(int[] schedule, byte[] aesKey) {
+    this.schedule = schedule;
+    this.aesKey = aesKey;
+  }
+
+  /**
+   * @param key
+   *          16 (K1|K2, K3 = K1) or 24 (K1|K2|K3) bytes TDES key
+   */
+  public static PinKey tdes(byte[] key) throws InvalidKeyException {
+    return new PinKey(DESEngine.expandTripleKey(key), null);
+  }
+
+  /**
+   * @param key
+   *          16, 24 or 32 bytes AES key
+   */
+  public static PinKey aes(byte[] key) throws InvalidKeyException {
+    if (key.length != 16 && key.length != 24 && key.length != 32) {
+      throw new InvalidKeyException(
+          "@ PinKey.aes(). Parameter <key> must be 16, 24 or 32 bytes long, but was "
+              + key.length + ".");
+    }
+
+    return new PinKey(null, key.clone());
+  }
+
+  /**
+   * @return the DUKPT PIN key of a transaction, see
+   *         {@link DUKPTUtil#calculatePinKey(byte[], int, byte[], int)}
+   */
+  public static PinKey dukpt(KSN ksn, BaseDerivationKey bdk) {
+    PinKey key = tdesContext();
+    byte[] derivedKey = new byte[16];
+    try {
+      DUKPTUtil.deriveKey(ksn, bdk, derivedKey, 0);
+      key.setDUKPT(derivedKey);
+    } finally {
+      Arrays.fill(derivedKey, (byte) 0);
+    }
+
+    return key;
+  }
+
+  /**
+   * @param ksn
+   *          12 bytes AES DUKPT KSN
+   * @param bdk
+   *          16, 24 or 32 bytes AES BDK
+   * @return the AES-128 PIN encryption key of a transaction, see
+   *         {@link AESDUKPTUtil#deriveWorkingKey(byte[], byte[], KeyUsage, KeyType)}
+   */
+  public static PinKey aesDukpt(byte[] ksn, byte[] bdk) throws GeneralSecurityException {
+    return new PinKey(null, AESDUKPTUtil.deriveWorkingKey(bdk, ksn, KeyUsage.PIN_ENCRYPTION,
+        KeyType.AES_128));
+  }
+
+  /**
+   * @return a TDES key to be set by {@link #setDUKPT(byte[])}, reused from a transaction to the next
+   */
+  static PinKey tdesContext() {
+    return new PinKey(new int[DESEngine.TRIPLE_SCHEDULE_LENGTH], null);
+  }
+
+  /**
+   * @return an AES-128 key to be set by {@link #setAESDUKPT(byte[], String, byte[])}
+   */
+  static PinKey aesContext() {
+    return new PinKey(null, new byte[16]);
+  }
+
+  /**
+   * Sets this TDES key to the PIN key of a DUKPT derived key, which is overwritten with it.
+   */
+  void setDUKPT(byte[] derivedKey) {
+    DUKPTUtil.calculatePinKey(derivedKey, 0, derivedKey, 0);
+    long k1 = ByteArrayUtil.toLong(derivedKey, 0);
+    DESEngine.expandTripleKey(k1, ByteArrayUtil.toLong(derivedKey, 8), k1, schedule, 0);
+  }
+
+  /**
+   * Sets this AES-128 key to the PIN encryption key of an AES DUKPT transaction, through
+   * {@link dukpt.container.IPEKCache#getAESInstance()}.
+   */
+  void setAESDUKPT(byte[] ksn, String bdkId, byte[] bdk) throws GeneralSecurityException {
+    AESDUKPTUtil.deriveWorkingKey(ksn, bdkId, bdk, KeyUsage.PIN_ENCRYPTION, KeyType.AES_128,
+        aesKey, 0);
+  }
+
+  public boolean isAES() {
+    return aesKey != null;
+  }
+
+  /**
+   * @return true if PIN blocks of <code>format</code> can be encrypted under this key
+   */
+  public boolean supports(PinBlockFormat format) {
+    return format.isAES() == isAES();
+  }
+
+  /**
+   * Zeroes the key. It must not be used afterwards.
+   */
+  public void destroy() {
+    if (schedule != null) {
+      Arrays.fill(schedule, 0);
+    } else {
+      Arrays.fill(aesKey, (byte) 0);
+    }
+  }
+
+  long encrypt(long block) {
+    return DESEngine.tdesEncrypt(block, schedule, 0);
+  }
+
+  long decrypt(long block) {
+    return DESEngine.tdesDecrypt(block, schedule, 0);
+  }
+
+  void encryptBlock(byte[] input, int inputOffset, byte[] output, int outputOffset)
+      throws GeneralSecurityException {
+    AESCipherContext.current().encryptBlock(aesKey, 0, aesKey.length, input, inputOffset, output,
+        outputOffset);
+  }
+
+  void decryptBlock(byte[] input, int inputOffset, byte[] output, int outputOffset)
+      throws GeneralSecurityException {
+    // A single block with a zero IV is ECB
+    AESCipherContext.current().cbcDecrypt(input, inputOffset, 16, aesKey, output, outputOffset);
+  }
+}
@@ -0,0 +1,316 @@
+package dukpt.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.security.InvalidKeyException;
+import java.util.Arrays;
+
+/**
+ * Incremental ISO 9797-1 MAC Algorithm 3 (the ANSI X9.19 retail MAC) with a double-length DES key
+ * K1|K2: DES CBC-MAC under K1 over the padded message, then the last block is decrypted with K2 and
+ * encrypted with K1 again.
+ *
+ * The message is fed in any number of {@link #update(byte[], int, int)},
+ * {@link #update(ByteBuffer)} or {@link #update(ReadableByteChannel)} calls and is never buffered
+ * beyond the last 8 bytes, which are only processed once it is known whether they are the final
+ * block. Apart from the read buffer {@link #update(ReadableByteChannel)} allocates on its first
+ * call, an instance never allocates, so it is meant to be kept per thread or per connection and
+ * reused for every message with {@link #init(byte[], int)} and {@link #doFinal()}. Instances are
+ * not thread safe.
+ *
+ * With DUKPT, devices MAC their requests with the request variant of the transaction key and
+ * hosts MAC their responses with the response variant, see
+ * {@link DUKPTUtil#calculateRequestMacKey(byte[], int, byte[], int)} and
+ * {@link DUKPTUtil#calculateResponseMacKey(byte[], int, byte[], int)}.
+ */
+public final class RetailMAC {
+  public static final int MAC_LENGTH = 8;
+
+  private static final int KEY_LENGTH = 16;
+  private static final int CHANNEL_BUFFER_SIZE = 8192;
+
+  /**
+   * ISO 9797-1 padding methods.
+   */
+  public enum Padding {
+    // Zeros up to a multiple of 8 bytes; an empty message is one block of zeros
+    METHOD_1,
+    // A single 1 bit (0x80), then zeros up to a multiple of 8 bytes
+    METHOD_2
+  }
+
+  private final Padding padding;
+  // K1 schedule, then K2 schedule
+  private final int[] schedule = new int[2 * DESEngine.SCHEDULE_LENGTH];
+  // The MAC key variant is computed here when initialized from a derived key
+  private final byte[] key = new byte[KEY_LENGTH];
+  // The last 0 to 8 bytes of the message, not processed yet
+  private final byte[] buffer = new byte[8];
+  private ByteBuffer channelBuffer;
+  // IP-permuted CBC chaining value, see DESEngine.cbcMacStep
+  private long chain;
+  private int buffered;
+  private boolean initialized;
+
+  public RetailMAC(Padding padding) {
+    if (padding == null) {
+      throw new IllegalArgumentException(
+          "@ RetailMAC.RetailMAC(). Parameter <padding> must not be null.");
+    }
+
+    this.padding = padding;
+  }
+
+  public Padding getPadding() {
+    return padding;
+  }
+
+  /**
+   * Starts a new message.
+   *
+   * @param key
+   *          16 bytes K1|K2 key, from <code>offset</code> (parity bits are ignored)
+   */
+  public void init(byte[] key, int offset) throws InvalidKeyException {
+    if (offset < 0 || key.length - offset < KEY_LENGTH) {
+      throw new InvalidKeyException(
+          "@ RetailMAC.init(). Parameter <key> must hold 16 bytes from offset " + offset
+              + ", but was " + key.length + " bytes long.");
+    }
+
+    init(ByteArrayUtil.toLong(key, offset), ByteArrayUtil.toLong(key, offset + 8));
+  }
+
+  /**
+   * Starts a new message.
+   *
+   * @param k1
+   *          left half of the key, big-endian
+   * @param k2
+   *          right half of the key, big-endian
+   */
+  public void init(long k1, long k2) {
+    DESEngine.expandKey(k1, schedule, 0);
+    DESEngine.expandKey(k2, schedule, DESEngine.SCHEDULE_LENGTH);
+    initialized = true;
+    reset();
+  }
+
+  /**
+   * Starts a new message MACed with the request variant of a DUKPT transaction key.
+   *
+   * @param derivedKey
+   *          16 bytes, output of {@link DUKPTUtil#deriveKey(byte[], byte[])} or its overloads
+   */
+  public void initRequest(byte[] derivedKey, int offset) throws InvalidKeyException {
+    checkDerivedKey(derivedKey, offset, "initRequest");
+    DUKPTUtil.calculateRequestMacKey(derivedKey, offset, key, 0);
+    initFromKey();
+  }
+
+  /**
+   * Starts a new message MACed with the response variant of a DUKPT transaction key.
+   *
+   * @param derivedKey
+   *          16 bytes, output of {@link DUKPTUtil#deriveKey(byte[], byte[])} or its overloads
+   */
+  public void initResponse(byte[] derivedKey, int offset) throws InvalidKeyException {
+    checkDerivedKey(derivedKey, offset, "initResponse");
+    DUKPTUtil.calculateResponseMacKey(derivedKey, offset, key, 0);
+    initFromKey();
+  }
+
+  public void update(byte[] input) {
+    update(input, 0, input.length);
+  }
+
+  public void update(byte[] input, int offset, int length) {
+    checkInitialized("update");
+    int end = offset + length;
+
+    if (buffered > 0) {
+      while (buffered < 8 && offset < end) {
+        buffer[buffered++] = input[offset++];
+      }
+      if (offset == end) {
+        return;
+      }
+      processBuffer();
+    }
+
+    // The last block, full or not, is kept for doFinal
+    for (; end - offset > 8; offset += 8) {
+      chain = DESEngine.cbcMacStep(chain, ByteArrayUtil.toLong(input, offset), schedule, 0);
+    }
+    System.arraycopy(input, offset, buffer, 0, end - offset);
+    buffered = end - offset;
+  }
+
+  /**
+   * MACs the remaining bytes of <code>input</code>, leaving its position at its limit. Direct and
+   * read-only buffers are read in place, whatever their byte order.
+   */
+  public void update(ByteBuffer input) {
+    checkInitialized("update");
+    if (input.hasArray()) {
+      update(input.array(), input.arrayOffset() + input.position(), input.remaining());
+      input.position(input.limit());
+      return;
+    }
+
+    int position = input.position();
+    int limit = input.limit();
+
+    if (buffered > 0) {
+      while (buffered < 8 && position < limit) {
+        buffer[buffered++] = input.get(position++);
+      }
+      if (position == limit) {
+        input.position(position);
+        return;
+      }
+      processBuffer();
+    }
+
+    boolean bigEndian = input.order() == ByteOrder.BIG_ENDIAN;
+    for (; limit - position > 8; position += 8) {
+      long block = input.getLong(position);
+      chain = DESEngine.cbcMacStep(chain, bigEndian ? block : Long.reverseBytes(block), schedule, 0);
+    }
+    while (position < limit) {
+      buffer[buffered++] = input.get(position++);
+    }
+    input.position(position);
+  }
+
+  /**
+   * MACs what <code>channel</code> has to read, up to the end of stream or, for a non-blocking
+   * channel, until it has no bytes available. The channel is not closed.
+   *
+   * @return the number of bytes read
+   */
+  public long update(ReadableByteChannel channel) throws IOException {
+    checkInitialized("update");
+    if (channelBuffer == null) {
+      channelBuffer = ByteBuffer.allocate(CHANNEL_BUFFER_SIZE);
+    }
+
+    long total = 0;
+    int read;
+    while ((read = channel.read(channelBuffer)) > 0) {
+      channelBuffer.flip();
+      update(channelBuffer);
+      channelBuffer.clear();
+      total += read;
+    }
+
+    return total;
+  }
+
+  /**
+   * Pads and finishes the message, and resets for a new message with the same key.
+   *
+   * @return the 8 byte MAC, big-endian
+   */
+  public long doFinal() {
+    checkInitialized("doFinal");
+    long last;
+    if (padding == Padding.METHOD_2) {
+      if (buffered == 8) {
+        processBuffer();
+      }
+      buffer[buffered] = (byte) 0x80;
+      Arrays.fill(buffer, buffered + 1, 8, (byte) 0);
+    } else {
+      Arrays.fill(buffer, buffered, 8, (byte) 0);
+    }
+    last = ByteArrayUtil.toLong(buffer, 0);
+
+    long mac = DESEngine.retailMacFinal(chain, last, schedule, 0, DESEngine.SCHEDULE_LENGTH);
+    reset();
+    return mac;
+  }
+
+  /**
+   * Same as {@link #doFinal()}, writing the leftmost <code>length</code> bytes of the MAC (4 for
+   * the usual ANSI X9.19 MACs) into <code>output</code>.
+   */
+  public void doFinal(byte[] output, int offset, int length) {
+    checkMacLength(length, "doFinal");
+    long mac = doFinal();
+    for (int i = 0; i < length; i++) {
+      output[offset + i] = (byte) (mac >>> (56 - 8 * i));
+    }
+  }
+
+  /**
+   * Finishes the message, as {@link #doFinal()}, and compares its MAC with the leftmost
+   * <code>length</code> bytes of <code>mac</code> in constant time.
+   */
+  public boolean verify(byte[] mac, int offset, int length) {
+    checkMacLength(length, "verify");
+    long computed = doFinal();
+    int difference = 0;
+    for (int i = 0; i < length; i++) {
+      difference |= (mac[offset + i] ^ (int) (computed >>> (56 - 8 * i))) & 0xFF;
+    }
+
+    return difference == 0;
+  }
+
+  /**
+   * Drops the message in progress, keeping the key.
+   */
+  public void reset() {
+    chain = 0;
+    buffered = 0;
+    Arrays.fill(buffer, (byte) 0);
+  }
+
+  /**
+   * Zeroes the key and the message state. The instance must be initialized again before it is used.
+   */
+  public void destroy() {
+    reset();
+    Arrays.fill(schedule, 0);
+    Arrays.fill(key, (byte) 0);
+    if (channelBuffer != null) {
+      Arrays.fill(channelBuffer.array(), (byte) 0);
+    }
+    initialized = false;
+  }
+
+  private void processBuffer() {
+    chain = DESEngine.cbcMacStep(chain, ByteArrayUtil.toLong(buffer, 0), schedule, 0);
+    buffered = 0;
+  }
+
+  private void initFromKey() {
+    init(ByteArrayUtil.toLong(key, 0), ByteArrayUtil.toLong(key, 8));
+    Arrays.fill(key, (byte) 0);
+  }
+
+  private void checkInitialized(String method) {
+    if (!initialized) {
+      throw new IllegalStateException("@ RetailMAC." + method + "(). No key, init() first.");
+    }
+  }
+
+  private static void checkDerivedKey(byte[] derivedKey, int offset, String method)
+      throws InvalidKeyException {
+    if (offset < 0 || derivedKey.length - offset < KEY_LENGTH) {
+      throw new InvalidKeyException("@ RetailMAC." + method
+          + "(). Parameter <derivedKey> must hold 16 bytes from offset " + offset + ", but was "
+          + derivedKey.length + " bytes long.");
+    }
+  }
+
+  private static void checkMacLength(int length, String method) {
+    if (length < 1 || length > MAC_LENGTH) {
+      throw new IllegalArgumentException("@ RetailMAC." + method
+          + "(). Parameter <length> must be between 1 and 8, but was " + length + ".");
+    }
+  }
+}
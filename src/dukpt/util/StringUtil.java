@@ -541,58 +541,35 @@ public class StringUtil
     if (null == hexString || offset < 0 || count < 2 || (offset + count) > hexString.length())
       return null;
 
-    byte[] buffer =  new byte[count >> 1];
-    int stringLength = offset + count;
-    int byteIndex = 0;
-    for(int i = offset; i < stringLength; i++)
+    // Fast path for plain digits, the lenient one for spaced strings and odd digit counts
+    if (count % 2 == 0 && hexString.charAt(offset) != ' ')
     {
-      char ch = hexString.charAt(i);
-      if (ch == ' ')
-        continue;
-      byte hex = isHexChar(ch);
-      if (hex < 0)
-        return null;
-      int shift = (byteIndex%2 == 1) ? 0 : 4;
-      buffer[byteIndex>>1] |= hex << shift;
-      byteIndex++;
-    }
-    byteIndex = byteIndex>>1;
-    if (byteIndex > 0) {
-      if (byteIndex < buffer.length) {
-        byte[] newBuff = new byte[byteIndex];
-        System.arraycopy(buffer, 0, newBuff, 0, byteIndex);
-        buffer = null;
-        return newBuff;
-      }
-    } else {
-      buffer = null;
+      byte[] buffer = new byte[count >> 1];
+      if (HexCodec.decode(hexString, offset, count, buffer, 0) >= 0)
+        return buffer;
     }
+
+    int byteCount = HexCodec.decodedLengthLenient(hexString, offset, count);
+    if (byteCount == 0)
+      return null;
+
+    byte[] buffer = new byte[byteCount];
+    if (HexCodec.decodeLenient(hexString, offset, count, buffer, 0) < 0)
+      return null;
     return buffer;
   }
   
-  private static void appendHex(StringBuffer stringbuffer, byte byte0)
-  {
-    stringbuffer.append(toHexChar(byte0 >> 4));
-    stringbuffer.append(toHexChar(byte0));
-  }
-
   public static String toHexString(byte abyte0[], int beginIndex, int endIndex, boolean spaceFlag)
   {
     if(null == abyte0)
       return null;
     if(0 == abyte0.length)
       return "";
-    StringBuffer sbuf = new StringBuffer();
-    appendHex(sbuf, abyte0[beginIndex]);
-    for(int i = (beginIndex + 1); i < endIndex; i++)
-    {
-      if (spaceFlag)
-        sbuf.append(' ');
-      appendHex(sbuf, abyte0[i]);
-    }
-    String returnString = sbuf.toString();
-    sbuf = null;
-    return returnString;
+    // The byte at beginIndex is always written
+    int length = Math.max(endIndex - beginIndex, 1);
+    if (spaceFlag)
+      return HexCodec.encodeSpaced(abyte0, beginIndex, length, true);
+    return HexCodec.encode(abyte0, beginIndex, length, true);
   }
 
   public static String toHexString(byte abyte0[], int beginIndex, int endIndex)
@@ -627,12 +604,7 @@ public class StringUtil
   }
   public static String toHexString(byte abyte0)
   {
-    StringBuffer sbuf = new StringBuffer();
-    appendHex(sbuf, abyte0);
-    
-    String returnString = sbuf.toString();
-    sbuf = null;
-    return returnString;
+    return HexCodec.encode(new byte[] { abyte0 }, true);
   }
 
   /**
@@ -0,0 +1,134 @@
+package dukpt.util;
+
+import java.util.Arrays;
+
+import dukpt.container.BaseDerivationKey;
+import dukpt.metrics.DUKPTMetrics;
+import dukpt.metrics.Stage;
+import dukpt.model.KSN;
+import dukpt.model.WorkingKey;
+
+/**
+ * The working keys of one transaction, derived together from a single
+ * {@link DUKPTUtil#deriveKey(KSN, BaseDerivationKey, byte[], int)} result: the derived key is read
+ * once, each requested key is its variant, and the one-way data keys share one scratch key
+ * schedule. Keys that were not requested cost nothing.
+ *
+ * A bundle is reused for every transaction of a thread: {@link #derive(byte[], int, int)} replaces
+ * the keys of the previous transaction and never allocates. Instances are not thread safe.
+ */
+public final class WorkingKeyBundle {
+  private static final int KEY_LENGTH = 16;
+  private static final WorkingKey[] KEYS = WorkingKey.values();
+
+  // One 16 byte slot per WorkingKey, in declaration order
+  private final byte[] keys = new byte[KEYS.length * KEY_LENGTH];
+  private final byte[] derivedKey = new byte[KEY_LENGTH];
+  private final int[] schedule = new int[2 * DESEngine.SCHEDULE_LENGTH];
+  private int derived;
+
+  /**
+   * Derives the transaction key of <code>ksn</code>, then its working keys in <code>mask</code>.
+   *
+   * @param mask
+   *          {@link WorkingKey#mask(WorkingKey...)} of the keys to derive
+   */
+  public void derive(KSN ksn, BaseDerivationKey bdk, int mask) {
+    try {
+      DUKPTUtil.deriveKey(ksn, bdk, derivedKey, 0);
+      derive(derivedKey, 0, mask);
+    } finally {
+      Arrays.fill(derivedKey, (byte) 0);
+    }
+  }
+
+  /**
+   * Derives the working keys in <code>mask</code> from the 16 bytes transaction key at
+   * <code>offset</code> of <code>derivedKey</code>. The keys of a previous derivation are dropped.
+   *
+   * @param mask
+   *          {@link WorkingKey#mask(WorkingKey...)} of the keys to derive
+   */
+  public void derive(byte[] derivedKey, int offset, int mask) {
+    if ((mask & ~((1 << KEYS.length) - 1)) != 0) {
+      throw new IllegalArgumentException(
+          "@ WorkingKeyBundle.derive(). Parameter <mask> must only have WorkingKey bits, but was 0x"
+              + Integer.toHexString(mask) + ".");
+    }
+
+    long start = DUKPTMetrics.start();
+    long derivedL = ByteArrayUtil.toLong(derivedKey, offset);
+    long derivedR = ByteArrayUtil.toLong(derivedKey, offset + 8);
+
+    for (WorkingKey key : KEYS) {
+      if ((mask & key.getBit()) == 0) {
+        continue;
+      }
+
+      long variant = DUKPTUtil.getVariant(key);
+      int keyOffset = key.ordinal() * KEY_LENGTH;
+      if (key == WorkingKey.DATA_REQUEST || key == WorkingKey.DATA_RESPONSE) {
+        DUKPTUtil.calculateOneWayKey(derivedL ^ variant, derivedR ^ variant, schedule, keys,
+            keyOffset);
+      } else {
+        ByteArrayUtil.putLong(derivedL ^ variant, keys, keyOffset);
+        ByteArrayUtil.putLong(derivedR ^ variant, keys, keyOffset + 8);
+      }
+    }
+    Arrays.fill(schedule, 0);
+
+    // Keys of the previous transaction that were not derived again must not leak through
+    for (WorkingKey key : KEYS) {
+      if ((mask & key.getBit()) == 0 && (derived & key.getBit()) != 0) {
+        Arrays.fill(keys, key.ordinal() * KEY_LENGTH, (key.ordinal() + 1) * KEY_LENGTH, (byte) 0);
+      }
+    }
+    derived = mask;
+    DUKPTMetrics.record(Stage.VARIANT, start);
+  }
+
+  public boolean contains(WorkingKey key) {
+    return (derived & key.getBit()) != 0;
+  }
+
+  /**
+   * Copies the 16 bytes of <code>key</code> into <code>output</code>, starting at
+   * <code>offset</code>.
+   */
+  public void getKey(WorkingKey key, byte[] output, int offset) {
+    checkDerived(key, "getKey");
+    System.arraycopy(keys, key.ordinal() * KEY_LENGTH, output, offset, KEY_LENGTH);
+  }
+
+  /**
+   * @return the left half of <code>key</code>, big-endian, e.g. for
+   *         {@link RetailMAC#init(long, long)}
+   */
+  public long getLeft(WorkingKey key) {
+    checkDerived(key, "getLeft");
+    return ByteArrayUtil.toLong(keys, key.ordinal() * KEY_LENGTH);
+  }
+
+  /**
+   * @return the right half of <code>key</code>, big-endian
+   */
+  public long getRight(WorkingKey key) {
+    checkDerived(key, "getRight");
+    return ByteArrayUtil.toLong(keys, key.ordinal() * KEY_LENGTH + 8);
+  }
+
+  /**
+   * Zeroes all the keys.
+   */
+  public void destroy() {
+    Arrays.fill(keys, (byte) 0);
+    derived = 0;
+  }
+
+  private void checkDerived(WorkingKey key, String method) {
+    if (!contains(key)) {
+      throw new IllegalStateException(
+          "@ WorkingKeyBundle." + method + "(). Key " + key + " was not derived.");
+    }
+  }
+}